@@ -10,10 +10,25 @@ NEAR_CFLAGS := $(LOCAL_CFLAGS)
 OPENCV_CAMERA_MODULES:=off
 
 LOCAL_MODULE    := feature_comparison
-LOCAL_SRC_FILES := src/feature_comp.cpp
+LOCAL_SRC_FILES := src/feature_comp.cpp src/overlap_estimator.cpp
+LOCAL_C_INCLUDES += $(LOCAL_PATH)/inc
 LOCAL_LDLIBS +=  -llog -ldl
 include $(BUILD_SHARED_LIBRARY)
 
+# preview convert
+include $(CLEAR_VARS)
+
+LOCAL_MODULE    := preview_convert
+LOCAL_SRC_FILES := src/preview_convert.cpp src/yuv_convert.cpp
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_CFLAGS += -DHAVE_NEON=1
+LOCAL_SRC_FILES += src/yuv_convert_neon.cpp.neon
+LOCAL_STATIC_LIBRARIES += cpufeatures
+endif
+LOCAL_C_INCLUDES += $(LOCAL_PATH)/inc
+LOCAL_LDLIBS +=  -llog -ljnigraphics
+include $(BUILD_SHARED_LIBRARY)
+
 # precomp
 include $(CLEAR_VARS)
 
@@ -157,8 +172,15 @@ LOCAL_CFLAGS := $(NEAR_CFLAGS)
 OPENCV_CAMERA_MODULES:=off
 
 LOCAL_MODULE    := opencv_stitcher
-LOCAL_SRC_FILES := src/opencv_stitching.cpp
-LOCAL_C_INCLUDES += $(LOCAL_PATH)/inc
+LOCAL_SRC_FILES := src/opencv_stitching.cpp src/stitcher.cpp src/checkpoint.cpp src/feature_cache.cpp src/pose_hints.cpp src/tile_sink.cpp src/image_writers.cpp src/image_source.cpp
+# The JPEG writer uses the libjpeg linked in with the OpenCV static
+# libraries, the package has no headers for it
+ifndef LIBJPEG_INCLUDE_DIR
+$(error Set LIBJPEG_INCLUDE_DIR to 3rdparty/libjpeg of the OpenCV sources, see README.txt)
+endif
+LOCAL_C_INCLUDES += $(LOCAL_PATH)/inc $(LIBJPEG_INCLUDE_DIR)
 LOCAL_SHARED_LIBRARIES += util precomp warpers blenders seam_finders motion_estimators exposure_compensate matchers
-LOCAL_LDLIBS +=  -llog -ldl
+LOCAL_LDLIBS +=  -llog -ldl -lz -ljnigraphics
 include $(BUILD_SHARED_LIBRARY)
+
+$(call import-module,android/cpufeatures)
@@ -0,0 +1,138 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#ifndef __OPENCV_CHECKPOINT_HPP__
+#define __OPENCV_CHECKPOINT_HPP__
+
+#include <cstdio>
+#include <string>
+#include "precomp.hpp"
+#include "matchers.hpp"
+#include "motion_estimators.hpp"
+
+// Writes intermediate stitching results into a compact binary file. Data goes
+// into a temporary file first, which replaces the destination on commit(), so
+// a crash in the middle of writing never leaves a truncated checkpoint behind.
+class CheckpointWriter
+{
+public:
+    CheckpointWriter(const std::string &path, const std::string &magic);
+    ~CheckpointWriter();
+
+    bool isOpened() const { return file_ != 0; }
+    bool commit();
+
+    void write(int val);
+    void write(int64 val);
+    void write(double val);
+    void write(const std::string &val);
+    void write(const cv::Mat &val);
+    void write(const ImageFeatures &val);
+    void write(const MatchesInfo &val);
+    void write(const CameraParams &val);
+
+    template <typename T> void write(const std::vector<T> &vals);
+
+private:
+    void writeRaw(const void *data, size_t size);
+
+    std::string path_, tmp_path_;
+    FILE *file_;
+    bool ok_;
+};
+
+
+// Reads back files produced by CheckpointWriter. Any short read or magic
+// mismatch turns the reader into the failed state, see good().
+class CheckpointReader
+{
+public:
+    CheckpointReader(const std::string &path, const std::string &magic);
+    ~CheckpointReader();
+
+    bool good() const { return file_ != 0 && ok_; }
+
+    void read(int &val);
+    void read(int64 &val);
+    void read(double &val);
+    void read(std::string &val);
+    void read(cv::Mat &val);
+    void read(ImageFeatures &val);
+    void read(MatchesInfo &val);
+    void read(CameraParams &val);
+
+    template <typename T> void read(std::vector<T> &vals);
+
+private:
+    void readRaw(void *data, size_t size);
+
+    FILE *file_;
+    bool ok_;
+};
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+template <typename T>
+void CheckpointWriter::write(const std::vector<T> &vals)
+{
+    write(static_cast<int>(vals.size()));
+    for (size_t i = 0; i < vals.size(); ++i)
+        write(vals[i]);
+}
+
+
+template <typename T>
+void CheckpointReader::read(std::vector<T> &vals)
+{
+    int size = 0;
+    read(size);
+    if (!ok_ || size < 0)
+    {
+        ok_ = false;
+        return;
+    }
+    vals.resize(size);
+    for (int i = 0; i < size && ok_; ++i)
+        read(vals[i]);
+}
+
+#endif // __OPENCV_CHECKPOINT_HPP__
@@ -56,6 +56,11 @@ public:
     virtual void feed(const std::vector<cv::Point> &corners, const std::vector<cv::Mat> &images, 
                       const std::vector<std::pair<cv::Mat,uchar> > &masks) = 0;
     virtual void apply(int index, cv::Point corner, cv::Mat &image, const cv::Mat &mask) = 0;
+
+    // Compensates a part of the warped image. roi is the location of the part
+    // inside the whole warped image, which has full_size.
+    virtual void applyRoi(int index, cv::Point corner, cv::Mat &image, const cv::Mat &mask,
+                          cv::Size /*full_size*/, cv::Rect /*roi*/) { apply(index, corner, image, mask); }
 };
 
 
@@ -89,8 +94,12 @@ public:
     void feed(const std::vector<cv::Point> &corners, const std::vector<cv::Mat> &images, 
               const std::vector<std::pair<cv::Mat,uchar> > &masks);
     void apply(int index, cv::Point corner, cv::Mat &image, const cv::Mat &mask);
+    void applyRoi(int index, cv::Point corner, cv::Mat &image, const cv::Mat &mask,
+                  cv::Size full_size, cv::Rect roi);
 
 private:
+    void applyGainMap(const cv::Mat_<float> &gain_map, cv::Mat &image);
+
     int bl_width_, bl_height_;
     std::vector<cv::Mat_<float> > gain_maps_;
 };
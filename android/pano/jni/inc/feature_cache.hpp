@@ -0,0 +1,77 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#ifndef __OPENCV_FEATURE_CACHE_HPP__
+#define __OPENCV_FEATURE_CACHE_HPP__
+
+#include <string>
+#include "precomp.hpp"
+#include "matchers.hpp"
+
+// Persistent features of a single image. Entries are stored next to the image
+// in a compact binary file and are keyed by a hash of the image file contents
+// and the registration resolution, so retaken images miss the cache.
+class FeatureCacheEntry
+{
+public:
+    // Hashes the image file, which is much cheaper than decoding it. Images
+    // read with a rotation have their own entries.
+    explicit FeatureCacheEntry(const std::string &img_name, int rotation = 0);
+
+    bool valid() const { return valid_; }
+
+    // Fills the features of the image found at the given resolution, together with
+    // the full image size, so the image doesn't have to be read at all on a hit
+    bool load(double work_megapix, double &work_scale, cv::Size &full_img_size,
+              ImageFeatures &features) const;
+    bool save(double work_megapix, double work_scale, cv::Size full_img_size,
+              const ImageFeatures &features) const;
+
+private:
+    std::string path_;
+    int64 hash_;
+    bool valid_;
+};
+
+// Directory, relative to the images, holding the feature cache entries
+extern const char* FEATURE_CACHE_DIR;
+
+#endif // __OPENCV_FEATURE_CACHE_HPP__
@@ -0,0 +1,148 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#ifndef __OPENCV_IMAGE_SOURCE_HPP__
+#define __OPENCV_IMAGE_SOURCE_HPP__
+
+#include <list>
+#include <string>
+#include <vector>
+#include <pthread.h>
+#include "precomp.hpp"
+
+// Reads the stitch input images straight from the camera JPEGs. A JPEG can be
+// decoded at 1/2, 1/4 or 1/8 of its size from the DCT coefficients, which is
+// much cheaper than decoding it whole and resizing, so every stage reads at the
+// smallest reduction still above its scale and only resizes the rest. The
+// images are turned upright after that, on the small image.
+//
+// Rotations are clockwise, in degrees, and one of 0, 90, 180 and 270. Sizes
+// and scales are those of the upright image.
+
+// Decodes img_name at 1/reduction of its size into a BGR image. OpenCV can't
+// do that, so the platform decoder is plugged in.
+typedef bool (*ReducedDecoder)(const std::string &img_name, int reduction, cv::Mat &img);
+
+// Sets the decoder used for the JPEGs, or none to always decode whole
+void setReducedDecoder(ReducedDecoder decoder);
+
+// Reads the size of the upright image, from the JPEG header when possible
+bool readImageSize(const std::string &img_name, int rotation, cv::Size &size);
+
+// Reads the upright image at scale of its size, rounded like resize() does
+bool readImage(const std::string &img_name, double scale, int rotation, cv::Mat &img);
+
+
+// Keeps the images of a stitch at every scale the stages read them at, so
+// each image is decoded once. The first read of an image decodes it at the
+// largest planned scale and makes the other planned scales from that.
+// Levels over the memory budget are spilled to a scratch file and mapped
+// back from it, without a scratch file they are dropped and decoded again.
+// Levels in memory are handed out shared, and stay in memory and counted
+// against the budget until every reader released them. Spilled levels are
+// only copied out, the mapping goes away with the pool. Reads are thread safe.
+class ImagePool
+{
+public:
+    ImagePool(const std::vector<std::string> &img_names, size_t max_memory,
+              const std::string &scratch_path = "");
+    ~ImagePool();
+
+    // Drops all the levels when the rotation changes
+    void setRotation(int rotation);
+
+    // Sets the scales the coming stages are going to read at
+    void plan(const std::vector<double> &scales);
+
+    // Reads image img_idx at scale of its upright size. A level in memory is
+    // shared with the pool and must not be modified, a spilled one is copied.
+    bool read(int img_idx, double scale, cv::Mat &img);
+
+    // Copies the roi part of image img_idx at scale. Only the pages of a
+    // spilled level the part lies on are read, and a level decoded for the
+    // part is spilled right away when over the budget.
+    bool readRoi(int img_idx, double scale, cv::Rect roi, cv::Mat &img);
+
+    void clear();
+
+    int decodes() const { return decodes_; }
+    int hits() const { return hits_; }
+    int64 spilledSize() const { return scratch_size_; }
+    size_t memoryUsed() const { return memory_; }
+
+private:
+    struct Level
+    {
+        int img_idx;
+        double scale;
+        cv::Mat img;
+        void *map;          // set while the pixels are mapped from the scratch file
+        size_t map_size;
+        int64 last_use;
+    };
+
+    ImagePool(const ImagePool &);
+    ImagePool& operator =(const ImagePool &);
+
+    Level* find(int img_idx, double scale);
+    Level* findLarger(int img_idx, double scale);
+    bool fullSize(int img_idx, cv::Size &size);
+    void store(int img_idx, double scale, const cv::Mat &img);
+    void trim(const Level *keep);
+    bool spill(Level &level);
+    void release(Level &level);
+
+    std::vector<std::string> img_names_;
+    std::vector<cv::Size> full_sizes_;
+    int rotation_;
+    std::vector<double> planned_;
+    std::list<Level> levels_;
+    size_t max_memory_;
+    size_t memory_;
+    std::string scratch_path_;
+    int scratch_fd_;
+    int64 scratch_size_;
+    int64 clock_;
+    int decodes_, hits_;
+    pthread_mutex_t mutex_;
+};
+
+#endif // __OPENCV_IMAGE_SOURCE_HPP__
@@ -0,0 +1,142 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#ifndef __OPENCV_IMAGE_WRITERS_HPP__
+#define __OPENCV_IMAGE_WRITERS_HPP__
+
+#include <csetjmp>
+#include <cstdio>
+#include <string>
+#include <vector>
+#include <zlib.h>
+#include "precomp.hpp"
+
+extern "C"
+{
+#include <jpeglib.h>
+}
+
+// Encodes an image incrementally, strip by strip from the top to the bottom.
+// Neither the whole raw image nor the whole encoded one is ever kept in
+// memory, unlike with imwrite().
+class StripWriter
+{
+public:
+    virtual ~StripWriter() {}
+
+    virtual bool open(const std::string &path, cv::Size size) = 0;
+
+    // Takes the next CV_8UC3 (BGR) rows of the image. Strips can have any
+    // height, but their width must be equal to the image width.
+    virtual bool write(const cv::Mat &strip) = 0;
+
+    // Finishes the file. Fails if fewer rows than the image height were written.
+    virtual bool close() = 0;
+};
+
+
+// Baseline JPEG through the libjpeg OpenCV is built with, using 4:4:4
+// sampling. libjpeg keeps a single row of 8x8 blocks in memory.
+class JpegStripWriter : public StripWriter
+{
+public:
+    JpegStripWriter(int quality = 95);
+    ~JpegStripWriter();
+
+    bool open(const std::string &path, cv::Size size);
+    bool write(const cv::Mat &strip);
+    bool close();
+
+private:
+    // Errors jump back to the call into libjpeg that raised them
+    struct ErrorManager
+    {
+        jpeg_error_mgr pub;
+        jmp_buf jump;
+    };
+
+    bool finish();
+    static void errorExit(j_common_ptr cinfo);
+
+    FILE *file_;
+    bool ok_;
+    cv::Size size_;
+    int quality_;
+    int rows_written_;
+
+    jpeg_compress_struct cinfo_;
+    ErrorManager error_;
+    std::vector<unsigned char> row_;
+};
+
+
+// Writes 8-bit RGB PNG files, compressing rows with zlib as they come
+class PngStripWriter : public StripWriter
+{
+public:
+    PngStripWriter(int level = Z_DEFAULT_COMPRESSION);
+    ~PngStripWriter();
+
+    bool open(const std::string &path, cv::Size size);
+    bool write(const cv::Mat &strip);
+    bool close();
+
+private:
+    bool deflateRows(int flush);
+    bool writeChunk(const char *type, const unsigned char *data, size_t size);
+
+    FILE *file_;
+    bool ok_;
+    cv::Size size_;
+    int level_;
+    int rows_written_;
+
+    z_stream stream_;
+    bool stream_opened_;
+    std::vector<unsigned char> row_, out_;
+};
+
+
+// Creates a writer for the format given by the file extension. Returns an
+// empty pointer if the format can't be written strip by strip.
+cv::Ptr<StripWriter> createStripWriter(const std::string &path);
+
+#endif // __OPENCV_IMAGE_WRITERS_HPP__
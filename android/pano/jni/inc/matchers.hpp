@@ -104,19 +104,27 @@ public:
 
     void operator ()(const ImageFeatures &features1, const ImageFeatures &features2, 
                      MatchesInfo& matches_info) { match(features1, features2, matches_info); }
-    void operator ()(const std::vector<ImageFeatures> &features, std::vector<MatchesInfo> &pairwise_matches);
+    // Matches the image pairs marked with non-zero elements of the optional NxN
+    // mask, all the pairs are matched if the mask is empty
+    void operator ()(const std::vector<ImageFeatures> &features, std::vector<MatchesInfo> &pairwise_matches,
+                     const cv::Mat &mask = cv::Mat());
 
     bool isThreadSafe() const { return is_thread_safe_; }
 
+    // Number of threads to match image pairs with, used if the matcher is thread safe
+    void setNumThreads(int num_threads) { num_threads_ = std::max(1, num_threads); }
+    int numThreads() const { return num_threads_; }
+
     virtual void releaseMemory() {}
 
 protected:
-    FeaturesMatcher(bool is_thread_safe = false) : is_thread_safe_(is_thread_safe) {}
+    FeaturesMatcher(bool is_thread_safe = false) : is_thread_safe_(is_thread_safe), num_threads_(1) {}
 
     virtual void match(const ImageFeatures &features1, const ImageFeatures &features2, 
                        MatchesInfo& matches_info) = 0;
 
     bool is_thread_safe_;
+    int num_threads_;
 };
 
 
@@ -45,6 +45,7 @@
 #include "precomp.hpp"
 #include "matchers.hpp"
 #include "util.hpp"
+#include "pose_hints.hpp"
 
 struct CameraParams
 {
@@ -87,13 +88,32 @@ private:
 };
 
 
+// Places cameras where the capture device says they pointed. Doesn't need any
+// matches, so images with too few of them still get a reasonable position.
+class PoseBasedEstimator : public Estimator
+{
+public:
+    PoseBasedEstimator(const std::vector<PoseHint> &hints) : hints_(hints) {}
+
+private:
+    void estimate(const std::vector<ImageFeatures> &features, const std::vector<MatchesInfo> &pairwise_matches, 
+                  std::vector<CameraParams> &cameras);
+
+    std::vector<PoseHint> hints_;
+};
+
+
 class BundleAdjuster : public Estimator
 {
 public:
     enum { RAY_SPACE, FOCAL_RAY_SPACE };
 
     BundleAdjuster(int cost_space = FOCAL_RAY_SPACE, float conf_thresh = 1.f) 
-        : cost_space_(cost_space), conf_thresh_(conf_thresh) {}
+        : cost_space_(cost_space), conf_thresh_(conf_thresh), normalize_motion_(true) {}
+
+    // Rotates the result so the spanning tree center image looks forward. Should
+    // be disabled if cameras are already in a meaningful frame, e.g. seeded from poses.
+    void setNormalizeMotion(bool normalize) { normalize_motion_ = normalize; }
 
 private:
     void estimate(const std::vector<ImageFeatures> &features, const std::vector<MatchesInfo> &pairwise_matches, 
@@ -111,6 +131,7 @@ private:
 
     int cost_space_;
     float conf_thresh_;
+    bool normalize_motion_;
     cv::Mat err_, err1_, err2_;
     cv::Mat J_;
 };
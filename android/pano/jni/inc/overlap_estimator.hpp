@@ -0,0 +1,90 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#ifndef __PANO_OVERLAP_ESTIMATOR_HPP__
+#define __PANO_OVERLAP_ESTIMATOR_HPP__
+
+#include <vector>
+#include <opencv2/core/core.hpp>
+#include <opencv2/features2d/features2d.hpp>
+
+// Estimates how the preview frames overlap the last captured shot, to guide
+// the next one. Doesn't depend on JNI, so it can be checked on the host.
+class OverlapEstimator
+{
+public:
+    enum { NUM_RESULTS = 4 };
+
+    // Takes the shot, turned to the orientation of the preview frames. Its
+    // features are extracted on the first estimate, at the frames' width, and
+    // again only if that width changes. An empty shot clears the reference.
+    void setReference(const cv::Mat &shot);
+
+    // Estimates how a preview frame (its analysis luma) overlaps the reference
+    // shot. Writes {overlap, shift x, shift y, inliers} to result, the overlap
+    // as a fraction of the frame and the shifts as fractions of its width and
+    // height: a point of the reference appears shifted by that much in the
+    // frame. Returns false when there are too few consistent matches to tell.
+    bool estimate(const cv::Mat &gray, float result[NUM_RESULTS]);
+
+private:
+    void indexReference(int width);
+
+    cv::Mat reference_;
+    cv::Size reference_size_;
+    std::vector<cv::KeyPoint> reference_keypoints_;
+    cv::Mat reference_descriptors_;
+
+    // Reused by every preview frame
+    std::vector<cv::KeyPoint> frame_keypoints_;
+    cv::Mat frame_descriptors_;
+    std::vector<cv::DMatch> frame_matches_;
+    std::vector<float> shifts_x_, shifts_y_, sorted_;
+};
+
+// Finds the shift most of the given ones agree on, as their median in x and
+// in y, which ignores a minority of wrong ones. Returns the number of shifts
+// within inlier_distance of it in both directions. sorted is scratch space,
+// kept by the caller so no frame allocates.
+int medianShift(const std::vector<float> &shifts_x, const std::vector<float> &shifts_y, float inlier_distance,
+                float &dx, float &dy, std::vector<float> &sorted);
+
+#endif // __PANO_OVERLAP_ESTIMATOR_HPP__
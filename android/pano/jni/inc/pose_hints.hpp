@@ -0,0 +1,89 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#ifndef __OPENCV_POSE_HINTS_HPP__
+#define __OPENCV_POSE_HINTS_HPP__
+
+#include <string>
+#include "precomp.hpp"
+
+// Approximate camera orientation known at capture time, e.g. the commanded
+// pan/tilt head angles. All angles are in degrees, yaw is positive to the
+// right and pitch is positive up. Roll is the clockwise rotation which makes
+// the image upright, e.g. 90 for a camera mounted in portrait.
+struct PoseHint
+{
+    PoseHint() : valid(false), commanded(false), yaw(0), pitch(0), roll(0), hfov(0) {}
+
+    bool valid;
+    bool commanded; // Given as angles, as by a pan/tilt head, rather than measured
+    float yaw;
+    float pitch;
+    float roll;
+    float hfov;     // Field of view along the image width, 0 if unknown
+};
+
+
+// Reads the pose manifest written by the capture app. Every line holds an image
+// file name followed by "key value" pairs, e.g. "img_1.jpg yaw 30 pitch 0 hfov 42".
+// The orientation may be given as a unit quaternion instead, with the keys qw, qx,
+// qy and qz, rotating camera coordinates (x right, y down, z forward) into the
+// world (y down); it is converted to the angles above.
+// Images are matched by the file name without extension, so hints recorded
+// for the camera JPEGs apply to the converted stitch inputs as well.
+bool loadPoseHints(const std::string &path, const std::vector<std::string> &img_names,
+                   std::vector<PoseHint> &hints);
+
+// Checks every image has a pose and field of view, so cameras can be seeded from them
+bool allPosesKnown(const std::vector<PoseHint> &hints);
+
+
+//////////////////////////////////////////////////////////////////////////////
+// Matching masks, non-zero elements mark the image pairs worth matching
+
+// Pairs at most range apart in the capture order, wrapping around for 360 sweeps
+cv::Mat sequenceMatchMask(int num_images, int range);
+
+// Pairs whose predicted fields of view overlap. Images without a hint are
+// matched against everything.
+cv::Mat poseMatchMask(const std::vector<PoseHint> &hints, const std::vector<cv::Size> &img_sizes);
+
+#endif // __OPENCV_POSE_HINTS_HPP__
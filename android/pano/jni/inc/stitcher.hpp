@@ -0,0 +1,174 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#ifndef __OPENCV_STITCHER_HPP__
+#define __OPENCV_STITCHER_HPP__
+
+#include <string>
+#include "precomp.hpp"
+#include "matchers.hpp"
+#include "motion_estimators.hpp"
+#include "exposure_compensate.hpp"
+#include "warpers.hpp"
+#include "blenders.hpp"
+#include "image_source.hpp"
+
+struct StitchParams
+{
+    StitchParams();
+
+    // Parses command line like flags. Everything which isn't a flag is
+    // treated as an image name and appended to img_names.
+    int parse(const std::vector<std::string> &args, std::vector<std::string> &img_names);
+
+    bool preview;
+    bool try_gpu;
+    int rotate;
+    double work_megapix;
+    double seam_megapix;
+    double compose_megapix;
+    int ba_space;
+    float conf_thresh;
+    bool wave_correct;
+    int warp_type;
+    int expos_comp_type;
+    float match_conf;
+    int match_range;
+    std::string poses;
+    int seam_find_type;
+    int blend_type;
+    float blend_strength;
+    std::string result_name;
+    int num_threads;
+    int tile;
+    std::string lut_cache;
+};
+
+
+void printUsage();
+
+
+// Finds the features of a single image at the given registration resolution
+// and stores them in the feature cache, unless they are cached already. The
+// image is turned upright by rotation, as with the --rotate flag.
+int precomputeFeatures(const std::string &img_name, double work_megapix, int rotation);
+
+
+// Runs the stitching pipeline as a sequence of explicit stages. The results
+// of every stage are kept in memory, so the later stages can be re-run alone
+// when only their parameters change. Results of the expensive registration
+// stages are also checkpointed into the given directory, so the pipeline can
+// be resumed after the process was killed.
+class StagedStitcher
+{
+public:
+    enum { NONE, FEATURES, MATCHES, CAMERAS, SEAMS, COMPOSED };
+
+    StagedStitcher(const std::vector<std::string> &img_names, const std::string &checkpoint_dir);
+
+    // Changes a single parameter. Drops results of all stages depending on it.
+    // Returns the last valid stage or -1 if the flag can't be parsed.
+    int setOption(const std::string &flag, const std::string &value);
+
+    // Loads all checkpoints matching the current parameters and returns the
+    // last restored stage
+    int resume();
+
+    // Runs all the stages after the last completed one
+    int run();
+    int runStage(int stage);
+
+    int stage() const { return stage_; }
+    void invalidate(int stage);
+
+private:
+    int findFeatures();
+    int matchImages();
+    int estimateCameras();
+    int findSeams();
+    int compose();
+    int composeTiled();
+
+    double prepareCompose(std::vector<CameraParams> &cameras, std::vector<cv::Point> &corners,
+                          std::vector<cv::Size> &sizes, cv::Ptr<Warper> &warper,
+                          std::vector<std::string> &remap_keys);
+    cv::Ptr<Warper> createWarper(float scale);
+    void remapKeys(std::vector<std::string> &keys) const;
+    void planImageScales(int stage, cv::Size full_img_size);
+    cv::Size composeImageSize(int img_idx, double compose_scale) const;
+    bool readComposeImage(int img_idx, double compose_scale, cv::Mat &img);
+    bool readComposePart(int img_idx, double compose_scale, cv::Rect roi, cv::Mat &img);
+    cv::Ptr<Blender> createBlender(cv::Size dst_sz, int max_margin, int &margin) const;
+
+    std::string stageKey(int stage) const;
+    std::string checkpointPath(int stage) const;
+    bool saveCheckpoint(int stage);
+    bool loadCheckpoint(int stage);
+
+    StitchParams params_;
+    std::vector<std::string> img_names_;
+    std::string checkpoint_dir_;
+    int stage_;
+
+    // FEATURES stage
+    std::vector<ImageFeatures> features_;
+    std::vector<cv::Size> full_img_sizes_;
+    double work_scale_;
+
+    // MATCHES stage
+    std::vector<MatchesInfo> pairwise_matches_;
+
+    // CAMERAS stage
+    std::vector<int> indices_;
+    std::vector<CameraParams> cameras_;
+    float warped_image_scale_;
+
+    // SEAMS stage
+    double seam_scale_;
+    std::vector<cv::Point> corners_;
+    std::vector<cv::Mat> masks_warped_;
+    cv::Ptr<ExposureCompensator> compensator_;
+
+    cv::Ptr<RemapCache> remap_cache_;
+    cv::Ptr<ImagePool> image_pool_;
+};
+
+#endif // __OPENCV_STITCHER_HPP__
@@ -0,0 +1,108 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#ifndef __OPENCV_TILE_SINK_HPP__
+#define __OPENCV_TILE_SINK_HPP__
+
+#include <string>
+#include "precomp.hpp"
+#include "image_writers.hpp"
+
+// Receives the composed panorama tile by tile. Tiles come in rows from the
+// top to the bottom, and from the left to the right inside a row. All the
+// tiles of a row have the same height.
+class TileSink
+{
+public:
+    virtual ~TileSink() {}
+
+    // Called once before the first tile with the size of the whole panorama
+    virtual bool open(cv::Size size) = 0;
+
+    // Takes a CV_8UC3 tile, tl is relative to the panorama top-left corner
+    virtual bool write(const cv::Mat &tile, cv::Point tl) = 0;
+
+    virtual bool close() = 0;
+};
+
+
+// Assembles the tiles into a single image and saves it with imwrite()
+class ImageTileSink : public TileSink
+{
+public:
+    ImageTileSink(const std::string &path) : path_(path) {}
+
+    bool open(cv::Size size);
+    bool write(const cv::Mat &tile, cv::Point tl);
+    bool close();
+
+private:
+    std::string path_;
+    cv::Mat image_;
+};
+
+
+// Collects a row of tiles and hands it to a StripWriter, so only a single
+// strip of the panorama is kept in memory
+class StripTileSink : public TileSink
+{
+public:
+    StripTileSink(const std::string &path, const cv::Ptr<StripWriter> &writer)
+        : path_(path), writer_(writer) {}
+
+    bool open(cv::Size size);
+    bool write(const cv::Mat &tile, cv::Point tl);
+    bool close();
+
+private:
+    std::string path_;
+    cv::Ptr<StripWriter> writer_;
+    cv::Size size_;
+    cv::Mat strip_;
+    int strip_y_;
+};
+
+
+// Picks the sink suitable for the result file format. Formats which can be
+// encoded progressively are streamed, others are assembled in memory.
+cv::Ptr<TileSink> createTileSink(const std::string &path);
+
+#endif // __OPENCV_TILE_SINK_HPP__
@@ -109,6 +109,27 @@ cv::Rect resultRoi(const std::vector<cv::Point> &corners, const std::vector<cv::
 cv::Rect resultRoi(const std::vector<cv::Point> &corners, const std::vector<cv::Size> &sizes);
 cv::Point resultTl(const std::vector<cv::Point> &corners);
 
+// Computes the roi part of resize(src, dst, full_size) without resizing the whole image
+void resizeRoi(const cv::Mat &src, cv::Size full_size, cv::Rect roi, cv::Mat &dst,
+               int interpolation = cv::INTER_LINEAR);
+
+
+//////////////////////////////////////////////////////////////////////////////
+// Thread pool
+
+class ParallelLoopBody
+{
+public:
+    virtual ~ParallelLoopBody() {}
+    virtual void operator ()(int i, int thread_idx) = 0;
+};
+
+// Calls body(i, thread_idx) for every i from [0, count) using up to num_threads
+// threads, the calling thread included. Items are handed out one at a time, so
+// uneven items are balanced. An exception thrown by the body stops the loop
+// and is rethrown in the calling thread as cv::Exception.
+void parallelForEach(int count, int num_threads, ParallelLoopBody &body);
+
 
 #include "util_inl.hpp"
 
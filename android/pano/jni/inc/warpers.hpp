@@ -42,18 +42,121 @@
 #ifndef __OPENCV_WARPERS_HPP__
 #define __OPENCV_WARPERS_HPP__
 
+#include <string>
 #include "precomp.hpp"
 
+// Read-only memory mapping of a whole file
+class MappedFile
+{
+public:
+    MappedFile(const std::string &path);
+    ~MappedFile();
+
+    const void* data() const { return data_; }
+    size_t size() const { return size_; }
+
+private:
+    MappedFile(const MappedFile&);
+    MappedFile& operator =(const MappedFile&);
+
+    void *data_;
+    size_t size_;
+};
+
+
+// Backward maps of a warper for one destination roi, tl being its top-left
+// corner. When the maps come from the disk, file keeps the memory mapping they
+// point into alive.
+struct RemapTable
+{
+    cv::Mat xmap, ymap;
+    cv::Point tl;
+    cv::Ptr<MappedFile> file;
+};
+
+
+// Remembers the remap tables built by warpers. The last table stays in memory,
+// so warping an image mask right after the image reuses it. When a directory
+// is given, persistent tables are also stored there in a format which is
+// memory-mapped back, so later runs with the same cameras don't build the maps
+// at all. Once max_disk_size bytes are stored nothing more is added; tables
+// are never dropped, as runs visit the images in the same order and would
+// drop each one just before it is needed again.
+class RemapCache
+{
+public:
+    RemapCache(const std::string &dir = "", size_t max_disk_size = 0);
+
+    bool find(const std::string &key, RemapTable &table);
+    void put(const std::string &key, const RemapTable &table, bool persistent = false);
+
+    // Like find(), without counting a hit or a miss
+    bool peek(const std::string &key, RemapTable &table);
+
+    // Checks a persistent table of the given size would still be stored
+    bool fits(const std::string &key, cv::Size size);
+
+    const std::string& directory() const { return dir_; }
+    int hits() const { return hits_; }
+    int misses() const { return misses_; }
+
+private:
+    std::string path(const std::string &key) const;
+    bool load(const std::string &key, RemapTable &table);
+    void save(const std::string &key, const RemapTable &table);
+    int64 fileSize(const std::string &key, cv::Size size) const;
+    int64 diskUsage();
+
+    std::string dir_;
+    int64 max_disk_size_;
+    int64 disk_size_;
+    std::string last_key_;
+    RemapTable last_;
+    int hits_, misses_;
+};
+
+
 class Warper
 {
 public:
     enum { PLANE, CYLINDRICAL, SPHERICAL };
     static cv::Ptr<Warper> createByCameraFocal(float focal, int type, bool try_gpu = false);
 
+    Warper() : remap_cache_(new RemapCache()) {}
     virtual ~Warper() {}
     virtual cv::Point warp(const cv::Mat &src, float focal, const cv::Mat& R, cv::Mat &dst,
                            int interp_mode = cv::INTER_LINEAR, int border_mode = cv::BORDER_REFLECT) = 0;
     virtual cv::Rect warpRoi(const cv::Size &sz, float focal, const cv::Mat &R) = 0;
+
+    // Warps only the dst_roi part of the destination, where dst_roi is given in the
+    // same coordinates as the warpRoi() result
+    virtual void warpPart(const cv::Mat &src, float focal, const cv::Mat &R, cv::Rect dst_roi, cv::Mat &dst,
+                          int interp_mode = cv::INTER_LINEAR, int border_mode = cv::BORDER_REFLECT) = 0;
+
+    // Finds the part of a src_size image the dst_roi part of the destination
+    // is interpolated from
+    virtual cv::Rect srcRoi(const cv::Size &src_size, float focal, const cv::Mat &R, cv::Rect dst_roi) = 0;
+
+    // Warps the dst_roi part of the destination from src, which holds only the
+    // srcRoi() part src_roi of a src_size image. Inside the image it gives the
+    // same pixels as warping the whole image.
+    virtual void warpPart(const cv::Mat &src, cv::Rect src_roi, const cv::Size &src_size, float focal,
+                          const cv::Mat &R, cv::Rect dst_roi, cv::Mat &dst,
+                          int interp_mode = cv::INTER_LINEAR, int border_mode = cv::BORDER_REFLECT) = 0;
+
+    // Warpers can share a cache, e.g. one backed by a directory
+    void setRemapCache(const cv::Ptr<RemapCache> &cache) { remap_cache_ = cache; }
+
+    // Names the camera of the following calls in the remap cache, e.g. by the
+    // pose a pan/tilt head was commanded to. Named cameras get whole image maps
+    // stored on disk under the name, whatever their exact rotation and focal,
+    // so later captures at the same poses reuse them, parts included. The
+    // default empty name keeps the maps in memory only.
+    void setCacheKey(const std::string &key) { cache_key_ = key; }
+
+protected:
+    cv::Ptr<RemapCache> remap_cache_;
+    std::string cache_key_;
 };
 
 
@@ -78,6 +181,14 @@ public:
 
     virtual cv::Rect warpRoi(const cv::Size &sz, float focal, const cv::Mat &R);
 
+    virtual void warpPart(const cv::Mat &src, float focal, const cv::Mat &R, cv::Rect dst_roi, cv::Mat &dst,
+                          int interp_mode, int border_mode);
+
+    virtual cv::Rect srcRoi(const cv::Size &src_size, float focal, const cv::Mat &R, cv::Rect dst_roi);
+
+    virtual void warpPart(const cv::Mat &src, cv::Rect src_roi, const cv::Size &src_size, float focal,
+                          const cv::Mat &R, cv::Rect dst_roi, cv::Mat &dst, int interp_mode, int border_mode);
+
 protected:
     // Detects ROI of the destination image. It's correct for any projection.
     virtual void detectResultRoi(cv::Point &dst_tl, cv::Point &dst_br);
@@ -86,6 +197,19 @@ protected:
     // Correctness for any projection isn't guaranteed.
     void detectResultRoiByBorder(cv::Point &dst_tl, cv::Point &dst_br);
 
+    // Builds the backward maps for the current projector state, or takes them
+    // from the remap cache
+    void buildMaps(cv::Rect dst_roi, RemapTable &table);
+    void partMaps(cv::Rect dst_roi, RemapTable &table);
+    void computeMaps(cv::Rect dst_roi, RemapTable &table);
+    std::string remapKey(cv::Rect dst_roi) const;
+
+    // Takes the whole image maps of the named camera from the cache, or builds
+    // them and hands them to the cache to store; with fitting_only, only when
+    // they would be stored. Returns false without a name or maps.
+    bool findWholeMaps(RemapTable &table, bool fitting_only);
+    std::string wholeMapsKey() const;
+
     cv::Size src_size_;
     P projector_;
 };
@@ -93,6 +217,7 @@ protected:
 
 struct PlaneProjector : ProjectorBase
 {
+    enum { TYPE = Warper::PLANE };
     void mapForward(float x, float y, float &u, float &v);
     void mapBackward(float u, float v, float &x, float &y);
     float plane_dist;
@@ -115,6 +240,7 @@ protected:
 
 struct SphericalProjector : ProjectorBase
 {
+    enum { TYPE = Warper::SPHERICAL };
     void mapForward(float x, float y, float &u, float &v);
     void mapBackward(float u, float v, float &x, float &y);
 };
@@ -133,6 +259,7 @@ protected:
 
 struct CylindricalProjector : ProjectorBase
 {
+    enum { TYPE = Warper::CYLINDRICAL };
     void mapForward(float x, float y, float &u, float &v);
     void mapBackward(float u, float v, float &x, float &y);
 };
@@ -42,6 +42,8 @@
 #ifndef __OPENCV_WARPERS_INL_HPP__
 #define __OPENCV_WARPERS_INL_HPP__
 
+#include <iomanip>
+#include <sstream>
 #include "warpers.hpp" // Make your IDE see declarations
 
 template <class P>
@@ -54,27 +56,18 @@ cv::Point WarperBase<P>::warp(const cv::Mat &src, float focal, const cv::Mat &R,
     projector_.focal = focal;
     projector_.setTransformation(R);
 
-    cv::Point dst_tl, dst_br;
-    detectResultRoi(dst_tl, dst_br);
-
-    cv::Mat xmap(dst_br.y - dst_tl.y + 1, dst_br.x - dst_tl.x + 1, CV_32F);
-    cv::Mat ymap(dst_br.y - dst_tl.y + 1, dst_br.x - dst_tl.x + 1, CV_32F);
-
-    float x, y;
-    for (int v = dst_tl.y; v <= dst_br.y; ++v)
+    RemapTable table;
+    if (!findWholeMaps(table, false))
     {
-        for (int u = dst_tl.x; u <= dst_br.x; ++u)
-        {
-            projector_.mapBackward(static_cast<float>(u), static_cast<float>(v), x, y);
-            xmap.at<float>(v - dst_tl.y, u - dst_tl.x) = x;
-            ymap.at<float>(v - dst_tl.y, u - dst_tl.x) = y;
-        }
+        cv::Point dst_tl, dst_br;
+        detectResultRoi(dst_tl, dst_br);
+        buildMaps(cv::Rect(dst_tl, cv::Point(dst_br.x + 1, dst_br.y + 1)), table);
     }
 
-    dst.create(dst_br.y - dst_tl.y + 1, dst_br.x - dst_tl.x + 1, src.type());
-    remap(src, dst, xmap, ymap, interp_mode, border_mode);
+    dst.create(table.xmap.size(), src.type());
+    remap(src, dst, table.xmap, table.ymap, interp_mode, border_mode);
 
-    return dst_tl;
+    return table.tl;
 }
 
 
@@ -87,6 +80,11 @@ cv::Rect WarperBase<P>::warpRoi(const cv::Size &sz, float focal, const cv::Mat &
     projector_.focal = focal;
     projector_.setTransformation(R);
 
+    // Named cameras keep the roi of their stored maps
+    RemapTable table;
+    if (!cache_key_.empty() && !remap_cache_.empty() && remap_cache_->peek(wholeMapsKey(), table))
+        return cv::Rect(table.tl, table.xmap.size());
+
     cv::Point dst_tl, dst_br;
     detectResultRoi(dst_tl, dst_br);
 
@@ -94,6 +92,183 @@ cv::Rect WarperBase<P>::warpRoi(const cv::Size &sz, float focal, const cv::Mat &
 }
 
 
+template <class P>
+void WarperBase<P>::warpPart(const cv::Mat &src, float focal, const cv::Mat &R, cv::Rect dst_roi, cv::Mat &dst,
+                             int interp_mode, int border_mode)
+{
+    src_size_ = src.size();
+
+    projector_.size = src.size();
+    projector_.focal = focal;
+    projector_.setTransformation(R);
+
+    RemapTable table;
+    partMaps(dst_roi, table);
+
+    dst.create(dst_roi.size(), src.type());
+    remap(src, dst, table.xmap, table.ymap, interp_mode, border_mode);
+}
+
+
+template <class P>
+cv::Rect WarperBase<P>::srcRoi(const cv::Size &src_size, float focal, const cv::Mat &R, cv::Rect dst_roi)
+{
+    src_size_ = src_size;
+
+    projector_.size = src_size;
+    projector_.focal = focal;
+    projector_.setTransformation(R);
+
+    RemapTable table;
+    partMaps(dst_roi, table);
+
+    // Points outside the image only get border pixels, don't let them
+    // stretch the part
+    double x_min, x_max, y_min, y_max;
+    cv::minMaxLoc(table.xmap, &x_min, &x_max);
+    cv::minMaxLoc(table.ymap, &y_min, &y_max);
+    x_min = std::max(x_min, -1.); x_max = std::min(x_max, static_cast<double>(src_size.width));
+    y_min = std::max(y_min, -1.); y_max = std::min(y_max, static_cast<double>(src_size.height));
+    if (x_min > x_max || y_min > y_max)
+        return cv::Rect();
+
+    // Interpolation reads a pixel either side of a point, keep one more for
+    // the rounding of the maps
+    cv::Rect roi(cv::Point(cvFloor(x_min) - 1, cvFloor(y_min) - 1), cv::Point(cvFloor(x_max) + 3, cvFloor(y_max) + 3));
+    return roi & cv::Rect(cv::Point(), src_size);
+}
+
+
+template <class P>
+void WarperBase<P>::warpPart(const cv::Mat &src, cv::Rect src_roi, const cv::Size &src_size, float focal,
+                             const cv::Mat &R, cv::Rect dst_roi, cv::Mat &dst, int interp_mode, int border_mode)
+{
+    src_size_ = src_size;
+
+    projector_.size = src_size;
+    projector_.focal = focal;
+    projector_.setTransformation(R);
+
+    RemapTable table;
+    partMaps(dst_roi, table);
+
+    // Shifting by whole pixels leaves the fractions, and so the
+    // interpolation, as they are
+    cv::Mat xmap, ymap;
+    subtract(table.xmap, cv::Scalar::all(src_roi.x), xmap);
+    subtract(table.ymap, cv::Scalar::all(src_roi.y), ymap);
+
+    dst.create(dst_roi.size(), src.type());
+    remap(src, dst, xmap, ymap, interp_mode, border_mode);
+}
+
+
+// Parts of named cameras are cut out of the whole maps when those are stored,
+// the others are built alone
+template <class P>
+void WarperBase<P>::partMaps(cv::Rect dst_roi, RemapTable &table)
+{
+    if (findWholeMaps(table, true) && (cv::Rect(table.tl, table.xmap.size()) & dst_roi) == dst_roi)
+    {
+        cv::Rect local_roi(dst_roi.tl() - table.tl, dst_roi.size());
+        table.xmap = table.xmap(local_roi);
+        table.ymap = table.ymap(local_roi);
+        table.tl = dst_roi.tl();
+    }
+    else
+        buildMaps(dst_roi, table);
+}
+
+
+template <class P>
+void WarperBase<P>::buildMaps(cv::Rect dst_roi, RemapTable &table)
+{
+    std::string key;
+    if (!remap_cache_.empty())
+    {
+        key = remapKey(dst_roi);
+        if (remap_cache_->find(key, table))
+            return;
+    }
+
+    computeMaps(dst_roi, table);
+
+    if (!remap_cache_.empty())
+        remap_cache_->put(key, table);
+}
+
+
+template <class P>
+void WarperBase<P>::computeMaps(cv::Rect dst_roi, RemapTable &table)
+{
+    table.tl = dst_roi.tl();
+    table.file = 0;
+    table.xmap.create(dst_roi.height, dst_roi.width, CV_32F);
+    table.ymap.create(dst_roi.height, dst_roi.width, CV_32F);
+
+    float x, y;
+    for (int v = 0; v < dst_roi.height; ++v)
+    {
+        float* xrow = table.xmap.ptr<float>(v);
+        float* yrow = table.ymap.ptr<float>(v);
+        for (int u = 0; u < dst_roi.width; ++u)
+        {
+            projector_.mapBackward(static_cast<float>(dst_roi.x + u), static_cast<float>(dst_roi.y + v), x, y);
+            xrow[u] = x;
+            yrow[u] = y;
+        }
+    }
+}
+
+
+template <class P>
+std::string WarperBase<P>::remapKey(cv::Rect dst_roi) const
+{
+    std::ostringstream key;
+    key << P::TYPE << ":" << dst_roi.x << "," << dst_roi.y << "," << dst_roi.width << "," << dst_roi.height << ":";
+
+    // Projectors consist of plain float and int fields holding all the mapping
+    // parameters (source size, focal, rotation, scale...), use their bytes as is
+    const unsigned char* bytes = reinterpret_cast<const unsigned char*>(&projector_);
+    key << std::hex << std::setfill('0');
+    for (size_t i = 0; i < sizeof(P); ++i)
+        key << std::setw(2) << static_cast<int>(bytes[i]);
+    return key.str();
+}
+
+
+template <class P>
+bool WarperBase<P>::findWholeMaps(RemapTable &table, bool fitting_only)
+{
+    if (cache_key_.empty() || remap_cache_.empty())
+        return false;
+    std::string key = wholeMapsKey();
+    if (remap_cache_->find(key, table))
+        return true;
+
+    cv::Point dst_tl, dst_br;
+    detectResultRoi(dst_tl, dst_br);
+    cv::Rect dst_roi(dst_tl, cv::Point(dst_br.x + 1, dst_br.y + 1));
+    if (fitting_only && !remap_cache_->fits(key, dst_roi.size()))
+        return false;
+
+    computeMaps(dst_roi, table);
+    remap_cache_->put(key, table, true);
+    return true;
+}
+
+
+// The refined rotation and focal change from run to run, only the name of the
+// camera and the source image size are part of the key
+template <class P>
+std::string WarperBase<P>::wholeMapsKey() const
+{
+    std::ostringstream key;
+    key << P::TYPE << ":" << src_size_.width << "x" << src_size_.height << ":" << cache_key_;
+    return key.str();
+}
+
+
 template <class P>
 void WarperBase<P>::detectResultRoi(cv::Point &dst_tl, cv::Point &dst_br)
 {
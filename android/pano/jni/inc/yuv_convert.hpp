@@ -0,0 +1,67 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#ifndef __OPENCV_YUV_CONVERT_HPP__
+#define __OPENCV_YUV_CONVERT_HPP__
+
+// NV21 (the default Android preview format) to RGBA conversion. Doesn't depend
+// on OpenCV nor on Android so it can be built and checked on the host.
+//
+// The coefficients are the BT.601 video range ones in 6 bit fixed point, as
+// the NEON version computes them in 16 bit lanes; both versions give the same
+// result, within two levels of cvtColor(CV_YUV420sp2RGBA).
+
+// Converts a width x height NV21 frame into rgba, whose rows are stride bytes
+// apart. Width and height must be even.
+void nv21ToRgba(const unsigned char *nv21, int width, int height,
+                unsigned char *rgba, int stride);
+
+// Converts the pixels [from, to) of a single row, from must be even
+void nv21ToRgbaRow(const unsigned char *y, const unsigned char *vu,
+                   unsigned char *rgba, int from, int to);
+
+#ifdef HAVE_NEON
+// Same as nv21ToRgba(), 16 pixels at a time. Only call it when the CPU has NEON.
+void nv21ToRgbaNeon(const unsigned char *nv21, int width, int height,
+                    unsigned char *rgba, int stride);
+#endif
+
+#endif // __OPENCV_YUV_CONVERT_HPP__
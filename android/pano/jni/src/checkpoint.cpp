@@ -0,0 +1,305 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include <cstdio>
+#include "checkpoint.hpp"
+
+using namespace std;
+using namespace cv;
+
+static const int CHECKPOINT_VERSION = 1;
+
+
+CheckpointWriter::CheckpointWriter(const string &path, const string &magic)
+    : path_(path), tmp_path_(path + ".tmp"), ok_(true)
+{
+    file_ = fopen(tmp_path_.c_str(), "wb");
+    if (!file_)
+        return;
+    write(magic);
+    write(CHECKPOINT_VERSION);
+}
+
+
+CheckpointWriter::~CheckpointWriter()
+{
+    if (file_)
+    {
+        fclose(file_);
+        remove(tmp_path_.c_str());
+    }
+}
+
+
+bool CheckpointWriter::commit()
+{
+    if (!file_)
+        return false;
+    ok_ = (fclose(file_) == 0) && ok_;
+    file_ = 0;
+    if (!ok_)
+    {
+        remove(tmp_path_.c_str());
+        return false;
+    }
+    return rename(tmp_path_.c_str(), path_.c_str()) == 0;
+}
+
+
+void CheckpointWriter::writeRaw(const void *data, size_t size)
+{
+    if (file_ && ok_ && size > 0)
+        ok_ = fwrite(data, 1, size, file_) == size;
+}
+
+
+void CheckpointWriter::write(int val) { writeRaw(&val, sizeof(val)); }
+
+void CheckpointWriter::write(int64 val) { writeRaw(&val, sizeof(val)); }
+
+void CheckpointWriter::write(double val) { writeRaw(&val, sizeof(val)); }
+
+
+void CheckpointWriter::write(const string &val)
+{
+    write(static_cast<int>(val.size()));
+    writeRaw(val.data(), val.size());
+}
+
+
+void CheckpointWriter::write(const Mat &val)
+{
+    Mat m = val.isContinuous() ? val : val.clone();
+    write(m.rows);
+    write(m.cols);
+    write(m.type());
+    writeRaw(m.data, m.total() * m.elemSize());
+}
+
+
+void CheckpointWriter::write(const ImageFeatures &val)
+{
+    write(val.img_idx);
+    write(val.img_size.width);
+    write(val.img_size.height);
+    write(static_cast<int>(val.keypoints.size()));
+    for (size_t i = 0; i < val.keypoints.size(); ++i)
+    {
+        const KeyPoint &kp = val.keypoints[i];
+        float data[5] = { kp.pt.x, kp.pt.y, kp.size, kp.angle, kp.response };
+        writeRaw(data, sizeof(data));
+        write(kp.octave);
+        write(kp.class_id);
+    }
+    write(val.descriptors);
+}
+
+
+void CheckpointWriter::write(const MatchesInfo &val)
+{
+    write(val.src_img_idx);
+    write(val.dst_img_idx);
+    write(static_cast<int>(val.matches.size()));
+    for (size_t i = 0; i < val.matches.size(); ++i)
+    {
+        const DMatch &m = val.matches[i];
+        write(m.queryIdx);
+        write(m.trainIdx);
+        write(m.imgIdx);
+        writeRaw(&m.distance, sizeof(m.distance));
+    }
+    write(static_cast<int>(val.inliers_mask.size()));
+    if (!val.inliers_mask.empty())
+        writeRaw(&val.inliers_mask[0], val.inliers_mask.size());
+    write(val.num_inliers);
+    write(val.H);
+    write(val.confidence);
+}
+
+
+void CheckpointWriter::write(const CameraParams &val)
+{
+    write(val.focal);
+    write(val.R);
+    write(val.t);
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+CheckpointReader::CheckpointReader(const string &path, const string &magic) : ok_(true)
+{
+    file_ = fopen(path.c_str(), "rb");
+    if (!file_)
+        return;
+    string file_magic;
+    int version = 0;
+    read(file_magic);
+    read(version);
+    ok_ = ok_ && file_magic == magic && version == CHECKPOINT_VERSION;
+}
+
+
+CheckpointReader::~CheckpointReader()
+{
+    if (file_)
+        fclose(file_);
+}
+
+
+void CheckpointReader::readRaw(void *data, size_t size)
+{
+    if (file_ && ok_ && size > 0)
+        ok_ = fread(data, 1, size, file_) == size;
+}
+
+
+void CheckpointReader::read(int &val) { readRaw(&val, sizeof(val)); }
+
+void CheckpointReader::read(int64 &val) { readRaw(&val, sizeof(val)); }
+
+void CheckpointReader::read(double &val) { readRaw(&val, sizeof(val)); }
+
+
+void CheckpointReader::read(string &val)
+{
+    int size = 0;
+    read(size);
+    if (!ok_ || size < 0 || size > (1 << 16))
+    {
+        ok_ = false;
+        return;
+    }
+    val.resize(size);
+    if (size > 0)
+        readRaw(&val[0], size);
+}
+
+
+void CheckpointReader::read(Mat &val)
+{
+    int rows = 0, cols = 0, type = 0;
+    read(rows);
+    read(cols);
+    read(type);
+    if (!ok_ || rows < 0 || cols < 0)
+    {
+        ok_ = false;
+        return;
+    }
+    if (rows == 0 || cols == 0)
+    {
+        val.release();
+        return;
+    }
+    val.create(rows, cols, type);
+    readRaw(val.data, val.total() * val.elemSize());
+}
+
+
+void CheckpointReader::read(ImageFeatures &val)
+{
+    int num_keypoints = 0;
+    read(val.img_idx);
+    read(val.img_size.width);
+    read(val.img_size.height);
+    read(num_keypoints);
+    if (!ok_ || num_keypoints < 0)
+    {
+        ok_ = false;
+        return;
+    }
+    val.keypoints.resize(num_keypoints);
+    for (int i = 0; i < num_keypoints && ok_; ++i)
+    {
+        KeyPoint &kp = val.keypoints[i];
+        float data[5];
+        readRaw(data, sizeof(data));
+        kp.pt.x = data[0]; kp.pt.y = data[1];
+        kp.size = data[2]; kp.angle = data[3]; kp.response = data[4];
+        read(kp.octave);
+        read(kp.class_id);
+    }
+    read(val.descriptors);
+}
+
+
+void CheckpointReader::read(MatchesInfo &val)
+{
+    int num_matches = 0, mask_size = 0;
+    read(val.src_img_idx);
+    read(val.dst_img_idx);
+    read(num_matches);
+    if (!ok_ || num_matches < 0)
+    {
+        ok_ = false;
+        return;
+    }
+    val.matches.resize(num_matches);
+    for (int i = 0; i < num_matches && ok_; ++i)
+    {
+        DMatch &m = val.matches[i];
+        read(m.queryIdx);
+        read(m.trainIdx);
+        read(m.imgIdx);
+        readRaw(&m.distance, sizeof(m.distance));
+    }
+    read(mask_size);
+    if (!ok_ || mask_size < 0)
+    {
+        ok_ = false;
+        return;
+    }
+    val.inliers_mask.resize(mask_size);
+    if (mask_size > 0)
+        readRaw(&val.inliers_mask[0], mask_size);
+    read(val.num_inliers);
+    read(val.H);
+    read(val.confidence);
+}
+
+
+void CheckpointReader::read(CameraParams &val)
+{
+    read(val.focal);
+    read(val.R);
+    read(val.t);
+}
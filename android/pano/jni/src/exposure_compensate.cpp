@@ -225,6 +225,27 @@ void BlocksGainCompensator::apply(int index, Point /*corner*/, Mat &image, const
     else
         resize(gain_maps_[index], gain_map, image.size(), 0, 0, INTER_LINEAR);
 
+    applyGainMap(gain_map, image);
+}
+
+
+void BlocksGainCompensator::applyRoi(int index, Point /*corner*/, Mat &image, const Mat &/*mask*/,
+                                     Size full_size, Rect roi)
+{
+    CV_Assert(image.type() == CV_8UC3 && image.size() == roi.size());
+
+    Mat_<float> gain_map;
+    if (gain_maps_[index].size() == full_size)
+        gain_map = gain_maps_[index](roi);
+    else
+        resizeRoi(gain_maps_[index], full_size, roi, gain_map, INTER_LINEAR);
+
+    applyGainMap(gain_map, image);
+}
+
+
+void BlocksGainCompensator::applyGainMap(const Mat_<float> &gain_map, Mat &image)
+{
     for (int y = 0; y < image.rows; ++y)
     {
         const float* gain_row = gain_map.ptr<float>(y);
@@ -0,0 +1,136 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include <cstdio>
+#include <sstream>
+#include <sys/stat.h>
+#include "feature_cache.hpp"
+#include "checkpoint.hpp"
+
+using namespace std;
+using namespace cv;
+
+const char* FEATURE_CACHE_DIR = ".stitch";
+
+static const char* FEATURE_CACHE_MAGIC = "PANO_FEAT";
+
+
+namespace
+{
+    // 64-bit FNV-1a of the whole file
+    bool hashFile(const string &path, int64 &hash)
+    {
+        FILE *file = fopen(path.c_str(), "rb");
+        if (!file)
+            return false;
+
+        uint64 h = 14695981039346656037ULL;
+        unsigned char buf[1 << 16];
+        size_t len;
+        while ((len = fread(buf, 1, sizeof(buf), file)) > 0)
+        {
+            for (size_t i = 0; i < len; ++i)
+            {
+                h ^= buf[i];
+                h *= 1099511628211ULL;
+            }
+        }
+        bool ok = !ferror(file);
+        fclose(file);
+        hash = static_cast<int64>(h);
+        return ok;
+    }
+}
+
+
+FeatureCacheEntry::FeatureCacheEntry(const string &img_name, int rotation) : hash_(0), valid_(false)
+{
+    size_t slash = img_name.find_last_of('/');
+    string dir = slash == string::npos ? "." : img_name.substr(0, slash);
+    string name = slash == string::npos ? img_name : img_name.substr(slash + 1);
+    ostringstream suffix;
+    if (rotation)
+        suffix << ".r" << rotation;
+    path_ = dir + "/" + FEATURE_CACHE_DIR + "/" + name + suffix.str() + ".feat";
+    valid_ = hashFile(img_name, hash_);
+}
+
+
+bool FeatureCacheEntry::load(double work_megapix, double &work_scale, Size &full_img_size,
+                             ImageFeatures &features) const
+{
+    if (!valid_)
+        return false;
+
+    CheckpointReader reader(path_, FEATURE_CACHE_MAGIC);
+    int64 hash = 0;
+    double megapix = 0;
+    reader.read(hash);
+    reader.read(megapix);
+    if (!reader.good() || hash != hash_ || megapix != work_megapix)
+        return false;
+
+    reader.read(work_scale);
+    reader.read(full_img_size.width);
+    reader.read(full_img_size.height);
+    reader.read(features);
+    return reader.good();
+}
+
+
+bool FeatureCacheEntry::save(double work_megapix, double work_scale, Size full_img_size,
+                             const ImageFeatures &features) const
+{
+    if (!valid_)
+        return false;
+
+    string dir = path_.substr(0, path_.find_last_of('/'));
+    mkdir(dir.c_str(), 0777);
+
+    CheckpointWriter writer(path_, FEATURE_CACHE_MAGIC);
+    writer.write(hash_);
+    writer.write(work_megapix);
+    writer.write(work_scale);
+    writer.write(full_img_size.width);
+    writer.write(full_img_size.height);
+    writer.write(features);
+    return writer.commit();
+}
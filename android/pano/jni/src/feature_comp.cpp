@@ -1,79 +1,94 @@
 #include <jni.h>
 #include <opencv2/core/core.hpp>
 #include <opencv2/imgproc/imgproc.hpp>
-#include <opencv2/features2d/features2d.hpp>
-#include <vector>
-#include <string.h>
+#include <opencv2/highgui/highgui.hpp>
 #include <android/log.h>
+#include "overlap_estimator.hpp"
 
 #define TAG "FindFeatures"
 
-using namespace std;
 using namespace cv;
 
-extern "C" {
-JNIEXPORT void JNICALL Java_net_pandorica_opencv_pano_PanoSurfaceView_FindFeatures(JNIEnv* env, jobject thiz, jlong addrGray, jlong addrRgba, jlong addrComp)
+namespace
 {
-    Mat* pMatGr=(Mat*)addrGray;
-    Mat* pMatRgb=(Mat*)addrRgba;
-    Mat* pMatCom=(Mat*)addrComp;
-
-    Mat smallCom;
-
-    vector<KeyPoint> v;
-
-    Mat descriptors1, descriptors2;
-    vector<KeyPoint> keypoints1, keypoints2;
-    vector<DMatch> matches;
-    vector<char> empty;
-
-    SurfFeatureDetector detector(2500.);
-    SurfDescriptorExtractor surfDesc;
-    FlannBasedMatcher matcher;
-
-    resize(*pMatCom, smallCom, Size(), 0.25, 0.25);
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "NDK [%s]", "pre surf compute");
-
-    detector.detect(smallCom, keypoints1);
-    surfDesc.compute(smallCom, keypoints1, descriptors1);
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "NDK [%d]", keypoints1.size());
-
-
-    detector.detect(*pMatGr, keypoints2);
-    surfDesc.compute(*pMatGr,  keypoints2, descriptors2);
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "NDK [%d]", keypoints2.size());
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "NDK [%s]", "pre match");
-    matcher.match(descriptors1, descriptors2, matches);
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "NDK [%s]", "pre reduce");
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "NDK [%d]", matches.size());
-    nth_element(matches.begin(), matches.begin()+10, matches.end());
-    matches.erase(matches.begin()+11, matches.end());
+    OverlapEstimator estimator;
+}
 
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "NDK [%d]", matches.size());
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "NDK [%s]", "pre draw");
+extern "C" {
+/*
+ * Loads the last captured shot for EstimateOverlap. The shot is the small png written
+ * after capture, which is rotated clockwise for display; it is rotated back to the
+ * orientation of the preview frames. Its features are extracted on the first estimate.
+ */
+JNIEXPORT jboolean JNICALL Java_net_pandorica_opencv_pano_PanoSurfaceView_SetReference(JNIEnv* env, jobject thiz, jstring path)
+{
+    estimator.setReference(Mat());
+    if (path == NULL)
+        return JNI_FALSE;
+
+    const char *chars = env->GetStringUTFChars(path, NULL);
+    Mat shot = imread(chars, 0);
+    env->ReleaseStringUTFChars(path, chars);
+    if (shot.empty())
+        return JNI_FALSE;
+
+    Mat upright;
+    transpose(shot, upright);
+    flip(upright, upright, 0);
+    estimator.setReference(upright);
+    return JNI_TRUE;
+}
 
-    for( size_t i = 0; i < matches.size(); i++) {
-        circle(*pMatRgb, Point(keypoints2[matches[i].trainIdx].pt.x,
-                keypoints2[matches[i].trainIdx].pt.y), 10, Scalar(255,0,0,255));
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "NDK Distance [%f]", matches[i].distance);
+/*
+ * Downscales the luma of an NV21 preview frame by 1, 2 or 4 into the analysis Mat at
+ * addrDst, which must already have the downscaled size. The frame is read in place.
+ */
+JNIEXPORT jboolean JNICALL Java_net_pandorica_opencv_pano_PanoSurfaceView_DecimateLuma(JNIEnv* env, jobject thiz, jbyteArray data, jint width, jint height, jlong addrDst)
+{
+    Mat* pMatDst=(Mat*)addrDst;
+    if (env->GetArrayLength(data) < width * height || pMatDst->type() != CV_8UC1 ||
+        pMatDst->cols * pMatDst->rows == 0)
+        return JNI_FALSE;
+
+    jbyte *nv21 = static_cast<jbyte*>(env->GetPrimitiveArrayCritical(data, 0));
+    if (nv21 == NULL)
+        return JNI_FALSE;
+
+    // The array must be released whatever happens, the VM is stalled until then
+    jboolean ok = JNI_TRUE;
+    try
+    {
+        Mat luma(height, width, CV_8UC1, nv21);
+        if (luma.size() == pMatDst->size())
+            luma.copyTo(*pMatDst);
+        else
+            resize(luma, *pMatDst, pMatDst->size(), 0, 0, INTER_AREA);
+    }
+    catch (const cv::Exception &e)
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't decimate the preview: %s", e.what());
+        ok = JNI_FALSE;
     }
 
+    env->ReleasePrimitiveArrayCritical(data, nv21, JNI_ABORT);
+    return ok;
+}
 
 /*
-    drawMatches(*pMatCom, keypoints1,
-            *pMatGr, keypoints2,
-            matches, *pMatRgb,
-            Scalar(255,255,255,255),
-            Scalar(255,0,0,255),
-            empty, 1);
-    FastFeatureDetector detector(50);
-    detector.detect(*pMatGr, v);
-    for( size_t i = 0; i < keypoints2.size(); i++ )
-        circle(*pMatRgb, Point(keypoints2[i].pt.x, keypoints2[i].pt.y), 10, Scalar(255,0,0,255));
-*/
+ * Estimates how a preview frame (its analysis luma at addrGray) overlaps the reference shot.
+ * Writes {overlap, shift x, shift y, inliers} to result, the overlap as a fraction of the
+ * frame and the shifts as fractions of its width and height: a point of the reference
+ * appears shifted by that much in the frame. Returns false when there are too few
+ * consistent matches to tell.
+ */
+JNIEXPORT jboolean JNICALL Java_net_pandorica_opencv_pano_PanoSurfaceView_EstimateOverlap(JNIEnv* env, jobject thiz, jlong addrGray, jfloatArray result)
+{
+    Mat* pMatGr=(Mat*)addrGray;
+    jfloat values[OverlapEstimator::NUM_RESULTS];
+    if (!estimator.estimate(*pMatGr, values))
+        return JNI_FALSE;
+    env->SetFloatArrayRegion(result, 0, OverlapEstimator::NUM_RESULTS, values);
+    return JNI_TRUE;
 }
 
 }
@@ -0,0 +1,501 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include <cstdio>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <android/log.h>
+#include "image_source.hpp"
+
+using namespace std;
+using namespace cv;
+
+#define TAG "OpenCV_Stitching"
+
+namespace
+{
+    ReducedDecoder reduced_decoder = 0;
+
+    // Finds the frame size in the SOF segment of a JPEG, without decoding it
+    bool readJpegSize(const string &img_name, Size &size)
+    {
+        FILE *file = fopen(img_name.c_str(), "rb");
+        if (!file)
+            return false;
+
+        bool found = false;
+        if (fgetc(file) == 0xFF && fgetc(file) == 0xD8)
+        {
+            while (!found)
+            {
+                int c = fgetc(file);
+                if (c != 0xFF)
+                    break;
+                int marker;
+                do
+                    marker = fgetc(file);
+                while (marker == 0xFF);     // fill bytes
+                if (marker == EOF || marker == 0xD9 || marker == 0xDA)
+                    break;
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7))
+                    continue;               // no length
+
+                unsigned char header[7];
+                int hi = fgetc(file), lo = fgetc(file);
+                if (lo == EOF)
+                    break;
+                long length = (hi << 8) | lo;
+                bool sof = marker >= 0xC0 && marker <= 0xCF
+                           && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+                if (sof)
+                {
+                    // precision, height, width
+                    if (length < 7 || fread(header, 1, 5, file) != 5)
+                        break;
+                    size = Size((header[3] << 8) | header[4], (header[1] << 8) | header[2]);
+                    found = size.area() > 0;
+                    break;
+                }
+                if (length < 2 || fseek(file, length - 2, SEEK_CUR) != 0)
+                    break;
+            }
+        }
+        fclose(file);
+        return found;
+    }
+
+    Size rotatedSize(Size size, int rotation)
+    {
+        return rotation % 180 ? Size(size.height, size.width) : size;
+    }
+
+    void rotate(const Mat &src, int rotation, Mat &dst)
+    {
+        switch (rotation)
+        {
+        case 90:
+            transpose(src, dst);
+            flip(dst, dst, 1);
+            break;
+        case 180:
+            flip(src, dst, -1);
+            break;
+        case 270:
+            transpose(src, dst);
+            flip(dst, dst, 0);
+            break;
+        default:
+            dst = src;
+        }
+    }
+}
+
+
+void setReducedDecoder(ReducedDecoder decoder)
+{
+    reduced_decoder = decoder;
+}
+
+
+bool readImageSize(const string &img_name, int rotation, Size &size)
+{
+    if (!readJpegSize(img_name, size))
+    {
+        Mat img = imread(img_name);
+        if (img.empty())
+            return false;
+        size = img.size();
+    }
+    size = rotatedSize(size, rotation);
+    return true;
+}
+
+
+bool readImage(const string &img_name, double scale, int rotation, Mat &img)
+{
+    Size stored;
+    Mat decoded;
+    if (scale < 1 && reduced_decoder && readJpegSize(img_name, stored))
+    {
+        int reduction = 8;
+        while (reduction > 1 && 1.0 / reduction < scale)
+            reduction /= 2;
+        if (reduction > 1 && !reduced_decoder(img_name, reduction, decoded))
+        {
+            __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't decode %s at 1/%d", img_name.c_str(), reduction);
+            decoded.release();
+        }
+    }
+    if (decoded.empty())
+    {
+        decoded = imread(img_name);
+        if (decoded.empty())
+            return false;
+        stored = decoded.size();
+    }
+
+    Size target(cvRound(stored.width * scale), cvRound(stored.height * scale));
+    Mat resized = decoded;
+    if (decoded.size() != target)
+        resize(decoded, resized, target, 0, 0, INTER_AREA);
+    decoded.release();
+
+    rotate(resized, rotation, img);
+    return true;
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+namespace
+{
+    // Scales are recomputed by every stage, identical ones match exactly
+    inline bool sameScale(double a, double b)
+    {
+        return abs(a - b) < 1e-9;
+    }
+
+    // Tells whether a reader holds the pixels of a level besides the pool
+    inline bool shared(const Mat &img)
+    {
+        return img.refcount && *img.refcount > 1;
+    }
+}
+
+
+ImagePool::ImagePool(const vector<string> &img_names, size_t max_memory, const string &scratch_path)
+    : img_names_(img_names), full_sizes_(img_names.size()), rotation_(0), max_memory_(max_memory),
+      memory_(0), scratch_path_(scratch_path), scratch_fd_(-1), scratch_size_(0), clock_(0),
+      decodes_(0), hits_(0)
+{
+    pthread_mutex_init(&mutex_, 0);
+}
+
+
+ImagePool::~ImagePool()
+{
+    clear();
+    if (scratch_fd_ >= 0)
+        close(scratch_fd_);
+    pthread_mutex_destroy(&mutex_);
+}
+
+
+void ImagePool::setRotation(int rotation)
+{
+    if (rotation != rotation_)
+    {
+        clear();
+        rotation_ = rotation;
+    }
+}
+
+
+void ImagePool::plan(const vector<double> &scales)
+{
+    pthread_mutex_lock(&mutex_);
+    planned_ = scales;
+    pthread_mutex_unlock(&mutex_);
+}
+
+
+bool ImagePool::read(int img_idx, double scale, Mat &img)
+{
+    // img may share another level, copying or resizing into it would change
+    // that level
+    img.release();
+
+    pthread_mutex_lock(&mutex_);
+    Level *level = find(img_idx, scale);
+    if (level)
+    {
+        level->last_use = ++clock_;
+        if (level->map)
+            level->img.copyTo(img);
+        else
+            img = level->img;
+        ++hits_;
+        pthread_mutex_unlock(&mutex_);
+        return true;
+    }
+
+    Size full_size;
+    bool found = fullSize(img_idx, full_size);
+
+    // Reduce a larger level, or decode at the largest scale still to come
+    Mat source;
+    double source_scale = scale;
+    vector<double> derived;
+    Level *larger = findLarger(img_idx, scale);
+    if (larger)
+    {
+        larger->last_use = ++clock_;
+        source = larger->img;
+        source_scale = larger->scale;
+        ++hits_;
+    }
+    else
+    {
+        for (size_t i = 0; i < planned_.size(); ++i)
+            source_scale = max(source_scale, planned_[i]);
+        for (size_t i = 0; i < planned_.size(); ++i)
+        {
+            if (planned_[i] < source_scale && !sameScale(planned_[i], scale) && !find(img_idx, planned_[i]))
+                derived.push_back(planned_[i]);
+        }
+    }
+    const string img_name = img_names_[img_idx];
+    const int rotation = rotation_;
+    pthread_mutex_unlock(&mutex_);
+
+    if (!found)
+        return false;
+    if (source.empty())
+    {
+        if (!readImage(img_name, source_scale, rotation, source))
+            return false;
+        pthread_mutex_lock(&mutex_);
+        ++decodes_;
+        store(img_idx, source_scale, source);
+        pthread_mutex_unlock(&mutex_);
+
+        // The other planned levels come from the same decode
+        for (size_t i = 0; i < derived.size(); ++i)
+        {
+            Mat level_img;
+            resize(source, level_img, Size(cvRound(full_size.width * derived[i]), cvRound(full_size.height * derived[i])),
+                   0, 0, INTER_AREA);
+            pthread_mutex_lock(&mutex_);
+            store(img_idx, derived[i], level_img);
+            pthread_mutex_unlock(&mutex_);
+        }
+    }
+
+    if (sameScale(source_scale, scale))
+    {
+        img = source;
+        return true;
+    }
+    resize(source, img, Size(cvRound(full_size.width * scale), cvRound(full_size.height * scale)), 0, 0, INTER_AREA);
+    pthread_mutex_lock(&mutex_);
+    store(img_idx, scale, img);
+    pthread_mutex_unlock(&mutex_);
+    return true;
+}
+
+
+bool ImagePool::readRoi(int img_idx, double scale, Rect roi, Mat &img)
+{
+    img.release();
+
+    pthread_mutex_lock(&mutex_);
+    Level *level = find(img_idx, scale);
+    if (level)
+    {
+        level->last_use = ++clock_;
+        level->img(roi).copyTo(img);
+        ++hits_;
+        pthread_mutex_unlock(&mutex_);
+        return true;
+    }
+    pthread_mutex_unlock(&mutex_);
+
+    Mat whole;
+    if (!read(img_idx, scale, whole))
+        return false;
+    whole(roi).copyTo(img);
+    whole.release();
+
+    pthread_mutex_lock(&mutex_);
+    trim(0);
+    pthread_mutex_unlock(&mutex_);
+    return true;
+}
+
+
+void ImagePool::clear()
+{
+    pthread_mutex_lock(&mutex_);
+    for (list<Level>::iterator it = levels_.begin(); it != levels_.end(); ++it)
+        release(*it);
+    levels_.clear();
+    full_sizes_.assign(img_names_.size(), Size());
+    memory_ = 0;
+    if (scratch_fd_ >= 0 && ftruncate(scratch_fd_, 0) == 0)
+        scratch_size_ = 0;
+    pthread_mutex_unlock(&mutex_);
+}
+
+
+ImagePool::Level* ImagePool::find(int img_idx, double scale)
+{
+    for (list<Level>::iterator it = levels_.begin(); it != levels_.end(); ++it)
+    {
+        if (it->img_idx == img_idx && sameScale(it->scale, scale))
+            return &*it;
+    }
+    return 0;
+}
+
+
+// Finds the smallest level above scale, reducing it is cheaper than decoding
+ImagePool::Level* ImagePool::findLarger(int img_idx, double scale)
+{
+    Level *larger = 0;
+    for (list<Level>::iterator it = levels_.begin(); it != levels_.end(); ++it)
+    {
+        if (it->img_idx == img_idx && it->scale > scale && (!larger || it->scale < larger->scale))
+            larger = &*it;
+    }
+    return larger;
+}
+
+
+bool ImagePool::fullSize(int img_idx, Size &size)
+{
+    if (full_sizes_[img_idx].area() == 0 && !readImageSize(img_names_[img_idx], rotation_, full_sizes_[img_idx]))
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't open image %s", img_names_[img_idx].c_str());
+        return false;
+    }
+    size = full_sizes_[img_idx];
+    return true;
+}
+
+
+void ImagePool::store(int img_idx, double scale, const Mat &img)
+{
+    // Two threads may have read the same level
+    Level *level = find(img_idx, scale);
+    if (!level)
+    {
+        Level added;
+        added.img_idx = img_idx;
+        added.scale = scale;
+        added.img = img.isContinuous() ? img : img.clone();
+        added.map = 0;
+        added.map_size = 0;
+        levels_.push_back(added);
+        level = &levels_.back();
+        memory_ += level->img.total() * level->img.elemSize();
+    }
+    level->last_use = ++clock_;
+    trim(level);
+}
+
+
+// Spills the least recently used levels until the pool is within its budget.
+// Levels readers still hold wouldn't leave the memory, they are skipped.
+void ImagePool::trim(const Level *keep)
+{
+    while (memory_ > max_memory_)
+    {
+        list<Level>::iterator lru = levels_.end();
+        for (list<Level>::iterator it = levels_.begin(); it != levels_.end(); ++it)
+        {
+            if (!it->map && &*it != keep && !shared(it->img) && (lru == levels_.end() || it->last_use < lru->last_use))
+                lru = it;
+        }
+        if (lru == levels_.end())
+            break;
+
+        size_t size = lru->img.total() * lru->img.elemSize();
+        if (!spill(*lru))
+        {
+            release(*lru);
+            levels_.erase(lru);
+        }
+        memory_ -= size;
+    }
+}
+
+
+// Writes the pixels to the end of the scratch file and replaces them with a
+// read only mapping, the kernel pages them in and out as needed
+bool ImagePool::spill(Level &level)
+{
+    if (scratch_fd_ < 0 && !scratch_path_.empty())
+    {
+        // Unlinked right away, the file never outlives the process
+        scratch_fd_ = open(scratch_path_.c_str(), O_RDWR | O_CREAT | O_TRUNC, 0600);
+        if (scratch_fd_ >= 0)
+            unlink(scratch_path_.c_str());
+        else
+        {
+            __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't create %s, images will be decoded again", scratch_path_.c_str());
+            scratch_path_.clear();
+        }
+    }
+    if (scratch_fd_ < 0)
+        return false;
+
+    const size_t size = level.img.total() * level.img.elemSize();
+    const size_t page = static_cast<size_t>(sysconf(_SC_PAGESIZE));
+    const size_t map_size = (size + page - 1) / page * page;
+    const uchar *data = level.img.data;
+    for (size_t written = 0; written < size; )
+    {
+        ssize_t n = pwrite(scratch_fd_, data + written, size - written, static_cast<off_t>(scratch_size_ + written));
+        if (n <= 0)
+            return false;
+        written += n;
+    }
+
+    void *map = mmap(0, map_size, PROT_READ, MAP_SHARED, scratch_fd_, static_cast<off_t>(scratch_size_));
+    if (map == MAP_FAILED)
+        return false;
+    scratch_size_ += map_size;
+
+    level.img = Mat(level.img.size(), level.img.type(), map);
+    level.map = map;
+    level.map_size = map_size;
+    return true;
+}
+
+
+void ImagePool::release(Level &level)
+{
+    level.img.release();
+    if (level.map)
+        munmap(level.map, level.map_size);
+    level.map = 0;
+}
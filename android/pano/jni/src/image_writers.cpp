@@ -0,0 +1,350 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include <cctype>
+#include <cstring>
+#include "image_writers.hpp"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    const size_t OUTPUT_BUF_SIZE = 1 << 16;
+
+    bool hasExtension(const string &path, const char *ext)
+    {
+        size_t dot = path.find_last_of('.');
+        if (dot == string::npos)
+            return false;
+        string path_ext = path.substr(dot + 1);
+        for (size_t i = 0; i < path_ext.size(); ++i)
+            path_ext[i] = static_cast<char>(tolower(path_ext[i]));
+        return path_ext == ext;
+    }
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+JpegStripWriter::JpegStripWriter(int quality)
+    : file_(0), ok_(false), quality_(min(max(quality, 1), 100)), rows_written_(0)
+{
+    // jpeg_destroy_compress() is a no-op on a zeroed object
+    memset(&cinfo_, 0, sizeof(cinfo_));
+}
+
+
+JpegStripWriter::~JpegStripWriter()
+{
+    jpeg_destroy_compress(&cinfo_);
+    if (file_)
+        fclose(file_);
+}
+
+
+bool JpegStripWriter::open(const string &path, Size size)
+{
+    CV_Assert(!file_);
+    if (size.width <= 0 || size.height <= 0 || size.width > 65535 || size.height > 65535)
+        return false;
+
+    file_ = fopen(path.c_str(), "wb");
+    if (!file_)
+        return false;
+    ok_ = false;
+    size_ = size;
+    rows_written_ = 0;
+    row_.resize(size.width * 3);
+
+    cinfo_.err = jpeg_std_error(&error_.pub);
+    error_.pub.error_exit = errorExit;
+    if (setjmp(error_.jump))
+    {
+        jpeg_destroy_compress(&cinfo_);
+        fclose(file_);
+        file_ = 0;
+        return false;
+    }
+
+    jpeg_create_compress(&cinfo_);
+    jpeg_stdio_dest(&cinfo_, file_);
+    cinfo_.image_width = size.width;
+    cinfo_.image_height = size.height;
+    cinfo_.input_components = 3;
+    cinfo_.in_color_space = JCS_RGB;
+    jpeg_set_defaults(&cinfo_);
+    jpeg_set_quality(&cinfo_, quality_, TRUE);
+
+    // Keep the full chroma resolution, libjpeg halves it by default
+    for (int i = 0; i < cinfo_.num_components; ++i)
+        cinfo_.comp_info[i].h_samp_factor = cinfo_.comp_info[i].v_samp_factor = 1;
+
+    jpeg_start_compress(&cinfo_, TRUE);
+    ok_ = true;
+    return true;
+}
+
+
+bool JpegStripWriter::write(const Mat &strip)
+{
+    CV_Assert(file_ && strip.type() == CV_8UC3 && strip.cols == size_.width);
+    if (!ok_ || rows_written_ + strip.rows > size_.height)
+        return false;
+
+    if (setjmp(error_.jump))
+    {
+        ok_ = false;
+        return false;
+    }
+
+    // libjpeg takes the rows one at a time, and in RGB order
+    JSAMPROW row = &row_[0];
+    for (int y = 0; y < strip.rows; ++y)
+    {
+        const uchar *src = strip.ptr<uchar>(y);
+        for (int x = 0; x < size_.width * 3; x += 3)
+        {
+            row_[x] = src[x + 2];
+            row_[x + 1] = src[x + 1];
+            row_[x + 2] = src[x];
+        }
+        jpeg_write_scanlines(&cinfo_, &row, 1);
+    }
+    rows_written_ += strip.rows;
+    return true;
+}
+
+
+bool JpegStripWriter::close()
+{
+    if (!file_)
+        return false;
+
+    // libjpeg can't finish short images, they are just abandoned
+    bool ok = ok_ && rows_written_ == size_.height && finish();
+    jpeg_destroy_compress(&cinfo_);
+    ok = fclose(file_) == 0 && ok;
+    file_ = 0;
+    ok_ = false;
+    return ok;
+}
+
+
+bool JpegStripWriter::finish()
+{
+    if (setjmp(error_.jump))
+        return false;
+    jpeg_finish_compress(&cinfo_);
+    return true;
+}
+
+
+// Replaces the default handler, which exits the process
+void JpegStripWriter::errorExit(j_common_ptr cinfo)
+{
+    longjmp(reinterpret_cast<ErrorManager *>(cinfo->err)->jump, 1);
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+PngStripWriter::PngStripWriter(int level)
+    : file_(0), ok_(false), level_(level), rows_written_(0), stream_opened_(false) {}
+
+
+PngStripWriter::~PngStripWriter()
+{
+    if (stream_opened_)
+        deflateEnd(&stream_);
+    if (file_)
+        fclose(file_);
+}
+
+
+bool PngStripWriter::open(const string &path, Size size)
+{
+    CV_Assert(!file_);
+    if (size.width <= 0 || size.height <= 0)
+        return false;
+
+    memset(&stream_, 0, sizeof(stream_));
+    if (deflateInit(&stream_, level_) != Z_OK)
+        return false;
+    stream_opened_ = true;
+
+    file_ = fopen(path.c_str(), "wb");
+    if (!file_)
+        return false;
+    ok_ = true;
+    size_ = size;
+    rows_written_ = 0;
+
+    // Every row starts with its filter type byte
+    row_.resize(1 + size.width * 3);
+    out_.resize(OUTPUT_BUF_SIZE);
+    stream_.next_out = &out_[0];
+    stream_.avail_out = static_cast<uInt>(out_.size());
+
+    const unsigned char signature[8] = { 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    ok_ = fwrite(signature, 1, sizeof(signature), file_) == sizeof(signature);
+
+    unsigned char header[13] =
+    {
+        static_cast<unsigned char>(size.width >> 24), static_cast<unsigned char>(size.width >> 16),
+        static_cast<unsigned char>(size.width >> 8), static_cast<unsigned char>(size.width),
+        static_cast<unsigned char>(size.height >> 24), static_cast<unsigned char>(size.height >> 16),
+        static_cast<unsigned char>(size.height >> 8), static_cast<unsigned char>(size.height),
+        8, 2, 0, 0, 0
+    };
+    return ok_ && writeChunk("IHDR", header, sizeof(header));
+}
+
+
+bool PngStripWriter::write(const Mat &strip)
+{
+    CV_Assert(file_ && strip.type() == CV_8UC3 && strip.cols == size_.width);
+    if (rows_written_ + strip.rows > size_.height)
+        return false;
+
+    for (int y = 0; y < strip.rows && ok_; ++y)
+    {
+        // BGR to RGB with the Sub filter, which suits photos well and costs
+        // almost nothing
+        const uchar *src = strip.ptr<uchar>(y);
+        unsigned char *dst = &row_[1];
+        row_[0] = 1;
+        dst[0] = src[2];
+        dst[1] = src[1];
+        dst[2] = src[0];
+        for (int x = 1; x < size_.width; ++x)
+        {
+            const uchar *cur = src + x * 3, *prev = cur - 3;
+            dst[x * 3] = static_cast<unsigned char>(cur[2] - prev[2]);
+            dst[x * 3 + 1] = static_cast<unsigned char>(cur[1] - prev[1]);
+            dst[x * 3 + 2] = static_cast<unsigned char>(cur[0] - prev[0]);
+        }
+
+        stream_.next_in = &row_[0];
+        stream_.avail_in = static_cast<uInt>(row_.size());
+        ok_ = deflateRows(Z_NO_FLUSH);
+    }
+    rows_written_ += strip.rows;
+    return ok_;
+}
+
+
+bool PngStripWriter::close()
+{
+    if (!file_)
+        return false;
+
+    bool ok = ok_ && deflateRows(Z_FINISH) && writeChunk("IEND", 0, 0) && rows_written_ == size_.height;
+    deflateEnd(&stream_);
+    stream_opened_ = false;
+    ok = fclose(file_) == 0 && ok;
+    file_ = 0;
+    return ok;
+}
+
+
+// Compresses the pending input and writes the output as IDAT chunks whenever
+// the output buffer fills up, or when the stream is finished
+bool PngStripWriter::deflateRows(int flush)
+{
+    for (;;)
+    {
+        int retval = deflate(&stream_, flush);
+        if (retval == Z_STREAM_ERROR)
+            return false;
+
+        bool finished = retval == Z_STREAM_END;
+        if (stream_.avail_out == 0 || finished)
+        {
+            size_t size = out_.size() - stream_.avail_out;
+            if (size > 0 && !writeChunk("IDAT", &out_[0], size))
+                return false;
+            stream_.next_out = &out_[0];
+            stream_.avail_out = static_cast<uInt>(out_.size());
+        }
+        if (finished)
+            return true;
+        if (flush != Z_FINISH && stream_.avail_in == 0)
+            return true;
+    }
+}
+
+
+bool PngStripWriter::writeChunk(const char *type, const unsigned char *data, size_t size)
+{
+    unsigned char header[8] =
+    {
+        static_cast<unsigned char>(size >> 24), static_cast<unsigned char>(size >> 16),
+        static_cast<unsigned char>(size >> 8), static_cast<unsigned char>(size),
+        static_cast<unsigned char>(type[0]), static_cast<unsigned char>(type[1]),
+        static_cast<unsigned char>(type[2]), static_cast<unsigned char>(type[3])
+    };
+    uLong crc = crc32(0L, header + 4, 4);
+    if (size > 0)
+        crc = crc32(crc, data, static_cast<uInt>(size));
+    unsigned char footer[4] =
+    {
+        static_cast<unsigned char>(crc >> 24), static_cast<unsigned char>(crc >> 16),
+        static_cast<unsigned char>(crc >> 8), static_cast<unsigned char>(crc)
+    };
+
+    ok_ = ok_ && fwrite(header, 1, 8, file_) == 8
+              && (size == 0 || fwrite(data, 1, size, file_) == size)
+              && fwrite(footer, 1, 4, file_) == 4;
+    return ok_;
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+Ptr<StripWriter> createStripWriter(const string &path)
+{
+    if (hasExtension(path, "jpg") || hasExtension(path, "jpeg"))
+        return new JpegStripWriter();
+    if (hasExtension(path, "png"))
+        return new PngStripWriter();
+    return Ptr<StripWriter>();
+}
@@ -41,6 +41,7 @@
 //M*/
 #include <algorithm>
 #include <functional>
+#include <pthread.h>
 #include "matchers.hpp"
 #include "util.hpp"
 
@@ -138,43 +139,38 @@ struct DistIdxPair
 };
 
 
-struct MatchPairsBody
+// Every pair owns its two slots in pairwise_matches, so pairs can be matched
+// in any order and on any thread without changing the result
+struct MatchPairsBody : public ParallelLoopBody
 {
-    MatchPairsBody(const MatchPairsBody& other)
-            : matcher(other.matcher), features(other.features),
-              pairwise_matches(other.pairwise_matches), near_pairs(other.near_pairs) {}
-
     MatchPairsBody(FeaturesMatcher &matcher, const vector<ImageFeatures> &features,
                    vector<MatchesInfo> &pairwise_matches, vector<pair<int,int> > &near_pairs)
             : matcher(matcher), features(features),
               pairwise_matches(pairwise_matches), near_pairs(near_pairs) {}
 
-    void operator ()(const BlockedRange &r) const
+    void operator ()(int i, int /*thread_idx*/)
     {
         const int num_images = static_cast<int>(features.size());
-        for (int i = r.begin(); i < r.end(); ++i)
-        {
-            int from = near_pairs[i].first;
-            int to = near_pairs[i].second;
-            int pair_idx = from*num_images + to;
+        int from = near_pairs[i].first;
+        int to = near_pairs[i].second;
+        int pair_idx = from*num_images + to;
 
-            matcher(features[from], features[to], pairwise_matches[pair_idx]);
-            pairwise_matches[pair_idx].src_img_idx = from;
-            pairwise_matches[pair_idx].dst_img_idx = to;
+        matcher(features[from], features[to], pairwise_matches[pair_idx]);
+        pairwise_matches[pair_idx].src_img_idx = from;
+        pairwise_matches[pair_idx].dst_img_idx = to;
 
-            size_t dual_pair_idx = to*num_images + from;
+        size_t dual_pair_idx = to*num_images + from;
 
-            pairwise_matches[dual_pair_idx] = pairwise_matches[pair_idx];
-            pairwise_matches[dual_pair_idx].src_img_idx = to;
-            pairwise_matches[dual_pair_idx].dst_img_idx = from;
+        pairwise_matches[dual_pair_idx] = pairwise_matches[pair_idx];
+        pairwise_matches[dual_pair_idx].src_img_idx = to;
+        pairwise_matches[dual_pair_idx].dst_img_idx = from;
 
-            if (!pairwise_matches[pair_idx].H.empty())
-                pairwise_matches[dual_pair_idx].H = pairwise_matches[pair_idx].H.inv();
+        if (!pairwise_matches[pair_idx].H.empty())
+            pairwise_matches[dual_pair_idx].H = pairwise_matches[pair_idx].H.inv();
 
-            for (size_t j = 0; j < pairwise_matches[dual_pair_idx].matches.size(); ++j)
-                swap(pairwise_matches[dual_pair_idx].matches[j].queryIdx,
-                     pairwise_matches[dual_pair_idx].matches[j].trainIdx);
-        }
+        for (size_t j = 0; j < pairwise_matches[dual_pair_idx].matches.size(); ++j)
+            swap(pairwise_matches[dual_pair_idx].matches[j].queryIdx,
+                 pairwise_matches[dual_pair_idx].matches[j].trainIdx);
     }
 
     FeaturesMatcher &matcher;
@@ -187,22 +183,23 @@ private:
 };
 
 
-void FeaturesMatcher::operator ()(const vector<ImageFeatures> &features, vector<MatchesInfo> &pairwise_matches)
+void FeaturesMatcher::operator ()(const vector<ImageFeatures> &features, vector<MatchesInfo> &pairwise_matches,
+                                  const Mat &mask)
 {
     const int num_images = static_cast<int>(features.size());
 
+    CV_Assert(mask.empty() || (mask.type() == CV_8U && mask.cols == num_images && mask.rows == num_images));
+    Mat_<uchar> mask_(mask);
     vector<pair<int,int> > near_pairs;
     for (int i = 0; i < num_images - 1; ++i)
         for (int j = i + 1; j < num_images; ++j)
-            near_pairs.push_back(make_pair(i, j));
+            if (mask_.empty() || mask_(i, j) || mask_(j, i))
+                near_pairs.push_back(make_pair(i, j));
 
     pairwise_matches.resize(num_images * num_images);
     MatchPairsBody body(*this, features, pairwise_matches, near_pairs);
 
-    if (is_thread_safe_)
-        parallel_for(BlockedRange(0, static_cast<int>(near_pairs.size())), body);
-    else
-        body(BlockedRange(0, static_cast<int>(near_pairs.size())));
+    parallelForEach(static_cast<int>(near_pairs.size()), is_thread_safe_ ? num_threads_ : 1, body);
     LOGLN("");
 }
 
@@ -213,6 +210,30 @@ namespace
 {
     typedef set<pair<int,int> > MatchesSet;
 
+    // FLANN builds randomized trees using the global rand(), later versions of
+    // it use theRNG() of the calling thread instead. Index building is
+    // serialized and both are reseeded for every image pair, so the matches
+    // don't depend on the order pairs are matched in, nor on the thread.
+    pthread_mutex_t flann_rand_mutex = PTHREAD_MUTEX_INITIALIZER;
+
+    void trainSeeded(FlannBasedMatcher &matcher, const Mat &descriptors, unsigned seed)
+    {
+        matcher.add(vector<Mat>(1, descriptors));
+        pthread_mutex_lock(&flann_rand_mutex);
+        srand(seed);
+        theRNG() = RNG(seed);
+        try
+        {
+            matcher.train();
+        }
+        catch (...)
+        {
+            pthread_mutex_unlock(&flann_rand_mutex);
+            throw;
+        }
+        pthread_mutex_unlock(&flann_rand_mutex);
+    }
+
     // These two classes are aimed to find features matches only, not to
     // estimate homography
 
@@ -229,12 +250,17 @@ namespace
     void CpuMatcher::match(const ImageFeatures &features1, const ImageFeatures &features2, MatchesInfo& matches_info)
     {
         matches_info.matches.clear();
-        FlannBasedMatcher matcher;
+        if (features1.descriptors.empty() || features2.descriptors.empty())
+            return;
+
         vector< vector<DMatch> > pair_matches;
         MatchesSet matches;
+        unsigned seed = static_cast<unsigned>(features1.img_idx * 65536 + features2.img_idx);
 
         // Find 1->2 matches
-        matcher.knnMatch(features1.descriptors, features2.descriptors, pair_matches, 2);
+        FlannBasedMatcher matcher12;
+        trainSeeded(matcher12, features2.descriptors, seed);
+        matcher12.knnMatch(features1.descriptors, pair_matches, 2);
         for (size_t i = 0; i < pair_matches.size(); ++i)
         {
             if (pair_matches[i].size() < 2)
@@ -250,7 +276,9 @@ namespace
 
         // Find 2->1 matches
         pair_matches.clear();
-        matcher.knnMatch(features2.descriptors, features1.descriptors, pair_matches, 2);
+        FlannBasedMatcher matcher21;
+        trainSeeded(matcher21, features1.descriptors, seed + 1);
+        matcher21.knnMatch(features2.descriptors, pair_matches, 2);
         for (size_t i = 0; i < pair_matches.size(); ++i)
         {
             if (pair_matches[i].size() < 2)
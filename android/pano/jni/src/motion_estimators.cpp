@@ -125,6 +125,40 @@ void HomographyBasedEstimator::estimate(const vector<ImageFeatures> &features, c
 }
 
 
+//////////////////////////////////////////////////////////////////////////////
+
+void PoseBasedEstimator::estimate(const vector<ImageFeatures> &features, const vector<MatchesInfo> &/*pairwise_matches*/, 
+                                  vector<CameraParams> &cameras)
+{
+    const int num_images = static_cast<int>(features.size());
+    CV_Assert(static_cast<int>(hints_.size()) == num_images);
+
+    // Handheld poses are relative to magnetic north, turn the panorama so it
+    // starts in front of the first image like the pan/tilt head captures do
+    const double yaw_origin = hints_.empty() ? 0 : hints_[0].yaw;
+
+    cameras.resize(num_images);
+    for (int i = 0; i < num_images; ++i)
+    {
+        const PoseHint &hint = hints_[i];
+        CV_Assert(hint.valid && hint.hfov > 0);
+
+        // Camera looks along z with y down, so does the world at zero yaw and pitch
+        double yaw = (hint.yaw - yaw_origin) * CV_PI / 180.;
+        double pitch = hint.pitch * CV_PI / 180.;
+        double roll = hint.roll * CV_PI / 180.;
+        Mat Ry = (Mat_<double>(3, 3) << cos(yaw), 0, sin(yaw), 0, 1, 0, -sin(yaw), 0, cos(yaw));
+        Mat Rx = (Mat_<double>(3, 3) << 1, 0, 0, 0, cos(pitch), -sin(pitch), 0, sin(pitch), cos(pitch));
+        Mat Rz = (Mat_<double>(3, 3) << cos(roll), -sin(roll), 0, sin(roll), cos(roll), 0, 0, 0, 1);
+        cameras[i].R = Ry * Rx * Rz;
+
+        cameras[i].focal = 0.5 * features[i].img_size.width / tan(hint.hfov * CV_PI / 360.);
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Camera #%d seeded from pose, yaw: %f, pitch: %f, focal: %f",
+                            i+1, hint.yaw, hint.pitch, cameras[i].focal);
+    }
+}
+
+
 //////////////////////////////////////////////////////////////////////////////
 
 void BundleAdjuster::estimate(const vector<ImageFeatures> &features, const vector<MatchesInfo> &pairwise_matches, 
@@ -170,6 +204,13 @@ void BundleAdjuster::estimate(const vector<ImageFeatures> &features, const vecto
     for (size_t i = 0; i < edges_.size(); ++i)
         total_num_matches_ += static_cast<int>(pairwise_matches[edges_[i].first * num_images_ + edges_[i].second].num_inliers);
 
+    // Possible when cameras were seeded from poses, keep them as they are
+    if (total_num_matches_ == 0)
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Bundle adjustment, nothing to adjust");
+        return;
+    }
+
     CvLevMarq solver(num_images_ * 4, total_num_matches_ * 3,
                      cvTermCriteria(CV_TERMCRIT_EPS + CV_TERMCRIT_ITER, 1000, DBL_EPSILON));
 
@@ -222,6 +263,9 @@ void BundleAdjuster::estimate(const vector<ImageFeatures> &features, const vecto
         cameras[i].R = Mf;
     }
 
+    if (!normalize_motion_)
+        return;
+
     // Normalize motion to center image
     Graph span_tree;
     vector<int> span_tree_centers;
@@ -50,601 +50,198 @@
 
 #include <string.h>
 #include <jni.h>
+#include <android/bitmap.h>
 #include <android/log.h>
-#include <iostream>
-#include <fcntl.h>
+#include <new>
 
 #include "precomp.hpp"
-#include "util.hpp"
-#include "warpers.hpp"
-#include "blenders.hpp"
-#include "seam_finders.hpp"
-#include "motion_estimators.hpp"
-#include "exposure_compensate.hpp"
+#include "stitcher.hpp"
+#include "image_source.hpp"
 
 using namespace std;
 using namespace cv;
 
 #define TAG "OpenCV_Stitching"
 
-void printUsage()
+static string jstringToString(JNIEnv *env, jstring jstr)
 {
-    cout << 
-        "Rotation model images stitcher.\n\n"
-        "opencv_stitching img1 img2 [...imgN] [flags]\n\n" 
-        "Flags:\n"
-        "  --preview\n"
-        "      Run stitching in the preview mode. Works faster than usual mode,\n"
-        "      but output image will have lower resolution.\n"
-        "\nMotion Estimation Flags:\n"
-        "  --work_megapix <float>\n"
-        "      Resolution for image registration step. The default is 0.6 Mpx.\n"
-        "  --match_conf <float>\n"
-        "      Confidence for feature matching step. The default is 0.65.\n"
-        "  --conf_thresh <float>\n"
-        "      Threshold for two images are from the same panorama confidence.\n"
-        "      The default is 1.0.\n"
-        "  --ba (ray|focal_ray)\n"
-        "      Bundle adjustment cost function. The default is 'focal_ray'.\n"
-        "  --wave_correct (no|yes)\n"
-        "      Perform wave effect correction. The default is 'yes'.\n"
-        "\nCompositing Flags:\n"
-        "  --warp (plane|cylindrical|spherical)\n" 
-        "      Warp surface type. The default is 'spherical'.\n"
-        "  --seam_megapix <float>\n"
-        "      Resolution for seam estimation step. The default is 0.1 Mpx.\n"
-        "  --seam (no|voronoi|gc_color|gc_colorgrad)\n" 
-        "      Seam estimation method. The default is 'gc_color'.\n"
-        "  --compose_megapix <float>\n"
-        "      Resolution for compositing step. Use -1 for original resolution.\n"
-        "      The default is -1.\n"
-        "  --expos_comp (no|gain|gain_blocks)\n"
-        "      Exposure compensation method. The default is 'gain_blocks'.\n"
-        "  --blend (no|feather|multiband)\n"
-        "      Blending method. The default is 'multiband'.\n"
-        "  --blend_strength <float>\n"
-        "      Blending strength from [0,100] range. The default is 5.\n"
-        "  --output <result_img>\n"
-        "      The default is 'result.png'.\n";
+    if (jstr == 0)
+        return "";
+    const char *str = env->GetStringUTFChars(jstr, 0);
+    string result(str);
+    env->ReleaseStringUTFChars(jstr, str);
+    return result;
 }
 
-
-// Default command line args
-vector<string> img_names;
-bool preview;
-bool try_gpu;
-double work_megapix;
-double seam_megapix;
-double compose_megapix;
-int ba_space;
-float conf_thresh;
-bool wave_correct;
-int warp_type;
-int expos_comp_type;
-float match_conf;
-int seam_find_type;
-int blend_type;
-float blend_strength;
-string result_name;
-
-void defaultArgs() {
-    img_names.clear();
-    preview = false;
-    try_gpu = false;
-    work_megapix = 0.6;
-    seam_megapix = 0.1;
-    compose_megapix = -1;
-    ba_space = BundleAdjuster::FOCAL_RAY_SPACE;
-    conf_thresh = 1.f;
-    wave_correct = true;
-    warp_type = Warper::SPHERICAL;
-    expos_comp_type = ExposureCompensator::GAIN_BLOCKS;
-    match_conf = 0.65f;
-    seam_find_type = SeamFinder::GC_COLOR;
-    blend_type = Blender::MULTI_BAND;
-    blend_strength = 5;
-    result_name = "/mnt/sdcard/result.png";
+static inline StagedStitcher* stitcher(jlong self)
+{
+    return reinterpret_cast<StagedStitcher*>(self);
 }
 
-int parseCmdArgs(int argc, char** argv)
+namespace
 {
-    if (argc == 1)
+    JavaVM *java_vm = 0;
+    jclass pipeline_class = 0;
+    jmethodID decode_reduced = 0;
+    jmethodID bitmap_recycle = 0;
+
+    // Decodes through StitchPipeline.decodeReduced(), BitmapFactory scales JPEGs
+    // in the decoder. Called from the stitcher threads, which may not be attached.
+    bool decodeReduced(const string &img_name, int reduction, Mat &img)
     {
-        printUsage();
-        return -1;
-    }
-    for (int i = 1; i < argc; ++i)
-    {
-        if (string(argv[i]) == "--help" || string(argv[i]) == "/?")
-        {
-            printUsage();
-            return -1;
-        }
-        else if (string(argv[i]) == "--preview")
-        {
-            preview = true;
-        }
-        else if (string(argv[i]) == "--work_megapix") 
-        {
-            work_megapix = atof(argv[i + 1]);
-            i++; 
-        }
-        else if (string(argv[i]) == "--seam_megapix") 
-        {
-            seam_megapix = atof(argv[i + 1]);
-            i++; 
-        }
-        else if (string(argv[i]) == "--compose_megapix") 
+        JNIEnv *env;
+        bool attached = false;
+        if (java_vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_4) != JNI_OK)
         {
-            compose_megapix = atof(argv[i + 1]);
-            i++; 
+            if (java_vm->AttachCurrentThread(&env, 0) != JNI_OK)
+                return false;
+            attached = true;
         }
-        else if (string(argv[i]) == "--result")
-        {
-            result_name = argv[i + 1];
-            i++;
-        }
-        else if (string(argv[i]) == "--match_conf")
-        {
-            match_conf = static_cast<float>(atof(argv[i + 1]));
-            i++;
-        }
-        else if (string(argv[i]) == "--ba")
-        {
-            if (string(argv[i + 1]) == "ray")
-                ba_space = BundleAdjuster::RAY_SPACE;
-            else if (string(argv[i + 1]) == "focal_ray")
-                ba_space = BundleAdjuster::FOCAL_RAY_SPACE;
-            else
-            {
-                cout << "Bad bundle adjustment space\n";
-                return -1;
-            }
-            i++;
-        }
-        else if (string(argv[i]) == "--conf_thresh")
-        {
-            conf_thresh = static_cast<float>(atof(argv[i + 1]));
-            i++;
-        }
-        else if (string(argv[i]) == "--wave_correct")
-        {
-            if (string(argv[i + 1]) == "no")
-                wave_correct = false;
-            else if (string(argv[i + 1]) == "yes")
-                wave_correct = true;
-            else
-            {
-                cout << "Bad --wave_correct flag value\n";
-                return -1;
-            }
-            i++;
-        }
-        else if (string(argv[i]) == "--warp")
-        {
-            if (string(argv[i + 1]) == "plane")
-                warp_type = Warper::PLANE;
-            else if (string(argv[i + 1]) == "cylindrical")
-                warp_type = Warper::CYLINDRICAL;
-            else if (string(argv[i + 1]) == "spherical")
-                warp_type = Warper::SPHERICAL;
-            else
-            {
-                cout << "Bad warping method\n";
-                return -1;
-            }
-            i++;
-        }
-        else if (string(argv[i]) == "--expos_comp")
-        {
-            if (string(argv[i + 1]) == "no")
-                expos_comp_type = ExposureCompensator::NO;
-            else if (string(argv[i + 1]) == "gain")
-                expos_comp_type = ExposureCompensator::GAIN;
-            else if (string(argv[i + 1]) == "gain_blocks")
-                expos_comp_type = ExposureCompensator::GAIN_BLOCKS;
-            else
-            {
-                cout << "Bad exposure compensation method\n";
-                return -1;
-            }
-            i++;
-        }        
-        else if (string(argv[i]) == "--seam")
-        {
-            if (string(argv[i + 1]) == "no")
-                seam_find_type = SeamFinder::NO;
-            else if (string(argv[i + 1]) == "voronoi")
-                seam_find_type = SeamFinder::VORONOI;
-            else if (string(argv[i + 1]) == "gc_color")
-                seam_find_type = SeamFinder::GC_COLOR;
-            else if (string(argv[i + 1]) == "gc_colorgrad")
-                seam_find_type = SeamFinder::GC_COLOR_GRAD;
-            else
-            {
-                cout << "Bad seam finding method\n";
-                return -1;
-            }
-            i++;
-        }
-        else if (string(argv[i]) == "--blend")
+
+        bool decoded = false;
+        jstring jname = env->NewStringUTF(img_name.c_str());
+        jobject bitmap = env->CallStaticObjectMethod(pipeline_class, decode_reduced, jname, reduction);
+        if (env->ExceptionCheck())
         {
-            if (string(argv[i + 1]) == "no")
-                blend_type = Blender::NO;
-            else if (string(argv[i + 1]) == "feather")
-                blend_type = Blender::FEATHER;
-            else if (string(argv[i + 1]) == "multiband")
-                blend_type = Blender::MULTI_BAND;
-            else
-            {
-                cout << "Bad blending method\n";
-                return -1;
-            }
-            i++;
+            // Mostly OutOfMemoryError, the caller falls back to imread()
+            env->ExceptionClear();
+            bitmap = 0;
         }
-        else if (string(argv[i]) == "--blend_strength")
+        AndroidBitmapInfo info;
+        void *pixels;
+        if (bitmap != 0
+            && AndroidBitmap_getInfo(env, bitmap, &info) == ANDROID_BITMAP_RESUT_SUCCESS
+            && info.format == ANDROID_BITMAP_FORMAT_RGBA_8888
+            && AndroidBitmap_lockPixels(env, bitmap, &pixels) == ANDROID_BITMAP_RESUT_SUCCESS)
         {
-            blend_strength = static_cast<float>(atof(argv[i + 1]));
-            i++;
+            Mat rgba(info.height, info.width, CV_8UC4, pixels, info.stride);
+            cvtColor(rgba, img, CV_RGBA2BGR);
+            AndroidBitmap_unlockPixels(env, bitmap);
+            decoded = true;
         }
-        else if (string(argv[i]) == "--output")
+        if (bitmap != 0)
         {
-            result_name = argv[i + 1];
-            i++;
+            // Don't wait for the collector to free the pixels
+            env->CallVoidMethod(bitmap, bitmap_recycle);
+            env->DeleteLocalRef(bitmap);
         }
-        else
-            img_names.push_back(argv[i]);
-    }
-    if (preview)
-    {
-        compose_megapix = 0.6;
-    }
-    return 0;
-}
+        env->DeleteLocalRef(jname);
 
-int gc_args_ret(int size, char **mem, int retval) {
-    for (int i = 0; i < size; i++) delete[] mem[i];
-    delete[] mem;
-    return retval;
+        if (attached)
+            java_vm->DetachCurrentThread();
+        return decoded;
+    }
 }
 
 extern "C" {
-JNIEXPORT jint JNICALL Java_net_pandorica_opencv_pano_PanoActivity_Stitch(JNIEnv *env, jobject obj, jobjectArray args)
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *)
 {
-    int argc = env->GetArrayLength(args);
-    char **argv = new char*[argc];
-    defaultArgs();
+    JNIEnv *env;
+    if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_4) != JNI_OK)
+        return -1;
+    java_vm = vm;
 
-    // Convert jobjectArray of strings into a char**
-    for (int i = 0; i < argc; i++) {
-        jstring jstr = (jstring) env->GetObjectArrayElement(args, i);
-        const char *str = env->GetStringUTFChars(jstr, 0);
-        argv[i] = new char[strlen(str) +1];
-        strcpy(argv[i], str);
-        env->ReleaseStringUTFChars(jstr, str);
+    // The stitcher threads can't find application classes, look them up now
+    jclass pipeline = env->FindClass("net/pandorica/opencv/pano/StitchPipeline");
+    jclass bitmap = env->FindClass("android/graphics/Bitmap");
+    if (pipeline != 0 && bitmap != 0)
+    {
+        pipeline_class = static_cast<jclass>(env->NewGlobalRef(pipeline));
+        decode_reduced = env->GetStaticMethodID(pipeline, "decodeReduced", "(Ljava/lang/String;I)Landroid/graphics/Bitmap;");
+        bitmap_recycle = env->GetMethodID(bitmap, "recycle", "()V");
     }
-
-    int64 app_start_time = getTickCount();
-    cv::setBreakOnError(true);
-
-    int retval = parseCmdArgs(argc, argv);
-    if (retval)
-        return gc_args_ret(argc, argv, retval);
-
-    // Check for existing results image, and remove if necessary
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Result: %s", result_name.c_str());
-
-    // Check if have enough images
-    int num_images = static_cast<int>(img_names.size());
-    if (num_images < 2)
+    if (decode_reduced != 0 && bitmap_recycle != 0)
+        setReducedDecoder(decodeReduced);
+    else
     {
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Need more images");
-        return gc_args_ret(argc, argv, -1);
+        env->ExceptionClear();
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Reduced decoding is not available");
     }
+    return JNI_VERSION_1_4;
+}
 
-    double work_scale = 1, seam_scale = 1, compose_scale = 1;
-    bool is_work_scale_set = false, is_seam_scale_set = false, is_compose_scale_set = false;
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Finding features...");
-    int64 t = getTickCount();
-
-    vector<ImageFeatures> features(num_images);
-    SurfFeaturesFinder finder(try_gpu);
-    Mat full_img, img;
-
-    vector<Mat> images(num_images);
-    vector<Size> full_img_sizes(num_images);
-    double seam_work_aspect = 1;
-
-    for (int i = 0; i < num_images; ++i)
+JNIEXPORT jlong JNICALL Java_net_pandorica_opencv_pano_StitchPipeline_nativeCreate(JNIEnv *env, jclass,
+        jobjectArray images, jstring checkpoint_dir)
+{
+    int num_images = env->GetArrayLength(images);
+    vector<string> img_names;
+    for (int i = 0; i < num_images; i++)
     {
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Loading image %s", img_names[i].c_str());
-        full_img = imread(img_names[i]);
-        full_img_sizes[i] = full_img.size();
-
-        if (full_img.empty())
-        {
-            __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't open image %s", img_names[i].c_str());
-            return gc_args_ret(argc, argv, -1);
-        }
-        if (work_megapix < 0)
-        {
-            img = full_img;
-            work_scale = 1;
-            is_work_scale_set = true;
-        }
-        else
-        {
-            if (!is_work_scale_set)
-            {
-                work_scale = min(1.0, sqrt(work_megapix * 1e6 / full_img.size().area()));                    
-                is_work_scale_set = true;
-            }
-            resize(full_img, img, Size(), work_scale, work_scale);
-            __android_log_print(ANDROID_LOG_DEBUG, TAG, "Resizing Image to %dx%d", img.size().width, img.size().height);
-        }
-        if (!is_seam_scale_set)
-        {
-            seam_scale = min(1.0, sqrt(seam_megapix * 1e6 / full_img.size().area()));                    
-            seam_work_aspect = seam_scale / work_scale;
-            is_seam_scale_set = true;
-        }
-
-        finder(img, features[i]);
-        features[i].img_idx = i;
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Features in image #%d:%d" ,i+1, features[i].keypoints.size());
-
-        resize(full_img, img, Size(), seam_scale, seam_scale);
-        images[i] = img.clone();
+        jstring jstr = (jstring) env->GetObjectArrayElement(images, i);
+        img_names.push_back(jstringToString(env, jstr));
+        env->DeleteLocalRef(jstr);
     }
+    return reinterpret_cast<jlong>(new StagedStitcher(img_names, jstringToString(env, checkpoint_dir)));
+}
 
-    finder.releaseMemory();
-
-    full_img.release();
-    img.release();
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Finding features, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Pairwise matching");
-    t = getTickCount();
-    vector<MatchesInfo> pairwise_matches;
-    BestOf2NearestMatcher matcher(try_gpu, match_conf);
-    matcher(features, pairwise_matches);
-    matcher.releaseMemory();
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Pairwise matching, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
+JNIEXPORT jint JNICALL Java_net_pandorica_opencv_pano_StitchPipeline_nativeSetOption(JNIEnv *env, jclass,
+        jlong self, jstring flag, jstring value)
+{
+    return stitcher(self)->setOption(jstringToString(env, flag), jstringToString(env, value));
+}
 
-    // Leave only images we are sure are from the same panorama
-    vector<int> indices = leaveBiggestComponent(features, pairwise_matches, conf_thresh);
-    vector<Mat> img_subset;
-    vector<string> img_names_subset;
-    vector<Size> full_img_sizes_subset;
-    for (size_t i = 0; i < indices.size(); ++i)
+JNIEXPORT jint JNICALL Java_net_pandorica_opencv_pano_StitchPipeline_nativeResume(JNIEnv *, jclass, jlong self)
+{
+    try
     {
-        img_names_subset.push_back(img_names[indices[i]]);
-        img_subset.push_back(images[indices[i]]);
-        full_img_sizes_subset.push_back(full_img_sizes[indices[i]]);
+        return stitcher(self)->resume();
     }
-
-    images = img_subset;
-    img_names = img_names_subset;
-    full_img_sizes = full_img_sizes_subset;
-
-    // Check if we still have enough images
-    num_images = static_cast<int>(img_names.size());
-    if (num_images < 2)
+    catch (const std::exception &e)
     {
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Need more images");
-        return gc_args_ret(argc, argv, -1);
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't resume: %s", e.what());
+        return stitcher(self)->stage();
     }
+}
 
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Estimating rotations...");
-    t = getTickCount();
-    HomographyBasedEstimator estimator;
-    vector<CameraParams> cameras;
-    estimator(features, pairwise_matches, cameras);
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Estimating rotations, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
-
-    for (size_t i = 0; i < cameras.size(); ++i)
+JNIEXPORT jint JNICALL Java_net_pandorica_opencv_pano_StitchPipeline_nativeRunStage(JNIEnv *, jclass,
+        jlong self, jint stage)
+{
+    int64 t = getTickCount();
+    int retval;
+    try
     {
-        Mat R;
-        cameras[i].R.convertTo(R, CV_32F);
-        cameras[i].R = R;
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Initial focal length #%d:%f", indices[i]+1, cameras[i].focal);
+        retval = stitcher(self)->runStage(stage);
     }
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Bundle adjustment");
-    t = getTickCount();
-    BundleAdjuster adjuster(ba_space, conf_thresh);
-    adjuster(features, pairwise_matches, cameras);
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Bundle adjustment, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
-
-    // Find median focal length
-    vector<double> focals;
-    for (size_t i = 0; i < cameras.size(); ++i)
+    catch (const cv::Exception &e)
     {
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Camera #%d focal length: %f", indices[i]+1, cameras[i].focal);
-        focals.push_back(cameras[i].focal);
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Stage %d failed: %s", stage, e.what());
+        retval = -1;
     }
-    nth_element(focals.begin(), focals.begin() + focals.size()/2, focals.end());
-    float warped_image_scale = static_cast<float>(focals[focals.size() / 2]);
-
-    if (wave_correct)
+    catch (const std::bad_alloc &)
     {
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Wave correcting...");
-        t = getTickCount();
-        vector<Mat> rmats;
-        for (size_t i = 0; i < cameras.size(); ++i)
-            rmats.push_back(cameras[i].R);
-        waveCorrect(rmats);
-        for (size_t i = 0; i < cameras.size(); ++i)
-            cameras[i].R = rmats[i];
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Wave correcting, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Stage %d is out of memory", stage);
+        retval = -1;
     }
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Stage %d finished, total time: %f sec", stage, ((getTickCount() - t) / getTickFrequency()));
+    return retval;
+}
 
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Warping images (auxiliary)... ");
-    t = getTickCount();
-
-    vector<Point> corners(num_images);
-    vector<Mat> masks_warped(num_images);
-    vector<Mat> images_warped(num_images);
-    vector<Size> sizes(num_images);
-    vector<Mat> masks(num_images);
+JNIEXPORT jint JNICALL Java_net_pandorica_opencv_pano_StitchPipeline_nativeGetStage(JNIEnv *, jclass, jlong self)
+{
+    return stitcher(self)->stage();
+}
 
-    // Preapre images masks
-    for (int i = 0; i < num_images; ++i)
+JNIEXPORT jint JNICALL Java_net_pandorica_opencv_pano_StitchPipeline_nativePrecomputeFeatures(JNIEnv *env, jclass,
+        jstring image, jdouble work_megapix, jint rotation)
+{
+    try
     {
-        masks[i].create(images[i].size(), CV_8U);
-        masks[i].setTo(Scalar::all(255));
+        return precomputeFeatures(jstringToString(env, image), work_megapix, rotation);
     }
-
-    // Warp images and their masks
-    Ptr<Warper> warper = Warper::createByCameraFocal(static_cast<float>(warped_image_scale * seam_work_aspect), 
-                                                     warp_type, try_gpu);
-    for (int i = 0; i < num_images; ++i)
+    catch (const cv::Exception &e)
     {
-        corners[i] = warper->warp(images[i], static_cast<float>(cameras[i].focal * seam_work_aspect), 
-                                  cameras[i].R, images_warped[i]);
-        sizes[i] = images_warped[i].size();
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Size for #%d is %dx%d", i, sizes[i].width, sizes[i].height);
-        warper->warp(masks[i], static_cast<float>(cameras[i].focal * seam_work_aspect), 
-                     cameras[i].R, masks_warped[i], INTER_NEAREST, BORDER_CONSTANT);
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't precompute features: %s", e.what());
     }
-
-    vector<Mat> images_warped_f(num_images);
-    for (int i = 0; i < num_images; ++i)
-        images_warped[i].convertTo(images_warped_f[i], CV_32F);
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Warping images, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Exposure compensation (feed)...");
-    t = getTickCount();
-    Ptr<ExposureCompensator> compensator = ExposureCompensator::createDefault(expos_comp_type);
-    compensator->feed(corners, images_warped, masks_warped);
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Exposure compensation (feed), time: %f sec", ((getTickCount() - t) / getTickFrequency()));
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Finding seams...");
-    t = getTickCount();
-    Ptr<SeamFinder> seam_finder = SeamFinder::createDefault(seam_find_type);
-    seam_finder->find(images_warped_f, corners, masks_warped);
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Finding seams, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
-
-    // Release unused memory
-    images.clear();
-    images_warped.clear();
-    images_warped_f.clear();
-    masks.clear();
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Compositing...");
-    t = getTickCount();
-
-    Mat img_warped, img_warped_s;
-    Mat dilated_mask, seam_mask, mask, mask_warped;
-    Ptr<Blender> blender;
-    double compose_seam_aspect = 1;
-    double compose_work_aspect = 1;
-
-    for (int img_idx = 0; img_idx < num_images; ++img_idx)
+    catch (const std::bad_alloc &)
     {
-        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Compositing image #%d", indices[img_idx]+1);
-
-        // Read image and resize it if necessary
-        full_img = imread(img_names[img_idx]);
-        if (!is_compose_scale_set)
-        {
-            if (compose_megapix > 0)
-                compose_scale = min(1.0, sqrt(compose_megapix * 1e6 / full_img.size().area()));
-            is_compose_scale_set = true;
-
-            // Compute relative scales
-            compose_seam_aspect = compose_scale / seam_scale;
-            compose_work_aspect = compose_scale / work_scale;
-
-            // Update warped image scale
-            warped_image_scale *= static_cast<float>(compose_work_aspect);
-            warper = Warper::createByCameraFocal(warped_image_scale, warp_type, try_gpu);
-
-            // Update corners and sizes
-            for (int i = 0; i < num_images; ++i)
-            {
-                // Update camera focal
-                cameras[i].focal *= compose_work_aspect;
-
-                // Update corner and size
-                Size sz = full_img_sizes[i];
-                if (abs(compose_scale - 1) > 1e-1)
-                {
-                    sz.width = cvRound(full_img_sizes[i].width * compose_scale);
-                    sz.height = cvRound(full_img_sizes[i].height * compose_scale);
-                }
-                Rect roi = warper->warpRoi(sz, static_cast<float>(cameras[i].focal), cameras[i].R);
-                corners[i] = roi.tl();
-                sizes[i] = roi.size();
-            }
-        }
-        if (abs(compose_scale - 1) > 1e-1)
-            resize(full_img, img, Size(), compose_scale, compose_scale);
-        else
-            img = full_img;
-        full_img.release();
-        Size img_size = img.size();                
-
-        // Warp the current image
-        warper->warp(img, static_cast<float>(cameras[img_idx].focal), cameras[img_idx].R,
-                     img_warped);
-
-        // Warp the current image mask
-        mask.create(img_size, CV_8U);
-        mask.setTo(Scalar::all(255));    
-        warper->warp(mask, static_cast<float>(cameras[img_idx].focal), cameras[img_idx].R, mask_warped,
-                     INTER_NEAREST, BORDER_CONSTANT);
-
-        // Compensate exposure
-        compensator->apply(img_idx, corners[img_idx], img_warped, mask_warped);
-
-        img_warped.convertTo(img_warped_s, CV_16S);
-        img_warped.release();
-        img.release();
-        mask.release();       
-
-        dilate(masks_warped[img_idx], dilated_mask, Mat());
-        resize(dilated_mask, seam_mask, mask_warped.size());
-        mask_warped = seam_mask & mask_warped;
-
-        if (blender.empty())
-        {            
-            blender = Blender::createDefault(blend_type, try_gpu);
-            Size dst_sz = resultRoi(corners, sizes).size();
-            float blend_width = sqrt(static_cast<float>(dst_sz.area())) * blend_strength / 100.f;
-            if (blend_width < 1.f)
-                blender = Blender::createDefault(Blender::NO, try_gpu);
-            else if (blend_type == Blender::MULTI_BAND)
-            {
-                MultiBandBlender* mb = dynamic_cast<MultiBandBlender*>(static_cast<Blender*>(blender));
-                mb->setNumBands(static_cast<int>(ceil(log(blend_width)/log(2.)) - 1.));
-                __android_log_print(ANDROID_LOG_DEBUG, TAG, "Multi-band blender, number of bands: %d", mb->numBands());
-            }
-            else if (blend_type == Blender::FEATHER)
-            {
-                FeatherBlender* fb = dynamic_cast<FeatherBlender*>(static_cast<Blender*>(blender));
-                fb->setSharpness(1.f/blend_width);
-                __android_log_print(ANDROID_LOG_DEBUG, TAG, "Feather blender, number of bands: %d", fb->sharpness());
-            }
-            blender->prepare(corners, sizes);
-        }
-
-        // Blend the current image
-        blender->feed(img_warped_s, mask_warped, corners[img_idx]);        
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't precompute features: out of memory");
     }
-   
-    Mat result, result_mask;
-    blender->blend(result, result_mask);
-
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Compositing, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
-
-    imwrite(result_name, result);
+    return -1;
+}
 
-    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Finished, total time: %f sec", ((getTickCount() - app_start_time) / getTickFrequency()));
-    return gc_args_ret(argc, argv, 0);
+JNIEXPORT void JNICALL Java_net_pandorica_opencv_pano_StitchPipeline_nativeRelease(JNIEnv *, jclass, jlong self)
+{
+    delete stitcher(self);
 }
 
 }
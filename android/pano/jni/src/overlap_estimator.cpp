@@ -0,0 +1,181 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include <algorithm>
+#include <cmath>
+#include <android/log.h>
+#include <opencv2/imgproc/imgproc.hpp>
+#include "overlap_estimator.hpp"
+
+#define TAG "FindFeatures"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    const int FAST_THRESHOLD = 20;
+    const size_t MAX_KEYPOINTS = 300;
+    const int BRIEF_BYTES = 32;
+    // Matches further apart are not considered at all
+    const float MAX_HAMMING_DISTANCE = 50.f;
+    // Matches agreeing with the median shift within this fraction of the frame width
+    const float INLIER_DISTANCE = 0.025f;
+    const int MIN_INLIERS = 8;
+
+    struct KeyPointResponseGreater
+    {
+        bool operator()(const KeyPoint &a, const KeyPoint &b) const { return a.response > b.response; }
+    };
+
+    void detectAndDescribe(const Mat &gray, vector<KeyPoint> &keypoints, Mat &descriptors)
+    {
+        FastFeatureDetector detector(FAST_THRESHOLD);
+        detector.detect(gray, keypoints);
+
+        // Keep the strongest corners so the matching cost stays bounded
+        if (keypoints.size() > MAX_KEYPOINTS)
+        {
+            nth_element(keypoints.begin(), keypoints.begin() + MAX_KEYPOINTS, keypoints.end(),
+                        KeyPointResponseGreater());
+            keypoints.resize(MAX_KEYPOINTS);
+        }
+
+        BriefDescriptorExtractor extractor(BRIEF_BYTES);
+        extractor.compute(gray, keypoints, descriptors);
+    }
+
+    float median(vector<float> &values)
+    {
+        nth_element(values.begin(), values.begin() + values.size() / 2, values.end());
+        return values[values.size() / 2];
+    }
+}
+
+
+int medianShift(const vector<float> &shifts_x, const vector<float> &shifts_y, float inlier_distance,
+                float &dx, float &dy, vector<float> &sorted)
+{
+    if (shifts_x.empty() || shifts_x.size() != shifts_y.size())
+        return 0;
+
+    sorted = shifts_x;
+    dx = median(sorted);
+    sorted = shifts_y;
+    dy = median(sorted);
+
+    int inliers = 0;
+    for (size_t i = 0; i < shifts_x.size(); ++i)
+        if (fabs(shifts_x[i] - dx) < inlier_distance && fabs(shifts_y[i] - dy) < inlier_distance)
+            ++inliers;
+    return inliers;
+}
+
+
+void OverlapEstimator::setReference(const Mat &shot)
+{
+    reference_ = shot;
+    reference_size_ = Size();
+    reference_keypoints_.clear();
+    reference_descriptors_.release();
+}
+
+
+bool OverlapEstimator::estimate(const Mat &gray, float result[NUM_RESULTS])
+{
+    if (reference_.empty() || gray.empty())
+        return false;
+    if (reference_size_.width != gray.cols)
+        indexReference(gray.cols);
+    if (reference_descriptors_.empty())
+        return false;
+
+    detectAndDescribe(gray, frame_keypoints_, frame_descriptors_);
+    if (frame_descriptors_.empty())
+        return false;
+
+    BruteForceMatcher<Hamming> matcher;
+    matcher.match(reference_descriptors_, frame_descriptors_, frame_matches_);
+
+    shifts_x_.clear();
+    shifts_y_.clear();
+    for (size_t i = 0; i < frame_matches_.size(); ++i)
+    {
+        const DMatch &m = frame_matches_[i];
+        if (m.distance > MAX_HAMMING_DISTANCE)
+            continue;
+        const Point2f &from = reference_keypoints_[m.queryIdx].pt;
+        const Point2f &to = frame_keypoints_[m.trainIdx].pt;
+        shifts_x_.push_back(to.x - from.x);
+        shifts_y_.push_back(to.y - from.y);
+    }
+    if (shifts_x_.size() < static_cast<size_t>(MIN_INLIERS))
+        return false;
+
+    // The camera only turned between the shots, so at this scale the views are close to a
+    // translation of each other
+    float w = static_cast<float>(gray.cols);
+    float h = static_cast<float>(gray.rows);
+    float dx, dy;
+    int inliers = medianShift(shifts_x_, shifts_y_, INLIER_DISTANCE * w, dx, dy, sorted_);
+    if (inliers < MIN_INLIERS)
+        return false;
+
+    result[0] = max(0.f, 1.f - fabs(dx) / w) * max(0.f, 1.f - fabs(dy) / h);
+    result[1] = dx / w;
+    result[2] = dy / h;
+    result[3] = static_cast<float>(inliers);
+    return true;
+}
+
+
+// The shot and the preview have about the same horizontal field of view, so the shot
+// is scaled to the frames' width
+void OverlapEstimator::indexReference(int width)
+{
+    double scale = static_cast<double>(width) / reference_.cols;
+    Mat small;
+    resize(reference_, small, Size(width, cvRound(reference_.rows * scale)), 0, 0, INTER_AREA);
+    reference_size_ = small.size();
+    detectAndDescribe(small, reference_keypoints_, reference_descriptors_);
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Reference indexed at %dx%d: %d features",
+                        reference_size_.width, reference_size_.height, static_cast<int>(reference_keypoints_.size()));
+}
@@ -0,0 +1,206 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include <fstream>
+#include <sstream>
+#include <map>
+#include "pose_hints.hpp"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    string baseName(const string &path)
+    {
+        size_t slash = path.find_last_of('/');
+        string name = slash == string::npos ? path : path.substr(slash + 1);
+        size_t dot = name.find_last_of('.');
+        return dot == string::npos ? name : name.substr(0, dot);
+    }
+
+    // Decomposes the rotation of q as Ry(yaw) * Rx(pitch) * Rz(roll), which is how
+    // PoseBasedEstimator builds it back
+    void quaternionToAngles(const double q[4], PoseHint &hint)
+    {
+        double norm = sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        double w = q[0] / norm, x = q[1] / norm, y = q[2] / norm, z = q[3] / norm;
+
+        double r00 = 1 - 2 * (y * y + z * z), r02 = 2 * (x * z + y * w);
+        double r10 = 2 * (x * y + z * w), r11 = 1 - 2 * (x * x + z * z), r12 = 2 * (y * z - x * w);
+        double r20 = 2 * (x * z - y * w), r22 = 1 - 2 * (x * x + y * y);
+
+        double pitch = asin(max(-1., min(1., -r12)));
+        double yaw, roll;
+        if (abs(r12) < 1 - 1e-6)
+        {
+            yaw = atan2(r02, r22);
+            roll = atan2(r10, r11);
+        }
+        else
+        {
+            // Looking straight up or down, only yaw + roll is defined
+            yaw = atan2(-r20, r00);
+            roll = 0;
+        }
+
+        hint.yaw = static_cast<float>(yaw * 180. / CV_PI);
+        hint.pitch = static_cast<float>(pitch * 180. / CV_PI);
+        hint.roll = static_cast<float>(roll * 180. / CV_PI);
+    }
+}
+
+
+bool loadPoseHints(const string &path, const vector<string> &img_names, vector<PoseHint> &hints)
+{
+    ifstream file(path.c_str());
+    if (!file)
+        return false;
+
+    map<string, PoseHint> manifest;
+    string line;
+    while (getline(file, line))
+    {
+        istringstream tokens(line);
+        string name, key;
+        if (!(tokens >> name) || name[0] == '#')
+            continue;
+
+        PoseHint hint;
+        bool has_yaw = false, has_pitch = false;
+        double q[4];
+        int quaternion_keys = 0;
+        float value;
+        while (tokens >> key >> value)
+        {
+            if (key == "yaw") { hint.yaw = value; has_yaw = true; }
+            else if (key == "pitch") { hint.pitch = value; has_pitch = true; }
+            else if (key == "roll") hint.roll = value;
+            else if (key == "hfov") hint.hfov = value;
+            else if (key == "qw") { q[0] = value; quaternion_keys |= 1; }
+            else if (key == "qx") { q[1] = value; quaternion_keys |= 2; }
+            else if (key == "qy") { q[2] = value; quaternion_keys |= 4; }
+            else if (key == "qz") { q[3] = value; quaternion_keys |= 8; }
+        }
+        if (quaternion_keys == 15)
+        {
+            quaternionToAngles(q, hint);
+            has_yaw = has_pitch = true;
+        }
+        hint.valid = has_yaw && has_pitch;
+        hint.commanded = hint.valid && quaternion_keys == 0;
+        manifest[baseName(name)] = hint;
+    }
+
+    hints.assign(img_names.size(), PoseHint());
+    for (size_t i = 0; i < img_names.size(); ++i)
+    {
+        map<string, PoseHint>::const_iterator hint = manifest.find(baseName(img_names[i]));
+        if (hint != manifest.end())
+            hints[i] = hint->second;
+    }
+    return true;
+}
+
+
+bool allPosesKnown(const vector<PoseHint> &hints)
+{
+    for (size_t i = 0; i < hints.size(); ++i)
+        if (!hints[i].valid || hints[i].hfov <= 0)
+            return false;
+    return !hints.empty();
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+Mat sequenceMatchMask(int num_images, int range)
+{
+    Mat_<uchar> mask(num_images, num_images, static_cast<uchar>(0));
+    for (int i = 0; i < num_images; ++i)
+    {
+        for (int j = 0; j < num_images; ++j)
+        {
+            int dist = abs(i - j);
+            if (min(dist, num_images - dist) <= range)
+                mask(i, j) = 1;
+        }
+    }
+    return mask;
+}
+
+
+Mat poseMatchMask(const vector<PoseHint> &hints, const vector<Size> &img_sizes)
+{
+    const int num_images = static_cast<int>(hints.size());
+    CV_Assert(img_sizes.size() == hints.size());
+
+    // Bound every field of view with a cone around the optical axis, two views
+    // can only overlap if the angle between their axes is below the sum of radii
+    vector<Point3d> axes(num_images);
+    vector<double> radii(num_images, -1);
+    for (int i = 0; i < num_images; ++i)
+    {
+        if (!hints[i].valid || hints[i].hfov <= 0 || img_sizes[i].width <= 0)
+            continue;
+        double yaw = hints[i].yaw * CV_PI / 180.;
+        double pitch = hints[i].pitch * CV_PI / 180.;
+        axes[i] = Point3d(cos(pitch) * sin(yaw), sin(pitch), cos(pitch) * cos(yaw));
+
+        double tan_h = tan(hints[i].hfov * CV_PI / 360.);
+        double tan_v = tan_h * img_sizes[i].height / img_sizes[i].width;
+        radii[i] = atan(sqrt(tan_h * tan_h + tan_v * tan_v));
+    }
+
+    Mat_<uchar> mask(num_images, num_images, static_cast<uchar>(1));
+    for (int i = 0; i < num_images; ++i)
+    {
+        for (int j = i + 1; j < num_images; ++j)
+        {
+            if (radii[i] < 0 || radii[j] < 0)
+                continue;
+            double cos_angle = max(-1., min(1., axes[i].dot(axes[j])));
+            uchar overlap = acos(cos_angle) < radii[i] + radii[j] ? 1 : 0;
+            mask(i, j) = mask(j, i) = overlap;
+        }
+    }
+    return mask;
+}
@@ -0,0 +1,113 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include <jni.h>
+#include <android/bitmap.h>
+#include <android/log.h>
+#include "yuv_convert.hpp"
+#ifdef HAVE_NEON
+#include <cpu-features.h>
+#endif
+
+#define TAG "PreviewConvert"
+
+namespace
+{
+    typedef void (*ConvertFunction)(const unsigned char *, int, int, unsigned char *, int);
+
+    ConvertFunction selectConversion()
+    {
+#ifdef HAVE_NEON
+        // armeabi-v7a doesn't guarantee NEON (e.g. Tegra 2), ask the CPU
+        if (android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM &&
+            (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON))
+        {
+            __android_log_print(ANDROID_LOG_DEBUG, TAG, "Using NEON conversion");
+            return nv21ToRgbaNeon;
+        }
+#endif
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Using portable conversion");
+        return nv21ToRgba;
+    }
+
+    ConvertFunction conversion = 0;
+}
+
+
+extern "C" {
+
+/*
+ * Converts an NV21 preview frame straight into the pixels of an RGBA_8888 bitmap
+ * of the frame's size. The frame is read in place, so this is the only pass over it.
+ */
+JNIEXPORT jboolean JNICALL Java_net_pandorica_opencv_pano_PanoSurfaceView_ConvertPreview(JNIEnv* env, jobject thiz, jbyteArray data, jobject bitmap)
+{
+    if (conversion == 0)
+        conversion = selectConversion();
+
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESUT_SUCCESS ||
+        info.format != ANDROID_BITMAP_FORMAT_RGBA_8888)
+        return JNI_FALSE;
+
+    int width = static_cast<int>(info.width);
+    int height = static_cast<int>(info.height);
+    if (env->GetArrayLength(data) < width * height * 3 / 2)
+        return JNI_FALSE;
+
+    void *pixels;
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESUT_SUCCESS)
+        return JNI_FALSE;
+
+    // Critical access pins the array instead of copying it
+    jbyte *nv21 = static_cast<jbyte*>(env->GetPrimitiveArrayCritical(data, 0));
+    if (nv21 != 0)
+    {
+        conversion(reinterpret_cast<unsigned char*>(nv21), width, height,
+                   static_cast<unsigned char*>(pixels), static_cast<int>(info.stride));
+        env->ReleasePrimitiveArrayCritical(data, nv21, JNI_ABORT);
+    }
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return nv21 != 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+}
@@ -0,0 +1,1346 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include <sstream>
+#include <sys/stat.h>
+#include <android/log.h>
+#include "stitcher.hpp"
+#include "checkpoint.hpp"
+#include "feature_cache.hpp"
+#include "image_source.hpp"
+#include "pose_hints.hpp"
+#include "util.hpp"
+#include "warpers.hpp"
+#include "blenders.hpp"
+#include "seam_finders.hpp"
+#include "tile_sink.hpp"
+
+using namespace std;
+using namespace cv;
+
+#define TAG "OpenCV_Stitching"
+
+static const char* CHECKPOINT_MAGIC = "PANO_CKPT";
+static const int RESULT_STRIP_HEIGHT = 64;
+static const size_t REMAP_CACHE_MAX_SIZE = 64 << 20;
+static const size_t IMAGE_POOL_MAX_SIZE = 24 << 20;
+
+void printUsage()
+{
+    cout << 
+        "Rotation model images stitcher.\n\n"
+        "opencv_stitching img1 img2 [...imgN] [flags]\n\n" 
+        "Flags:\n"
+        "  --preview\n"
+        "      Run stitching in the preview mode. Works faster than usual mode,\n"
+        "      but output image will have lower resolution.\n"
+        "  --rotate (0|90|180|270)\n"
+        "      Clockwise rotation turning the images upright. The images are\n"
+        "      rotated after decoding at the resolution of each step. The\n"
+        "      default is 0.\n"
+        "\nMotion Estimation Flags:\n"
+        "  --work_megapix <float>\n"
+        "      Resolution for image registration step. The default is 0.6 Mpx.\n"
+        "  --match_conf <float>\n"
+        "      Confidence for feature matching step. The default is 0.65.\n"
+        "  --match_range <int>\n"
+        "      Match only images at most this far apart in the capture order.\n"
+        "      The default is 0, which matches all the pairs.\n"
+        "  --poses <manifest>\n"
+        "      Capture pose manifest. Only images with overlapping predicted\n"
+        "      fields of view are matched.\n"
+        "  --conf_thresh <float>\n"
+        "      Threshold for two images are from the same panorama confidence.\n"
+        "      The default is 1.0.\n"
+        "  --ba (ray|focal_ray)\n"
+        "      Bundle adjustment cost function. The default is 'focal_ray'.\n"
+        "  --wave_correct (no|yes)\n"
+        "      Perform wave effect correction. The default is 'yes'.\n"
+        "\nCompositing Flags:\n"
+        "  --warp (plane|cylindrical|spherical)\n" 
+        "      Warp surface type. The default is 'spherical'.\n"
+        "  --seam_megapix <float>\n"
+        "      Resolution for seam estimation step. The default is 0.1 Mpx.\n"
+        "  --seam (no|voronoi|gc_color|gc_colorgrad)\n" 
+        "      Seam estimation method. The default is 'gc_color'.\n"
+        "  --compose_megapix <float>\n"
+        "      Resolution for compositing step. Use -1 for original resolution.\n"
+        "      The default is -1.\n"
+        "  --expos_comp (no|gain|gain_blocks)\n"
+        "      Exposure compensation method. The default is 'gain_blocks'.\n"
+        "  --blend (no|feather|multiband)\n"
+        "      Blending method. The default is 'multiband'.\n"
+        "  --blend_strength <float>\n"
+        "      Blending strength from [0,100] range. The default is 5.\n"
+        "  --output <result_img>\n"
+        "      The default is 'result.png'.\n"
+        "\nPerformance Flags:\n"
+        "  --threads <int>\n"
+        "      Number of worker threads. The default is 1.\n"
+        "  --tile <int>\n"
+        "      Composite the panorama in tiles of this size, keeping the memory\n"
+        "      use independent of the panorama size. Only the part of each image\n"
+        "      a tile needs is read, from a 24 MB pool spilling to the checkpoint\n"
+        "      directory (without one, images are decoded again for every tile).\n"
+        "      Multi-band blending uses less bands when 3 << bands exceeds the\n"
+        "      tile size. The default is 0, which composites the whole panorama\n"
+        "      at once.\n"
+        "  --lut_cache <dir>\n"
+        "      Keep the warping maps of the images with pan/tilt head angles in\n"
+        "      the --poses manifest in this directory, so later captures at the\n"
+        "      same angles reuse them. Stops adding maps at 64 MB, clear the\n"
+        "      directory to make room for other settings.\n";
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+StitchParams::StitchParams()
+{
+    preview = false;
+    try_gpu = false;
+    rotate = 0;
+    work_megapix = 0.6;
+    seam_megapix = 0.1;
+    compose_megapix = -1;
+    ba_space = BundleAdjuster::FOCAL_RAY_SPACE;
+    conf_thresh = 1.f;
+    wave_correct = true;
+    warp_type = Warper::SPHERICAL;
+    expos_comp_type = ExposureCompensator::GAIN_BLOCKS;
+    match_conf = 0.65f;
+    match_range = 0;
+    seam_find_type = SeamFinder::GC_COLOR;
+    blend_type = Blender::MULTI_BAND;
+    blend_strength = 5;
+    result_name = "/mnt/sdcard/result.png";
+    num_threads = 1;
+    tile = 0;
+}
+
+
+int StitchParams::parse(const vector<string> &args, vector<string> &img_names)
+{
+    const int argc = static_cast<int>(args.size());
+    for (int i = 0; i < argc; ++i)
+    {
+        if (args[i] == "--help" || args[i] == "/?")
+        {
+            printUsage();
+            return -1;
+        }
+        else if (args[i] == "--preview")
+        {
+            // Only sets the defaults, later flags can still override them
+            preview = true;
+            compose_megapix = 0.6;
+            continue;
+        }
+        else if (args[i].compare(0, 2, "--") != 0)
+        {
+            img_names.push_back(args[i]);
+            continue;
+        }
+
+        // All the other flags have a value
+        if (i + 1 >= argc)
+        {
+            cout << "Missing value for " << args[i] << "\n";
+            return -1;
+        }
+        const string &value = args[i + 1];
+
+        if (args[i] == "--work_megapix") 
+            work_megapix = atof(value.c_str());
+        else if (args[i] == "--seam_megapix") 
+            seam_megapix = atof(value.c_str());
+        else if (args[i] == "--compose_megapix") 
+            compose_megapix = atof(value.c_str());
+        else if (args[i] == "--result" || args[i] == "--output")
+            result_name = value;
+        else if (args[i] == "--rotate")
+        {
+            rotate = atoi(value.c_str());
+            if (rotate != 0 && rotate != 90 && rotate != 180 && rotate != 270)
+            {
+                cout << "Bad --rotate flag value\n";
+                return -1;
+            }
+        }
+        else if (args[i] == "--match_conf")
+            match_conf = static_cast<float>(atof(value.c_str()));
+        else if (args[i] == "--match_range")
+            match_range = max(0, atoi(value.c_str()));
+        else if (args[i] == "--poses")
+            poses = value;
+        else if (args[i] == "--ba")
+        {
+            if (value == "ray")
+                ba_space = BundleAdjuster::RAY_SPACE;
+            else if (value == "focal_ray")
+                ba_space = BundleAdjuster::FOCAL_RAY_SPACE;
+            else
+            {
+                cout << "Bad bundle adjustment space\n";
+                return -1;
+            }
+        }
+        else if (args[i] == "--conf_thresh")
+            conf_thresh = static_cast<float>(atof(value.c_str()));
+        else if (args[i] == "--wave_correct")
+        {
+            if (value == "no")
+                wave_correct = false;
+            else if (value == "yes")
+                wave_correct = true;
+            else
+            {
+                cout << "Bad --wave_correct flag value\n";
+                return -1;
+            }
+        }
+        else if (args[i] == "--warp")
+        {
+            if (value == "plane")
+                warp_type = Warper::PLANE;
+            else if (value == "cylindrical")
+                warp_type = Warper::CYLINDRICAL;
+            else if (value == "spherical")
+                warp_type = Warper::SPHERICAL;
+            else
+            {
+                cout << "Bad warping method\n";
+                return -1;
+            }
+        }
+        else if (args[i] == "--expos_comp")
+        {
+            if (value == "no")
+                expos_comp_type = ExposureCompensator::NO;
+            else if (value == "gain")
+                expos_comp_type = ExposureCompensator::GAIN;
+            else if (value == "gain_blocks")
+                expos_comp_type = ExposureCompensator::GAIN_BLOCKS;
+            else
+            {
+                cout << "Bad exposure compensation method\n";
+                return -1;
+            }
+        }        
+        else if (args[i] == "--seam")
+        {
+            if (value == "no")
+                seam_find_type = SeamFinder::NO;
+            else if (value == "voronoi")
+                seam_find_type = SeamFinder::VORONOI;
+            else if (value == "gc_color")
+                seam_find_type = SeamFinder::GC_COLOR;
+            else if (value == "gc_colorgrad")
+                seam_find_type = SeamFinder::GC_COLOR_GRAD;
+            else
+            {
+                cout << "Bad seam finding method\n";
+                return -1;
+            }
+        }
+        else if (args[i] == "--blend")
+        {
+            if (value == "no")
+                blend_type = Blender::NO;
+            else if (value == "feather")
+                blend_type = Blender::FEATHER;
+            else if (value == "multiband")
+                blend_type = Blender::MULTI_BAND;
+            else
+            {
+                cout << "Bad blending method\n";
+                return -1;
+            }
+        }
+        else if (args[i] == "--blend_strength")
+            blend_strength = static_cast<float>(atof(value.c_str()));
+        else if (args[i] == "--threads")
+            num_threads = max(1, atoi(value.c_str()));
+        else if (args[i] == "--tile")
+            tile = max(0, atoi(value.c_str()));
+        else if (args[i] == "--lut_cache")
+            lut_cache = value;
+        else
+        {
+            cout << "Unknown flag " << args[i] << "\n";
+            return -1;
+        }
+        i++;
+    }
+    return 0;
+}
+
+
+int precomputeFeatures(const string &img_name, double work_megapix, int rotation)
+{
+    FeatureCacheEntry cached(img_name, rotation);
+    double work_scale = 1;
+    Size full_img_size;
+    ImageFeatures features;
+    if (cached.load(work_megapix, work_scale, full_img_size, features))
+        return 0;
+
+    int64 t = getTickCount();
+    if (!readImageSize(img_name, rotation, full_img_size))
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't open image %s", img_name.c_str());
+        return -1;
+    }
+
+    // Same scale as the stitcher picks, all the images have the same size
+    if (work_megapix >= 0)
+        work_scale = min(1.0, sqrt(work_megapix * 1e6 / full_img_size.area()));
+    Mat img;
+    if (!readImage(img_name, work_scale, rotation, img))
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't open image %s", img_name.c_str());
+        return -1;
+    }
+
+    SurfFeaturesFinder finder;
+    finder(img, features);
+    finder.releaseMemory();
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Precomputed %d features of %s, time: %f sec", static_cast<int>(features.keypoints.size()),
+                        img_name.c_str(), ((getTickCount() - t) / getTickFrequency()));
+    return cached.save(work_megapix, work_scale, full_img_size, features) ? 0 : -1;
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+StagedStitcher::StagedStitcher(const vector<string> &img_names, const string &checkpoint_dir)
+    : img_names_(img_names), checkpoint_dir_(checkpoint_dir), stage_(NONE),
+      work_scale_(1), warped_image_scale_(1), seam_scale_(1)
+{
+    image_pool_ = new ImagePool(img_names, IMAGE_POOL_MAX_SIZE,
+                                checkpoint_dir.empty() ? "" : checkpoint_dir + "/images.pool");
+}
+
+
+int StagedStitcher::setOption(const string &flag, const string &value)
+{
+    vector<string> keys;
+    for (int stage = FEATURES; stage <= stage_; ++stage)
+        keys.push_back(stageKey(stage));
+
+    vector<string> args, img_names;
+    args.push_back(flag);
+    if (!value.empty())
+        args.push_back(value);
+    if (params_.parse(args, img_names) != 0 || !img_names.empty())
+        return -1;
+
+    // Drop the first stage whose parameters have changed, and all after it
+    for (int stage = FEATURES; stage <= stage_; ++stage)
+    {
+        if (stageKey(stage) != keys[stage - FEATURES])
+        {
+            __android_log_print(ANDROID_LOG_DEBUG, TAG, "%s invalidates stage %d", flag.c_str(), stage);
+            invalidate(stage);
+            break;
+        }
+    }
+    return stage_;
+}
+
+
+int StagedStitcher::resume()
+{
+    for (int stage = stage_ + 1; stage <= CAMERAS; ++stage)
+    {
+        if (!loadCheckpoint(stage))
+            break;
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Restored stage %d from checkpoint", stage);
+        stage_ = stage;
+    }
+    return stage_;
+}
+
+
+int StagedStitcher::run()
+{
+    for (int stage = stage_ + 1; stage <= COMPOSED; ++stage)
+    {
+        int retval = runStage(stage);
+        if (retval)
+            return retval;
+    }
+    return 0;
+}
+
+
+int StagedStitcher::runStage(int stage)
+{
+    if (stage < FEATURES || stage > COMPOSED || stage > stage_ + 1)
+        return -1;
+    invalidate(stage);
+
+    int retval = -1;
+    switch (stage)
+    {
+    case FEATURES: retval = findFeatures(); break;
+    case MATCHES: retval = matchImages(); break;
+    case CAMERAS: retval = estimateCameras(); break;
+    case SEAMS: retval = findSeams(); break;
+    case COMPOSED: retval = compose(); break;
+    }
+    if (retval)
+        return retval;
+
+    if (stage == FEATURES || stage >= SEAMS)
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Images: %d decoded, %d reused, %lld bytes spilled",
+                            image_pool_->decodes(), image_pool_->hits(), static_cast<long long>(image_pool_->spilledSize()));
+
+    stage_ = stage;
+    saveCheckpoint(stage);
+    return 0;
+}
+
+
+void StagedStitcher::invalidate(int stage)
+{
+    if (stage_ < stage)
+        return;
+    stage_ = stage - 1;
+
+    // Release memory held by the dropped stages
+    if (stage <= FEATURES)
+    {
+        features_.clear();
+        full_img_sizes_.clear();
+        image_pool_->clear();
+    }
+    if (stage <= MATCHES)
+        pairwise_matches_.clear();
+    if (stage <= CAMERAS)
+    {
+        indices_.clear();
+        cameras_.clear();
+    }
+    if (stage <= SEAMS)
+    {
+        corners_.clear();
+        masks_warped_.clear();
+        compensator_ = Ptr<ExposureCompensator>();
+    }
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+namespace
+{
+    // Finds the features of a single image, either in the cache or with the
+    // finder owned by the calling thread
+    class FindFeaturesBody : public ParallelLoopBody
+    {
+    public:
+        FindFeaturesBody(const vector<string> &img_names, int rotation, ImagePool &pool, double work_megapix,
+                         double work_scale, vector<Ptr<FeaturesFinder> > &finders, vector<ImageFeatures> &features,
+                         vector<Size> &full_img_sizes, vector<uchar> &failed)
+            : img_names_(img_names), rotation_(rotation), pool_(pool), work_megapix_(work_megapix),
+              work_scale_(work_scale), finders_(finders), features_(features), full_img_sizes_(full_img_sizes),
+              failed_(failed) {}
+
+        void operator ()(int i, int thread_idx)
+        {
+            // Restitches mostly run on the same images, try the cache first
+            FeatureCacheEntry cached(img_names_[i], rotation_);
+            double cached_scale = 1;
+            if (cached.load(work_megapix_, cached_scale, full_img_sizes_[i], features_[i])
+                && abs(cached_scale - work_scale_) < 1e-9)
+            {
+                features_[i].img_idx = i;
+                __android_log_print(ANDROID_LOG_DEBUG, TAG, "Features in image #%d:%d (cached)" ,i+1, static_cast<int>(features_[i].keypoints.size()));
+                return;
+            }
+
+            __android_log_print(ANDROID_LOG_DEBUG, TAG, "Loading image %s", img_names_[i].c_str());
+            Mat img;
+            if (!readImageSize(img_names_[i], rotation_, full_img_sizes_[i])
+                || !pool_.read(i, work_scale_, img))
+            {
+                __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't open image %s", img_names_[i].c_str());
+                failed_[i] = 1;
+                return;
+            }
+
+            (*finders_[thread_idx])(img, features_[i]);
+            features_[i].img_idx = i;
+            __android_log_print(ANDROID_LOG_DEBUG, TAG, "Features in image #%d:%d" ,i+1, static_cast<int>(features_[i].keypoints.size()));
+
+            if (!cached.save(work_megapix_, work_scale_, full_img_sizes_[i], features_[i]))
+                __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't cache features of %s", img_names_[i].c_str());
+        }
+
+    private:
+        const vector<string> &img_names_;
+        int rotation_;
+        ImagePool &pool_;
+        double work_megapix_;
+        double work_scale_;
+        vector<Ptr<FeaturesFinder> > &finders_;
+        vector<ImageFeatures> &features_;
+        vector<Size> &full_img_sizes_;
+        vector<uchar> &failed_;
+    };
+
+
+    bool fullImageSize(const string &img_name, int rotation, double work_megapix, Size &full_img_size)
+    {
+        FeatureCacheEntry cached(img_name, rotation);
+        double work_scale;
+        ImageFeatures features;
+        if (cached.load(work_megapix, work_scale, full_img_size, features))
+            return true;
+        return readImageSize(img_name, rotation, full_img_size);
+    }
+}
+
+
+int StagedStitcher::findFeatures()
+{
+    int num_images = static_cast<int>(img_names_.size());
+    if (num_images < 2)
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Need more images");
+        return -1;
+    }
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Finding features...");
+    int64 t = getTickCount();
+
+    // All the images are registered at the scale of the first one
+    Size first_img_size;
+    if (!fullImageSize(img_names_[0], params_.rotate, params_.work_megapix, first_img_size))
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't open image %s", img_names_[0].c_str());
+        return -1;
+    }
+    work_scale_ = 1;
+    if (params_.work_megapix >= 0)
+        work_scale_ = min(1.0, sqrt(params_.work_megapix * 1e6 / first_img_size.area()));
+    planImageScales(FEATURES, first_img_size);
+
+    features_.assign(num_images, ImageFeatures());
+    full_img_sizes_.assign(num_images, Size());
+
+    // The finders aren't thread safe, each thread gets its own one
+    int num_threads = min(params_.num_threads, num_images);
+    vector<Ptr<FeaturesFinder> > finders(num_threads);
+    for (int i = 0; i < num_threads; ++i)
+        finders[i] = new SurfFeaturesFinder(params_.try_gpu);
+
+    vector<uchar> failed(num_images, 0);
+    FindFeaturesBody body(img_names_, params_.rotate, *image_pool_, params_.work_megapix, work_scale_, finders,
+                          features_, full_img_sizes_, failed);
+    parallelForEach(num_images, num_threads, body);
+
+    for (int i = 0; i < num_threads; ++i)
+        finders[i]->releaseMemory();
+
+    if (find(failed.begin(), failed.end(), 1) != failed.end())
+        return -1;
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Finding features, time: %f sec (%d threads)", 
+                        ((getTickCount() - t) / getTickFrequency()), num_threads);
+    return 0;
+}
+
+
+int StagedStitcher::matchImages()
+{
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Pairwise matching");
+    int64 t = getTickCount();
+    const int num_images = static_cast<int>(features_.size());
+
+    // Don't waste time on pairs which can't overlap
+    Mat match_mask;
+    vector<PoseHint> hints;
+    if (!params_.poses.empty() && loadPoseHints(params_.poses, img_names_, hints))
+        match_mask = poseMatchMask(hints, full_img_sizes_);
+    else if (params_.match_range > 0)
+        match_mask = sequenceMatchMask(num_images, params_.match_range);
+
+    int num_pairs = num_images * (num_images - 1) / 2;
+    if (!match_mask.empty())
+    {
+        Mat pairs = match_mask | match_mask.t();
+        num_pairs = (countNonZero(pairs) - countNonZero(pairs.diag())) / 2;
+    }
+
+    BestOf2NearestMatcher matcher(params_.try_gpu, params_.match_conf);
+    matcher.setNumThreads(params_.num_threads);
+    matcher(features_, pairwise_matches_, match_mask);
+    matcher.releaseMemory();
+
+    double time = (getTickCount() - t) / getTickFrequency();
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Pairwise matching, time: %f sec (%d pairs, %f pairs/sec, %d threads)",
+                        time, num_pairs, num_pairs / max(time, 1e-6), matcher.numThreads());
+    return 0;
+}
+
+
+int StagedStitcher::estimateCameras()
+{
+    // Work on copies, so the stage can be re-run with another threshold
+    vector<ImageFeatures> features = features_;
+    vector<MatchesInfo> pairwise_matches = pairwise_matches_;
+
+    // Known poses place every image, even the ones without good matches
+    vector<PoseHint> hints;
+    bool use_poses = !params_.poses.empty() && loadPoseHints(params_.poses, img_names_, hints)
+                     && allPosesKnown(hints);
+
+    if (use_poses)
+    {
+        indices_.resize(features.size());
+        for (size_t i = 0; i < indices_.size(); ++i)
+            indices_[i] = static_cast<int>(i);
+    }
+    else
+    {
+        // Leave only images we are sure are from the same panorama
+        indices_ = leaveBiggestComponent(features, pairwise_matches, params_.conf_thresh);
+    }
+
+    // Check if we still have enough images
+    if (indices_.size() < 2)
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Need more images");
+        return -1;
+    }
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Estimating rotations...");
+    int64 t = getTickCount();
+    if (use_poses)
+    {
+        PoseBasedEstimator estimator(hints);
+        estimator(features, pairwise_matches, cameras_);
+    }
+    else
+    {
+        HomographyBasedEstimator estimator;
+        estimator(features, pairwise_matches, cameras_);
+    }
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Estimating rotations, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
+
+    for (size_t i = 0; i < cameras_.size(); ++i)
+    {
+        Mat R;
+        cameras_[i].R.convertTo(R, CV_32F);
+        cameras_[i].R = R;
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Initial focal length #%d:%f", indices_[i]+1, cameras_[i].focal);
+    }
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Bundle adjustment");
+    t = getTickCount();
+    BundleAdjuster adjuster(params_.ba_space, params_.conf_thresh);
+    adjuster.setNormalizeMotion(!use_poses);
+    adjuster(features, pairwise_matches, cameras_);
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Bundle adjustment, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
+
+    // Find median focal length
+    vector<double> focals;
+    for (size_t i = 0; i < cameras_.size(); ++i)
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Camera #%d focal length: %f", indices_[i]+1, cameras_[i].focal);
+        focals.push_back(cameras_[i].focal);
+    }
+    nth_element(focals.begin(), focals.begin() + focals.size()/2, focals.end());
+    warped_image_scale_ = static_cast<float>(focals[focals.size() / 2]);
+
+    // Pose seeded cameras are leveled already, and may be rolled, which wave correction doesn't expect
+    if (params_.wave_correct && !use_poses)
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Wave correcting...");
+        t = getTickCount();
+        vector<Mat> rmats;
+        for (size_t i = 0; i < cameras_.size(); ++i)
+            rmats.push_back(cameras_[i].R);
+        waveCorrect(rmats);
+        for (size_t i = 0; i < cameras_.size(); ++i)
+            cameras_[i].R = rmats[i];
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Wave correcting, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
+    }
+    return 0;
+}
+
+
+int StagedStitcher::findSeams()
+{
+    const int num_images = static_cast<int>(indices_.size());
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Warping images (auxiliary)... ");
+    int64 t = getTickCount();
+
+    seam_scale_ = min(1.0, sqrt(params_.seam_megapix * 1e6 / full_img_sizes_[0].area()));
+    double seam_work_aspect = seam_scale_ / work_scale_;
+    planImageScales(SEAMS, full_img_sizes_[0]);
+
+    vector<Mat> images(num_images);
+    for (int i = 0; i < num_images; ++i)
+    {
+        if (!image_pool_->read(indices_[i], seam_scale_, images[i]))
+        {
+            __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't open image %s", img_names_[indices_[i]].c_str());
+            return -1;
+        }
+    }
+
+    corners_.assign(num_images, Point());
+    masks_warped_.assign(num_images, Mat());
+    vector<Mat> images_warped(num_images);
+    vector<Size> sizes(num_images);
+    vector<Mat> masks(num_images);
+
+    // Preapre images masks
+    for (int i = 0; i < num_images; ++i)
+    {
+        masks[i].create(images[i].size(), CV_8U);
+        masks[i].setTo(Scalar::all(255));
+    }
+
+    // Warp images and their masks
+    Ptr<Warper> warper = createWarper(static_cast<float>(warped_image_scale_ * seam_work_aspect));
+    vector<string> remap_keys;
+    remapKeys(remap_keys);
+    for (int i = 0; i < num_images; ++i)
+    {
+        warper->setCacheKey(remap_keys[i]);
+        corners_[i] = warper->warp(images[i], static_cast<float>(cameras_[i].focal * seam_work_aspect), 
+                                   cameras_[i].R, images_warped[i]);
+        sizes[i] = images_warped[i].size();
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Size for #%d is %dx%d", i, sizes[i].width, sizes[i].height);
+        warper->warp(masks[i], static_cast<float>(cameras_[i].focal * seam_work_aspect), 
+                     cameras_[i].R, masks_warped_[i], INTER_NEAREST, BORDER_CONSTANT);
+    }
+
+    vector<Mat> images_warped_f(num_images);
+    for (int i = 0; i < num_images; ++i)
+        images_warped[i].convertTo(images_warped_f[i], CV_32F);
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Warping images, time: %f sec (%d maps built, %d reused)",
+                        ((getTickCount() - t) / getTickFrequency()), remap_cache_->misses(), remap_cache_->hits());
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Exposure compensation (feed)...");
+    t = getTickCount();
+    compensator_ = ExposureCompensator::createDefault(params_.expos_comp_type);
+    compensator_->feed(corners_, images_warped, masks_warped_);
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Exposure compensation (feed), time: %f sec", ((getTickCount() - t) / getTickFrequency()));
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Finding seams...");
+    t = getTickCount();
+    Ptr<SeamFinder> seam_finder = SeamFinder::createDefault(params_.seam_find_type);
+    seam_finder->find(images_warped_f, corners_, masks_warped_);
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Finding seams, time: %f sec", ((getTickCount() - t) / getTickFrequency()));
+    return 0;
+}
+
+
+int StagedStitcher::compose()
+{
+    if (params_.tile > 0)
+        return composeTiled();
+
+    const int num_images = static_cast<int>(indices_.size());
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Compositing...");
+    int64 t = getTickCount();
+
+    vector<CameraParams> cameras;
+    vector<Point> corners;
+    vector<Size> sizes;
+    Ptr<Warper> warper;
+    vector<string> remap_keys;
+    double compose_scale = prepareCompose(cameras, corners, sizes, warper, remap_keys);
+
+    int margin;
+    Ptr<Blender> blender = createBlender(resultRoi(corners, sizes).size(), 0, margin);
+    blender->prepare(corners, sizes);
+
+    Mat img;
+    Mat img_warped, img_warped_s;
+    Mat dilated_mask, seam_mask, mask, mask_warped;
+
+    for (int img_idx = 0; img_idx < num_images; ++img_idx)
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Compositing image #%d", indices_[img_idx]+1);
+
+        // Read image and resize it if necessary
+        if (!readComposeImage(img_idx, compose_scale, img))
+            return -1;
+        Size img_size = img.size();                
+
+        // Warp the current image
+        warper->setCacheKey(remap_keys[img_idx]);
+        warper->warp(img, static_cast<float>(cameras[img_idx].focal), cameras[img_idx].R,
+                     img_warped);
+
+        // Warp the current image mask
+        mask.create(img_size, CV_8U);
+        mask.setTo(Scalar::all(255));    
+        warper->warp(mask, static_cast<float>(cameras[img_idx].focal), cameras[img_idx].R, mask_warped,
+                     INTER_NEAREST, BORDER_CONSTANT);
+
+        // Compensate exposure
+        compensator_->apply(img_idx, corners[img_idx], img_warped, mask_warped);
+
+        img_warped.convertTo(img_warped_s, CV_16S);
+        img_warped.release();
+        img.release();
+        mask.release();       
+
+        dilate(masks_warped_[img_idx], dilated_mask, Mat());
+        resize(dilated_mask, seam_mask, mask_warped.size());
+        mask_warped = seam_mask & mask_warped;
+
+        // Blend the current image
+        blender->feed(img_warped_s, mask_warped, corners[img_idx]);        
+    }
+   
+    Mat result, result_mask;
+    blender->blend(result, result_mask);
+    result_mask.release();
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Compositing, time: %f sec (%d maps built, %d reused)",
+                        ((getTickCount() - t) / getTickFrequency()), remap_cache_->misses(), remap_cache_->hits());
+
+    // Hand the result to the writer in strips, so neither a whole 8-bit copy
+    // nor the whole encoded image is ever made
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Result: %s", params_.result_name.c_str());
+    Ptr<TileSink> sink = createTileSink(params_.result_name);
+    bool ok = sink->open(result.size());
+    Mat strip;
+    for (int y = 0; y < result.rows && ok; y += RESULT_STRIP_HEIGHT)
+    {
+        result.rowRange(y, min(result.rows, y + RESULT_STRIP_HEIGHT)).convertTo(strip, CV_8U);
+        ok = sink->write(strip, Point(0, y));
+    }
+    if (!ok || !sink->close())
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't write result %s", params_.result_name.c_str());
+        return -1;
+    }
+    return 0;
+}
+
+
+int StagedStitcher::composeTiled()
+{
+    const int num_images = static_cast<int>(indices_.size());
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Compositing in tiles...");
+    int64 t = getTickCount();
+
+    vector<CameraParams> cameras;
+    vector<Point> corners;
+    vector<Size> sizes;
+    Ptr<Warper> warper;
+    vector<string> remap_keys;
+    double compose_scale = prepareCompose(cameras, corners, sizes, warper, remap_keys);
+    Rect dst_roi = resultRoi(corners, sizes);
+
+    // Every tile is blended together with a margin around it, so the blender
+    // sees all the pixels which affect the tile
+    int margin;
+    Ptr<Blender> blender = createBlender(dst_roi.size(), params_.tile, margin);
+
+    // Keep tiles aligned to the coarsest pyramid level, so the bands are
+    // sampled at the same pixels as when blending the whole panorama
+    int tile = params_.tile;
+    MultiBandBlender* mb = dynamic_cast<MultiBandBlender*>(static_cast<Blender*>(blender));
+    if (mb && mb->numBands() > 0)
+    {
+        int align = 1 << mb->numBands();
+        tile = (tile + align - 1) / align * align;
+    }
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Tile size: %d, margin: %d", tile, margin);
+
+    vector<Mat> dilated_masks(num_images);
+    for (int i = 0; i < num_images; ++i)
+        dilate(masks_warped_[i], dilated_masks[i], Mat());
+
+    Ptr<TileSink> sink = createTileSink(params_.result_name);
+    if (!sink->open(dst_roi.size()))
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't write result %s", params_.result_name.c_str());
+        return -1;
+    }
+
+    // Only the part of a source image a tile is interpolated from is read,
+    // the image pool keeps the whole images within its budget. Besides it the
+    // memory use is about the tile and margin buffers of the blender plus one
+    // image while it is decoded.
+    vector<Size> src_sizes(num_images);
+    for (int i = 0; i < num_images; ++i)
+        src_sizes[i] = composeImageSize(i, compose_scale);
+    vector<bool> started(num_images, false);
+    Mat img, mask, img_warped, img_warped_s, seam_mask, mask_warped;
+    Mat result, result_mask, result_tile;
+
+    for (int y = dst_roi.y; y < dst_roi.br().y; y += tile)
+    {
+        for (int x = dst_roi.x; x < dst_roi.br().x; x += tile)
+        {
+            Rect tile_roi(x, y, min(tile, dst_roi.br().x - x), min(tile, dst_roi.br().y - y));
+            Rect blend_roi(x - margin, y - margin, tile_roi.width + 2 * margin, tile_roi.height + 2 * margin);
+            blend_roi &= dst_roi;
+            blender->prepare(blend_roi);
+
+            for (int img_idx = 0; img_idx < num_images; ++img_idx)
+            {
+                Rect img_roi(corners[img_idx], sizes[img_idx]);
+                Rect part_roi = img_roi & blend_roi;
+                if (part_roi.area() == 0)
+                    continue;
+
+                if (!started[img_idx])
+                {
+                    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Compositing image #%d", indices_[img_idx]+1);
+                    started[img_idx] = true;
+                }
+                float focal = static_cast<float>(cameras[img_idx].focal);
+
+                // Read and warp only the part of the image and its mask the
+                // blended area is interpolated from
+                warper->setCacheKey(remap_keys[img_idx]);
+                Rect src_roi = warper->srcRoi(src_sizes[img_idx], focal, cameras[img_idx].R, part_roi);
+                if (src_roi.area() == 0)
+                    continue;
+                if (!readComposePart(img_idx, compose_scale, src_roi, img))
+                    return -1;
+                warper->warpPart(img, src_roi, src_sizes[img_idx], focal, cameras[img_idx].R, part_roi, img_warped);
+                mask.create(src_roi.size(), CV_8U);
+                mask.setTo(Scalar::all(255));
+                warper->warpPart(mask, src_roi, src_sizes[img_idx], focal, cameras[img_idx].R, part_roi, mask_warped,
+                                 INTER_NEAREST, BORDER_CONSTANT);
+
+                // Position of the part inside the whole warped image
+                Rect local_roi(part_roi.tl() - img_roi.tl(), part_roi.size());
+
+                // Compensate exposure
+                compensator_->applyRoi(img_idx, part_roi.tl(), img_warped, mask_warped, img_roi.size(), local_roi);
+                img_warped.convertTo(img_warped_s, CV_16S);
+
+                resizeRoi(dilated_masks[img_idx], img_roi.size(), local_roi, seam_mask);
+                mask_warped = seam_mask & mask_warped;
+
+                blender->feed(img_warped_s, mask_warped, part_roi.tl());
+            }
+
+            blender->blend(result, result_mask);
+            result(Rect(tile_roi.tl() - blend_roi.tl(), tile_roi.size())).convertTo(result_tile, CV_8U);
+            if (!sink->write(result_tile, tile_roi.tl() - dst_roi.tl()))
+            {
+                __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't write result %s", params_.result_name.c_str());
+                return -1;
+            }
+        }
+    }
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Compositing, time: %f sec (%d maps built, %d reused)",
+                        ((getTickCount() - t) / getTickFrequency()), remap_cache_->misses(), remap_cache_->hits());
+
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Result: %s", params_.result_name.c_str());
+    if (!sink->close())
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't write result %s", params_.result_name.c_str());
+        return -1;
+    }
+    return 0;
+}
+
+
+namespace
+{
+    double composeScale(const StitchParams &params, Size full_img_size)
+    {
+        if (params.compose_megapix <= 0)
+            return 1;
+        return min(1.0, sqrt(params.compose_megapix * 1e6 / full_img_size.area()));
+    }
+
+    // Close enough scales are composited at the full resolution
+    double composeReadScale(double compose_scale)
+    {
+        return abs(compose_scale - 1) > 1e-1 ? compose_scale : 1;
+    }
+}
+
+
+// Rescales the cameras and the warped image rois from the registration to the
+// compositing resolution. Returns the compositing scale.
+double StagedStitcher::prepareCompose(vector<CameraParams> &cameras, vector<Point> &corners,
+                                      vector<Size> &sizes, Ptr<Warper> &warper, vector<string> &remap_keys)
+{
+    const int num_images = static_cast<int>(indices_.size());
+
+    double compose_scale = composeScale(params_, full_img_sizes_[indices_[0]]);
+    planImageScales(COMPOSED, full_img_sizes_[indices_[0]]);
+
+    // Compute relative scales
+    double compose_work_aspect = compose_scale / work_scale_;
+
+    // Update warped image scale
+    float warped_image_scale = warped_image_scale_ * static_cast<float>(compose_work_aspect);
+    warper = createWarper(warped_image_scale);
+
+    // Compositing rescales cameras and corners, keep the stage results intact
+    cameras = cameras_;
+    corners.resize(num_images);
+    sizes.resize(num_images);
+    remapKeys(remap_keys);
+    for (int i = 0; i < num_images; ++i)
+    {
+        // Update camera focal
+        cameras[i].focal *= compose_work_aspect;
+
+        // Update corner and size
+        warper->setCacheKey(remap_keys[i]);
+        Rect roi = warper->warpRoi(composeImageSize(i, compose_scale), static_cast<float>(cameras[i].focal),
+                                   cameras[i].R);
+        corners[i] = roi.tl();
+        sizes[i] = roi.size();
+    }
+    return compose_scale;
+}
+
+
+// Creates a warper sharing the remap cache of the pipeline, the cache is
+// recreated when its directory changes
+Ptr<Warper> StagedStitcher::createWarper(float scale)
+{
+    if (remap_cache_.empty() || remap_cache_->directory() != params_.lut_cache)
+        remap_cache_ = new RemapCache(params_.lut_cache, REMAP_CACHE_MAX_SIZE);
+    Ptr<Warper> warper = Warper::createByCameraFocal(scale, params_.warp_type, params_.try_gpu);
+    warper->setRemapCache(remap_cache_);
+    return warper;
+}
+
+
+// Names the cameras in the remap cache by their pan/tilt head angles. The
+// head goes back to the same angles every capture while the refined cameras
+// differ a little, so the maps of the first capture at those angles are used
+// for all the later ones. Other cameras get an empty name, which keeps their
+// maps off the disk.
+void StagedStitcher::remapKeys(vector<string> &keys) const
+{
+    keys.assign(indices_.size(), string());
+    vector<PoseHint> hints;
+    if (params_.lut_cache.empty() || params_.poses.empty() || !loadPoseHints(params_.poses, img_names_, hints))
+        return;
+    for (size_t i = 0; i < indices_.size(); ++i)
+    {
+        const PoseHint &hint = hints[indices_[i]];
+        if (!hint.commanded)
+            continue;
+        ostringstream key;
+        key << "yaw " << hint.yaw << " pitch " << hint.pitch << " roll " << hint.roll << " hfov " << hint.hfov
+            << " rotate " << params_.rotate;
+        keys[i] = key.str();
+    }
+}
+
+
+// Tells the image pool the scales the stages from the given one on read at,
+// so they are all made from a single decode of each image
+void StagedStitcher::planImageScales(int stage, Size full_img_size)
+{
+    vector<double> scales;
+    if (stage <= FEATURES)
+        scales.push_back(work_scale_);
+    if (stage <= SEAMS)
+        scales.push_back(min(1.0, sqrt(params_.seam_megapix * 1e6 / full_img_size.area())));
+    scales.push_back(composeReadScale(composeScale(params_, full_img_size)));
+    image_pool_->setRotation(params_.rotate);
+    image_pool_->plan(scales);
+}
+
+
+// Size of an image as the pool reads it for compositing
+Size StagedStitcher::composeImageSize(int img_idx, double compose_scale) const
+{
+    Size sz = full_img_sizes_[indices_[img_idx]];
+    double read_scale = composeReadScale(compose_scale);
+    if (read_scale != 1)
+    {
+        sz.width = cvRound(sz.width * read_scale);
+        sz.height = cvRound(sz.height * read_scale);
+    }
+    return sz;
+}
+
+
+bool StagedStitcher::readComposeImage(int img_idx, double compose_scale, Mat &img)
+{
+    if (!image_pool_->read(indices_[img_idx], composeReadScale(compose_scale), img))
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't open image %s", img_names_[indices_[img_idx]].c_str());
+        return false;
+    }
+    return true;
+}
+
+
+bool StagedStitcher::readComposePart(int img_idx, double compose_scale, Rect roi, Mat &img)
+{
+    if (!image_pool_->readRoi(indices_[img_idx], composeReadScale(compose_scale), roi, img))
+    {
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Can't open image %s", img_names_[indices_[img_idx]].c_str());
+        return false;
+    }
+    return true;
+}
+
+
+// Creates the blender for a panorama of the given size. margin is set to the
+// distance beyond which pixels don't affect each other, max_margin limits it
+// by using less bands when positive. Less bands blend over a narrower seam,
+// the panorama then differs from one blended whole.
+Ptr<Blender> StagedStitcher::createBlender(Size dst_sz, int max_margin, int &margin) const
+{
+    margin = 0;
+    Ptr<Blender> blender = Blender::createDefault(params_.blend_type, params_.try_gpu);
+    float blend_width = sqrt(static_cast<float>(dst_sz.area())) * params_.blend_strength / 100.f;
+    if (blend_width < 1.f)
+        blender = Blender::createDefault(Blender::NO, params_.try_gpu);
+    else if (params_.blend_type == Blender::MULTI_BAND)
+    {
+        MultiBandBlender* mb = dynamic_cast<MultiBandBlender*>(static_cast<Blender*>(blender));
+        int num_bands = static_cast<int>(ceil(log(blend_width)/log(2.)) - 1.);
+        if (max_margin > 0 && num_bands > 1 && (3 << num_bands) > max_margin)
+        {
+            int wanted = num_bands;
+            while (num_bands > 1 && (3 << num_bands) > max_margin)
+                --num_bands;
+            __android_log_print(ANDROID_LOG_DEBUG, TAG, "Using %d bands instead of %d, so the margin fits the %d tile",
+                                num_bands, wanted, max_margin);
+        }
+        mb->setNumBands(num_bands);
+        margin = 3 << max(0, num_bands);
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Multi-band blender, number of bands: %d", mb->numBands());
+    }
+    else if (params_.blend_type == Blender::FEATHER)
+    {
+        FeatherBlender* fb = dynamic_cast<FeatherBlender*>(static_cast<Blender*>(blender));
+        fb->setSharpness(1.f/blend_width);
+        margin = static_cast<int>(ceil(blend_width));
+        __android_log_print(ANDROID_LOG_DEBUG, TAG, "Feather blender, sharpness: %f", fb->sharpness());
+    }
+    return blender;
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+string StagedStitcher::stageKey(int stage) const
+{
+    ostringstream key;
+    if (stage > FEATURES)
+        key << stageKey(stage - 1) << ";";
+
+    switch (stage)
+    {
+    case FEATURES:
+        key << "work_megapix=" << params_.work_megapix << ";rotate=" << params_.rotate;
+        for (size_t i = 0; i < img_names_.size(); ++i)
+        {
+            // Retaken images have to invalidate everything
+            struct stat st;
+            key << ";" << img_names_[i];
+            if (stat(img_names_[i].c_str(), &st) == 0)
+                key << ":" << st.st_size << ":" << st.st_mtime;
+        }
+        break;
+    case MATCHES:
+        key << "match_conf=" << params_.match_conf << ";match_range=" << params_.match_range
+            << ";poses=" << params_.poses;
+        if (!params_.poses.empty())
+        {
+            struct stat st;
+            if (stat(params_.poses.c_str(), &st) == 0)
+                key << ":" << st.st_size << ":" << st.st_mtime;
+        }
+        break;
+    case CAMERAS:
+        key << "conf_thresh=" << params_.conf_thresh << ";ba=" << params_.ba_space
+            << ";wave_correct=" << params_.wave_correct;
+        break;
+    case SEAMS:
+        key << "warp=" << params_.warp_type << ";seam_megapix=" << params_.seam_megapix
+            << ";seam=" << params_.seam_find_type << ";expos_comp=" << params_.expos_comp_type;
+        break;
+    case COMPOSED:
+        key << "compose_megapix=" << params_.compose_megapix << ";blend=" << params_.blend_type
+            << ";blend_strength=" << params_.blend_strength << ";output=" << params_.result_name
+            << ";tile=" << params_.tile;
+        break;
+    }
+    return key.str();
+}
+
+
+string StagedStitcher::checkpointPath(int stage) const
+{
+    if (checkpoint_dir_.empty())
+        return "";
+    switch (stage)
+    {
+    case FEATURES: return checkpoint_dir_ + "/features.ckpt";
+    case MATCHES: return checkpoint_dir_ + "/matches.ckpt";
+    case CAMERAS: return checkpoint_dir_ + "/cameras.ckpt";
+    }
+    // Seams and the result are cheap to recompute comparing to registration
+    return "";
+}
+
+
+bool StagedStitcher::saveCheckpoint(int stage)
+{
+    string path = checkpointPath(stage);
+    if (path.empty())
+        return false;
+
+    int64 t = getTickCount();
+    CheckpointWriter writer(path, CHECKPOINT_MAGIC);
+    if (!writer.isOpened())
+        return false;
+    writer.write(stageKey(stage));
+
+    switch (stage)
+    {
+    case FEATURES:
+        writer.write(work_scale_);
+        writer.write(static_cast<int>(full_img_sizes_.size()));
+        for (size_t i = 0; i < full_img_sizes_.size(); ++i)
+        {
+            writer.write(full_img_sizes_[i].width);
+            writer.write(full_img_sizes_[i].height);
+        }
+        writer.write(features_);
+        break;
+    case MATCHES:
+        writer.write(pairwise_matches_);
+        break;
+    case CAMERAS:
+        writer.write(indices_);
+        writer.write(cameras_);
+        writer.write(static_cast<double>(warped_image_scale_));
+        break;
+    }
+
+    bool ok = writer.commit();
+    __android_log_print(ANDROID_LOG_DEBUG, TAG, "Checkpoint %s %s, time: %f sec", path.c_str(),
+                        ok ? "saved" : "failed", ((getTickCount() - t) / getTickFrequency()));
+    return ok;
+}
+
+
+bool StagedStitcher::loadCheckpoint(int stage)
+{
+    string path = checkpointPath(stage);
+    if (path.empty())
+        return false;
+
+    CheckpointReader reader(path, CHECKPOINT_MAGIC);
+    string key;
+    reader.read(key);
+    if (!reader.good() || key != stageKey(stage))
+        return false;
+
+    switch (stage)
+    {
+    case FEATURES:
+    {
+        double work_scale = 1;
+        int num_sizes = 0;
+        vector<Size> full_img_sizes;
+        vector<ImageFeatures> features;
+        reader.read(work_scale);
+        reader.read(num_sizes);
+        full_img_sizes.resize(reader.good() ? max(num_sizes, 0) : 0);
+        for (size_t i = 0; i < full_img_sizes.size(); ++i)
+        {
+            reader.read(full_img_sizes[i].width);
+            reader.read(full_img_sizes[i].height);
+        }
+        reader.read(features);
+        if (!reader.good() || features.size() != img_names_.size())
+            return false;
+        work_scale_ = work_scale;
+        full_img_sizes_.swap(full_img_sizes);
+        features_.swap(features);
+        return true;
+    }
+    case MATCHES:
+    {
+        vector<MatchesInfo> pairwise_matches;
+        reader.read(pairwise_matches);
+        if (!reader.good() || pairwise_matches.size() != features_.size() * features_.size())
+            return false;
+        pairwise_matches_.swap(pairwise_matches);
+        return true;
+    }
+    case CAMERAS:
+    {
+        vector<int> indices;
+        vector<CameraParams> cameras;
+        double warped_image_scale = 1;
+        reader.read(indices);
+        reader.read(cameras);
+        reader.read(warped_image_scale);
+        if (!reader.good() || indices.size() != cameras.size())
+            return false;
+        indices_.swap(indices);
+        cameras_.swap(cameras);
+        warped_image_scale_ = static_cast<float>(warped_image_scale);
+        return true;
+    }
+    }
+    return false;
+}
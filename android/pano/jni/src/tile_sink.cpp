@@ -0,0 +1,119 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include "tile_sink.hpp"
+
+using namespace std;
+using namespace cv;
+
+bool ImageTileSink::open(Size size)
+{
+    image_.create(size, CV_8UC3);
+    image_.setTo(Scalar::all(0));
+    return true;
+}
+
+
+bool ImageTileSink::write(const Mat &tile, Point tl)
+{
+    CV_Assert(tile.type() == CV_8UC3);
+    Rect roi(tl, tile.size());
+    if ((roi & Rect(Point(), image_.size())) != roi)
+        return false;
+    Mat dst = image_(roi);
+    tile.copyTo(dst);
+    return true;
+}
+
+
+bool ImageTileSink::close()
+{
+    bool ok = imwrite(path_, image_);
+    image_.release();
+    return ok;
+}
+
+
+bool StripTileSink::open(Size size)
+{
+    size_ = size;
+    strip_y_ = 0;
+    return writer_->open(path_, size);
+}
+
+
+bool StripTileSink::write(const Mat &tile, Point tl)
+{
+    CV_Assert(tile.type() == CV_8UC3);
+    if (tl.y != strip_y_ || tl.x + tile.cols > size_.width)
+        return false;
+
+    if (tl.x == 0)
+        strip_.create(tile.rows, size_.width, CV_8UC3);
+    if (tile.rows != strip_.rows)
+        return false;
+    Mat dst = strip_.colRange(tl.x, tl.x + tile.cols);
+    tile.copyTo(dst);
+
+    // The row of tiles is complete
+    if (tl.x + tile.cols == size_.width)
+    {
+        strip_y_ += strip_.rows;
+        return writer_->write(strip_);
+    }
+    return true;
+}
+
+
+bool StripTileSink::close()
+{
+    strip_.release();
+    return writer_->close() && strip_y_ == size_.height;
+}
+
+
+Ptr<TileSink> createTileSink(const string &path)
+{
+    Ptr<StripWriter> writer = createStripWriter(path);
+    if (!writer.empty())
+        return new StripTileSink(path, writer);
+    return new ImageTileSink(path);
+}
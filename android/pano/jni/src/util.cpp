@@ -39,6 +39,7 @@
 // the use of this software, even if advised of the possibility of such damage.
 //
 //M*/
+#include <pthread.h>
 #include "util.hpp"
 
 using namespace std;
@@ -148,3 +149,114 @@ Point resultTl(const vector<Point> &corners)
     return tl;
 }
 
+
+void resizeRoi(const Mat &src, Size full_size, Rect roi, Mat &dst, int interpolation)
+{
+    // Same pixel centers mapping as resize() uses
+    float scale_x = static_cast<float>(src.cols) / full_size.width;
+    float scale_y = static_cast<float>(src.rows) / full_size.height;
+
+    Mat xmap(roi.size(), CV_32F), ymap(roi.size(), CV_32F);
+    for (int y = 0; y < roi.height; ++y)
+    {
+        float* xrow = xmap.ptr<float>(y);
+        float* yrow = ymap.ptr<float>(y);
+        float src_y = (roi.y + y + 0.5f) * scale_y - 0.5f;
+        for (int x = 0; x < roi.width; ++x)
+        {
+            xrow[x] = (roi.x + x + 0.5f) * scale_x - 0.5f;
+            yrow[x] = src_y;
+        }
+    }
+    remap(src, dst, xmap, ymap, interpolation, BORDER_REPLICATE);
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+namespace
+{
+    struct ParallelLoopState
+    {
+        ParallelLoopBody *body;
+        int count;
+        int next;
+        bool failed;
+        string error;
+        pthread_mutex_t mutex;
+    };
+
+    struct ParallelLoopWorker
+    {
+        ParallelLoopState *state;
+        int thread_idx;
+    };
+
+    void* parallelLoopThread(void *arg)
+    {
+        ParallelLoopWorker *worker = static_cast<ParallelLoopWorker*>(arg);
+        ParallelLoopState &state = *worker->state;
+        for (;;)
+        {
+            pthread_mutex_lock(&state.mutex);
+            int i = state.failed ? state.count : state.next++;
+            pthread_mutex_unlock(&state.mutex);
+            if (i >= state.count)
+                break;
+
+            try
+            {
+                (*state.body)(i, worker->thread_idx);
+            }
+            catch (const std::exception &e)
+            {
+                pthread_mutex_lock(&state.mutex);
+                if (!state.failed)
+                {
+                    state.failed = true;
+                    state.error = e.what();
+                }
+                pthread_mutex_unlock(&state.mutex);
+            }
+        }
+        return 0;
+    }
+}
+
+
+void parallelForEach(int count, int num_threads, ParallelLoopBody &body)
+{
+    if (count <= 0)
+        return;
+    num_threads = max(1, min(num_threads, count));
+
+    ParallelLoopState state;
+    state.body = &body;
+    state.count = count;
+    state.next = 0;
+    state.failed = false;
+    pthread_mutex_init(&state.mutex, 0);
+
+    vector<ParallelLoopWorker> workers(num_threads);
+    vector<pthread_t> threads;
+    for (int i = 0; i < num_threads; ++i)
+    {
+        workers[i].state = &state;
+        workers[i].thread_idx = i;
+    }
+
+    // If a thread can't be started the others just get more items
+    for (int i = 1; i < num_threads; ++i)
+    {
+        pthread_t thread;
+        if (pthread_create(&thread, 0, parallelLoopThread, &workers[i]) == 0)
+            threads.push_back(thread);
+    }
+    parallelLoopThread(&workers[0]);
+    for (size_t i = 0; i < threads.size(); ++i)
+        pthread_join(threads[i], 0);
+
+    pthread_mutex_destroy(&state.mutex);
+    if (state.failed)
+        CV_Error(CV_StsError, state.error);
+}
@@ -39,6 +39,12 @@
 // the use of this software, even if advised of the possibility of such damage.
 //
 //M*/
+#include <cstdio>
+#include <dirent.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
 #include "warpers.hpp"
 
 using namespace std;
@@ -148,3 +154,206 @@ void SphericalWarper::detectResultRoi(Point &dst_tl, Point &dst_br)
     dst_br.x = static_cast<int>(br_uf);
     dst_br.y = static_cast<int>(br_vf);
 }
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+MappedFile::MappedFile(const string &path) : data_(0), size_(0)
+{
+    int fd = ::open(path.c_str(), O_RDONLY);
+    if (fd < 0)
+        return;
+    struct stat st;
+    if (fstat(fd, &st) == 0 && st.st_size > 0)
+    {
+        void *data = mmap(0, st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+        if (data != MAP_FAILED)
+        {
+            data_ = data;
+            size_ = st.st_size;
+        }
+    }
+    ::close(fd);
+}
+
+
+MappedFile::~MappedFile()
+{
+    if (data_)
+        munmap(data_, size_);
+}
+
+
+//////////////////////////////////////////////////////////////////////////////
+
+namespace
+{
+    // File layout: magic, version, rows, cols, key size, top-left x and y, key,
+    // padding up to REMAP_DATA_ALIGN, then xmap and ymap as raw floats
+    const char REMAP_MAGIC[8] = { 'P', 'A', 'N', 'O', '_', 'L', 'U', 'T' };
+    const int REMAP_VERSION = 2;
+    const size_t REMAP_HEADER_SIZE = sizeof(REMAP_MAGIC) + 6 * sizeof(int);
+    const size_t REMAP_DATA_ALIGN = 16;
+
+    size_t remapDataOffset(size_t key_size)
+    {
+        return (REMAP_HEADER_SIZE + key_size + REMAP_DATA_ALIGN - 1) / REMAP_DATA_ALIGN * REMAP_DATA_ALIGN;
+    }
+
+    bool endsWith(const string &str, const string &suffix)
+    {
+        return str.size() >= suffix.size() && str.compare(str.size() - suffix.size(), suffix.size(), suffix) == 0;
+    }
+}
+
+
+RemapCache::RemapCache(const string &dir, size_t max_disk_size)
+    : dir_(dir), max_disk_size_(max_disk_size), disk_size_(-1), hits_(0), misses_(0) {}
+
+
+bool RemapCache::find(const string &key, RemapTable &table)
+{
+    if (peek(key, table))
+    {
+        ++hits_;
+        return true;
+    }
+    ++misses_;
+    return false;
+}
+
+
+bool RemapCache::peek(const string &key, RemapTable &table)
+{
+    if (!last_key_.empty() && key == last_key_)
+    {
+        table = last_;
+        return true;
+    }
+    if (!dir_.empty() && load(key, table))
+    {
+        last_key_ = key;
+        last_ = table;
+        return true;
+    }
+    return false;
+}
+
+
+void RemapCache::put(const string &key, const RemapTable &table, bool persistent)
+{
+    last_key_ = key;
+    last_ = table;
+    if (persistent && !dir_.empty())
+        save(key, table);
+}
+
+
+string RemapCache::path(const string &key) const
+{
+    // 64-bit FNV-1a of the key
+    uint64 hash = 14695981039346656037ULL;
+    for (size_t i = 0; i < key.size(); ++i)
+    {
+        hash ^= static_cast<unsigned char>(key[i]);
+        hash *= 1099511628211ULL;
+    }
+    char name[32];
+    sprintf(name, "/%016llx.lut", static_cast<unsigned long long>(hash));
+    return dir_ + name;
+}
+
+
+bool RemapCache::load(const string &key, RemapTable &table)
+{
+    Ptr<MappedFile> file = new MappedFile(path(key));
+    if (!file->data() || file->size() < REMAP_HEADER_SIZE)
+        return false;
+
+    const char *data = static_cast<const char*>(file->data());
+    int header[6];
+    memcpy(header, data + sizeof(REMAP_MAGIC), sizeof(header));
+    int rows = header[1], cols = header[2], key_size = header[3];
+    if (memcmp(data, REMAP_MAGIC, sizeof(REMAP_MAGIC)) != 0 || header[0] != REMAP_VERSION
+        || rows <= 0 || cols <= 0 || key_size != static_cast<int>(key.size()))
+        return false;
+
+    size_t offset = remapDataOffset(key_size);
+    size_t map_size = static_cast<size_t>(rows) * cols * sizeof(float);
+    if (file->size() < offset + 2 * map_size || key.compare(0, key_size, data + REMAP_HEADER_SIZE, key_size) != 0)
+        return false;
+
+    // Point the maps right into the mapped file, nothing is copied
+    table.xmap = Mat(rows, cols, CV_32F, const_cast<char*>(data + offset));
+    table.ymap = Mat(rows, cols, CV_32F, const_cast<char*>(data + offset + map_size));
+    table.tl = Point(header[4], header[5]);
+    table.file = file;
+    return true;
+}
+
+
+void RemapCache::save(const string &key, const RemapTable &table)
+{
+    CV_Assert(table.xmap.isContinuous() && table.ymap.isContinuous());
+    if (!fits(key, table.xmap.size()))
+        return;
+
+    mkdir(dir_.c_str(), 0777);
+    string file_path = path(key);
+    string tmp_path = file_path + ".tmp";
+    FILE *file = fopen(tmp_path.c_str(), "wb");
+    if (!file)
+        return;
+
+    size_t offset = remapDataOffset(key.size());
+    size_t map_size = table.xmap.total() * sizeof(float);
+    int header[6] = { REMAP_VERSION, table.xmap.rows, table.xmap.cols, static_cast<int>(key.size()),
+                      table.tl.x, table.tl.y };
+    vector<char> padding(offset - REMAP_HEADER_SIZE - key.size(), 0);
+    bool ok = fwrite(REMAP_MAGIC, sizeof(REMAP_MAGIC), 1, file) == 1
+              && fwrite(header, sizeof(header), 1, file) == 1
+              && fwrite(key.data(), 1, key.size(), file) == key.size()
+              && (padding.empty() || fwrite(&padding[0], 1, padding.size(), file) == padding.size())
+              && fwrite(table.xmap.data, 1, map_size, file) == map_size
+              && fwrite(table.ymap.data, 1, map_size, file) == map_size;
+    ok = fclose(file) == 0 && ok;
+
+    if (ok && rename(tmp_path.c_str(), file_path.c_str()) == 0)
+        disk_size_ += fileSize(key, table.xmap.size());
+    else
+        remove(tmp_path.c_str());
+}
+
+
+bool RemapCache::fits(const string &key, Size size)
+{
+    return !dir_.empty() && diskUsage() + fileSize(key, size) <= max_disk_size_;
+}
+
+
+int64 RemapCache::fileSize(const string &key, Size size) const
+{
+    return remapDataOffset(key.size()) + 2 * static_cast<int64>(size.area()) * sizeof(float);
+}
+
+
+// Sums the stored tables once, later saves keep the sum up to date
+int64 RemapCache::diskUsage()
+{
+    if (disk_size_ >= 0)
+        return disk_size_;
+    disk_size_ = 0;
+    DIR *dir = opendir(dir_.c_str());
+    if (!dir)
+        return 0;
+    while (dirent *entry = readdir(dir))
+    {
+        string name = entry->d_name;
+        struct stat st;
+        if (endsWith(name, ".lut") && stat((dir_ + "/" + name).c_str(), &st) == 0)
+            disk_size_ += st.st_size;
+    }
+    closedir(dir);
+    return disk_size_;
+}
+
@@ -0,0 +1,85 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include "yuv_convert.hpp"
+
+namespace
+{
+    inline unsigned char saturate(int value)
+    {
+        return static_cast<unsigned char>(value < 0 ? 0 : (value > 255 ? 255 : value));
+    }
+}
+
+
+void nv21ToRgbaRow(const unsigned char *y, const unsigned char *vu,
+                   unsigned char *rgba, int from, int to)
+{
+    rgba += from * 4;
+    for (int x = from; x < to; x += 2)
+    {
+        int v = vu[x] - 128;
+        int u = vu[x + 1] - 128;
+        int rv = 102 * v;
+        int guv = 25 * u + 52 * v;
+        int bu = 129 * u;
+
+        for (int i = 0; i < 2 && x + i < to; ++i)
+        {
+            int yl = 74 * (y[x + i] - 16);
+            rgba[0] = saturate((yl + rv + 32) >> 6);
+            rgba[1] = saturate((yl - guv + 32) >> 6);
+            rgba[2] = saturate((yl + bu + 32) >> 6);
+            rgba[3] = 255;
+            rgba += 4;
+        }
+    }
+}
+
+
+void nv21ToRgba(const unsigned char *nv21, int width, int height,
+                unsigned char *rgba, int stride)
+{
+    const unsigned char *vu_plane = nv21 + width * height;
+    for (int row = 0; row < height; ++row)
+        nv21ToRgbaRow(nv21 + row * width, vu_plane + (row / 2) * width,
+                      rgba + row * stride, 0, width);
+}
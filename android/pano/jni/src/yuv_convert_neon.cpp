@@ -0,0 +1,107 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+#include <arm_neon.h>
+#include "yuv_convert.hpp"
+
+namespace
+{
+    // Converts 8 pixels sharing the chroma terms, scaled by 64
+    inline void convert(uint8x8_t y, int16x8_t rv, int16x8_t guv, int16x8_t bu,
+                        uint8x8_t &r, uint8x8_t &g, uint8x8_t &b)
+    {
+        int16x8_t yl = vsubq_s16(vreinterpretq_s16_u16(vmull_u8(y, vdup_n_u8(74))),
+                                 vdupq_n_s16(74 * 16));
+        // Saturating adds only clip values that end up clipped to 255 anyway
+        r = vqrshrun_n_s16(vqaddq_s16(yl, rv), 6);
+        g = vqrshrun_n_s16(vqsubq_s16(yl, guv), 6);
+        b = vqrshrun_n_s16(vqaddq_s16(yl, bu), 6);
+    }
+
+    inline uint8x16_t interleave(uint8x8_t even, uint8x8_t odd)
+    {
+        uint8x8x2_t zipped = vzip_u8(even, odd);
+        return vcombine_u8(zipped.val[0], zipped.val[1]);
+    }
+}
+
+
+void nv21ToRgbaNeon(const unsigned char *nv21, int width, int height,
+                    unsigned char *rgba, int stride)
+{
+    const unsigned char *vu_plane = nv21 + width * height;
+    const int aligned_width = width & ~15;
+    const uint8x8_t bias = vdup_n_u8(128);
+
+    uint8x16x4_t out;
+    out.val[3] = vdupq_n_u8(255);
+
+    for (int row = 0; row < height; ++row)
+    {
+        const unsigned char *y = nv21 + row * width;
+        const unsigned char *vu = vu_plane + (row / 2) * width;
+        unsigned char *dst = rgba + row * stride;
+
+        for (int x = 0; x < aligned_width; x += 16)
+        {
+            // Even and odd pixels share the same chroma sample
+            uint8x8x2_t luma = vld2_u8(y + x);
+            uint8x8x2_t chroma = vld2_u8(vu + x);
+            int16x8_t v = vreinterpretq_s16_u16(vsubl_u8(chroma.val[0], bias));
+            int16x8_t u = vreinterpretq_s16_u16(vsubl_u8(chroma.val[1], bias));
+
+            int16x8_t rv = vmulq_n_s16(v, 102);
+            int16x8_t guv = vmlaq_n_s16(vmulq_n_s16(u, 25), v, 52);
+            int16x8_t bu = vmulq_n_s16(u, 129);
+
+            uint8x8_t r0, g0, b0, r1, g1, b1;
+            convert(luma.val[0], rv, guv, bu, r0, g0, b0);
+            convert(luma.val[1], rv, guv, bu, r1, g1, b1);
+
+            out.val[0] = interleave(r0, r1);
+            out.val[1] = interleave(g0, g1);
+            out.val[2] = interleave(b0, b1);
+            vst4q_u8(dst + x * 4, out);
+        }
+
+        nv21ToRgbaRow(y, vu, dst, aligned_width, width);
+    }
+}
@@ -0,0 +1,188 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+
+// Checks compositing in tiles gives the panorama compositing it whole does:
+// exactly without blending and with feather blending, and within rounding
+// with multi-band blending as long as the tiles leave room for all the bands.
+// Tiles too small for them get less bands, and only stay close.
+
+#include <cstdio>
+#include <sstream>
+#include <string>
+#include <vector>
+#include <sys/stat.h>
+#include <unistd.h>
+#include "stitcher.hpp"
+#include "test.hpp"
+#include "test_scene.hpp"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    const char *SCRATCH_DIR = "compose_tiled_test.d";
+
+    vector<string> img_names;
+
+    string scratchPath(const string &name)
+    {
+        return string(SCRATCH_DIR) + "/" + name;
+    }
+
+    void writeImages()
+    {
+        mkdir(SCRATCH_DIR, 0777);
+        vector<Mat> views = testViews(testScene(Size(1600, 500), 8), Size(480, 360));
+        for (size_t i = 0; i < views.size(); ++i)
+        {
+            ostringstream name;
+            name << SCRATCH_DIR << "/view" << i << ".png";
+            img_names.push_back(name.str());
+            imwrite(name.str(), views[i]);
+        }
+    }
+
+    // Composites the panorama whole and in tiles of the given sizes, with the
+    // registration of a single run
+    bool compose(const string &blend, const vector<int> &tiles, vector<Mat> &results)
+    {
+        StagedStitcher stitcher(img_names, "");
+        if (stitcher.setOption("--work_megapix", "0.3") < 0 || stitcher.setOption("--blend", blend) < 0)
+            return false;
+
+        results.clear();
+        for (size_t i = 0; i <= tiles.size(); ++i)
+        {
+            ostringstream tile, result_name;
+            tile << (i == 0 ? 0 : tiles[i - 1]);
+            result_name << SCRATCH_DIR << "/" << blend << "_" << tile.str() << ".png";
+            if (stitcher.setOption("--tile", tile.str()) < 0 || stitcher.setOption("--output", result_name.str()) < 0
+                || stitcher.run() != 0)
+                return false;
+            results.push_back(imread(result_name.str()));
+            remove(result_name.str().c_str());
+        }
+        return true;
+    }
+
+    // Largest and mean absolute difference over all the channels
+    void difference(const Mat &a, const Mat &b, double &max_diff, double &mean_diff)
+    {
+        Mat diff;
+        absdiff(a, b, diff);
+        max_diff = norm(diff, NORM_INF);
+        Scalar channel_means = mean(diff);
+        mean_diff = (channel_means[0] + channel_means[1] + channel_means[2]) / 3;
+    }
+
+    void checkTiles(const string &blend, const vector<int> &tiles, const vector<double> &max_diffs,
+                    const vector<double> &mean_diffs)
+    {
+        vector<Mat> results;
+        CHECK_MSG(compose(blend, tiles, results), "%s blending", blend.c_str());
+        for (size_t i = 1; i < results.size(); ++i)
+        {
+            CHECK_MSG(!results[0].empty() && results[i].size() == results[0].size(),
+                      "%s blending, %d tiles", blend.c_str(), tiles[i - 1]);
+            if (results[i].size() != results[0].size())
+                continue;
+            double max_diff, mean_diff;
+            difference(results[0], results[i], max_diff, mean_diff);
+            CHECK_MSG(max_diff <= max_diffs[i - 1] && mean_diff <= mean_diffs[i - 1],
+                      "%s blending, %d tiles differ by %g at most, %g on average", blend.c_str(), tiles[i - 1],
+                      max_diff, mean_diff);
+        }
+    }
+
+    void testNoBlending()
+    {
+        vector<int> tiles;
+        tiles.push_back(64);
+        tiles.push_back(200);
+        checkTiles("no", tiles, vector<double>(2, 0), vector<double>(2, 0));
+    }
+
+    void testFeatherBlending()
+    {
+        vector<int> tiles;
+        tiles.push_back(64);
+        tiles.push_back(200);
+        checkTiles("feather", tiles, vector<double>(2, 0), vector<double>(2, 0));
+    }
+
+    void testMultiBandBlending()
+    {
+        vector<int> tiles;
+        vector<double> max_diffs, mean_diffs;
+
+        // Room for all the bands, only rounding differs
+        tiles.push_back(256);
+        max_diffs.push_back(2);
+        mean_diffs.push_back(0.05);
+
+        // Less bands, seams blend over a narrower band
+        tiles.push_back(48);
+        max_diffs.push_back(16);
+        mean_diffs.push_back(1);
+
+        checkTiles("multiband", tiles, max_diffs, mean_diffs);
+    }
+
+    void removeImages()
+    {
+        for (size_t i = 0; i < img_names.size(); ++i)
+            remove(img_names[i].c_str());
+        rmdir(SCRATCH_DIR);
+    }
+}
+
+
+int main()
+{
+    writeImages();
+    testNoBlending();
+    testFeatherBlending();
+    testMultiBandBlending();
+    removeImages();
+    return testResult("compose_tiled_test");
+}
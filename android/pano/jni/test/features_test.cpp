@@ -0,0 +1,223 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+
+// Checks that finding features on several threads gives exactly what a single
+// thread does, through the features stage of the stitcher
+
+#include <cstdio>
+#include <sstream>
+#include <string>
+#include <vector>
+#include <sys/stat.h>
+#include <unistd.h>
+#include "stitcher.hpp"
+#include "feature_cache.hpp"
+#include "util.hpp"
+#include "test.hpp"
+#include "test_scene.hpp"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    const char *SCRATCH_DIR = "features_test.d";
+    const char *WORK_MEGAPIX = "0.6";
+
+    // Counts the visits of every item, and checks each thread only runs one
+    // item at a time
+    class CountingBody : public ParallelLoopBody
+    {
+    public:
+        CountingBody(int count, int num_threads) : visits_(count, 0), busy_(num_threads, 0), bad_threads_(0) {}
+
+        void operator ()(int i, int thread_idx)
+        {
+            if (thread_idx < 0 || thread_idx >= static_cast<int>(busy_.size()) || busy_[thread_idx]++)
+            {
+                ++bad_threads_;
+                return;
+            }
+            ++visits_[i];
+            usleep(100);
+            --busy_[thread_idx];
+        }
+
+        vector<int> visits_;
+        vector<int> busy_;
+        int bad_threads_;
+    };
+
+    class ThrowingBody : public ParallelLoopBody
+    {
+    public:
+        void operator ()(int i, int)
+        {
+            if (i == 13)
+                CV_Error(CV_StsError, "item 13");
+        }
+    };
+
+    void testParallelForEach()
+    {
+        const int threads[] = { 1, 2, 4, 7, 100 };
+        for (size_t t = 0; t < sizeof(threads) / sizeof(threads[0]); ++t)
+        {
+            CountingBody body(50, min(threads[t], 50));
+            parallelForEach(50, threads[t], body);
+            CHECK_MSG(body.bad_threads_ == 0, "%d threads", threads[t]);
+            for (int i = 0; i < 50; ++i)
+                CHECK_MSG(body.visits_[i] == 1, "item %d visited %d times with %d threads", i, body.visits_[i],
+                          threads[t]);
+        }
+
+        CountingBody empty(1, 1);
+        parallelForEach(0, 4, empty);
+        CHECK(empty.visits_[0] == 0);
+
+        ThrowingBody throwing;
+        bool thrown = false;
+        try
+        {
+            parallelForEach(50, 4, throwing);
+        }
+        catch (const Exception &)
+        {
+            thrown = true;
+        }
+        CHECK(thrown);
+    }
+
+    void removeCachedFeatures(const vector<string> &img_names)
+    {
+        for (size_t i = 0; i < img_names.size(); ++i)
+            remove((string(SCRATCH_DIR) + "/" + FEATURE_CACHE_DIR + "/" + img_names[i].substr(img_names[i].rfind('/') + 1)
+                    + ".feat").c_str());
+    }
+
+    // Runs the features stage and reads the features it left in the cache
+    bool findFeatures(const vector<string> &img_names, int num_threads, vector<ImageFeatures> &features)
+    {
+        removeCachedFeatures(img_names);
+
+        StagedStitcher stitcher(img_names, "");
+        ostringstream threads;
+        threads << num_threads;
+        if (stitcher.setOption("--threads", threads.str()) < 0 || stitcher.setOption("--work_megapix", WORK_MEGAPIX) < 0
+            || stitcher.runStage(StagedStitcher::FEATURES) != 0)
+            return false;
+
+        features.assign(img_names.size(), ImageFeatures());
+        for (size_t i = 0; i < img_names.size(); ++i)
+        {
+            double work_scale;
+            Size full_img_size;
+            if (!FeatureCacheEntry(img_names[i], 0).load(atof(WORK_MEGAPIX), work_scale, full_img_size, features[i]))
+                return false;
+        }
+        return true;
+    }
+
+    bool sameKeypoints(const vector<KeyPoint> &a, const vector<KeyPoint> &b)
+    {
+        if (a.size() != b.size())
+            return false;
+        for (size_t i = 0; i < a.size(); ++i)
+        {
+            if (a[i].pt != b[i].pt || a[i].size != b[i].size || a[i].angle != b[i].angle
+                || a[i].response != b[i].response || a[i].octave != b[i].octave)
+                return false;
+        }
+        return true;
+    }
+
+    void testFeaturesAcrossThreads()
+    {
+        mkdir(SCRATCH_DIR, 0777);
+        vector<Mat> views = testViews(testScene(Size(2000, 500), 4), Size(480, 360));
+        vector<string> img_names;
+        for (size_t i = 0; i < views.size(); ++i)
+        {
+            ostringstream name;
+            name << SCRATCH_DIR << "/view" << i << ".jpg";
+            img_names.push_back(name.str());
+            imwrite(name.str(), views[i]);
+        }
+
+        vector<ImageFeatures> reference;
+        CHECK(findFeatures(img_names, 1, reference));
+        for (size_t i = 0; i < reference.size(); ++i)
+            CHECK_MSG(reference[i].keypoints.size() > 50, "view %d has %d features", static_cast<int>(i),
+                      static_cast<int>(reference[i].keypoints.size()));
+
+        const int threads[] = { 2, 4, 8 };
+        for (size_t t = 0; t < sizeof(threads) / sizeof(threads[0]); ++t)
+        {
+            vector<ImageFeatures> features;
+            CHECK(findFeatures(img_names, threads[t], features));
+            for (size_t i = 0; i < features.size() && i < reference.size(); ++i)
+            {
+                CHECK_MSG(features[i].img_idx == static_cast<int>(i), "view %d with %d threads",
+                          static_cast<int>(i), threads[t]);
+                CHECK_MSG(sameKeypoints(features[i].keypoints, reference[i].keypoints),
+                          "keypoints of view %d differ with %d threads", static_cast<int>(i), threads[t]);
+                CHECK_MSG(features[i].descriptors.size() == reference[i].descriptors.size()
+                          && norm(features[i].descriptors, reference[i].descriptors, NORM_INF) == 0,
+                          "descriptors of view %d differ with %d threads", static_cast<int>(i), threads[t]);
+            }
+        }
+
+        removeCachedFeatures(img_names);
+        rmdir((string(SCRATCH_DIR) + "/" + FEATURE_CACHE_DIR).c_str());
+        for (size_t i = 0; i < img_names.size(); ++i)
+            remove(img_names[i].c_str());
+        rmdir(SCRATCH_DIR);
+    }
+}
+
+
+int main()
+{
+    testParallelForEach();
+    testFeaturesAcrossThreads();
+    return testResult("features_test");
+}
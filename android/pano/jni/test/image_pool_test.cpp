@@ -0,0 +1,250 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+
+// Checks the image pool decodes every image once for all the stages, counts
+// the levels readers hold against its budget, and that what readers got stays
+// valid and writable whatever the pool does afterwards
+
+#include <cstdio>
+#include <sstream>
+#include <string>
+#include <vector>
+#include <sys/stat.h>
+#include <unistd.h>
+#include "image_source.hpp"
+#include "test.hpp"
+#include "test_scene.hpp"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    const char *SCRATCH_DIR = "image_pool_test.d";
+    const int NUM_IMAGES = 12;
+    const size_t MAX_MEMORY = 4 << 20;
+
+    // Scales of the features, seams and compose stages
+    const double WORK_SCALE = 0.5;
+    const double SEAM_SCALE = 0.25;
+    const double COMPOSE_SCALE = 1;
+
+    vector<string> img_names;
+    vector<Mat> originals;
+
+    string scratchPath()
+    {
+        return string(SCRATCH_DIR) + "/pool.scratch";
+    }
+
+    size_t bytes(const Mat &img)
+    {
+        return img.total() * img.elemSize();
+    }
+
+    vector<double> stageScales()
+    {
+        vector<double> scales;
+        scales.push_back(WORK_SCALE);
+        scales.push_back(SEAM_SCALE);
+        scales.push_back(COMPOSE_SCALE);
+        return scales;
+    }
+
+    // The pixels the pool makes, every level is reduced from a decode at the
+    // compose scale
+    Mat expected(int img_idx, double scale)
+    {
+        if (scale == COMPOSE_SCALE)
+            return originals[img_idx];
+        Mat img;
+        resize(originals[img_idx], img, Size(cvRound(originals[img_idx].cols * scale),
+                                             cvRound(originals[img_idx].rows * scale)), 0, 0, INTER_AREA);
+        return img;
+    }
+
+    bool same(const Mat &a, const Mat &b)
+    {
+        return a.size() == b.size() && a.type() == b.type() && norm(a, b, NORM_INF) == 0;
+    }
+
+    void writeImages()
+    {
+        mkdir(SCRATCH_DIR, 0777);
+        vector<Mat> views = testViews(testScene(Size(800 * NUM_IMAGES / 2 + 400, 600), 12), Size(800, 600));
+        for (int i = 0; i < NUM_IMAGES; ++i)
+        {
+            ostringstream name;
+            name << SCRATCH_DIR << "/img" << i << ".png";
+            img_names.push_back(name.str());
+            originals.push_back(views[i]);
+            imwrite(name.str(), views[i]);
+        }
+    }
+
+    void removeImages()
+    {
+        for (size_t i = 0; i < img_names.size(); ++i)
+            remove(img_names[i].c_str());
+        remove(scratchPath().c_str());
+        rmdir(SCRATCH_DIR);
+    }
+
+    void testDecodedOnce()
+    {
+        ImagePool pool(img_names, MAX_MEMORY, scratchPath());
+        pool.plan(stageScales());
+        Mat img;
+        for (int i = 0; i < NUM_IMAGES; ++i)
+        {
+            CHECK(pool.read(i, WORK_SCALE, img));
+            CHECK_MSG(same(img, expected(i, WORK_SCALE)), "image %d at the work scale", i);
+        }
+        for (int i = 0; i < NUM_IMAGES; ++i)
+        {
+            CHECK(pool.read(i, SEAM_SCALE, img));
+            CHECK_MSG(same(img, expected(i, SEAM_SCALE)), "image %d at the seam scale", i);
+        }
+        for (int pass = 0; pass < 3; ++pass)
+        {
+            for (int i = 0; i < NUM_IMAGES; ++i)
+            {
+                CHECK(pool.read(i, COMPOSE_SCALE, img));
+                CHECK_MSG(same(img, expected(i, COMPOSE_SCALE)), "image %d at the compose scale, pass %d", i, pass);
+            }
+        }
+        img.release();
+
+        CHECK_MSG(pool.decodes() == NUM_IMAGES, "%d decodes", pool.decodes());
+        CHECK(pool.spilledSize() > 0);
+        CHECK(access(scratchPath().c_str(), F_OK) != 0);
+    }
+
+    void testHeldLevelsAreCounted()
+    {
+        ImagePool pool(img_names, MAX_MEMORY, scratchPath());
+        vector<double> scales(1, COMPOSE_SCALE);
+        pool.plan(scales);
+
+        // Readers hold twice the budget, none of it can leave the memory
+        vector<Mat> held;
+        size_t held_bytes = 0;
+        for (int i = 0; held_bytes < 2 * MAX_MEMORY; ++i)
+        {
+            Mat img;
+            CHECK(pool.read(i, COMPOSE_SCALE, img));
+            held.push_back(img);
+            held_bytes += bytes(img);
+            CHECK_MSG(pool.memoryUsed() >= held_bytes, "%d bytes counted while %d are held",
+                      static_cast<int>(pool.memoryUsed()), static_cast<int>(held_bytes));
+        }
+
+        // Released, they are spilled by the next read
+        held.clear();
+        Mat img;
+        CHECK(pool.read(NUM_IMAGES - 1, COMPOSE_SCALE, img));
+        CHECK(pool.memoryUsed() <= MAX_MEMORY);
+    }
+
+    void testReadersOutliveThePool()
+    {
+        Mat held, spilled;
+        {
+            ImagePool pool(img_names, MAX_MEMORY, scratchPath());
+            vector<double> scales(1, COMPOSE_SCALE);
+            pool.plan(scales);
+
+            CHECK(pool.read(0, COMPOSE_SCALE, held));
+            Mat img;
+            for (int i = 1; i < NUM_IMAGES; ++i)
+                CHECK(pool.read(i, COMPOSE_SCALE, img));
+            img.release();
+
+            // Image 1 is spilled by now, reading it again gives a copy
+            int64 spilled_size = pool.spilledSize();
+            CHECK(spilled_size > 0);
+            CHECK(pool.read(1, COMPOSE_SCALE, spilled));
+            CHECK(pool.decodes() == NUM_IMAGES);
+            pool.clear();
+        }
+        CHECK(same(held, expected(0, COMPOSE_SCALE)));
+        CHECK(same(spilled, expected(1, COMPOSE_SCALE)));
+
+        held.setTo(Scalar::all(7));
+        spilled.setTo(Scalar::all(7));
+        CHECK(countNonZero(spilled.reshape(1) != 7) == 0);
+    }
+
+    void testReadRoi()
+    {
+        ImagePool pool(img_names, MAX_MEMORY, scratchPath());
+        vector<double> scales(1, COMPOSE_SCALE);
+        pool.plan(scales);
+
+        Rect roi(100, 50, 320, 240);
+        for (int pass = 0; pass < 2; ++pass)
+        {
+            for (int i = 0; i < NUM_IMAGES; ++i)
+            {
+                Mat part;
+                CHECK(pool.readRoi(i, COMPOSE_SCALE, roi, part));
+                CHECK_MSG(same(part, expected(i, COMPOSE_SCALE)(roi)), "part of image %d, pass %d", i, pass);
+
+                // Decoded for the part, the whole image doesn't stay over the budget
+                CHECK(pool.memoryUsed() <= MAX_MEMORY);
+            }
+        }
+        CHECK(pool.decodes() == NUM_IMAGES);
+    }
+}
+
+
+int main()
+{
+    writeImages();
+    testDecodedOnce();
+    testHeldLevelsAreCounted();
+    testReadersOutliveThePool();
+    testReadRoi();
+    removeImages();
+    return testResult("image_pool_test");
+}
@@ -0,0 +1,292 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+
+// Round trips images of awkward sizes through the strip writers and reads
+// them back with imread()
+
+#include <cmath>
+#include <cstring>
+#include <string>
+#include <vector>
+#include "image_writers.hpp"
+#include "test.hpp"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    const char *JPEG_PATH = "image_writers_test.jpg";
+    const char *PNG_PATH = "image_writers_test.png";
+
+    // Smooth gradients with a few hard edges, so both the flat and the busy
+    // blocks of the encoder are exercised
+    Mat testImage(Size size)
+    {
+        Mat img(size, CV_8UC3);
+        for (int y = 0; y < size.height; ++y)
+        {
+            for (int x = 0; x < size.width; ++x)
+            {
+                Vec3b &px = img.at<Vec3b>(y, x);
+                px[0] = saturate_cast<uchar>(255 * x / max(size.width - 1, 1));
+                px[1] = saturate_cast<uchar>(255 * y / max(size.height - 1, 1));
+                px[2] = saturate_cast<uchar>(128 + 100 * sin(0.3 * x + 0.2 * y));
+            }
+        }
+        rectangle(img, Point(size.width / 4, size.height / 4), Point(size.width / 2, size.height / 2),
+                  Scalar(0, 0, 255), -1);
+        if (size.width > 8 && size.height > 8)
+            circle(img, Point(size.width * 2 / 3, size.height * 2 / 3), min(size.width, size.height) / 5,
+                   Scalar(255, 255, 255), -1);
+        return img;
+    }
+
+    bool writeStrips(StripWriter &writer, const string &path, const Mat &img, int strip_height)
+    {
+        if (!writer.open(path, img.size()))
+            return false;
+        bool ok = true;
+        for (int y = 0; y < img.rows; y += strip_height)
+            ok = writer.write(img.rowRange(y, min(y + strip_height, img.rows))) && ok;
+        return writer.close() && ok;
+    }
+
+    vector<uchar> readFile(const string &path)
+    {
+        vector<uchar> data;
+        FILE *file = fopen(path.c_str(), "rb");
+        if (!file)
+            return data;
+        int c;
+        while ((c = fgetc(file)) != EOF)
+            data.push_back(static_cast<uchar>(c));
+        fclose(file);
+        return data;
+    }
+
+    double psnr(const Mat &a, const Mat &b)
+    {
+        double err = norm(a, b, NORM_L2);
+        double mse = err * err / (a.total() * a.channels());
+        return mse == 0 ? 100 : 10 * log10(255 * 255 / mse);
+    }
+
+    const Size SIZES[] = { Size(1, 1), Size(7, 5), Size(8, 8), Size(9, 17), Size(31, 3), Size(65, 43),
+                           Size(250, 131) };
+    // None but the last divide the block height of 8
+    const int STRIP_HEIGHTS[] = { 1, 3, 5, 7, 13, 8 };
+
+    void testJpegStrips()
+    {
+        for (size_t s = 0; s < sizeof(SIZES) / sizeof(SIZES[0]); ++s)
+        {
+            Mat img = testImage(SIZES[s]);
+            vector<uchar> whole;
+            for (size_t h = 0; h < sizeof(STRIP_HEIGHTS) / sizeof(STRIP_HEIGHTS[0]); ++h)
+            {
+                JpegStripWriter writer(95);
+                CHECK_MSG(writeStrips(writer, JPEG_PATH, img, STRIP_HEIGHTS[h]), "%dx%d in strips of %d",
+                          img.cols, img.rows, STRIP_HEIGHTS[h]);
+                // The strip height mustn't change a single byte of the output
+                vector<uchar> data = readFile(JPEG_PATH);
+                if (whole.empty())
+                    whole = data;
+                CHECK_MSG(data == whole, "%dx%d differs in strips of %d", img.cols, img.rows,
+                          STRIP_HEIGHTS[h]);
+
+                Mat decoded = imread(JPEG_PATH);
+                CHECK_MSG(decoded.size() == img.size(), "%dx%d read back as %dx%d", img.cols, img.rows,
+                          decoded.cols, decoded.rows);
+                if (decoded.size() == img.size())
+                {
+                    CHECK_MSG(psnr(img, decoded) > 30, "%dx%d psnr %.1f", img.cols, img.rows,
+                              psnr(img, decoded));
+
+                    // Partial blocks are padded with the edge pixels, so they must
+                    // come out as the image padded up to whole blocks beforehand
+                    Mat padded;
+                    copyMakeBorder(img, padded, 0, (8 - img.rows % 8) % 8, 0, (8 - img.cols % 8) % 8,
+                                   BORDER_REPLICATE);
+                    JpegStripWriter padded_writer(95);
+                    CHECK(writeStrips(padded_writer, JPEG_PATH, padded, padded.rows));
+                    Mat padded_decoded = imread(JPEG_PATH);
+                    CHECK_MSG(padded_decoded.size() == padded.size()
+                              && norm(decoded, padded_decoded(Rect(Point(), img.size())), NORM_INF) == 0,
+                              "%dx%d isn't padded with its edges", img.cols, img.rows);
+                }
+
+            }
+        }
+    }
+
+    void testJpegQuality()
+    {
+        Mat img = testImage(Size(123, 77));
+
+        // The chroma of the writer isn't subsampled, so it should do at least
+        // as well as imencode() at the same quality
+        double last_psnr = 0;
+        size_t last_size = 0;
+        const int qualities[] = { 1, 10, 50, 75, 95, 100 };
+        for (size_t i = 0; i < sizeof(qualities) / sizeof(qualities[0]); ++i)
+        {
+            JpegStripWriter writer(qualities[i]);
+            CHECK(writeStrips(writer, JPEG_PATH, img, 16));
+            Mat decoded = imread(JPEG_PATH);
+            CHECK_MSG(decoded.size() == img.size(), "quality %d doesn't decode", qualities[i]);
+            if (decoded.size() != img.size())
+                continue;
+
+            double quality_psnr = psnr(img, decoded);
+            size_t quality_size = readFile(JPEG_PATH).size();
+            CHECK_MSG(quality_psnr > last_psnr, "quality %d psnr %.1f", qualities[i], quality_psnr);
+            CHECK_MSG(quality_size > last_size, "quality %d size %d", qualities[i],
+                      static_cast<int>(quality_size));
+            last_psnr = quality_psnr;
+            last_size = quality_size;
+
+            vector<int> params;
+            params.push_back(CV_IMWRITE_JPEG_QUALITY);
+            params.push_back(qualities[i]);
+            vector<uchar> reference;
+            imencode(".jpg", img, reference, params);
+            double reference_psnr = psnr(img, imdecode(Mat(reference), 1));
+            CHECK_MSG(quality_psnr > reference_psnr - 1, "quality %d psnr %.1f, libjpeg %.1f",
+                      qualities[i], quality_psnr, reference_psnr);
+        }
+
+        // Out of range qualities are clamped
+        JpegStripWriter lowest(1), below(-20), highest(100), above(250);
+        CHECK(writeStrips(lowest, JPEG_PATH, img, 8));
+        vector<uchar> lowest_data = readFile(JPEG_PATH);
+        CHECK(writeStrips(below, JPEG_PATH, img, 8));
+        CHECK(readFile(JPEG_PATH) == lowest_data);
+        CHECK(writeStrips(highest, JPEG_PATH, img, 8));
+        vector<uchar> highest_data = readFile(JPEG_PATH);
+        CHECK(writeStrips(above, JPEG_PATH, img, 8));
+        CHECK(readFile(JPEG_PATH) == highest_data);
+    }
+
+    void testPngStrips()
+    {
+        for (size_t s = 0; s < sizeof(SIZES) / sizeof(SIZES[0]); ++s)
+        {
+            Mat img = testImage(SIZES[s]);
+            for (size_t h = 0; h < sizeof(STRIP_HEIGHTS) / sizeof(STRIP_HEIGHTS[0]); ++h)
+            {
+                PngStripWriter writer;
+                CHECK_MSG(writeStrips(writer, PNG_PATH, img, STRIP_HEIGHTS[h]), "%dx%d in strips of %d",
+                          img.cols, img.rows, STRIP_HEIGHTS[h]);
+                Mat decoded = imread(PNG_PATH);
+                CHECK_MSG(decoded.size() == img.size() && norm(img, decoded, NORM_INF) == 0,
+                          "%dx%d in strips of %d isn't lossless", img.cols, img.rows, STRIP_HEIGHTS[h]);
+            }
+        }
+
+        // The compression level doesn't matter for the pixels
+        Mat img = testImage(Size(97, 61));
+        const int levels[] = { 0, 1, 9 };
+        for (size_t i = 0; i < sizeof(levels) / sizeof(levels[0]); ++i)
+        {
+            PngStripWriter writer(levels[i]);
+            CHECK(writeStrips(writer, PNG_PATH, img, 10));
+            Mat decoded = imread(PNG_PATH);
+            CHECK_MSG(decoded.size() == img.size() && norm(img, decoded, NORM_INF) == 0, "level %d",
+                      levels[i]);
+        }
+    }
+
+    void testRowCount()
+    {
+        Mat img = testImage(Size(20, 20));
+        JpegStripWriter jpeg;
+        PngStripWriter png;
+        StripWriter *writers[] = { &jpeg, &png };
+        const char *paths[] = { JPEG_PATH, PNG_PATH };
+        for (int i = 0; i < 2; ++i)
+        {
+            // Too many rows are refused, too few fail the close
+            CHECK(writers[i]->open(paths[i], img.size()));
+            CHECK(writers[i]->write(img.rowRange(0, 15)));
+            CHECK(!writers[i]->write(img.rowRange(0, 10)));
+            CHECK(!writers[i]->close());
+
+            CHECK(!writers[i]->open(paths[i], Size(0, 10)));
+        }
+    }
+
+    void testWriteErrors()
+    {
+        // A device that is always full, where it exists
+        const char *full_path = "/dev/full";
+        FILE *full = fopen(full_path, "wb");
+        if (!full)
+            return;
+        fclose(full);
+
+        // libjpeg's errors fail the writer instead of exiting, and it can be
+        // used again
+        Mat img = testImage(Size(250, 131));
+        JpegStripWriter jpeg;
+        CHECK(!writeStrips(jpeg, full_path, img, 16));
+        CHECK(writeStrips(jpeg, JPEG_PATH, img, 16));
+        Mat decoded = imread(JPEG_PATH);
+        CHECK(decoded.size() == img.size() && psnr(img, decoded) > 30);
+
+        PngStripWriter png;
+        CHECK(!writeStrips(png, full_path, img, 16));
+    }
+}
+
+
+int main()
+{
+    testJpegStrips();
+    testJpegQuality();
+    testPngStrips();
+    testRowCount();
+    testWriteErrors();
+    remove(JPEG_PATH);
+    remove(PNG_PATH);
+    return testResult("image_writers_test");
+}
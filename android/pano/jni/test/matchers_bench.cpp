@@ -0,0 +1,111 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+
+// Measures pairwise matching in pairs per second, on sets of 10, 25 and 50
+// views, with one thread and with as many as there are cores:
+//   make bench
+// The views are 480x360 with about the features of a preview-sized shot.
+
+#include <cstdio>
+#include <vector>
+#include <unistd.h>
+#include "matchers.hpp"
+#include "test_scene.hpp"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    const Size VIEW_SIZE(480, 360);
+
+    void findFeatures(int num_images, vector<ImageFeatures> &features)
+    {
+        // Views overlap by half, so n of them need a scene n + 1 halves wide
+        Mat scene = testScene(Size(VIEW_SIZE.width * (num_images + 1) / 2, VIEW_SIZE.height + 40), num_images);
+        vector<Mat> views = testViews(scene, VIEW_SIZE);
+        views.resize(num_images);
+        features.assign(num_images, ImageFeatures());
+        SurfFeaturesFinder finder;
+        for (int i = 0; i < num_images; ++i)
+        {
+            finder(views[i], features[i]);
+            features[i].img_idx = i;
+        }
+        finder.releaseMemory();
+    }
+
+    double pairsPerSecond(const vector<ImageFeatures> &features, int num_threads)
+    {
+        BestOf2NearestMatcher matcher;
+        matcher.setNumThreads(num_threads);
+        vector<MatchesInfo> pairwise_matches;
+        int64 t = getTickCount();
+        matcher(features, pairwise_matches);
+        double seconds = (getTickCount() - t) / getTickFrequency();
+        matcher.releaseMemory();
+
+        // Both directions of a pair come from one match
+        double num_pairs = features.size() * (features.size() - 1) / 2.;
+        return num_pairs / seconds;
+    }
+}
+
+
+int main()
+{
+    const int set_sizes[] = { 10, 25, 50 };
+    const int num_cores = max(1, static_cast<int>(sysconf(_SC_NPROCESSORS_ONLN)));
+
+    printf("images  pairs  threads  pairs/sec\n");
+    for (size_t s = 0; s < sizeof(set_sizes) / sizeof(set_sizes[0]); ++s)
+    {
+        vector<ImageFeatures> features;
+        findFeatures(set_sizes[s], features);
+        int num_pairs = set_sizes[s] * (set_sizes[s] - 1) / 2;
+
+        printf("%6d  %5d  %7d  %9.1f\n", set_sizes[s], num_pairs, 1, pairsPerSecond(features, 1));
+        if (num_cores > 1)
+            printf("%6d  %5d  %7d  %9.1f\n", set_sizes[s], num_pairs, num_cores, pairsPerSecond(features, num_cores));
+    }
+    return 0;
+}
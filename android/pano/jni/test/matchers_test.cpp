@@ -0,0 +1,138 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+
+// Checks that pairwise matching gives the same matches whatever the number of
+// threads and the order the pairs are matched in. FLANN seeds its trees from
+// rand(), which trainSeeded() reseeds for every pair.
+
+#include <vector>
+#include "matchers.hpp"
+#include "test.hpp"
+#include "test_scene.hpp"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    bool sameMatches(const MatchesInfo &a, const MatchesInfo &b)
+    {
+        if (a.src_img_idx != b.src_img_idx || a.dst_img_idx != b.dst_img_idx || a.num_inliers != b.num_inliers
+            || a.confidence != b.confidence || a.inliers_mask != b.inliers_mask || a.matches.size() != b.matches.size())
+            return false;
+        for (size_t i = 0; i < a.matches.size(); ++i)
+        {
+            if (a.matches[i].queryIdx != b.matches[i].queryIdx || a.matches[i].trainIdx != b.matches[i].trainIdx
+                || a.matches[i].distance != b.matches[i].distance)
+                return false;
+        }
+        if (a.H.empty() || b.H.empty())
+            return a.H.empty() && b.H.empty();
+        return norm(a.H, b.H, NORM_INF) == 0;
+    }
+
+    void matchAll(const vector<ImageFeatures> &features, int num_threads, const Mat &mask,
+                  vector<MatchesInfo> &pairwise_matches)
+    {
+        BestOf2NearestMatcher matcher;
+        matcher.setNumThreads(num_threads);
+        matcher(features, pairwise_matches, mask);
+        matcher.releaseMemory();
+    }
+
+    void testMatchesAcrossThreads()
+    {
+        // Views large enough for the trees to be approximate, on a few hundred
+        // features FLANN finds the exact neighbors whatever the seed
+        vector<Mat> views = testViews(testScene(Size(3000, 800), 5), Size(1000, 750));
+        const int num_images = static_cast<int>(views.size());
+        vector<ImageFeatures> features(num_images);
+        SurfFeaturesFinder finder;
+        for (int i = 0; i < num_images; ++i)
+        {
+            finder(views[i], features[i]);
+            features[i].img_idx = i;
+        }
+        finder.releaseMemory();
+
+        vector<MatchesInfo> reference;
+        matchAll(features, 1, Mat(), reference);
+        CHECK(reference.size() == static_cast<size_t>(num_images * num_images));
+
+        // Neighbor views overlap by half, which must be found, or the
+        // comparisons below prove nothing
+        for (int i = 0; i + 1 < num_images; ++i)
+            CHECK_MSG(reference[i * num_images + i + 1].num_inliers > 20, "views %d and %d have %d inliers", i, i + 1,
+                      reference[i * num_images + i + 1].num_inliers);
+
+        // The same seeds must give the same trees on a rerun, too
+        const int threads[] = { 1, 2, 4, 8 };
+        for (size_t t = 0; t < sizeof(threads) / sizeof(threads[0]); ++t)
+        {
+            vector<MatchesInfo> pairwise_matches;
+            matchAll(features, threads[t], Mat(), pairwise_matches);
+            CHECK(pairwise_matches.size() == reference.size());
+            for (size_t i = 0; i < pairwise_matches.size() && i < reference.size(); ++i)
+                CHECK_MSG(sameMatches(pairwise_matches[i], reference[i]), "pair %d -> %d differs with %d threads",
+                          static_cast<int>(i) / num_images, static_cast<int>(i) % num_images, threads[t]);
+        }
+
+        // A pair matched alone, after other pairs or none, must come out the same
+        for (int i = 0; i + 1 < num_images; ++i)
+        {
+            Mat_<uchar> mask(num_images, num_images, static_cast<uchar>(0));
+            mask(i, i + 1) = 1;
+            vector<MatchesInfo> pairwise_matches;
+            matchAll(features, 4, mask, pairwise_matches);
+            CHECK_MSG(sameMatches(pairwise_matches[i * num_images + i + 1], reference[i * num_images + i + 1])
+                      && sameMatches(pairwise_matches[(i + 1) * num_images + i], reference[(i + 1) * num_images + i]),
+                      "pair %d -> %d differs when matched alone", i, i + 1);
+        }
+    }
+}
+
+
+int main()
+{
+    testMatchesAcrossThreads();
+    return testResult("matchers_test");
+}
@@ -0,0 +1,172 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+
+// Checks the preview guidance: the median shift of the matches against wrong
+// ones, and the overlap estimated between a shot and frames of the same scene
+// taken further along
+
+#include <cmath>
+#include <vector>
+#include "overlap_estimator.hpp"
+#include "test.hpp"
+#include "test_scene.hpp"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    const Size SHOT_SIZE(960, 720);
+    const Size FRAME_SIZE(480, 360);
+    const Point SHOT_TL(400, 90);
+    const float TOLERANCE = 0.02f;
+
+    Mat scene;
+
+    Mat grayView(const Mat &img, Point tl, Size size, Size scaled_size)
+    {
+        Mat gray, scaled;
+        cvtColor(img(Rect(tl, size)), gray, CV_BGR2GRAY);
+        resize(gray, scaled, scaled_size, 0, 0, INTER_AREA);
+        return scaled;
+    }
+
+    void testMedianShift()
+    {
+        RNG rng(7);
+        vector<float> shifts_x, shifts_y, sorted;
+
+        // 30 agreeing shifts and 20 wrong ones
+        for (int i = 0; i < 30; ++i)
+        {
+            shifts_x.push_back(12.f + rng.uniform(-0.5f, 0.5f));
+            shifts_y.push_back(-5.f + rng.uniform(-0.5f, 0.5f));
+        }
+        for (int i = 0; i < 20; ++i)
+        {
+            shifts_x.push_back(rng.uniform(-200.f, 200.f));
+            shifts_y.push_back(rng.uniform(-150.f, 150.f));
+        }
+        float dx, dy;
+        int inliers = medianShift(shifts_x, shifts_y, 2.f, dx, dy, sorted);
+        CHECK_MSG(fabs(dx - 12.f) < 0.5f && fabs(dy + 5.f) < 0.5f, "shift %g, %g", dx, dy);
+        CHECK_MSG(inliers >= 30 && inliers < 33, "%d inliers", inliers);
+
+        // The input stays in its order, it pairs the x and y of each match
+        CHECK(shifts_x[0] > 11.f && shifts_x[0] < 13.f);
+        vector<float> copy_x = shifts_x;
+        medianShift(shifts_x, shifts_y, 2.f, dx, dy, sorted);
+        CHECK(copy_x == shifts_x);
+
+        vector<float> none;
+        CHECK(medianShift(none, none, 2.f, dx, dy, sorted) == 0);
+    }
+
+    void testOverlapOfLaterFrames()
+    {
+        OverlapEstimator estimator;
+        estimator.setReference(grayView(scene, SHOT_TL, SHOT_SIZE, SHOT_SIZE));
+
+        // Frames the camera took turned right, up and down from the shot
+        const Point offsets[] = { Point(0, 0), Point(240, 0), Point(480, 36), Point(-240, -72), Point(600, 0) };
+        for (size_t i = 0; i < sizeof(offsets) / sizeof(offsets[0]); ++i)
+        {
+            Mat frame = grayView(scene, SHOT_TL + offsets[i], SHOT_SIZE, FRAME_SIZE);
+            float result[OverlapEstimator::NUM_RESULTS];
+            bool found = estimator.estimate(frame, result);
+            CHECK_MSG(found, "offset %d, %d", offsets[i].x, offsets[i].y);
+            if (!found)
+                continue;
+
+            // Points of the shot move the other way in the frame
+            float shift_x = -static_cast<float>(offsets[i].x) / SHOT_SIZE.width;
+            float shift_y = -static_cast<float>(offsets[i].y) / SHOT_SIZE.height;
+            float overlap = (1 - fabs(shift_x)) * (1 - fabs(shift_y));
+            CHECK_MSG(fabs(result[1] - shift_x) < TOLERANCE && fabs(result[2] - shift_y) < TOLERANCE,
+                      "offset %d, %d: shift %g, %g", offsets[i].x, offsets[i].y, result[1], result[2]);
+            CHECK_MSG(fabs(result[0] - overlap) < TOLERANCE, "offset %d, %d: overlap %g instead of %g",
+                      offsets[i].x, offsets[i].y, result[0], overlap);
+            CHECK_MSG(result[3] >= 8, "offset %d, %d: %g inliers", offsets[i].x, offsets[i].y, result[3]);
+        }
+    }
+
+    void testReferenceFollowsTheFrameWidth()
+    {
+        OverlapEstimator estimator;
+        estimator.setReference(grayView(scene, SHOT_TL, SHOT_SIZE, SHOT_SIZE));
+        const Size sizes[] = { FRAME_SIZE, Size(320, 240), FRAME_SIZE };
+        for (size_t i = 0; i < sizeof(sizes) / sizeof(sizes[0]); ++i)
+        {
+            float result[OverlapEstimator::NUM_RESULTS];
+            CHECK_MSG(estimator.estimate(grayView(scene, SHOT_TL + Point(240, 0), SHOT_SIZE, sizes[i]), result)
+                      && fabs(result[1] + 0.25f) < TOLERANCE, "%dx%d frames", sizes[i].width, sizes[i].height);
+        }
+    }
+
+    void testNoEstimateWithoutOverlap()
+    {
+        OverlapEstimator estimator;
+        float result[OverlapEstimator::NUM_RESULTS];
+        Mat frame = grayView(scene, SHOT_TL, SHOT_SIZE, FRAME_SIZE);
+        CHECK(!estimator.estimate(frame, result));
+
+        // A frame of another scene
+        estimator.setReference(grayView(scene, SHOT_TL, SHOT_SIZE, SHOT_SIZE));
+        Mat other = testScene(scene.size(), 11);
+        CHECK(!estimator.estimate(grayView(other, SHOT_TL, SHOT_SIZE, FRAME_SIZE), result));
+
+        // Cleared
+        estimator.setReference(Mat());
+        CHECK(!estimator.estimate(frame, result));
+    }
+}
+
+
+int main()
+{
+    scene = testScene(Size(2400, 900), 3);
+    testMedianShift();
+    testOverlapOfLaterFrames();
+    testReferenceFollowsTheFrameWidth();
+    testNoEstimateWithoutOverlap();
+    return testResult("overlap_estimator_test");
+}
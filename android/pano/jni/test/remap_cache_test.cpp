@@ -0,0 +1,230 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+
+// Checks the remap cache reuses the maps of pan/tilt head cameras from one run
+// to the next, keeps unnamed cameras off the disk and stops storing maps when
+// it is full instead of dropping the stored ones
+
+#include <cstdio>
+#include <string>
+#include <vector>
+#include <dirent.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include "warpers.hpp"
+#include "test.hpp"
+#include "test_scene.hpp"
+
+using namespace std;
+using namespace cv;
+
+namespace
+{
+    const char *SCRATCH_DIR = "remap_cache_test.d";
+    const size_t MAX_DISK_SIZE = 64 << 20;
+
+    vector<string> cachedFiles()
+    {
+        vector<string> files;
+        DIR *dir = opendir(SCRATCH_DIR);
+        if (!dir)
+            return files;
+        while (dirent *entry = readdir(dir))
+        {
+            string name = entry->d_name;
+            if (name != "." && name != "..")
+                files.push_back(string(SCRATCH_DIR) + "/" + name);
+        }
+        closedir(dir);
+        return files;
+    }
+
+    void clearCache()
+    {
+        vector<string> files = cachedFiles();
+        for (size_t i = 0; i < files.size(); ++i)
+            remove(files[i].c_str());
+        rmdir(SCRATCH_DIR);
+    }
+
+    Mat rotation(float yaw, float pitch)
+    {
+        Mat rvec = (Mat_<float>(3, 1) << pitch * CV_PI / 180, yaw * CV_PI / 180, 0);
+        Mat R;
+        Rodrigues(rvec, R);
+        return R;
+    }
+
+    // One run of the stitcher, with its own cache over the scratch directory
+    struct Run
+    {
+        Run(float scale, size_t max_disk_size = MAX_DISK_SIZE)
+            : cache(new RemapCache(SCRATCH_DIR, max_disk_size)),
+              warper(Warper::createByCameraFocal(scale, Warper::SPHERICAL))
+        {
+            warper->setRemapCache(cache);
+        }
+
+        Ptr<RemapCache> cache;
+        Ptr<Warper> warper;
+    };
+
+    bool same(const Mat &a, const Mat &b)
+    {
+        return a.size() == b.size() && a.type() == b.type() && norm(a, b, NORM_INF) == 0;
+    }
+
+    void testSecondRunHits(const Mat &img)
+    {
+        clearCache();
+        Mat first, mask_warped;
+        Point first_tl;
+        {
+            Run run(500.f);
+            run.warper->setCacheKey("yaw 30 pitch 0");
+            first_tl = run.warper->warp(img, 500.f, rotation(30, 0), first);
+            Mat mask(img.size(), CV_8U, Scalar::all(255));
+            run.warper->warp(mask, 500.f, rotation(30, 0), mask_warped, INTER_NEAREST, BORDER_CONSTANT);
+            CHECK(run.cache->misses() == 1);
+            CHECK(run.cache->hits() == 1);
+        }
+        CHECK(cachedFiles().size() == 1);
+        CHECK(mask_warped.size() == first.size());
+
+        // Bundle adjustment lands on a slightly different camera every capture
+        Run run(503.f);
+        run.warper->setCacheKey("yaw 30 pitch 0");
+        Rect roi = run.warper->warpRoi(img.size(), 498.f, rotation(30.4f, -0.3f));
+        CHECK(roi == Rect(first_tl, first.size()));
+
+        Mat second;
+        Point second_tl = run.warper->warp(img, 498.f, rotation(30.4f, -0.3f), second);
+        CHECK(second_tl == first_tl);
+        CHECK(same(second, first));
+
+        // Tiles cut their maps out of the stored ones
+        Rect part(first_tl + Point(first.cols / 3, first.rows / 4), Size(first.cols / 3, first.rows / 2));
+        Mat part_warped;
+        run.warper->warpPart(img, 498.f, rotation(30.4f, -0.3f), part, part_warped);
+        CHECK(same(part_warped, first(Rect(part.tl() - first_tl, part.size()))));
+
+        CHECK(run.cache->misses() == 0);
+        CHECK(run.cache->hits() >= 2);
+        CHECK(cachedFiles().size() == 1);
+    }
+
+    void testUnnamedCamerasStayInMemory(const Mat &img)
+    {
+        clearCache();
+        Run run(500.f);
+        Mat warped, part_warped;
+        Point tl = run.warper->warp(img, 500.f, rotation(-60, 20), warped);
+        run.warper->warpPart(img, 500.f, rotation(-60, 20), Rect(tl, Size(50, 40)), part_warped);
+        CHECK(cachedFiles().empty());
+        CHECK(same(part_warped, warped(Rect(0, 0, 50, 40))));
+    }
+
+    void testPartsStoreWholeMaps(const Mat &img)
+    {
+        clearCache();
+        Mat reference;
+        Point tl = Run(500.f).warper->warp(img, 500.f, rotation(90, 10), reference);
+        clearCache();
+
+        Run run(500.f);
+        run.warper->setCacheKey("yaw 90 pitch 10");
+        Rect roi = run.warper->warpRoi(img.size(), 500.f, rotation(90, 10));
+        CHECK(roi == Rect(tl, reference.size()));
+        Rect part(tl + Point(10, 20), Size(reference.cols / 2, reference.rows / 2));
+        Mat part_warped;
+        run.warper->warpPart(img, 500.f, rotation(90, 10), part, part_warped);
+        CHECK(same(part_warped, reference(Rect(part.tl() - tl, part.size()))));
+        CHECK(cachedFiles().size() == 1);
+
+        Mat warped;
+        Run(500.f).warper->warp(img, 500.f, rotation(90, 10), warped);
+        CHECK(same(warped, reference));
+    }
+
+    void testFullCacheKeepsItsTables(const Mat &img)
+    {
+        clearCache();
+        Mat warped;
+        {
+            Run run(500.f);
+            run.warper->setCacheKey("yaw 0 pitch 0");
+            run.warper->warp(img, 500.f, rotation(0, 0), warped);
+        }
+        vector<string> files = cachedFiles();
+        CHECK(files.size() == 1);
+        struct stat st;
+        CHECK(!files.empty() && stat(files[0].c_str(), &st) == 0);
+        size_t max_disk_size = files.empty() ? 0 : static_cast<size_t>(st.st_size) + 1000;
+
+        // Room for only one table, the later ones aren't stored
+        for (int i = 0; i < 2; ++i)
+        {
+            Run run(500.f, max_disk_size);
+            run.warper->setCacheKey("yaw 0 pitch 0");
+            run.warper->warp(img, 500.f, rotation(0, 0), warped);
+            run.warper->setCacheKey("yaw 30 pitch 0");
+            run.warper->warp(img, 500.f, rotation(30, 0), warped);
+            run.warper->setCacheKey("yaw 60 pitch 0");
+            run.warper->warp(img, 500.f, rotation(60, 0), warped);
+            CHECK_MSG(run.cache->hits() == 1, "run %d", i);
+            CHECK_MSG(run.cache->misses() == 2, "run %d", i);
+            CHECK(cachedFiles() == files);
+        }
+    }
+}
+
+
+int main()
+{
+    Mat img = testScene(Size(400, 300), 10);
+    testSecondRunHits(img);
+    testUnnamedCamerasStayInMemory(img);
+    testPartsStoreWholeMaps(img);
+    testFullCacheKeepsItsTables(img);
+    clearCache();
+    return testResult("remap_cache_test");
+}
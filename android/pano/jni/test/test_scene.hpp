@@ -0,0 +1,85 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+
+#ifndef __PANO_TEST_SCENE_HPP__
+#define __PANO_TEST_SCENE_HPP__
+
+#include <vector>
+#include "precomp.hpp"
+
+// A wide synthetic scene of random shapes, textured enough for SURF to find
+// plenty of features, and views of it overlapping by half like handheld shots
+inline cv::Mat testScene(cv::Size size, int seed)
+{
+    cv::RNG rng(seed);
+    cv::Mat scene(size, CV_8UC3, cv::Scalar(128, 128, 128));
+    for (int i = 0; i < size.area() / 2000; ++i)
+    {
+        cv::Scalar color(rng.uniform(0, 256), rng.uniform(0, 256), rng.uniform(0, 256));
+        cv::Point center(rng.uniform(0, size.width), rng.uniform(0, size.height));
+        int radius = rng.uniform(4, 40);
+        switch (rng.uniform(0, 3))
+        {
+        case 0:
+            cv::circle(scene, center, radius, color, -1);
+            break;
+        case 1:
+            cv::rectangle(scene, center, center + cv::Point(radius, radius * 2 / 3), color, -1);
+            break;
+        default:
+            cv::line(scene, center, center + cv::Point(rng.uniform(-60, 60), rng.uniform(-60, 60)), color,
+                     rng.uniform(1, 4));
+        }
+    }
+    cv::GaussianBlur(scene, scene, cv::Size(3, 3), 0);
+    return scene;
+}
+
+inline std::vector<cv::Mat> testViews(const cv::Mat &scene, cv::Size view_size)
+{
+    std::vector<cv::Mat> views;
+    for (int x = 0; x + view_size.width <= scene.cols; x += view_size.width / 2)
+        views.push_back(scene(cv::Rect(cv::Point(x, (scene.rows - view_size.height) / 2), view_size)).clone());
+    return views;
+}
+
+#endif // __PANO_TEST_SCENE_HPP__
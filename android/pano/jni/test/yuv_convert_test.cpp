@@ -0,0 +1,237 @@
+/*M///////////////////////////////////////////////////////////////////////////////////////
+//
+//  IMPORTANT: READ BEFORE DOWNLOADING, COPYING, INSTALLING OR USING.
+//
+//  By downloading, copying, installing or using the software you agree to this license.
+//  If you do not agree to this license, do not download, install,
+//  copy or use the software.
+//
+//
+//                          License Agreement
+//                For Open Source Computer Vision Library
+//
+// Copyright (C) 2000-2008, Intel Corporation, all rights reserved.
+// Copyright (C) 2009, Willow Garage Inc., all rights reserved.
+// Third party copyrights are property of their respective owners.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+//   * Redistribution's of source code must retain the above copyright notice,
+//     this list of conditions and the following disclaimer.
+//
+//   * Redistribution's in binary form must reproduce the above copyright notice,
+//     this list of conditions and the following disclaimer in the documentation
+//     and/or other materials provided with the distribution.
+//
+//   * The name of the copyright holders may not be used to endorse or promote products
+//     derived from this software without specific prior written permission.
+//
+// This software is provided by the copyright holders and contributors "as is" and
+// any express or implied warranties, including, but not limited to, the implied
+// warranties of merchantability and fitness for a particular purpose are disclaimed.
+// In no event shall the Intel Corporation or contributors be liable for any direct,
+// indirect, incidental, special, exemplary, or consequential damages
+// (including, but not limited to, procurement of substitute goods or services;
+// loss of use, data, or profits; or business interruption) however caused
+// and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of
+// the use of this software, even if advised of the possibility of such damage.
+//
+//M*/
+
+// Checks the NV21 to RGBA conversion against the BT.601 video range formulas
+// in floating point, and the NEON version against the portable one
+
+#include <cmath>
+#include <cstdlib>
+#include <vector>
+#include "yuv_convert.hpp"
+#include "test.hpp"
+
+using namespace std;
+
+namespace
+{
+    // Fixed point coefficients are off by up to two levels at the ends of the range
+    const int TOLERANCE = 2;
+    const unsigned char SENTINEL = 0xa5;
+
+    struct PixelCase
+    {
+        int y, u, v;
+        const char *what;
+    };
+
+    const PixelCase PIXEL_CASES[] =
+    {
+        { 16, 128, 128, "black" },
+        { 235, 128, 128, "white" },
+        { 126, 128, 128, "gray" },
+        { 0, 128, 128, "below black" },
+        { 255, 128, 128, "above white" },
+        { 81, 90, 240, "red" },
+        { 145, 54, 34, "green" },
+        { 41, 240, 110, "blue" },
+        { 210, 16, 146, "yellow" },
+        { 170, 166, 16, "cyan" },
+        { 106, 202, 222, "magenta" },
+        { 0, 0, 0, "all zero" },
+        { 255, 255, 255, "all full" },
+        { 0, 255, 255, "dark, full chroma" },
+        { 255, 0, 0, "bright, no chroma" },
+        { 128, 0, 255, "saturated red and blue" },
+        { 128, 255, 0, "saturated green" },
+    };
+
+    unsigned char clampRound(double value)
+    {
+        return static_cast<unsigned char>(value < 0 ? 0 : (value > 255 ? 255 : floor(value + 0.5)));
+    }
+
+    void referenceRgb(int y, int u, int v, unsigned char rgb[3])
+    {
+        double yl = 1.164 * (y - 16);
+        rgb[0] = clampRound(yl + 1.596 * (v - 128));
+        rgb[1] = clampRound(yl - 0.391 * (u - 128) - 0.813 * (v - 128));
+        rgb[2] = clampRound(yl + 2.018 * (u - 128));
+    }
+
+    bool closeToReference(int y, int u, int v, const unsigned char *rgba)
+    {
+        unsigned char rgb[3];
+        referenceRgb(y, u, v, rgb);
+        for (int c = 0; c < 3; ++c)
+            if (abs(rgba[c] - rgb[c]) > TOLERANCE)
+                return false;
+        return rgba[3] == 255;
+    }
+
+    // Random planes, so a pixel reading the chroma of the wrong block shows up
+    vector<unsigned char> testFrame(int width, int height, unsigned seed)
+    {
+        vector<unsigned char> nv21(width * height * 3 / 2);
+        srand(seed);
+        for (size_t i = 0; i < nv21.size(); ++i)
+            nv21[i] = static_cast<unsigned char>(rand() & 255);
+        return nv21;
+    }
+
+    void testPixels()
+    {
+        for (size_t i = 0; i < sizeof(PIXEL_CASES) / sizeof(PIXEL_CASES[0]); ++i)
+        {
+            const PixelCase &p = PIXEL_CASES[i];
+            // Two pixels sharing one VU pair
+            unsigned char y[2] = { static_cast<unsigned char>(p.y), static_cast<unsigned char>(p.y) };
+            unsigned char vu[2] = { static_cast<unsigned char>(p.v), static_cast<unsigned char>(p.u) };
+            unsigned char rgba[8];
+            nv21ToRgbaRow(y, vu, rgba, 0, 2);
+            unsigned char rgb[3];
+            referenceRgb(p.y, p.u, p.v, rgb);
+            CHECK_MSG(closeToReference(p.y, p.u, p.v, rgba) && closeToReference(p.y, p.u, p.v, rgba + 4),
+                      "%s: got %d %d %d %d, expected %d %d %d", p.what, rgba[0], rgba[1], rgba[2], rgba[3],
+                      rgb[0], rgb[1], rgb[2]);
+        }
+
+        // Past the ends of the range the values must clip exactly, not just
+        // come close, and the extreme chroma mustn't wrap around
+        unsigned char y[2] = { 0, 255 };
+        unsigned char vu[2] = { 128, 128 };
+        unsigned char rgba[8];
+        nv21ToRgbaRow(y, vu, rgba, 0, 2);
+        CHECK(rgba[0] == 0 && rgba[1] == 0 && rgba[2] == 0);
+        CHECK(rgba[4] == 255 && rgba[5] == 255 && rgba[6] == 255);
+
+        unsigned char full[2] = { 255, 255 };
+        nv21ToRgbaRow(full, full, rgba, 0, 2);
+        CHECK(rgba[0] == 255 && rgba[2] == 255);
+        unsigned char zero[2] = { 0, 0 };
+        nv21ToRgbaRow(zero, zero, rgba, 0, 2);
+        CHECK(rgba[0] == 0 && rgba[2] == 0);
+    }
+
+    void testFrames()
+    {
+        // Widths around and off the 16 pixels the NEON version takes at a time
+        const int sizes[][2] = { { 2, 2 }, { 4, 6 }, { 6, 2 }, { 14, 4 }, { 16, 2 }, { 18, 8 }, { 30, 6 }, { 34, 10 },
+                                 { 62, 4 }, { 176, 144 } };
+        for (size_t s = 0; s < sizeof(sizes) / sizeof(sizes[0]); ++s)
+        {
+            int width = sizes[s][0], height = sizes[s][1];
+            vector<unsigned char> nv21 = testFrame(width, height, static_cast<unsigned>(s));
+
+            // Rows padded by a few bytes, which must be left alone
+            int stride = width * 4 + 12;
+            vector<unsigned char> rgba(stride * height, SENTINEL);
+            nv21ToRgba(&nv21[0], width, height, &rgba[0], stride);
+
+            int wrong = 0, padding = 0;
+            const unsigned char *vu_plane = &nv21[width * height];
+            for (int row = 0; row < height; ++row)
+            {
+                for (int x = 0; x < width; ++x)
+                {
+                    const unsigned char *vu = vu_plane + (row / 2) * width + (x & ~1);
+                    if (!closeToReference(nv21[row * width + x], vu[1], vu[0], &rgba[row * stride + x * 4]))
+                        ++wrong;
+                }
+                for (int i = width * 4; i < stride; ++i)
+                    if (rgba[row * stride + i] != SENTINEL)
+                        ++padding;
+            }
+            CHECK_MSG(wrong == 0, "%dx%d: %d pixels off", width, height, wrong);
+            CHECK_MSG(padding == 0, "%dx%d: %d padding bytes written", width, height, padding);
+
+#ifdef HAVE_NEON
+            vector<unsigned char> neon(stride * height, SENTINEL);
+            nv21ToRgbaNeon(&nv21[0], width, height, &neon[0], stride);
+            CHECK_MSG(neon == rgba, "%dx%d: NEON differs", width, height);
+#endif
+        }
+    }
+
+    void testRowRanges()
+    {
+        // A row converted in pieces, including pieces ending on an odd pixel,
+        // must equal the row converted at once and not write past the piece
+        const int width = 21;
+        vector<unsigned char> y(width + 1), vu(width + 1);
+        srand(7);
+        for (int i = 0; i <= width; ++i)
+        {
+            y[i] = static_cast<unsigned char>(rand() & 255);
+            vu[i] = static_cast<unsigned char>(rand() & 255);
+        }
+        vector<unsigned char> whole(width * 4);
+        nv21ToRgbaRow(&y[0], &vu[0], &whole[0], 0, width);
+        for (int x = 0; x < width; ++x)
+            CHECK_MSG(closeToReference(y[x], vu[(x & ~1) + 1], vu[x & ~1], &whole[x * 4]), "odd width, pixel %d", x);
+
+        for (int from = 0; from < width; from += 2)
+        {
+            for (int to = from + 1; to <= width; ++to)
+            {
+                vector<unsigned char> part(width * 4, SENTINEL);
+                nv21ToRgbaRow(&y[0], &vu[0], &part[0], from, to);
+                bool same = true;
+                for (int i = 0; i < width * 4; ++i)
+                {
+                    bool inside = i >= from * 4 && i < to * 4;
+                    if (inside ? part[i] != whole[i] : part[i] != SENTINEL)
+                        same = false;
+                }
+                CHECK_MSG(same, "pixels [%d, %d)", from, to);
+            }
+        }
+    }
+}
+
+
+int main()
+{
+    testPixels();
+    testFrames();
+    testRowRanges();
+    return testResult("yuv_convert_test");
+}
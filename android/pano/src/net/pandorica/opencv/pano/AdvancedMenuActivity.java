@@ -20,6 +20,9 @@ import android.widget.TextView;
 
 public class AdvancedMenuActivity extends ListActivity implements OnItemClickListener {
     private final static int DIALOG_CAMERA_RESOLUTION = 0;
+    private final static int DIALOG_ANALYSIS_RESOLUTION = 1;
+    // downscale factors matching R.array.analysis_resolution_items
+    private final static int[] ANALYSIS_SCALES = { 1, 2, 4 };
     private SharedPreferences mSettings;
 
     @Override
@@ -44,6 +47,9 @@ public class AdvancedMenuActivity extends ListActivity implements OnItemClickLis
         if (((TextView)view).getText().equals(
                 getResources().getString(R.string.camera_resolution))) {
             showDialog(DIALOG_CAMERA_RESOLUTION);
+        } else if (((TextView)view).getText().equals(
+                getResources().getString(R.string.analysis_resolution))) {
+            showDialog(DIALOG_ANALYSIS_RESOLUTION);
         }
     }
     
@@ -75,6 +81,20 @@ public class AdvancedMenuActivity extends ListActivity implements OnItemClickLis
         editor.commit();
     }
 
+    private int getAnalysisPosition() {
+        int scale = PanoCamera.getAnalysisScale(getApplicationContext());
+        for (int i = 0; i < ANALYSIS_SCALES.length; i++) {
+            if (ANALYSIS_SCALES[i] == scale) return i;
+        }
+        return 0;
+    }
+
+    private void setAnalysisScale(int scale) {
+        SharedPreferences.Editor editor = mSettings.edit();
+        editor.putInt(PanoCamera.ANALYSIS_SCALE, scale);
+        editor.commit();
+    }
+
     @Override
     protected Dialog onCreateDialog(int id) {
         Dialog dialog;
@@ -102,6 +122,20 @@ public class AdvancedMenuActivity extends ListActivity implements OnItemClickLis
             });
             dialog = builder.create();
             break;
+        case DIALOG_ANALYSIS_RESOLUTION:
+            builder = new AlertDialog.Builder(this);
+            builder.setTitle(getResources().getString(R.string.analysis_resolution_dialog));
+            builder.setSingleChoiceItems(R.array.analysis_resolution_items, 0,
+                    new DialogInterface.OnClickListener() {
+
+                @Override
+                public void onClick(DialogInterface arg0, int position) {
+                    setAnalysisScale(ANALYSIS_SCALES[position]);
+                    dismissDialog(DIALOG_ANALYSIS_RESOLUTION);
+                }
+            });
+            dialog = builder.create();
+            break;
         default:
             dialog = null;
             break;
@@ -114,6 +148,9 @@ public class AdvancedMenuActivity extends ListActivity implements OnItemClickLis
         case DIALOG_CAMERA_RESOLUTION:
             ((AlertDialog)dialog).getListView().setItemChecked(getCameraPosition(), true);
             break;
+        case DIALOG_ANALYSIS_RESOLUTION:
+            ((AlertDialog)dialog).getListView().setItemChecked(getAnalysisPosition(), true);
+            break;
         default:
             super.onPrepareDialog(id, dialog);
             break;
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+
+/**
+ * Finds the features of captured images in the background, while the user frames the next
+ * shot, so that stitching is mostly left with matching and compositing.
+ */
+public class FeatureWorker {
+    private final ExecutorService mExecutor;
+    private final double mWorkMegapix;
+    private final int mRotation;
+
+    /**
+     * @param workMegapix registration resolution the stitch is going to use
+     * @param rotation clockwise rotation the stitch turns the images upright by
+     */
+    public FeatureWorker(double workMegapix, int rotation) {
+        mWorkMegapix = workMegapix;
+        mRotation = rotation;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "FeatureWorker");
+            }
+        });
+    }
+
+    /**
+     * Queues an image for feature extraction
+     * @param image path of the stitch input image
+     */
+    public void submit(final String image) {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                StitchPipeline.precomputeFeatures(image, mWorkMegapix, mRotation);
+            }
+        });
+    }
+
+    /**
+     * Blocks until all the queued images are processed
+     */
+    public void drain() {
+        try {
+            mExecutor.submit(new Runnable() {
+                public void run() {
+                    // images are processed in order, nothing left once we get here
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // nothing to report, a failed image is just not cached
+        }
+    }
+
+    /**
+     * Drops the queued images. The worker can't be used afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the newest frame from a single producer, the camera callback, to a single consumer,
+ * the render thread, without locks. The producer never blocks: a frame published while the
+ * consumer is still busy replaces the pending one, which is given back to the producer for
+ * reuse and counted as dropped. The consumer always gets the newest frame. Every frame
+ * produced ends up counted as processed or dropped, but for the one pending.
+ */
+public class FrameExchanger<T> {
+    private final AtomicReference<T> mPending = new AtomicReference<T>();
+    private volatile Thread mConsumer;
+
+    private final AtomicLong mProduced = new AtomicLong();
+    private final AtomicLong mProcessed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * Publishes a frame and wakes the consumer up
+     * @return the frame replaced by this one, which the consumer never saw, or null
+     */
+    public T publish(T frame) {
+        mProduced.incrementAndGet();
+        T replaced = mPending.getAndSet(frame);
+        if (replaced != null) mDropped.incrementAndGet();
+
+        Thread consumer = mConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+        return replaced;
+    }
+
+    /**
+     * Takes the newest frame, waiting for one if there is none yet. Must be called from a
+     * single thread.
+     * @param timeoutNanos longest time to wait
+     * @return the frame, or null if none came in time or the thread was interrupted
+     */
+    public T take(long timeoutNanos) {
+        mConsumer = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNanos;
+        T frame;
+        while ((frame = mPending.getAndSet(null)) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.interrupted()) return null;
+            LockSupport.parkNanos(remaining);
+        }
+        mProcessed.incrementAndGet();
+        return frame;
+    }
+
+    /**
+     * Counts the frame last taken as dropped rather than processed, for a consumer which
+     * finds it stale. Must be called from the consumer thread.
+     */
+    public void discard() {
+        mProcessed.decrementAndGet();
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * Drops the pending frame
+     * @return the frame, or null if there was none
+     */
+    public T clear() {
+        T frame = mPending.getAndSet(null);
+        if (frame != null) mDropped.incrementAndGet();
+        return frame;
+    }
+
+    public long getProducedCount() {
+        return mProduced.get();
+    }
+
+    public long getProcessedCount() {
+        return mProcessed.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
@@ -17,18 +17,13 @@
 package net.pandorica.opencv.pano;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
-import org.opencv.core.Core;
-import org.opencv.core.Mat;
-import org.opencv.core.Size;
-import org.opencv.highgui.Highgui;
-import org.opencv.imgproc.Imgproc;
-
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -41,6 +36,7 @@ import android.content.pm.ActivityInfo;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -84,6 +80,15 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
     private String mDefaultWarpType                    = "spherical";
     private String mDefaultMatchConf                   = "0.5";
     private String mDefaultConfThresh                  = "0.8";
+    private static final String WORK_MEGAPIX           = "0.2";
+    // the shots used to be stitched from quarter size copies, composite a bit above that
+    private static final String COMPOSE_MEGAPIX        = "1";
+    // the camera saves landscape, the panorama is shot in portrait
+    static final int            SHOT_ROTATION          = 90;
+    // handheld shots only overlap their neighbors in the capture order
+    private static final String MATCH_RANGE            = "2";
+    // composite in tiles so full resolution panoramas fit in memory
+    private static final String COMPOSE_TILE           = "512";
     private boolean mDefaultShowTip                    = true;
 
     // possible dialogs to open
@@ -115,11 +120,15 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
     private Gallery mGallery;
     private ImageSwitcher mImageSwitcher;
     private PanoAdapter mPanoAdapter;
-    private List<File> mDirectories;
+    private PanoCatalog mCatalog;
+    private List<PanoCatalog.Entry> mPanos;
 
     private Button mShareButton;
     private Button mRestitchButton;
 
+    private FeatureWorker mFeatureWorker;
+    private ThumbnailCache mThumbnails;
+
     /**
      * Called when activity is first created.
      * Initializes the default storage locations
@@ -141,6 +150,14 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
         setContentView(R.layout.main);
 
         // Initialize the gallery view
+        mCatalog = new PanoCatalog(new File(mDirPath), new File(getFilesDir(), "catalog"),
+                mImagePrefix, smallType, mOutputImage);
+        mThumbnails = new ThumbnailCache(new ThumbnailCache.ImageChooser() {
+            public File choose(File folder) {
+                PanoCatalog.Entry entry = mCatalog.find(folder);
+                return entry == null ? null : entry.image;
+            }
+        }, new File(getCacheDir(), "thumbnails"));
         mPanoAdapter = new PanoAdapter(this);
         mImageSwitcher = (ImageSwitcher) findViewById(R.id.main_switcher);
         mImageSwitcher.setFactory(this);
@@ -157,6 +174,18 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
         mRestitchButton = (Button) findViewById(R.id.main_button_restitch);
         mRestitchButton.setVisibility(View.INVISIBLE);
         mRestitchButton.setOnClickListener(this);
+
+        mFeatureWorker = new FeatureWorker(Double.parseDouble(WORK_MEGAPIX), SHOT_ROTATION);
+    }
+
+    /**
+     * Stops the background feature extraction and thumbnail loading
+     */
+    @Override
+    public void onDestroy() {
+        mFeatureWorker.shutdown();
+        mThumbnails.shutdown();
+        super.onDestroy();
     }
 
     /**
@@ -219,6 +248,12 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
         intent.putExtra(PanoCamera.EXTRA_DIR_PATH, mDirPath + mSubDir);
         intent.putExtra(PanoCamera.EXTRA_FILE_NAME,
                 mImagePrefix + mCurrentImage + mType);
+
+        // The preview guides the overlap with the last shot, using its small copy
+        File previous = new File(mDirPath + mSubDir + mImagePrefix + (mCurrentImage - 1) + smallType);
+        if (mCurrentImage > 1 && previous.exists()) {
+            intent.putExtra(PanoCamera.EXTRA_PREVIOUS_IMAGE, previous.getAbsolutePath());
+        }
         return intent;
     }
 
@@ -352,39 +387,11 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
         case DIALOG_RESULTS:
             refreshView();
 
-            Mat mIntermediate = new Mat();
-            Mat mYuv = new Mat();
-
-            mIntermediate = Highgui.imread(mDirPath +mSubDir+
-                    mImagePrefix + mCurrentImage + mType);
-
-            Core.transpose(mIntermediate, mYuv);
-            Core.flip(mYuv, mIntermediate, 1);
-
-            Imgproc.resize(mIntermediate, mYuv, new Size(), 0.25, 0.25, Imgproc.CV_INTER_AREA);
-
-            /** Currently Not Working in OpenCV **/
-            /*
-            Bitmap jpg = Bitmap.createBitmap(mIntermediate.cols(), mIntermediate.rows(),
-                    Bitmap.Config.ARGB_8888);
-            android.MatToBitmap(mIntermediate, jpg);
-            */
-            /** So we resort to this method **/
-            Highgui.imwrite(mDirPath +mSubDir+ mImagePrefix +
-                    mCurrentImage + smallType, mYuv);
-            Bitmap jpg = BitmapFactory.decodeFile(mDirPath +mSubDir+
-                    mImagePrefix + mCurrentImage + smallType);
-            /** **/
-            
-            // cleanup
-            mIntermediate.dispose();
-            mYuv.dispose();
-
             ImageView image = (ImageView) dialog.findViewById(R.id.image);
             image.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
             image.setAdjustViewBounds(true);
             image.setPadding(2, 2, 2, 2);
-            image.setImageBitmap(jpg);
+            image.setImageBitmap(null);
 
             Button capture = (Button) dialog.findViewById(R.id.capture);
             capture.setOnClickListener(new OnClickListener() {
@@ -409,6 +416,11 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
                 }
             });
 
+            // the next shot and the stitch need the small copy, wait for it
+            capture.setEnabled(false);
+            stitch.setEnabled(false);
+            new ReviewShotTask(mDirPath + mSubDir, mCurrentImage, image, capture, stitch)
+                    .execute();
             break;
         case DIALOG_SUCCESS:
             final File img = new File(mDirPath + mSubDir + mOutputImage);
@@ -420,6 +432,8 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
             png.setPadding(3, 3, 3, 3);
             png.setImageBitmap(result);
 
+            // a re-stitch overwrites the result in place
+            mThumbnails.invalidate(new File(mDirPath + mSubDir));
             refreshImage(mGalleryImage);
             refreshView();
 
@@ -469,6 +483,74 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
         }
     }
 
+    /**
+     * Makes the small upright copy of a shot, which is shown for review and guides the overlap
+     * of the next one. The jpeg is decoded subsampled, so only that is rotated and written,
+     * off the main thread. The stitch reads the jpeg itself.
+     */
+    class ReviewShotTask extends AsyncTask<Void, Void, Bitmap> {
+        private static final int SAMPLE_SIZE = 4;
+
+        private final String mDir;
+        private final int mImage;
+        private final ImageView mView;
+        private final Button[] mButtons;
+
+        /**
+         * @param buttons enabled once the small copy is written
+         */
+        ReviewShotTask(String dir, int image, ImageView view, Button... buttons) {
+            mDir = dir;
+            mImage = image;
+            mView = view;
+            mButtons = buttons;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... v) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = SAMPLE_SIZE;
+            Bitmap shot = BitmapFactory.decodeFile(mDir + mImagePrefix + mImage + mType,
+                    options);
+            if (shot == null) return null;
+
+            Matrix rotation = new Matrix();
+            rotation.postRotate(SHOT_ROTATION);
+            Bitmap upright = Bitmap.createBitmap(shot, 0, 0, shot.getWidth(), shot.getHeight(),
+                    rotation, true);
+            if (upright != shot) shot.recycle();
+
+            try {
+                FileOutputStream out = new FileOutputStream(mDir + mImagePrefix + mImage
+                        + smallType);
+                try {
+                    upright.compress(Bitmap.CompressFormat.PNG, 100, out);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            return upright;
+        }
+
+        /**
+         * Shows the shot and queues it for feature extraction, while the user frames the
+         * next one
+         */
+        @Override
+        protected void onPostExecute(Bitmap upright) {
+            if (upright != null) {
+                mView.setImageBitmap(upright);
+                mFeatureWorker.submit(mDir + mImagePrefix + mImage + mType);
+                mCatalog.update(new File(mDir));
+            }
+            for (Button button : mButtons) {
+                button.setEnabled(true);
+            }
+        }
+    }
+
     /**
      * Stitches together the set of images and presents the result to the user via a Dialog
      */
@@ -493,30 +575,48 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
 
         /**
          * Stitches the images
-         * Passes data to native code via string array
+         * Resumes from the checkpoints of a previous stitch of the same images when possible
          */
         @Override
         protected Integer doInBackground(Void... v) {
-            List<String> s = new ArrayList<String>();
-            s.add("Stitch");
+            // Let the worker finish the pending images, they are picked up from its cache
+            mFeatureWorker.drain();
+
+            List<String> images = new ArrayList<String>();
             for (int i = 0; i < mCurrentImage; i++) {
-                s.add(mDirPath + mSubDir + mImagePrefix + (i+1) + smallType);
+                images.add(mDirPath + mSubDir + mImagePrefix + (i+1) + mType);
+            }
+            StitchPipeline pipeline = new StitchPipeline(images,
+                    mDirPath + mSubDir + StitchPipeline.CHECKPOINT_DIR);
+            try {
+                if (!pipeline.setOption("--warp", mWarpType)
+                        || !pipeline.setOption("--conf_thresh", mConfThresh)
+                        || !pipeline.setOption("--match_conf", mMatchConf)
+                        || !pipeline.setOption("--rotate", String.valueOf(SHOT_ROTATION))
+                        || !pipeline.setOption("--work_megapix", WORK_MEGAPIX)
+                        || !pipeline.setOption("--seam_megapix", "0.2")
+                        || !pipeline.setOption("--compose_megapix", COMPOSE_MEGAPIX)
+                        || !pipeline.setOption("--expos_comp", "gain")
+                        || !pipeline.setOption("--threads",
+                                String.valueOf(Runtime.getRuntime().availableProcessors()))
+                        || !pipeline.setOption("--match_range", MATCH_RANGE)
+                        || !pipeline.setOption("--tile", COMPOSE_TILE)
+                        || !pipeline.setOption("--output", mDirPath + mSubDir + mOutputImage)) {
+                    return -1;
+                }
+                File poses = new File(mDirPath + mSubDir + StitchPipeline.POSE_MANIFEST);
+                if (poses.exists()) pipeline.setOption("--poses", poses.getAbsolutePath());
+                // Only a head repeats its poses, handheld tables would just churn the cache
+                if (StitchPipeline.hasFixedPoses(poses)) {
+                    pipeline.setOption("--lut_cache", mDirPath + StitchPipeline.LUT_CACHE_DIR);
+                }
+
+                // Skip the stages already done by an earlier, interrupted or restitched, run
+                pipeline.resume();
+                return pipeline.run();
+            } finally {
+                pipeline.release();
             }
-            s.add("--warp");
-            s.add(mWarpType);
-            s.add("--conf_thresh");
-            s.add(mConfThresh);
-            s.add("--match_conf");
-            s.add(mMatchConf);
-            s.add("--work_megapix");
-            s.add("0.2");
-            s.add("--seam_megapix");
-            s.add("0.2");
-            s.add("--expos_comp");
-            s.add("gain");
-            s.add("--output");
-            s.add(mDirPath + mSubDir + mOutputImage);
-            return Stitch(s.toArray());
         }
 
         /**
@@ -525,34 +625,12 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
         @Override
         protected void onPostExecute(Integer ret) {
             dismissDialog(DIALOG_STITCHING);
+            mCatalog.update(new File(mDirPath + mSubDir));
             if (ret == 0) showDialog(DIALOG_SUCCESS);
             else showDialog(DIALOG_ERROR);
         }
     }
 
-    /**
-     * Natively stitches images together. Takes a string array of equivalent command line arguments
-     * @param args
-     * @return
-     */
-    public native int Stitch(Object[] args);
-
-    /**
-     * Loads Native Libraries
-     */
-    static {
-        System.load("/data/data/net.pandorica.opencv.pano/lib/libprecomp.so");
-        System.load("/data/data/net.pandorica.opencv.pano/lib/libutil.so");
-        System.load("/data/data/net.pandorica.opencv.pano/lib/libmatchers.so");
-        System.load("/data/data/net.pandorica.opencv.pano/lib/libautocalib.so");
-        System.load("/data/data/net.pandorica.opencv.pano/lib/libblenders.so");
-        System.load("/data/data/net.pandorica.opencv.pano/lib/libexposure_compensate.so");
-        System.load("/data/data/net.pandorica.opencv.pano/lib/libmotion_estimators.so");
-        System.load("/data/data/net.pandorica.opencv.pano/lib/libseam_finders.so");
-        System.load("/data/data/net.pandorica.opencv.pano/lib/libwarpers.so");
-        System.load("/data/data/net.pandorica.opencv.pano/lib/libopencv_stitcher.so");
-    }
-
     /**
      * Displays Gallery View to User.
      * Updates ImageView on Click.
@@ -560,10 +638,15 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
     public class PanoAdapter extends BaseAdapter implements OnItemClickListener, OnItemLongClickListener {
         private Context mContext;
         private int itemBackground;
+        private Bitmap mAddIcon;
 
         PanoAdapter(Context c) {
             mContext = c;
 
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 8;
+            mAddIcon = BitmapFactory.decodeResource(getResources(), R.drawable.ic_add, options);
+
             TypedArray typeArray = obtainStyledAttributes(R.styleable.main_gallery);
             itemBackground = typeArray.getResourceId(R.styleable.main_gallery_android_galleryItemBackground, 0);
             typeArray.recycle();
@@ -572,7 +655,7 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
 
         @Override
         public int getCount() {
-            return mDirectories.size() + 1;
+            return mPanos.size() + 1;
         }
 
         @Override
@@ -586,29 +669,29 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
         }
 
         /**
-         * Generates tumbnails for past panoramas
+         * Shows the tumbnails of past panoramas, which load in the background
          */
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            ImageView panos = new ImageView (mContext);
-            Bitmap result = null;
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = 8;
+            ImageView panos;
+            if (convertView instanceof ImageView) {
+                panos = (ImageView) convertView;
+            } else {
+                panos = new ImageView (mContext);
+                panos.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
+                panos.setLayoutParams(new Gallery.LayoutParams(ThumbnailCache.THUMBNAIL_SIZE,
+                                                               ThumbnailCache.THUMBNAIL_SIZE));
+                panos.setBackgroundResource(itemBackground);
+            }
             // initialize our new pano image view
             if (position == 0) {
-                result = BitmapFactory.decodeResource(getResources(), R.drawable.ic_add, options);
+                mThumbnails.cancel(panos);
+                panos.setImageBitmap(mAddIcon);
             }
             // otherwise initialize the sorted panorama's
             else {
-                File f = getDirImage(position-1);
-                if (f != null) {
-                    result = BitmapFactory.decodeFile(f.getAbsolutePath(), options);
-                }
+                mThumbnails.load(mPanos.get(position - 1).folder, panos);
             }
-            panos.setImageBitmap(result);
-            panos.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
-            panos.setLayoutParams(new Gallery.LayoutParams(150, 150));
-            panos.setBackgroundResource(itemBackground);
             return panos;
         }
 
@@ -667,24 +750,19 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
     }
 
     /**
-     * Refreshes the list of current folders used to build the gallery view
+     * Refreshes the list of current folders used to build the gallery view, only the folders
+     * changed since the last time are listed
      */
     private void updateFolders() {
         File storage = new File(mDirPath);
         if (!storage.exists()) storage.mkdirs();
-        File[] contents = storage.listFiles();
-        mDirectories = new ArrayList<File>();
-
-        for (int i = 0; i < contents.length; i++) {
-            if (contents[i].isDirectory()) {
-                mDirectories.add(contents[i]);
-            }
-        }
+        mPanos = mCatalog.refresh();
     }
 
     private void deletePano() {
-        File folder = mDirectories.get(mGalleryLongClick-1);
+        File folder = mPanos.get(mGalleryLongClick-1).folder;
         deleteFolder(folder);
+        mCatalog.remove(folder);
         updateFolders();
         int refresh = 0;
         if (mGalleryImage < mGalleryLongClick) refresh = mGalleryImage;
@@ -714,14 +792,7 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
      * @return The number of images.
      */
     private int getDirCount(int index) {
-        class FileNameF implements FilenameFilter {
-            public boolean accept(File dir, String name) {
-                return (name.startsWith(mImagePrefix) && name.endsWith(smallType));
-            }
-        }
-        FilenameFilter filter = new FileNameF();
-        File[] contents = mDirectories.get(index).listFiles(filter);
-        return contents.length;
+        return mPanos.get(index).imageCount;
     }
 
     /**
@@ -730,21 +801,7 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
      * @return the File
      */
     private File getDirImage(int index) {
-        File[] contents = mDirectories.get(index).listFiles();
-        int hasResult = -1;
-        int hasFirst = -1;
-        for (int i = 0; i < contents.length; i++) {
-            if (contents[i].isFile()) {
-                if (contents[i].getName().equals(mOutputImage)) hasResult = i;
-                else if (contents[i].getName().equals(mImagePrefix + 1 + smallType)) hasFirst = i;
-            }
-        }
-        if ((hasResult < 0) && (hasFirst < 0)) {
-            return null;
-        }
-
-        if (hasResult >= 0) return contents[hasResult];
-        else return contents[hasFirst];
+        return mPanos.get(index).image;
     }
 
     /**
@@ -36,13 +36,22 @@ import android.view.WindowManager;
 public class PanoCamera extends Activity {
     public static final String  EXTRA_DIR_PATH        = "dirPath";
     public static final String  EXTRA_FILE_NAME       = "name";
+    public static final String  EXTRA_PREVIOUS_IMAGE  = "previousImage";
     public static final String  CAMERA_WIDTH          = "camera_width";
     public static final String  CAMERA_HEIGHT         = "camera_height";
+    public static final String  ANALYSIS_SCALE        = "analysis_scale";
+    // preview frames are analyzed at half their width and height unless set otherwise
+    public static final int     DEFAULT_ANALYSIS_SCALE = 2;
 
     public static final int     INTENT_TAKE_PICTURE   = 0;
 
     private String              mDirPath              = null;
     private String              mFileName             = null;
+    private String              mPreviousImage        = null;
+    private PoseSource          mPoseSource;
+    private final PoseRecorder  mPoseRecorder         = new PoseRecorder();
+    private long                mShotTime;
+    private float               mShotHfov;
 
     /** Called when the activity is first created. */
     @Override
@@ -53,14 +62,48 @@ public class PanoCamera extends Activity {
                 WindowManager.LayoutParams.FLAG_FULLSCREEN);
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
 
-        setContentView(new PanoSurfaceView(this, this));
-
         Bundle extras = getIntent().getExtras();
         if (extras != null) {
             mDirPath = extras.getString(PanoCamera.EXTRA_DIR_PATH);
             mFileName = extras.getString(PanoCamera.EXTRA_FILE_NAME);
+            mPreviousImage = extras.getString(PanoCamera.EXTRA_PREVIOUS_IMAGE);
         }
+
+        setContentView(new PanoSurfaceView(this, this));
+        mPoseSource = new SensorPoseSource(this);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mPoseRecorder.clear();
+        mPoseSource.start(mPoseRecorder);
+    }
+
+    @Override
+    public void onPause() {
+        mPoseSource.stop();
+        super.onPause();
+    }
+
+    /**
+     * Called by the shutter callback, remembers when and with which field of view the
+     * picture was taken so its pose can be looked up once it is saved
+     * @param hfov view angle across the width of the upright picture in degrees
+     */
+    public void onShutter(float hfov) {
+        mPoseRecorder.markShutter();
+        mShotTime = mPoseRecorder.getShutterTime();
+        mShotHfov = hfov;
     }
+
+    /**
+     * @return path to the previous shot of this panorama, or null for the first one
+     */
+    public String getPreviousImage() {
+        return mPreviousImage;
+    }
+
     public static int[] getCameraSize(Context context, int def_w, int def_h) {
         SharedPreferences settings = context.
                 getSharedPreferences(PanoActivity.SETTINGS, Context.MODE_PRIVATE);
@@ -70,6 +113,15 @@ public class PanoCamera extends Activity {
         size[1] = settings.getInt(PanoCamera.CAMERA_HEIGHT, def_h);
         return size;
     }
+
+    /**
+     * @return the factor (1, 2 or 4) by which preview frames are downscaled for analysis
+     */
+    public static int getAnalysisScale(Context context) {
+        SharedPreferences settings = context.
+                getSharedPreferences(PanoActivity.SETTINGS, Context.MODE_PRIVATE);
+        return settings.getInt(PanoCamera.ANALYSIS_SCALE, DEFAULT_ANALYSIS_SCALE);
+    }
     /**
      * Writes photo jpeg data to sdcard
      */
@@ -99,6 +151,11 @@ public class PanoCamera extends Activity {
                 } catch (java.io.IOException e) {
                     return Activity.RESULT_FIRST_USER;
                 }
+
+                // The stitcher uses the pose as a prior, a shot without one is still fine
+                long shotTime = mShotTime != 0 ? mShotTime : System.nanoTime();
+                mPoseRecorder.writePose(new File(mDirPath, StitchPipeline.POSE_MANIFEST),
+                        mFileName, shotTime, PanoActivity.SHOT_ROTATION, mShotHfov);
             }
 
             return Activity.RESULT_OK;
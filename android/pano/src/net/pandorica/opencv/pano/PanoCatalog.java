@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the panorama folders under the storage root, kept in a small text file so the
+ * gallery doesn't list every folder on every refresh. After a header with the root and its
+ * modification time, each line records a folder with its modification time, number of
+ * images and the image shown for it, tab separated:
+ *
+ *   name folder-mtime image-count image-name image-length image-mtime
+ *
+ * with "-" as the image name of a folder that has none yet. Adding or removing files
+ * changes a folder's modification time, so validating the index costs one stat per folder
+ * and only changed folders are listed again; the root itself is only listed when its own
+ * modification time changed. Results rewritten in place don't show in the folder time, so
+ * stitching updates the folder explicitly.
+ *
+ * Synchronized, the thumbnail thread reads it too.
+ */
+public class PanoCatalog {
+    private static final int    INDEX_VERSION         = 1;
+    private static final String NO_IMAGE              = "-";
+    private static final String SEPARATOR             = "\t";
+
+    /**
+     * What the index knows about a panorama folder
+     */
+    public static class Entry {
+        public final File folder;
+        public final long folderModified;
+        public final int imageCount;
+        // the stitched result, or else the first small image, null if neither exists
+        public final File image;
+        public final long imageLength;
+        public final long imageModified;
+
+        Entry(File folder, long folderModified, int imageCount, File image, long imageLength,
+                long imageModified) {
+            this.folder = folder;
+            this.folderModified = folderModified;
+            this.imageCount = imageCount;
+            this.image = image;
+            this.imageLength = imageLength;
+            this.imageModified = imageModified;
+        }
+    }
+
+    private final File          mRoot;
+    private final File          mIndex;
+    private final String        mImagePrefix;
+    private final String        mSmallType;
+    private final String        mResultName;
+    private long                mRootModified         = -1;
+    // sorted by folder name, which is the capture date
+    private final List<Entry>   mEntries              = new ArrayList<Entry>();
+
+    /**
+     * @param root the storage folder holding one folder per panorama
+     * @param index where the index is kept, outside of root so writing it doesn't change the
+     *        modification time of root
+     * @param imagePrefix name of the images before their number
+     * @param smallType extension of the small copies the stitch uses
+     * @param resultName file name of the stitched result
+     */
+    public PanoCatalog(File root, File index, String imagePrefix, String smallType,
+            String resultName) {
+        mRoot = root;
+        mIndex = index;
+        mImagePrefix = imagePrefix;
+        mSmallType = smallType;
+        mResultName = resultName;
+    }
+
+    /**
+     * Brings the entries up to date with the storage, reading the index file the first time
+     * and writing it back if anything changed
+     * @return the panoramas, oldest first
+     */
+    public synchronized List<Entry> refresh() {
+        if (mRootModified < 0) read();
+
+        boolean changed = false;
+        long rootModified = mRoot.lastModified();
+        if (rootModified != mRootModified) {
+            rescanRoot();
+            mRootModified = rootModified;
+            changed = true;
+        }
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.get(i);
+            if (entry.folder.lastModified() != entry.folderModified) {
+                mEntries.set(i, scan(entry.folder));
+                changed = true;
+            }
+        }
+        if (changed) write();
+        return getEntries();
+    }
+
+    /**
+     * @return the panoramas as of the last refresh or update
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(mEntries));
+    }
+
+    /**
+     * @return the entry of folder, or null if it isn't a known panorama
+     */
+    public synchronized Entry find(File folder) {
+        int i = indexOf(folder);
+        return i < 0 ? null : mEntries.get(i);
+    }
+
+    /**
+     * Lists folder again, after a capture or stitch in it, and adds it if it is new
+     */
+    public synchronized void update(File folder) {
+        if (!folder.isDirectory()) {
+            remove(folder);
+            return;
+        }
+        Entry entry = scan(folder);
+        int i = indexOf(folder);
+        if (i >= 0) {
+            mEntries.set(i, entry);
+        } else {
+            mEntries.add(-i - 1, entry);
+        }
+        write();
+    }
+
+    /**
+     * Drops a deleted folder
+     */
+    public synchronized void remove(File folder) {
+        int i = indexOf(folder);
+        if (i < 0) return;
+        mEntries.remove(i);
+        write();
+    }
+
+    /**
+     * @return the position of folder, or -(insertion point) - 1
+     */
+    private int indexOf(File folder) {
+        String name = folder.getName();
+        int low = 0;
+        int high = mEntries.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = mEntries.get(mid).folder.getName().compareTo(name);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Adds the new folders of the root and drops the gone ones, keeping the known entries
+     */
+    private void rescanRoot() {
+        File[] contents = mRoot.listFiles();
+        if (contents == null) contents = new File[0];
+        Map<String, Entry> known = new HashMap<String, Entry>();
+        for (Entry entry : mEntries) {
+            known.put(entry.folder.getName(), entry);
+        }
+
+        mEntries.clear();
+        for (File f : contents) {
+            // hidden folders hold caches, like the stitch LUTs
+            if (!f.isDirectory() || f.getName().startsWith(".")) continue;
+            Entry entry = known.get(f.getName());
+            mEntries.add(entry != null ? entry : scan(f));
+        }
+        Collections.sort(mEntries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.folder.getName().compareTo(b.folder.getName());
+            }
+        });
+    }
+
+    /**
+     * Lists one panorama folder
+     */
+    private Entry scan(File folder) {
+        long modified = folder.lastModified();
+        File[] contents = folder.listFiles();
+        if (contents == null) contents = new File[0];
+
+        int count = 0;
+        File result = null;
+        File first = null;
+        for (File f : contents) {
+            String name = f.getName();
+            if (name.equals(mResultName)) {
+                result = f;
+            } else if (name.startsWith(mImagePrefix) && name.endsWith(mSmallType)) {
+                count++;
+                if (name.equals(mImagePrefix + 1 + mSmallType)) first = f;
+            }
+        }
+        File image = result != null ? result : first;
+        if (image == null) return new Entry(folder, modified, count, null, 0, 0);
+        return new Entry(folder, modified, count, image, image.length(), image.lastModified());
+    }
+
+    private void read() {
+        mEntries.clear();
+        mRootModified = 0;
+        if (!mIndex.exists()) return;
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(mIndex));
+            try {
+                // a root changed in the settings starts over
+                String[] header = in.readLine().split(SEPARATOR);
+                if (Integer.parseInt(header[0]) != INDEX_VERSION
+                        || !header[1].equals(mRoot.getAbsolutePath())) {
+                    return;
+                }
+                long rootModified = Long.parseLong(header[2]);
+
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(SEPARATOR);
+                    File folder = new File(mRoot, fields[0]);
+                    File image = fields[3].equals(NO_IMAGE) ? null : new File(folder, fields[3]);
+                    mEntries.add(new Entry(folder, Long.parseLong(fields[1]),
+                            Integer.parseInt(fields[2]), image, Long.parseLong(fields[4]),
+                            Long.parseLong(fields[5])));
+                }
+                mRootModified = rootModified;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            mEntries.clear();
+        } catch (RuntimeException e) {
+            // damaged, rebuilt from the folders
+            mEntries.clear();
+        }
+    }
+
+    private void write() {
+        File tmp = new File(mIndex.getPath() + ".tmp");
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(tmp));
+            try {
+                out.println(INDEX_VERSION + SEPARATOR + mRoot.getAbsolutePath() + SEPARATOR
+                        + mRootModified);
+                for (Entry entry : mEntries) {
+                    out.println(entry.folder.getName() + SEPARATOR + entry.folderModified
+                            + SEPARATOR + entry.imageCount + SEPARATOR
+                            + (entry.image == null ? NO_IMAGE : entry.image.getName())
+                            + SEPARATOR + entry.imageLength + SEPARATOR + entry.imageModified);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mIndex)) tmp.delete();
+        } catch (IOException e) {
+            // the next run rebuilds what it can't read
+            tmp.delete();
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.util.List;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PreviewCallback;
@@ -37,13 +38,21 @@ import android.view.View.OnClickListener;
  * Listens for on screen clicks and takes pictures.
  */
 public abstract class PanoSurfaceBase extends SurfaceView implements SurfaceHolder.Callback, Runnable, OnClickListener {
+    private static final String TAG                   = "OpenCV_Base";
+    // frames the camera can fill while the render thread works on another one
+    private static final int    NUM_PREVIEW_BUFFERS   = 3;
+    // how often the render thread checks whether it should stop
+    private static final long   FRAME_WAIT_NANOS      = 100000000L;
+
     private Camera              mCamera;
     private SurfaceHolder       mHolder;
     private int                 mFrameWidth;
     private int                 mFrameHeight;
-    private byte[]              mFrame;
-    private boolean             mThreadRun;
+    private final FrameExchanger<byte[]> mFrames = new FrameExchanger<byte[]>();
+    private byte[][]            mPreviewBuffers;
+    private volatile boolean    mThreadRun;
     private boolean             mCapturing;
+    private float               mViewAngle;
     private PanoCamera          mPanoClass;
     private Context             mContext;
 
@@ -73,6 +82,8 @@ public abstract class PanoSurfaceBase extends SurfaceView implements SurfaceHold
      */
     public void surfaceChanged(SurfaceHolder _holder, int format, int width, int height) {
         if (mCamera != null) {
+            // the preview size can't change while previewing
+            mCamera.stopPreview();
             Camera.Parameters params = mCamera.getParameters();
             List<Camera.Size> sizes = params.getSupportedPreviewSizes();
             mFrameWidth = width;
@@ -91,10 +102,45 @@ public abstract class PanoSurfaceBase extends SurfaceView implements SurfaceHold
             }
             params.setPreviewSize(getFrameWidth(), getFrameHeight());
             mCamera.setParameters(params);
+
+            createPreviewBuffers(getFrameWidth() * getFrameHeight()
+                    * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8);
             mCamera.startPreview();
         }
     }
 
+    /**
+     * Preview frames are written into a fixed set of buffers, which are handed back to the
+     * camera once drawn. Removing the callback empties the camera's queue, so each buffer is
+     * queued once. A new set is made, so a frame the render thread still holds is dropped
+     * rather than queued twice.
+     * @return the new buffers, which tests without a camera pass to the preview callback
+     */
+    synchronized byte[][] createPreviewBuffers(int bufferSize) {
+        if (mCamera != null) mCamera.setPreviewCallbackWithBuffer(null);
+        mFrames.clear();
+        mPreviewBuffers = new byte[NUM_PREVIEW_BUFFERS][bufferSize];
+        if (mCamera != null) {
+            mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+            for (byte[] buffer : mPreviewBuffers) {
+                mCamera.addCallbackBuffer(buffer);
+            }
+        }
+        return mPreviewBuffers;
+    }
+
+    /**
+     * Passes the newest frame to the render thread without ever blocking. A frame the render
+     * thread didn't get to is given back to the camera.
+     */
+    private final PreviewCallback mPreviewCallback = new PreviewCallback() {
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            if (data == null) return;
+            byte[] dropped = mFrames.publish(data);
+            if (dropped != null) camera.addCallbackBuffer(dropped);
+        }
+    };
+
     /**
      * Prepares surface and camera for previewing
      */
@@ -102,14 +148,6 @@ public abstract class PanoSurfaceBase extends SurfaceView implements SurfaceHold
         this.setOnClickListener(this);
         mCapturing = false;
         mCamera = Camera.open();
-        mCamera.setPreviewCallback(new PreviewCallback() {
-            public void onPreviewFrame(byte[] data, Camera camera) {
-                synchronized (PanoSurfaceBase.this) {
-                    mFrame = data;
-                    PanoSurfaceBase.this.notify();
-                }
-            }
-        });
         (new Thread(this)).start();
     }
 
@@ -121,13 +159,18 @@ public abstract class PanoSurfaceBase extends SurfaceView implements SurfaceHold
         if (mCamera != null) {
             synchronized (this) {
                 mCamera.stopPreview();
-                mCamera.setPreviewCallback(null);
+                mCamera.setPreviewCallbackWithBuffer(null);
                 mCamera.release();
                 mCamera = null;
+                mFrames.clear();
             }
         }
     }
 
+    /**
+     * Converts a preview frame for drawing. The returned bitmap belongs to the
+     * subclass, which reuses it for the next frames.
+     */
     protected abstract Bitmap processFrame(byte[] data);
 
     /**
@@ -135,16 +178,22 @@ public abstract class PanoSurfaceBase extends SurfaceView implements SurfaceHold
      */
     public void run() {
         mThreadRun = true;
+
         while (mThreadRun) {
-            Bitmap bmp = null;
+            byte[] frame = mFrames.take(FRAME_WAIT_NANOS);
+            if (frame == null) continue;
 
+            // Only keeps the surface callbacks from swapping the camera and the Mats meanwhile,
+            // the camera thread never waits for this
+            Bitmap bmp;
             synchronized (this) {
-                try {
-                    this.wait();
-                    bmp = processFrame(mFrame);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                // a frame from before the last surface change has the old size
+                if (!isPreviewBuffer(frame)) {
+                    mFrames.discard();
+                    continue;
                 }
+                bmp = processFrame(frame);
+                if (mCamera != null) mCamera.addCallbackBuffer(frame);
             }
 
             if (bmp != null) {
@@ -153,11 +202,44 @@ public abstract class PanoSurfaceBase extends SurfaceView implements SurfaceHold
                     canvas.drawBitmap(bmp, (canvas.getWidth() - getFrameWidth()) / 2, (canvas.getHeight() - getFrameHeight()) / 2, null);
                     mHolder.unlockCanvasAndPost(canvas);
                 }
-                bmp.recycle();
             }
         }
+        Log.d(TAG, "Preview frames: " + mFrames.getProducedCount() + " produced, "
+                + mFrames.getProcessedCount() + " processed, " + mFrames.getDroppedCount() + " dropped");
+    }
+
+    private boolean isPreviewBuffer(byte[] frame) {
+        if (mPreviewBuffers == null) return false;
+        for (byte[] buffer : mPreviewBuffers) {
+            if (buffer == frame) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the callback the camera passes preview frames to
+     */
+    PreviewCallback getPreviewCallback() {
+        return mPreviewCallback;
+    }
+
+    /**
+     * @return the exchanger passing preview frames to the render thread, for its counters
+     */
+    public FrameExchanger<byte[]> getFrameExchanger() {
+        return mFrames;
     }
 
+    /**
+     * Lets the Camera Activity note the time and field of view of the picture
+     */
+    Camera.ShutterCallback shutterCallback = new Camera.ShutterCallback() {
+
+        public void onShutter() {
+            mPanoClass.onShutter(mViewAngle);
+        }
+    };
+
     /**
      * Passes jpeg data to the Camera Activity for saving
      */
@@ -177,17 +259,19 @@ public abstract class PanoSurfaceBase extends SurfaceView implements SurfaceHold
         if ((mCamera != null) && (!mCapturing)) {
             mCapturing = true;
             mCamera.stopPreview();
-            mCamera.setPreviewCallback(null);
+            mCamera.setPreviewCallbackWithBuffer(null);
             Parameters params = mCamera.getParameters();
             Size defaultSize = params.getSupportedPictureSizes().get(0);
             int[] size = PanoCamera.getCameraSize(mContext, defaultSize.width, defaultSize.height);
-            Log.d("OpenCV_Base", "Size is " + size[0] + "x" + size[1]);
+            Log.d(TAG, "Size is " + size[0] + "x" + size[1]);
             params.setPictureSize(size[0], size[1]);
             mCamera.setParameters(params);
+            // the pictures are stitched upright, across which the sensor's height lies
+            mViewAngle = params.getVerticalViewAngle();
             try {
                 mCamera.setPreviewDisplay(null);
                 mCamera.startPreview();
-                mCamera.takePicture(null, null, jpegCallback);
+                mCamera.takePicture(shutterCallback, null, jpegCallback);
             } catch (IOException e) {
                 // Camera is unavailable, don't take a picture
                 // TODO: alert user
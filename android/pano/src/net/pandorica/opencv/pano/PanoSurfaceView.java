@@ -16,31 +16,65 @@
 
 package net.pandorica.opencv.pano;
 
-import org.opencv.android;
 import org.opencv.core.Mat;
 import org.opencv.core.CvType;
-import org.opencv.imgproc.Imgproc;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.SystemClock;
 import android.view.SurfaceHolder;
 
 /**
- * Does frame by frame computations. Currently only converts from YUV to RGB
+ * Does frame by frame computations. Converts from YUV to RGB and, once a shot was taken,
+ * shows how much the preview overlaps it and where it lies
  */
 class PanoSurfaceView extends PanoSurfaceBase {
-    private Mat mYuv;
-    private Mat mRgba;
-    private Mat mGraySubmat;
-    private Mat mIntermediateMat;
-    private Mat mComparisonMat;
+    // overlap estimation is much slower than drawing a frame, so it runs at a bounded rate
+    private static final long   GUIDANCE_INTERVAL_MS  = 200;
+    // an estimate this old is no longer drawn
+    private static final long   GUIDANCE_TIMEOUT_MS   = 1000;
+    private static final float  MIN_OVERLAP           = 0.25f;
+    private static final float  MAX_OVERLAP           = 0.6f;
+    private static final int    NUM_RESULTS           = 4;
+
+    private static final String[] OVERLAP_LABELS      = new String[101];
+    static {
+        for (int i = 0; i < OVERLAP_LABELS.length; i++) {
+            OVERLAP_LABELS[i] = i + "%";
+        }
+    }
+
+    // downscaled luma the per-frame analysis works on, the display stays at full size
+    private Mat mAnalysis;
+    private final int mAnalysisScale;
+    private Bitmap mBitmap;
+    private Canvas mOverlayCanvas;
+
+    private final String  mReferencePath;
+    private boolean       mReferenceLoaded;
+    private final float[] mGuidance               = new float[NUM_RESULTS];
+    private long          mLastEstimate;
+    private long          mLastGuidance;
+    private final Paint   mFramePaint             = new Paint();
+    private final Paint   mTextPaint              = new Paint();
 
     public PanoSurfaceView(Context context, PanoCamera cls) {
         super(context, cls);
+        mReferencePath = cls.getPreviousImage();
+        mAnalysisScale = PanoCamera.getAnalysisScale(context);
+
+        mFramePaint.setStyle(Paint.Style.STROKE);
+        mFramePaint.setStrokeWidth(4);
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTextSize(32);
+        mTextPaint.setAntiAlias(true);
     }
 
     /**
-     * Builds the Mat's used to process the data (pre mat to bitmap)
+     * Builds the analysis Mat and the bitmap the frames are drawn to
      */
     @Override
     public void surfaceChanged(SurfaceHolder _holder, int format, int width, int height) {
@@ -48,38 +82,83 @@ class PanoSurfaceView extends PanoSurfaceBase {
 
         synchronized (this) {
             // initialize Mats before usage
-            mYuv = new Mat(getFrameHeight() + getFrameHeight() / 2, getFrameWidth(), CvType.CV_8UC1);
-            mGraySubmat = mYuv.submat(0, getFrameHeight(), 0, getFrameWidth());
-
-            mRgba = new Mat();
-            mIntermediateMat = new Mat();
-            mComparisonMat = new Mat();
+            if (mAnalysis != null) mAnalysis.dispose();
+            mAnalysis = new Mat(getFrameHeight() / mAnalysisScale, getFrameWidth() / mAnalysisScale,
+                    CvType.CV_8UC1);
+
+            // one bitmap is drawn for every frame
+            if (mBitmap == null || mBitmap.getWidth() != getFrameWidth()
+                    || mBitmap.getHeight() != getFrameHeight()) {
+                if (mBitmap != null) mBitmap.recycle();
+                mBitmap = Bitmap.createBitmap(getFrameWidth(), getFrameHeight(), Bitmap.Config.ARGB_8888);
+                mOverlayCanvas = new Canvas(mBitmap);
+            }
         }
     }
 
     /**
-     * Processes each preview frame; currently only converts it to RGB
+     * Processes each preview frame; converts it to RGB and draws the overlap guidance over it.
+     * The frame is converted natively straight into the bitmap's pixels, and its luma is only
+     * downscaled for analysis when the guidance needs it. Doesn't allocate anything, the Mats
+     * and the bitmap are reused from frame to frame.
      */
     @Override
     protected Bitmap processFrame(byte[] data) {
-        mYuv.put(0, 0, data);
-        Imgproc.cvtColor(mYuv, mRgba, Imgproc.COLOR_YUV420i2RGB, 4);
-
-        /*
-            Imgproc.cvtColor(mYuv, mRgba, Imgproc.COLOR_YUV420i2RGB, 4);
-            mComparisonMat = Highgui.imread("/mnt/sdcard/DCIM/Camera/IMG_20110727_173249.jpg");
-            FindFeatures(mGraySubmat.getNativeObjAddr(), mRgba.getNativeObjAddr(), mComparisonMat.getNativeObjAddr());
-        */
+        if (mAnalysis == null || mBitmap == null) return null;
 
-        Bitmap bmp = Bitmap.createBitmap(getFrameWidth(), getFrameHeight(), Bitmap.Config.ARGB_8888);
+        updateGuidance(data);
 
-        if (android.MatToBitmap(mRgba, bmp))
-            return bmp;
+        if (ConvertPreview(data, mBitmap)) {
+            drawGuidance();
+            return mBitmap;
+        }
 
-        bmp.recycle();
         return null;
     }
 
+    /**
+     * Estimates the overlap of the current frame with the previous shot, at most every
+     * GUIDANCE_INTERVAL_MS. The shot is loaded on the first frame and its features are
+     * extracted once, at the analysis resolution.
+     */
+    private void updateGuidance(byte[] data) {
+        if (mReferencePath == null) return;
+        long now = SystemClock.uptimeMillis();
+        if (!mReferenceLoaded) {
+            mReferenceLoaded = true;
+            if (!SetReference(mReferencePath)) return;
+        }
+        if (now - mLastEstimate < GUIDANCE_INTERVAL_MS) return;
+        mLastEstimate = now;
+
+        if (!DecimateLuma(data, getFrameWidth(), getFrameHeight(), mAnalysis.getNativeObjAddr()))
+            return;
+        if (EstimateOverlap(mAnalysis.getNativeObjAddr(), mGuidance)) {
+            mLastGuidance = now;
+        }
+    }
+
+    /**
+     * Outlines where the previous shot lies in the frame and prints the overlap, green when
+     * it is good for stitching and red otherwise
+     */
+    private void drawGuidance() {
+        if (mLastGuidance == 0
+                || SystemClock.uptimeMillis() - mLastGuidance > GUIDANCE_TIMEOUT_MS) return;
+
+        float overlap = mGuidance[0];
+        int width = mBitmap.getWidth();
+        int height = mBitmap.getHeight();
+        float left = mGuidance[1] * width;
+        float top = mGuidance[2] * height;
+
+        mFramePaint.setColor(overlap >= MIN_OVERLAP && overlap <= MAX_OVERLAP ?
+                Color.GREEN : Color.RED);
+        mOverlayCanvas.drawRect(left, top, left + width, top + height, mFramePaint);
+        mOverlayCanvas.drawText(OVERLAP_LABELS[Math.round(overlap * 100)],
+                mTextPaint.getTextSize(), mTextPaint.getTextSize() * 1.5f, mTextPaint);
+    }
+
     /**
      * Initializes new and cleans old frames
      */
@@ -89,38 +168,56 @@ class PanoSurfaceView extends PanoSurfaceBase {
 
         synchronized (this) {
             // Explicitly deallocate Mats
-            if (mYuv != null)
-                mYuv.dispose();
-            if (mRgba != null)
-                mRgba.dispose();
-            if (mGraySubmat != null)
-                mGraySubmat.dispose();
-            if (mIntermediateMat != null)
-                mIntermediateMat.dispose();
-            if (mComparisonMat != null)
-                mComparisonMat.dispose();
-
-            mYuv = null;
-            mRgba = null;
-            mGraySubmat = null;
-            mIntermediateMat = null;
-            mComparisonMat = null;
+            if (mAnalysis != null)
+                mAnalysis.dispose();
+            if (mBitmap != null)
+                mBitmap.recycle();
+
+            mAnalysis = null;
+            mBitmap = null;
+            mOverlayCanvas = null;
         }
     }
 
     /**
-     * Compares the current frame (matAddrGr) against a given Mat (matComp) and draws the
-     * comparison onto matAddrRgba
-     * @param matAddrGr
-     * @param matAddrRgba
-     * @param matComp
+     * Converts an NV21 preview frame into an ARGB_8888 bitmap of the same size
+     * @param data the frame
+     * @param bitmap receives the frame's pixels
+     * @return false if the bitmap doesn't match the frame
+     */
+    public native boolean ConvertPreview(byte[] data, Bitmap bitmap);
+
+    /**
+     * Downscales the luma of an NV21 preview frame for analysis
+     * @param data the frame
+     * @param width the frame's width
+     * @param height the frame's height
+     * @param matAddrDst receives the downscaled luma, at its current size
+     * @return false if the frame is too small or the Mat isn't set up
+     */
+    public native boolean DecimateLuma(byte[] data, int width, int height, long matAddrDst);
+
+    /**
+     * Loads the previous shot, which later frames are compared to
+     * @param path the shot's small png
+     * @return false if it couldn't be read
+     */
+    public native boolean SetReference(String path);
+
+    /**
+     * Estimates how the current frame overlaps the previous shot
+     * @param matAddrGr the frame's downscaled luma
+     * @param result receives the overlap as a fraction of the frame, the shot's shift in the
+     * frame as fractions of its width and height, and the number of consistent matches
+     * @return false if there weren't enough consistent matches
      */
-    public native void FindFeatures(long matAddrGr, long matAddrRgba, long matComp);
+    public native boolean EstimateOverlap(long matAddrGr, float[] result);
 
     /**
      * Loads native libraries
      */
     static {
         System.loadLibrary("feature_comparison");
+        System.loadLibrary("preview_convert");
     }
 }
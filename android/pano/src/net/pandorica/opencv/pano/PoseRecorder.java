@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Keeps the latest orientation samples in a ring buffer of primitives, so recording doesn't
+ * allocate, and looks up the orientation at the time a picture was taken. Poses go to the
+ * manifest read by the stitcher, as quaternions in its camera and world conventions.
+ */
+public class PoseRecorder implements PoseSource.Listener {
+    // a couple of seconds at the rate of SENSOR_DELAY_FASTEST
+    public static final int     DEFAULT_CAPACITY      = 512;
+    // samples further than this from a picture don't tell its pose
+    private static final long   MAX_SAMPLE_GAP_NANOS  = 100000000L;
+
+    // Camera coordinates (x right, y down, z along the optical axis) of the back camera into
+    // device coordinates, with the device held in landscape with its top to the left
+    private static final float[] DEVICE_FROM_CAMERA   = {  0, -1,  0,
+                                                          -1,  0,  0,
+                                                           0,  0, -1 };
+    // Sensor world (x east, y north, z up) into the stitcher's (x east, y down, z north)
+    private static final float[] STITCH_FROM_WORLD    = {  1,  0,  0,
+                                                           0,  0, -1,
+                                                           0,  1,  0 };
+
+    private final long[]        mTimes;
+    private final float[]       mQuaternions;
+    private int                 mNext;
+    private int                 mCount;
+    private volatile long       mShutterTime;
+
+    public PoseRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PoseRecorder(int capacity) {
+        mTimes = new long[capacity];
+        mQuaternions = new float[capacity * 4];
+    }
+
+    public synchronized void onPose(long timeNanos, float qw, float qx, float qy, float qz) {
+        mTimes[mNext] = timeNanos;
+        int i = mNext * 4;
+        mQuaternions[i] = qw;
+        mQuaternions[i + 1] = qx;
+        mQuaternions[i + 2] = qy;
+        mQuaternions[i + 3] = qz;
+        mNext = (mNext + 1) % mTimes.length;
+        if (mCount < mTimes.length) mCount++;
+    }
+
+    public synchronized void clear() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Remembers now as the time the next picture is taken, call it from the shutter callback
+     */
+    public void markShutter() {
+        mShutterTime = System.nanoTime();
+    }
+
+    /**
+     * @return the time passed to the last markShutter(), or 0
+     */
+    public long getShutterTime() {
+        return mShutterTime;
+    }
+
+    /**
+     * Interpolates the device orientation at the given time between the samples around it
+     * @param q receives the device to world quaternion {w, x, y, z}
+     * @return false if no sample is close enough
+     */
+    public synchronized boolean devicePoseAt(long timeNanos, float[] q) {
+        if (mCount == 0) return false;
+
+        // newest sample first, samples arrive in time order
+        int after = -1;
+        int before = -1;
+        for (int n = 1; n <= mCount; n++) {
+            int i = (mNext - n + mTimes.length) % mTimes.length;
+            if (mTimes[i] <= timeNanos) {
+                before = i;
+                break;
+            }
+            after = i;
+        }
+
+        if (before < 0 || after < 0) {
+            int nearest = before >= 0 ? before : after;
+            if (Math.abs(mTimes[nearest] - timeNanos) > MAX_SAMPLE_GAP_NANOS) return false;
+            System.arraycopy(mQuaternions, nearest * 4, q, 0, 4);
+            return true;
+        }
+        if (mTimes[after] - mTimes[before] > 2 * MAX_SAMPLE_GAP_NANOS) return false;
+
+        // normalized linear interpolation, the samples are close together
+        float t = (float) (timeNanos - mTimes[before]) / (mTimes[after] - mTimes[before]);
+        int a = before * 4;
+        int b = after * 4;
+        float dot = 0;
+        for (int k = 0; k < 4; k++) dot += mQuaternions[a + k] * mQuaternions[b + k];
+        float sign = dot < 0 ? -1 : 1;
+        float norm = 0;
+        for (int k = 0; k < 4; k++) {
+            q[k] = (1 - t) * mQuaternions[a + k] + t * sign * mQuaternions[b + k];
+            norm += q[k] * q[k];
+        }
+        norm = (float) Math.sqrt(norm);
+        for (int k = 0; k < 4; k++) q[k] /= norm;
+        return true;
+    }
+
+    /**
+     * Orientation of the camera at the given time, in the stitcher's conventions
+     * @param rotation clockwise rotation turning the picture upright, as the --rotate flag.
+     * The pose is the one of the upright picture, which is what the stitcher is given.
+     * @param q receives the camera to world quaternion {w, x, y, z}
+     * @return false if no sample is close enough
+     */
+    public boolean cameraPoseAt(long timeNanos, int rotation, float[] q) {
+        float[] device = new float[4];
+        if (!devicePoseAt(timeNanos, device)) return false;
+
+        // turning the picture clockwise turns its camera coordinates by Rz(-rotation)
+        double angle = Math.toRadians(-rotation);
+        float c = (float) Math.cos(angle);
+        float s = (float) Math.sin(angle);
+        float[] cameraFromUpright = { c, -s, 0,
+                                      s,  c, 0,
+                                      0,  0, 1 };
+
+        float[] matrix = new float[9];
+        float[] product = new float[9];
+        quaternionToMatrix(device, matrix);
+        multiply(STITCH_FROM_WORLD, matrix, product);
+        multiply(product, DEVICE_FROM_CAMERA, matrix);
+        multiply(matrix, cameraFromUpright, product);
+        matrixToQuaternion(product, q);
+        return true;
+    }
+
+    /**
+     * Appends the camera pose at the given time to a pose manifest
+     * @param manifest the manifest, see StitchPipeline.POSE_MANIFEST
+     * @param imageName file name of the picture
+     * @param rotation clockwise rotation turning the picture upright, as the --rotate flag
+     * @param hfov field of view across the width of the upright picture in degrees, or 0
+     * if unknown
+     * @return false if the pose is unknown or couldn't be written
+     */
+    public boolean writePose(File manifest, String imageName, long timeNanos, int rotation,
+            float hfov) {
+        float[] q = new float[4];
+        if (!cameraPoseAt(timeNanos, rotation, q)) return false;
+
+        StringBuilder line = new StringBuilder(imageName);
+        line.append(" qw ").append(q[0]).append(" qx ").append(q[1])
+                .append(" qy ").append(q[2]).append(" qz ").append(q[3]);
+        if (hfov > 0) line.append(" hfov ").append(hfov);
+        line.append('\n');
+
+        try {
+            FileWriter writer = new FileWriter(manifest, true);
+            try {
+                writer.write(line.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Converts a row major rotation matrix into a unit quaternion {w, x, y, z}
+     */
+    public static void matrixToQuaternion(float[] m, float[] q) {
+        float trace = m[0] + m[4] + m[8];
+        if (trace > 0) {
+            float s = (float) Math.sqrt(trace + 1) * 2;
+            q[0] = 0.25f * s;
+            q[1] = (m[7] - m[5]) / s;
+            q[2] = (m[2] - m[6]) / s;
+            q[3] = (m[3] - m[1]) / s;
+        } else if (m[0] > m[4] && m[0] > m[8]) {
+            float s = (float) Math.sqrt(1 + m[0] - m[4] - m[8]) * 2;
+            q[0] = (m[7] - m[5]) / s;
+            q[1] = 0.25f * s;
+            q[2] = (m[1] + m[3]) / s;
+            q[3] = (m[2] + m[6]) / s;
+        } else if (m[4] > m[8]) {
+            float s = (float) Math.sqrt(1 + m[4] - m[0] - m[8]) * 2;
+            q[0] = (m[2] - m[6]) / s;
+            q[1] = (m[1] + m[3]) / s;
+            q[2] = 0.25f * s;
+            q[3] = (m[5] + m[7]) / s;
+        } else {
+            float s = (float) Math.sqrt(1 + m[8] - m[0] - m[4]) * 2;
+            q[0] = (m[3] - m[1]) / s;
+            q[1] = (m[2] + m[6]) / s;
+            q[2] = (m[5] + m[7]) / s;
+            q[3] = 0.25f * s;
+        }
+    }
+
+    /**
+     * Converts a unit quaternion {w, x, y, z} into a row major rotation matrix
+     */
+    public static void quaternionToMatrix(float[] q, float[] m) {
+        float w = q[0], x = q[1], y = q[2], z = q[3];
+        m[0] = 1 - 2 * (y * y + z * z);
+        m[1] = 2 * (x * y - z * w);
+        m[2] = 2 * (x * z + y * w);
+        m[3] = 2 * (x * y + z * w);
+        m[4] = 1 - 2 * (x * x + z * z);
+        m[5] = 2 * (y * z - x * w);
+        m[6] = 2 * (x * z - y * w);
+        m[7] = 2 * (y * z + x * w);
+        m[8] = 1 - 2 * (x * x + y * y);
+    }
+
+    private static void multiply(float[] a, float[] b, float[] out) {
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                out[r * 3 + c] = a[r * 3] * b[c] + a[r * 3 + 1] * b[3 + c] + a[r * 3 + 2] * b[6 + c];
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+/**
+ * Delivers device orientation samples. Implemented on top of the sensors on a device, and
+ * by TracePoseSource to replay recorded samples anywhere.
+ */
+public interface PoseSource {
+
+    /**
+     * Receives orientation samples, possibly on another thread
+     */
+    public interface Listener {
+        /**
+         * @param timeNanos System.nanoTime() when the sample was taken
+         * @param qw
+         * @param qx
+         * @param qy
+         * @param qz unit quaternion rotating device coordinates (x right, y up and z out of
+         * the screen, in the natural orientation) into the world (x east, y north, z up)
+         */
+        void onPose(long timeNanos, float qw, float qx, float qy, float qz);
+    }
+
+    /**
+     * Starts delivering samples to listener
+     * @return false if no orientation is available
+     */
+    boolean start(Listener listener);
+
+    /**
+     * Stops delivering samples
+     */
+    void stop();
+}
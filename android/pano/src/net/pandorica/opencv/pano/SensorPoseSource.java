@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.util.Log;
+
+/**
+ * Reads the device orientation from the rotation vector sensor, which fuses the gyroscope
+ * when there is one. Falls back to the accelerometer and the magnetic field sensor.
+ */
+public class SensorPoseSource implements PoseSource, SensorEventListener {
+    private static final String TAG                   = "OpenCV_Pose";
+    // Sensor.TYPE_ROTATION_VECTOR, only defined from API 9 on
+    private static final int    TYPE_ROTATION_VECTOR  = 11;
+
+    private final SensorManager mSensorManager;
+    private Listener            mListener;
+    private Sensor              mRotationSensor;
+    private final float[]       mGravity              = new float[3];
+    private final float[]       mGeomagnetic          = new float[3];
+    private boolean             mHasGravity;
+    private boolean             mHasGeomagnetic;
+    private final float[]       mRotation             = new float[9];
+    private final float[]       mQuaternion           = new float[4];
+
+    public SensorPoseSource(Context context) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+    }
+
+    public boolean start(Listener listener) {
+        mListener = listener;
+        mHasGravity = false;
+        mHasGeomagnetic = false;
+
+        mRotationSensor = mSensorManager.getDefaultSensor(TYPE_ROTATION_VECTOR);
+        if (mRotationSensor != null) {
+            return mSensorManager.registerListener(this, mRotationSensor,
+                    SensorManager.SENSOR_DELAY_FASTEST);
+        }
+
+        Log.d(TAG, "No rotation vector sensor, using the accelerometer and the compass");
+        Sensor accelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        Sensor magnetic = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        if (accelerometer == null || magnetic == null) return false;
+        boolean started = mSensorManager.registerListener(this, accelerometer,
+                SensorManager.SENSOR_DELAY_FASTEST);
+        started &= mSensorManager.registerListener(this, magnetic,
+                SensorManager.SENSOR_DELAY_FASTEST);
+        return started;
+    }
+
+    public void stop() {
+        mSensorManager.unregisterListener(this);
+        mListener = null;
+    }
+
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Samples are stamped when they arrive; sensor event timestamps don't share a time base
+     * with System.nanoTime() on every device.
+     */
+    public void onSensorChanged(SensorEvent event) {
+        Listener listener = mListener;
+        if (listener == null) return;
+        long now = System.nanoTime();
+
+        switch (event.sensor.getType()) {
+        case TYPE_ROTATION_VECTOR:
+            float x = event.values[0];
+            float y = event.values[1];
+            float z = event.values[2];
+            // the scalar part is only reported from API 18 on
+            float w = event.values.length > 3 ? event.values[3]
+                    : (float) Math.sqrt(Math.max(0, 1 - x * x - y * y - z * z));
+            listener.onPose(now, w, x, y, z);
+            return;
+        case Sensor.TYPE_ACCELEROMETER:
+            System.arraycopy(event.values, 0, mGravity, 0, 3);
+            mHasGravity = true;
+            break;
+        case Sensor.TYPE_MAGNETIC_FIELD:
+            System.arraycopy(event.values, 0, mGeomagnetic, 0, 3);
+            mHasGeomagnetic = true;
+            break;
+        default:
+            return;
+        }
+
+        if (mHasGravity && mHasGeomagnetic
+                && SensorManager.getRotationMatrix(mRotation, null, mGravity, mGeomagnetic)) {
+            PoseRecorder.matrixToQuaternion(mRotation, mQuaternion);
+            listener.onPose(now, mQuaternion[0], mQuaternion[1], mQuaternion[2], mQuaternion[3]);
+        }
+    }
+}
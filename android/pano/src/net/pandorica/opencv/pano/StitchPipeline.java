@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Runs the native stitcher as a sequence of stages. Results of each stage are kept in native
+ * memory, so changing a compositing option only re-runs the stages depending on it. The
+ * registration stages are also checkpointed to disk, so a killed stitch can be resumed.
+ */
+public class StitchPipeline {
+    public static final int STAGE_NONE     = 0;
+    public static final int STAGE_FEATURES = 1;
+    public static final int STAGE_MATCHES  = 2;
+    public static final int STAGE_CAMERAS  = 3;
+    public static final int STAGE_SEAMS    = 4;
+    public static final int STAGE_COMPOSED = 5;
+
+    /**
+     * Directory, relative to the panorama directory, holding the checkpoints
+     */
+    public static final String CHECKPOINT_DIR = ".stitch/";
+
+    /**
+     * Optional capture pose manifest in the panorama directory, written by PanTiltCapture
+     * from the head angles and by PanoCamera from the orientation sensors
+     */
+    public static final String POSE_MANIFEST = "poses.txt";
+
+    /**
+     * Directory, relative to the save path, holding the warping maps shared by
+     * all the panoramas
+     */
+    public static final String LUT_CACHE_DIR = ".luts";
+
+    private long mNativeObj = 0;
+
+    /**
+     * Creates a pipeline for the given images
+     * @param images paths of the images to stitch
+     * @param checkpointDir directory to store checkpoints in, or null to disable them
+     */
+    public StitchPipeline(List<String> images, String checkpointDir) {
+        if (checkpointDir != null) new File(checkpointDir).mkdirs();
+        mNativeObj = nativeCreate(images.toArray(new String[images.size()]), checkpointDir);
+    }
+
+    /**
+     * Sets a single stitcher flag, using the command line flag names, e.g. "--warp".
+     * Drops the results of all the stages depending on the flag.
+     * @param flag
+     * @param value value of the flag, or null for flags without a value
+     * @return false if the flag or its value is not recognized
+     */
+    public boolean setOption(String flag, String value) {
+        return nativeSetOption(mNativeObj, flag, value) >= 0;
+    }
+
+    /**
+     * Restores all checkpoints matching the current images and options
+     * @return the last completed stage
+     */
+    public int resume() {
+        return nativeResume(mNativeObj);
+    }
+
+    /**
+     * Runs all the remaining stages
+     * @return 0 on success
+     */
+    public int run() {
+        for (int stage = getStage() + 1; stage <= STAGE_COMPOSED; stage++) {
+            int ret = runStage(stage);
+            if (ret != 0) return ret;
+        }
+        return 0;
+    }
+
+    /**
+     * Runs a single stage. All previous stages must be completed.
+     * @param stage
+     * @return 0 on success
+     */
+    public int runStage(int stage) {
+        return nativeRunStage(mNativeObj, stage);
+    }
+
+    /**
+     * @return the last completed stage
+     */
+    public int getStage() {
+        return nativeGetStage(mNativeObj);
+    }
+
+    /**
+     * Frees the native stitcher. The pipeline can't be used afterwards.
+     */
+    public void release() {
+        if (mNativeObj != 0) {
+            nativeRelease(mNativeObj);
+            mNativeObj = 0;
+        }
+    }
+
+    /**
+     * Finds the features of a single image and caches them on disk, where the features stage
+     * picks them up. Must use the same work_megapix and rotation as the stitch.
+     * @param image path of the image
+     * @param workMegapix registration resolution
+     * @param rotation clockwise rotation turning the image upright, as the --rotate flag
+     * @return 0 on success
+     */
+    public static int precomputeFeatures(String image, double workMegapix, int rotation) {
+        return nativePrecomputeFeatures(image, workMegapix, rotation);
+    }
+
+    /**
+     * Tells whether a pose manifest comes from the pan/tilt head, whose poses are the same
+     * for every panorama, unlike the sensor quaternions of a handheld capture
+     * @param manifest pose manifest, which may not exist
+     * @return true if every pose is given by head angles
+     */
+    public static boolean hasFixedPoses(File manifest) {
+        if (!manifest.exists()) return false;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(manifest));
+            boolean any = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                if (!line.contains(" yaw ")) return false;
+                any = true;
+            }
+            return any;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes an image at a fraction of its size for the native stitcher, which can't. Jpegs
+     * are scaled in the decoder, so the full size image is never in memory.
+     * @param image path of the image
+     * @param sampleSize power of two the image is reduced by
+     * @return ARGB_8888 bitmap, or null if the image can't be decoded
+     */
+    private static Bitmap decodeReduced(String image, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return BitmapFactory.decodeFile(image, options);
+    }
+
+    private static native long nativeCreate(String[] images, String checkpointDir);
+    private static native int nativeSetOption(long self, String flag, String value);
+    private static native int nativeResume(long self);
+    private static native int nativeRunStage(long self, int stage);
+    private static native int nativeGetStage(long self);
+    private static native int nativePrecomputeFeatures(String image, double workMegapix,
+            int rotation);
+    private static native void nativeRelease(long self);
+
+    /**
+     * Loads Native Libraries
+     */
+    static {
+        System.load("/data/data/net.pandorica.opencv.pano/lib/libprecomp.so");
+        System.load("/data/data/net.pandorica.opencv.pano/lib/libutil.so");
+        System.load("/data/data/net.pandorica.opencv.pano/lib/libmatchers.so");
+        System.load("/data/data/net.pandorica.opencv.pano/lib/libautocalib.so");
+        System.load("/data/data/net.pandorica.opencv.pano/lib/libblenders.so");
+        System.load("/data/data/net.pandorica.opencv.pano/lib/libexposure_compensate.so");
+        System.load("/data/data/net.pandorica.opencv.pano/lib/libmotion_estimators.so");
+        System.load("/data/data/net.pandorica.opencv.pano/lib/libseam_finders.so");
+        System.load("/data/data/net.pandorica.opencv.pano/lib/libwarpers.so");
+        System.load("/data/data/net.pandorica.opencv.pano/lib/libopencv_stitcher.so");
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Process;
+import android.widget.ImageView;
+
+/**
+ * Gallery thumbnails of the panorama folders. Thumbnails are kept in memory up to a byte
+ * budget, least recently used first out, and as small jpegs on disk so a folder is only
+ * decoded in full once. Picking the image of a folder and decoding it happen on a
+ * background thread; the views are filled in on the main thread once they're ready.
+ *
+ * Everything but the work on the background thread has to be called from the main thread.
+ */
+public class ThumbnailCache {
+    public static final int     THUMBNAIL_SIZE        = 150;
+    private static final int    JPEG_QUALITY          = 85;
+    // part of the heap the thumbnails may use
+    private static final int    MEMORY_FRACTION       = 8;
+
+    /**
+     * Picks the image to show for a folder, called on the background thread
+     */
+    public interface ImageChooser {
+        /**
+         * @return the image, or null if the folder has none
+         */
+        File choose(File folder);
+    }
+
+    private final ImageChooser  mChooser;
+    private final File          mDiskDir;
+    private final long          mMaxBytes;
+    private final Handler       mHandler              = new Handler();
+    private final ExecutorService mExecutor;
+
+    // by key(), in access order
+    private final LinkedHashMap<String, Bitmap> mMemory =
+            new LinkedHashMap<String, Bitmap>(32, 0.75f, true);
+    private long                mBytes;
+    private final Map<ImageView, Request> mPending    = new HashMap<ImageView, Request>();
+
+    /**
+     * @param diskDir where the small jpegs go, such as a folder of the app cache
+     */
+    public ThumbnailCache(ImageChooser chooser, File diskDir) {
+        mChooser = chooser;
+        mDiskDir = diskDir;
+        mMaxBytes = Runtime.getRuntime().maxMemory() / MEMORY_FRACTION;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "ThumbnailCache");
+            }
+        });
+    }
+
+    /**
+     * Shows the thumbnail of folder in view, right away if it is in memory. Otherwise the
+     * view is cleared until it's loaded, and whatever it was waiting for is cancelled, as
+     * recycled views are.
+     */
+    public void load(File folder, ImageView view) {
+        String key = key(folder);
+        Request pending = mPending.get(view);
+        if (pending != null) {
+            if (pending.key.equals(key)) return;
+            pending.cancel();
+            mPending.remove(view);
+        }
+
+        Bitmap cached = mMemory.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+        view.setImageBitmap(null);
+        Request request = new Request(key, folder, view);
+        mPending.put(view, request);
+        request.future = mExecutor.submit(request);
+    }
+
+    /**
+     * Stops the view waiting for a thumbnail, for views that show something else now
+     */
+    public void cancel(ImageView view) {
+        Request pending = mPending.remove(view);
+        if (pending != null) pending.cancel();
+    }
+
+    /**
+     * Forgets the thumbnail of folder, for when its image was rewritten in place
+     */
+    public void invalidate(File folder) {
+        String prefix = folder.getAbsolutePath() + "@";
+        for (Iterator<Map.Entry<String, Bitmap>> i = mMemory.entrySet().iterator();
+                i.hasNext();) {
+            Map.Entry<String, Bitmap> entry = i.next();
+            if (entry.getKey().startsWith(prefix)) {
+                mBytes -= byteCount(entry.getValue());
+                i.remove();
+            }
+        }
+        final File thumbnail = diskFile(folder);
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                thumbnail.delete();
+            }
+        });
+    }
+
+    /**
+     * Drops the pending loads and the memory tier. The cache can't be used afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        mPending.clear();
+        mMemory.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Adding or renaming files in a folder changes its modification time, so that is enough
+     * to tell a new result apart without listing the folder here
+     */
+    private static String key(File folder) {
+        return folder.getAbsolutePath() + "@" + folder.lastModified();
+    }
+
+    private File diskFile(File folder) {
+        return new File(mDiskDir, Integer.toHexString(folder.getAbsolutePath().hashCode())
+                + ".jpg");
+    }
+
+    private static long byteCount(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private void put(String key, Bitmap bitmap) {
+        Bitmap previous = mMemory.put(key, bitmap);
+        if (previous != null) mBytes -= byteCount(previous);
+        mBytes += byteCount(bitmap);
+        for (Iterator<Bitmap> i = mMemory.values().iterator();
+                mBytes > mMaxBytes && i.hasNext();) {
+            // the views may still show it, so it isn't recycled
+            mBytes -= byteCount(i.next());
+            i.remove();
+        }
+    }
+
+    /**
+     * Loads the thumbnail from disk if it is newer than the image, otherwise decodes the
+     * image and writes the thumbnail
+     */
+    private Bitmap loadThumbnail(File folder) {
+        File image = mChooser.choose(folder);
+        if (image == null) return null;
+
+        File thumbnail = diskFile(folder);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        if (thumbnail.lastModified() >= image.lastModified()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getAbsolutePath(), options);
+            if (bitmap != null) return bitmap;
+        }
+
+        // only decode as many pixels as the thumbnail needs
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        int size = Math.max(options.outWidth, options.outHeight);
+        if (size <= 0) return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (size / (options.inSampleSize * 2) >= THUMBNAIL_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap decoded = BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+        if (decoded == null) return null;
+
+        float scale = Math.min(1.0f, (float) THUMBNAIL_SIZE
+                / Math.max(decoded.getWidth(), decoded.getHeight()));
+        Bitmap bitmap = decoded;
+        if (scale < 1.0f) {
+            bitmap = Bitmap.createScaledBitmap(decoded,
+                    Math.max(1, Math.round(decoded.getWidth() * scale)),
+                    Math.max(1, Math.round(decoded.getHeight() * scale)), true);
+            decoded.recycle();
+        }
+
+        mDiskDir.mkdirs();
+        try {
+            FileOutputStream out = new FileOutputStream(thumbnail);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // only costs a decode next time
+            thumbnail.delete();
+        }
+        return bitmap;
+    }
+
+    /**
+     * One view waiting for one thumbnail
+     */
+    private class Request implements Runnable {
+        final String key;
+        final File folder;
+        final ImageView view;
+        volatile boolean cancelled;
+        Future<?> future;
+
+        Request(String key, File folder, ImageView view) {
+            this.key = key;
+            this.folder = folder;
+            this.view = view;
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (future != null) future.cancel(false);
+        }
+
+        public void run() {
+            if (cancelled) return;
+            final Bitmap bitmap = loadThumbnail(folder);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (mExecutor.isShutdown()) return;
+                    if (bitmap != null) put(key, bitmap);
+                    if (cancelled || mPending.get(view) != Request.this) return;
+                    mPending.remove(view);
+                    view.setImageBitmap(bitmap);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Replays an orientation trace, one "timeNanos qw qx qy qz" sample per line. Only uses plain
+ * Java, so recorded captures can be replayed off the device. Sample times are shifted so the
+ * first one falls on start().
+ */
+public class TracePoseSource implements PoseSource, Runnable {
+    private final String     mPath;
+    private final boolean    mRealTime;
+    private Listener         mListener;
+    private Thread           mThread;
+    private volatile boolean mRunning;
+
+    /**
+     * @param path trace to replay
+     * @param realTime whether to wait between samples as long as when they were recorded, or
+     * to deliver them all at once
+     */
+    public TracePoseSource(String path, boolean realTime) {
+        mPath = path;
+        mRealTime = realTime;
+    }
+
+    public boolean start(Listener listener) {
+        mListener = listener;
+        mRunning = true;
+        mThread = new Thread(this);
+        mThread.start();
+        return true;
+    }
+
+    public void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    /**
+     * Waits until the whole trace was delivered
+     */
+    public void join() throws InterruptedException {
+        if (mThread != null) mThread.join();
+    }
+
+    public void run() {
+        long start = System.nanoTime();
+        long first = -1;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mPath));
+            String line;
+            while (mRunning && (line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 5 || fields[0].startsWith("#")) continue;
+
+                long time = Long.parseLong(fields[0]);
+                if (first < 0) first = time;
+                long at = start + time - first;
+                if (mRealTime) {
+                    long wait = at - System.nanoTime();
+                    if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+                mListener.onPose(at, Float.parseFloat(fields[1]), Float.parseFloat(fields[2]),
+                        Float.parseFloat(fields[3]), Float.parseFloat(fields[4]));
+            }
+        } catch (IOException e) {
+            // an unreadable trace ends the replay like the end of the file
+        } catch (NumberFormatException e) {
+        } catch (InterruptedException e) {
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
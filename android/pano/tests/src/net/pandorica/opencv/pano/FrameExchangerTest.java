@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks FrameExchanger's counters add up and the consumer gets frames newest first, with
+ * a producer publishing as fast as it can. Plain Java, so it also runs on a desktop JVM.
+ */
+public class FrameExchangerTest extends TestCase {
+    private static final int    NUM_FRAMES            = 200000;
+    // the consumer finds every so many frames stale, like those of an old preview size
+    private static final int    STALE_EVERY           = 7;
+    private static final long   TAKE_TIMEOUT_NANOS    = 10000000L;
+
+    public void testCountsAddUpUnderLoad() throws InterruptedException {
+        final FrameExchanger<Integer> frames = new FrameExchanger<Integer>();
+        final int[] returned = new int[1];
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= NUM_FRAMES; i++) {
+                    if (frames.publish(i) != null) returned[0]++;
+                }
+            }
+        };
+        producer.start();
+
+        int last = 0;
+        int taken = 0;
+        int discarded = 0;
+        while (true) {
+            Integer frame = frames.take(TAKE_TIMEOUT_NANOS);
+            if (frame == null) {
+                if (!producer.isAlive()) break;
+                continue;
+            }
+            assertTrue("frame " + frame + " after " + last, frame > last);
+            last = frame;
+            taken++;
+            if (frame % STALE_EVERY == 0) {
+                frames.discard();
+                discarded++;
+            }
+        }
+        producer.join();
+
+        // the newest frame always gets through
+        assertEquals(NUM_FRAMES, last);
+        assertEquals(NUM_FRAMES, frames.getProducedCount());
+        assertEquals(taken - discarded, frames.getProcessedCount());
+        assertEquals(returned[0] + discarded, frames.getDroppedCount());
+        assertEquals(frames.getProducedCount(), frames.getProcessedCount() + frames.getDroppedCount());
+    }
+
+    public void testClearedFrameIsDropped() {
+        FrameExchanger<Integer> frames = new FrameExchanger<Integer>();
+        assertNull(frames.clear());
+        assertEquals(0, frames.getDroppedCount());
+
+        frames.publish(1);
+        assertEquals(Integer.valueOf(1), frames.clear());
+        assertNull(frames.take(0));
+        assertEquals(1, frames.getProducedCount());
+        assertEquals(0, frames.getProcessedCount());
+        assertEquals(1, frames.getDroppedCount());
+    }
+
+    public void testReplacedFrameIsDropped() {
+        FrameExchanger<Integer> frames = new FrameExchanger<Integer>();
+        assertNull(frames.publish(1));
+        assertEquals(Integer.valueOf(1), frames.publish(2));
+        assertEquals(Integer.valueOf(2), frames.take(0));
+        assertEquals(1, frames.getProcessedCount());
+        assertEquals(1, frames.getDroppedCount());
+    }
+
+    public void testDiscardedFrameIsDropped() {
+        FrameExchanger<Integer> frames = new FrameExchanger<Integer>();
+        frames.publish(1);
+        assertEquals(Integer.valueOf(1), frames.take(0));
+        frames.discard();
+        assertEquals(0, frames.getProcessedCount());
+        assertEquals(1, frames.getDroppedCount());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package net.pandorica.opencv.pano;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the poses written for the stitcher against shots of a known orientation. The
+ * angles are decomposed the way pose_hints.cpp does.
+ */
+public class PoseRecorderTest extends TestCase {
+    private static final long   SHOT_TIME             = 1000000000L;
+    private static final float  TOLERANCE             = 0.5f;
+
+    public void testLevelPortraitShotHasNoRoll() {
+        float[] angles = shotAngles(0, 0);
+        assertEquals(0, angles[0], TOLERANCE);
+        assertEquals(0, angles[1], TOLERANCE);
+        assertEquals(0, angles[2], TOLERANCE);
+    }
+
+    public void testYawFollowsTheHeading() {
+        float[] angles = shotAngles(90, 0);
+        assertEquals(90, angles[0], TOLERANCE);
+        assertEquals(0, angles[1], TOLERANCE);
+        assertEquals(0, angles[2], TOLERANCE);
+
+        angles = shotAngles(-45, 0);
+        assertEquals(-45, angles[0], TOLERANCE);
+        assertEquals(0, angles[2], TOLERANCE);
+    }
+
+    public void testPitchIsPositiveLookingUp() {
+        float[] angles = shotAngles(30, 20);
+        assertEquals(30, angles[0], TOLERANCE);
+        assertEquals(20, angles[1], TOLERANCE);
+        assertEquals(0, angles[2], TOLERANCE);
+    }
+
+    public void testLandscapeShotIsRolled() {
+        // without turning the picture upright the raw sensor frame lies on its side
+        PoseRecorder recorder = new PoseRecorder();
+        recordPortrait(recorder, 0, 0);
+        float[] q = new float[4];
+        assertTrue(recorder.cameraPoseAt(SHOT_TIME, 0, q));
+        assertEquals(90, Math.abs(toAngles(q)[2]), TOLERANCE);
+    }
+
+    public void testNoPoseFarFromTheSamples() {
+        PoseRecorder recorder = new PoseRecorder();
+        recordPortrait(recorder, 0, 0);
+        float[] q = new float[4];
+        assertFalse(recorder.cameraPoseAt(SHOT_TIME + 1000000000L, PanoActivity.SHOT_ROTATION, q));
+    }
+
+    /**
+     * @return yaw, pitch and roll in degrees of a portrait shot, with the device upright
+     * and its back camera looking toward heading degrees east of north, tilted up by pitch
+     */
+    private static float[] shotAngles(float heading, float pitch) {
+        PoseRecorder recorder = new PoseRecorder();
+        recordPortrait(recorder, heading, pitch);
+        float[] q = new float[4];
+        assertTrue(recorder.cameraPoseAt(SHOT_TIME, PanoActivity.SHOT_ROTATION, q));
+        return toAngles(q);
+    }
+
+    private static void recordPortrait(PoseRecorder recorder, float heading, float pitch) {
+        double h = Math.toRadians(heading);
+        double p = Math.toRadians(pitch);
+        // device axes in the sensor world (x east, y north, z up)
+        float[] forward = { (float) (Math.cos(p) * Math.sin(h)), (float) (Math.cos(p) * Math.cos(h)),
+                            (float) Math.sin(p) };
+        float[] right = { (float) Math.cos(h), (float) -Math.sin(h), 0 };
+        float[] up = { right[1] * forward[2] - right[2] * forward[1],
+                       right[2] * forward[0] - right[0] * forward[2],
+                       right[0] * forward[1] - right[1] * forward[0] };
+
+        // the columns are the device x (right), y (up) and z (out of the screen) axes
+        float[] deviceToWorld = { right[0], up[0], -forward[0],
+                                  right[1], up[1], -forward[1],
+                                  right[2], up[2], -forward[2] };
+        float[] q = new float[4];
+        PoseRecorder.matrixToQuaternion(deviceToWorld, q);
+        recorder.onPose(SHOT_TIME, q[0], q[1], q[2], q[3]);
+    }
+
+    /**
+     * Decomposes q as Ry(yaw) * Rx(pitch) * Rz(roll), like quaternionToAngles in pose_hints.cpp
+     */
+    private static float[] toAngles(float[] q) {
+        float[] m = new float[9];
+        PoseRecorder.quaternionToMatrix(q, m);
+        double pitch = Math.asin(Math.max(-1, Math.min(1, -m[5])));
+        double yaw = Math.atan2(m[2], m[8]);
+        double roll = Math.atan2(m[3], m[4]);
+        return new float[] { (float) Math.toDegrees(yaw), (float) Math.toDegrees(pitch),
+                             (float) Math.toDegrees(roll) };
+    }
+}
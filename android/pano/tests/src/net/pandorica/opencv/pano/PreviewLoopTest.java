@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.hardware.Camera.PreviewCallback;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Runs the preview loop of PanoSurfaceBase over a stream of frames and checks the render
+ * thread allocates nothing once it is going. The camera isn't opened: the test passes the
+ * frames to the preview callback itself, one at a time, and the loop skips handing them back.
+ */
+public class PreviewLoopTest extends InstrumentationTestCase {
+    private static final int    BUFFER_SIZE           = 640 * 480 * 3 / 2;
+    // frames drawn before counting, for the first time setup of the render thread
+    private static final int    WARMUP_FRAMES         = 20;
+    private static final int    COUNTED_FRAMES        = 500;
+    private static final long   FRAME_TIMEOUT_SECONDS = 5;
+
+    public void testRenderLoopDoesNotAllocate() throws Exception {
+        final Context context = getInstrumentation().getTargetContext();
+        final RecordingSurface[] created = new RecordingSurface[1];
+        // views are made on the main thread
+        getInstrumentation().runOnMainSync(new Runnable() {
+            public void run() {
+                created[0] = new RecordingSurface(context);
+            }
+        });
+        RecordingSurface surface = created[0];
+        byte[][] buffers = surface.createPreviewBuffers(BUFFER_SIZE);
+        PreviewCallback callback = surface.getPreviewCallback();
+
+        Thread renderThread = new Thread(surface);
+        Debug.startAllocCounting();
+        try {
+            renderThread.start();
+            for (int i = 0; i < WARMUP_FRAMES + COUNTED_FRAMES; i++) {
+                callback.onPreviewFrame(buffers[i % buffers.length], null);
+                assertTrue("frame " + i + " wasn't drawn",
+                        surface.mDrawn.tryAcquire(FRAME_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+        } finally {
+            surface.surfaceDestroyed(null);
+            renderThread.join();
+            Debug.stopAllocCounting();
+        }
+
+        FrameExchanger<byte[]> frames = surface.getFrameExchanger();
+        assertEquals(WARMUP_FRAMES + COUNTED_FRAMES, frames.getProcessedCount());
+        assertEquals(0, frames.getDroppedCount());
+        assertEquals("allocations in " + COUNTED_FRAMES + " frames", 0,
+                surface.mLastCount - surface.mWarmCount);
+    }
+
+    /**
+     * Notes the allocation count of the render thread once warmed up and at every frame
+     * after, without allocating itself
+     */
+    private static class RecordingSurface extends PanoSurfaceBase {
+        final Semaphore mDrawn = new Semaphore(0);
+        int mFrames;
+        int mWarmCount;
+        int mLastCount;
+
+        RecordingSurface(Context context) {
+            super(context, null);
+        }
+
+        @Override
+        protected Bitmap processFrame(byte[] data) {
+            mLastCount = Debug.getThreadAllocCount();
+            if (mFrames++ == WARMUP_FRAMES) mWarmCount = mLastCount;
+            mDrawn.release();
+            return null;
+        }
+    }
+}
@@ -36,8 +36,12 @@ import android.util.Log;
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connected.
+ *
+ * It is also the link to the head while connected: frames go straight
+ * to the socket and the received ones to the listener, on the connected
+ * thread.
  */
-public class BluetoothChatService {
+public class BluetoothChatService implements PanTiltLink {
     // Debugging
     private static final String TAG = "BluetoothChatService";
     private static final boolean D = true;
@@ -58,6 +62,7 @@ public class BluetoothChatService {
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
     private int mState;
+    private volatile Listener mListener;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -178,21 +183,28 @@ public class BluetoothChatService {
         setState(STATE_NONE);
     }
 
+    /**
+     * Sets who gets the frames received, over any later connection too
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
     /**
      * Write to the ConnectedThread in an unsynchronized manner
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @param frame The bytes to write
+     * @throws IOException if not connected or the write failed
      */
-    public void write(byte[] out) {
+    public void send(byte[] frame) throws IOException {
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
+            if (mState != STATE_CONNECTED) throw new IOException("Not connected");
             r = mConnectedThread;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        r.mmLink.send(frame);
     }
 
     /**
@@ -368,8 +380,7 @@ public class BluetoothChatService {
      */
     private class ConnectedThread extends Thread {
         private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
+        private final StreamLink mmLink;
 
         public ConnectedThread(BluetoothSocket socket) {
             Log.d(TAG, "create ConnectedThread");
@@ -385,46 +396,30 @@ public class BluetoothChatService {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmLink = new StreamLink(tmpIn, tmpOut);
+            mmLink.setListener(new Listener() {
+                public void onFrame(PanTiltProtocol.Frame frame) {
+                    Listener listener = mListener;
+                    if (listener != null) listener.onFrame(frame);
+                }
+            });
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
-
-            // Keep listening to the InputStream while connected
-            while (true) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
 
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(PanoActivity.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    break;
-                }
-            }
-        }
-
-        /**
-         * Write to the connected OutStream.
-         * @param buffer  The bytes to write
-         */
-        public void write(byte[] buffer) {
+            // Keep listening to the InputStream while connected, frames are
+            // delivered from this thread
             try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(PanoActivity.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
+                mmLink.receive();
+                Log.e(TAG, "disconnected, stream ended");
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                Log.e(TAG, "disconnected", e);
+            }
+            if (mmLink.getErrorCount() > 0) {
+                Log.w(TAG, mmLink.getErrorCount() + " bad frames dropped");
             }
+            connectionLost();
         }
 
         public void cancel() {
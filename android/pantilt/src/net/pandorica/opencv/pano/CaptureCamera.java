@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.IOException;
+
+/**
+ * Takes the pictures of a capture sequence
+ */
+public interface CaptureCamera {
+    /**
+     * Gets ready for the next picture, e.g. starts the preview so exposure and white balance
+     * settle while the head moves
+     */
+    void prepare() throws IOException;
+
+    /**
+     * Takes a picture, waiting until its data is available
+     * @return the jpeg data
+     */
+    byte[] takePicture() throws IOException, InterruptedException;
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a capture sequence as a pipeline. The head moves to the next pose as soon as a
+ * picture is taken, while the previous pictures are saved and added to the thumbnail on
+ * their own threads. Each of those stages holds a bounded number of shots, so a slow stage
+ * holds the sequence back instead of piling up jpegs in memory.
+ *
+ * Only depends on the head, camera and handler interfaces, so it runs against simulated
+ * ones as well.
+ */
+public class CaptureEngine {
+    // shots a stage may hold besides the one it works on
+    public static final int DEFAULT_QUEUE_SIZE = 2;
+
+    /**
+     * A head position of the sequence
+     */
+    public static class Pose {
+        public final int pan;
+        public final int tilt;
+
+        public Pose(int pan, int tilt) {
+            this.pan = pan;
+            this.tilt = tilt;
+        }
+    }
+
+    /**
+     * A picture taken at a pose, index counts from 0 in capture order
+     */
+    public static class Shot {
+        public final int index;
+        public final Pose pose;
+        public final byte[] jpeg;
+
+        public Shot(int index, Pose pose, byte[] jpeg) {
+            this.index = index;
+            this.pose = pose;
+            this.jpeg = jpeg;
+        }
+    }
+
+    /**
+     * Does the work on the pictures. Each method is called from a single thread, in capture
+     * order, but the two run concurrently.
+     */
+    public interface ShotHandler {
+        void save(Shot shot) throws IOException;
+
+        void addThumbnail(Shot shot);
+    }
+
+    /**
+     * Told about every pose before the head moves there, on the capturing thread
+     */
+    public interface ProgressListener {
+        void onMoving(int index, Pose pose);
+    }
+
+    private final PanTiltHead   mHead;
+    private final CaptureCamera mCamera;
+    private final ShotHandler   mHandler;
+    private final int           mQueueSize;
+    private final AtomicInteger mSaved                = new AtomicInteger();
+    private final AtomicInteger mFailed               = new AtomicInteger();
+
+    public CaptureEngine(PanTiltHead head, CaptureCamera camera, ShotHandler handler) {
+        this(head, camera, handler, DEFAULT_QUEUE_SIZE);
+    }
+
+    public CaptureEngine(PanTiltHead head, CaptureCamera camera, ShotHandler handler,
+            int queueSize) {
+        mHead = head;
+        mCamera = camera;
+        mHandler = handler;
+        mQueueSize = queueSize;
+    }
+
+    /**
+     * Captures a picture at every pose. Returns once all the pictures taken are saved and in
+     * the thumbnail, even when the sequence stops early.
+     * @return the number of pictures saved
+     */
+    public int run(List<Pose> poses, ProgressListener listener)
+            throws IOException, InterruptedException {
+        mSaved.set(0);
+        mFailed.set(0);
+        Stage saver = new Stage("save");
+        Stage thumbnailer = new Stage("thumbnail");
+        try {
+            for (int i = 0; i < poses.size(); i++) {
+                Pose pose = poses.get(i);
+                if (listener != null) listener.onMoving(i, pose);
+
+                mCamera.prepare();
+                mHead.moveTo(pose.pan, pose.tilt);
+                final Shot shot = new Shot(i, pose, mCamera.takePicture());
+
+                saver.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            mHandler.save(shot);
+                            mSaved.incrementAndGet();
+                        } catch (IOException e) {
+                            mFailed.incrementAndGet();
+                        }
+                    }
+                });
+                thumbnailer.submit(new Runnable() {
+                    public void run() {
+                        mHandler.addThumbnail(shot);
+                    }
+                });
+            }
+        } finally {
+            saver.finish();
+            thumbnailer.finish();
+        }
+        return mSaved.get();
+    }
+
+    public int getSavedCount() {
+        return mSaved.get();
+    }
+
+    public int getFailedCount() {
+        return mFailed.get();
+    }
+
+    /**
+     * A single worker thread taking at most mQueueSize + 1 shots at a time
+     */
+    private class Stage {
+        private final ExecutorService mExecutor;
+        private final Semaphore       mSlots          = new Semaphore(mQueueSize + 1);
+
+        Stage(final String name) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "CaptureEngine-" + name);
+                }
+            });
+        }
+
+        /**
+         * Queues a task, waiting while the stage is full
+         */
+        void submit(final Runnable task) throws InterruptedException {
+            mSlots.acquire();
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        mSlots.release();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Runs the queued tasks to the end and stops the thread
+         */
+        void finish() throws InterruptedException {
+            mExecutor.shutdown();
+            while (!mExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting, the shots are already taken
+            }
+        }
+    }
+}
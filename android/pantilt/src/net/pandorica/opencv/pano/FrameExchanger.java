@@ -0,0 +1 @@
+../../../../../../pano/src/net/pandorica/opencv/pano/FrameExchanger.java
\ No newline at end of file
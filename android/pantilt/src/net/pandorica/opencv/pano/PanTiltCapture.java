@@ -18,9 +18,13 @@ package net.pandorica.opencv.pano;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.io.IOException;
 import java.lang.InterruptedException;
 import java.lang.Math;
@@ -39,21 +43,26 @@ import android.util.Log;
 import android.widget.Toast;
 
 public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
-     implements Camera.PictureCallback {
+     implements CaptureEngine.ShotHandler {
 
-    private Object semaphore = new Object();
     private PanoActivity mCaller;
 
     private String mPanoSubdirectory;  // The directory name where we put the images
     private String mBasePath;       // The directory holding all the pano subdirs
-    private int mCurrentImage;
-    private int mThumbnailX;
+    private int mImageWidth;
+    private int mPanoThumbnailWidth;
     private int mThumbnailY;
     private String mImagePrefix;
     private String mType;
     private Bitmap mThumbnailPano;
     private float mThumbnailScale = 0.1f;
 
+    // Pose manifest read by the stitcher, one line per image
+    public static final String POSE_MANIFEST = "poses.txt";
+    // Clockwise rotation making the camera images upright on the head
+    private static final int MOUNT_ROLL = 90;
+    private float mHfov;
+
     public PanTiltCapture(String base_path, String image_prefix, String type) {
       mBasePath = base_path;
       mImagePrefix = image_prefix;
@@ -64,33 +73,6 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
         Log.i("jpegCallback", "In PreExecute");
     }
 
-    private void setPan(int angle, int pause) {
-      /*
-        mCaller.SendMessage("p" + angle + "\r");
-        try { Thread.sleep(pause); } catch (InterruptedException e) { }
-        mCaller.SendMessage("o\r");
-        */
-
-        byte angle_low = (byte) (angle & 0xFF);
-        byte angle_high = (byte) ((angle & 0xFF00) >> 8);
-        byte[] command = { (byte) 0xFF, (byte) 0x01, angle_high, angle_low };
-        mCaller.SendMessageBytes(command);
-        try { Thread.sleep(pause); } catch (InterruptedException e) { }
-    }
-
-    private void setTilt(int angle, int pause) {
-      /*
-        mCaller.SendMessage("t" + angle + "\r");
-        try { Thread.sleep(pause); } catch (InterruptedException e) { }
-        mCaller.SendMessage("o\r");
-        */
-        byte angle_low = (byte) (angle & 0xFF);
-        byte angle_high = (byte) ((angle & 0xFF00) >> 8);
-        byte[] command = { (byte) 0xFF, (byte) 0x02, angle_high, angle_low };
-        mCaller.SendMessageBytes(command);
-        try { Thread.sleep(pause); } catch (InterruptedException e) { }
-    }
-
     protected Integer doInBackground(Integer... unused) {
         // generate the default folder name
         SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd_HHmmss");
@@ -102,8 +84,6 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
             dir.mkdirs();
         }
 
-        mCurrentImage = 1;
-
         Camera c = Camera.open();
         c.setPreviewCallback(null);
 
@@ -114,16 +94,18 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
 
         // TODO: un-hard-code everything
         int image_width = 1920; // TODO: figure out what it actually is on this phone
-        float hfov = 42; // Horizontal field of view
-        int pano_thumbnail_width = Math.round(360 / hfov * image_width * mThumbnailScale);
+        float hfov = c.getParameters().getHorizontalViewAngle(); // Horizontal field of view
+        if (hfov <= 0) hfov = 42;
+        mHfov = hfov;
+        mImageWidth = image_width;
+        mPanoThumbnailWidth = Math.round(360 / hfov * image_width * mThumbnailScale);
         int pano_thumbnail_height = Math.round(2560 * mThumbnailScale);
 
-        mThumbnailPano = Bitmap.createBitmap(pano_thumbnail_width, pano_thumbnail_height,
+        mThumbnailPano = Bitmap.createBitmap(mPanoThumbnailWidth, pano_thumbnail_height,
                                              Bitmap.Config.ARGB_8888);
         SetAlpha(mThumbnailPano, 0);
 
         mThumbnailY = 0;
-        mThumbnailX = 0;
 
         int max_pan = 360;
         int pan_increment = 30;
@@ -132,56 +114,10 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
         // single pass horizontally.  Update it to support tilt.
         int max_tilt = 135;
         int tilt_increment = -45;
+        List<CaptureEngine.Pose> poses = new ArrayList<CaptureEngine.Pose>();
         for (int tilt = max_tilt; tilt >= 0; tilt += tilt_increment) {
-            publishProgress("Moving pan/tilt head");
-
-            setPan(0, 2000);
-            setTilt(tilt, 1000);
-
             for (int pan = 0; pan < max_pan; pan += pan_increment) {
-                publishProgress("Moving to " + pan + "/" + tilt + " degrees");
-
-                // Start the preview before we move the head so it has a chance
-                // to do AWB and whatnot.
-                boolean success = false;
-                while (!success) {
-                  try {
-                    Log.i("jpegCallback", "Start preview");
-                    c.startPreview();
-                    success = true;
-                  } catch (java.lang.RuntimeException e) {
-                  }
-                }
-
-                setPan(pan, 1000);
-
-                mThumbnailX = (int) Math.round(pano_thumbnail_width * (360 - pan) / 360.0 -
-                                               (image_width * mThumbnailScale))  ;
-
-                Log.i("jpegCallback", "mThumbnailX is " + mThumbnailX);
-                if (mThumbnailX < 0) mThumbnailX = 0;
-
-                // TODO: Get back a message from pantilt when it's finished
-                // moving
-
-                success = false;
-                while (!success) {
-                  try {
-                    Log.i("jpegCallback", "Take picture");
-                    c.takePicture(null, null, this);
-                    success = true;
-                  } catch (java.lang.RuntimeException e) {
-                  }
-                }
-
-                try {
-                  synchronized(semaphore) {
-                    semaphore.wait();
-                  }
-                } catch (InterruptedException e) {
-                }
-                c.stopPreview();
-                mCurrentImage++;
+                poses.add(new CaptureEngine.Pose(pan, tilt));
 
                 // (Doesn't work; servos + board don't have enough travel)
                 // We only want one photo at the zenith
@@ -189,14 +125,31 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
             }
         }
 
-        publishProgress("Resetting to initial position");
-        setPan(0, 2000);
-        setTilt(0, 2000);
-
+        // The head moves on while the previous pictures are saved and thumbnailed
+        ServoHead head = mCaller.getHead();
+        head.reset();
+        CaptureEngine engine = new CaptureEngine(head, new PhoneCamera(c), this);
+        long start = System.currentTimeMillis();
+        try {
+            if (!head.uploadWaypoints(poses)) {
+                Log.w("jpegCallback", "Head didn't take the waypoints, sending every move");
+            }
+            int saved = engine.run(poses, new CaptureEngine.ProgressListener() {
+                public void onMoving(int index, CaptureEngine.Pose pose) {
+                    publishProgress("Moving to " + pose.pan + "/" + pose.tilt + " degrees");
+                }
+            });
+            Log.i("jpegCallback", "Saved " + saved + " of " + poses.size() + " pictures in " +
+                  (System.currentTimeMillis() - start) + " ms, " + head.getTimeoutCount() +
+                  " moves not acknowledged");
 
-        publishProgress("Resetting to initial position");
-        setPan(0, 2000);
-        setTilt(0, 2000);
+            publishProgress("Resetting to initial position");
+            head.moveTo(0, 0);
+        } catch (IOException e) {
+            Log.e("jpegCallback", "Capture failed", e);
+        } catch (InterruptedException e) {
+            Log.e("jpegCallback", "Capture interrupted");
+        }
 
         try {
             FileOutputStream out = new FileOutputStream(mBasePath + mPanoSubdirectory +
@@ -211,6 +164,51 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
         return 0;
     }
 
+    /**
+     * Takes pictures with the phone camera. The preview is started before the head moves,
+     * so it has a chance to do AWB and whatnot.
+     */
+    private static class PhoneCamera implements CaptureCamera, Camera.PictureCallback {
+        private final Camera mCamera;
+        private final BlockingQueue<byte[]> mPicture = new ArrayBlockingQueue<byte[]>(1);
+
+        PhoneCamera(Camera camera) {
+            mCamera = camera;
+        }
+
+        public void prepare() {
+            boolean success = false;
+            while (!success) {
+              try {
+                Log.i("jpegCallback", "Start preview");
+                mCamera.startPreview();
+                success = true;
+              } catch (java.lang.RuntimeException e) {
+              }
+            }
+        }
+
+        public byte[] takePicture() throws InterruptedException {
+            boolean success = false;
+            while (!success) {
+              try {
+                Log.i("jpegCallback", "Take picture");
+                mCamera.takePicture(null, null, this);
+                success = true;
+              } catch (java.lang.RuntimeException e) {
+              }
+            }
+            byte[] data = mPicture.take();
+            mCamera.stopPreview();
+            return data;
+        }
+
+        public void onPictureTaken(byte[] data, Camera camera) {
+            Log.i("jpegCallback", "Picture taken!");
+            mPicture.offer(data);
+        }
+    }
+
     protected final void onProgressUpdate(String... message) {
         Toast.makeText(mCaller.getApplicationContext(),
                        message[0], Toast.LENGTH_SHORT).show();
@@ -228,23 +226,34 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
       }
     }
 
-    public void onPictureTaken(byte[] data, Camera camera) {
-        Log.i("jpegCallback", "Picture taken!");
-
-        String filename = mImagePrefix + "_" + mPanoSubdirectory + "_" + mCurrentImage + mType;
+    /**
+     * Writes the picture and its pose, on the engine's save thread
+     */
+    public void save(CaptureEngine.Shot shot) throws IOException {
+        String filename = mImagePrefix + "_" + mPanoSubdirectory + "_" + (shot.index + 1) + mType;
         String full_filename = mBasePath + mPanoSubdirectory + "/" + filename;
         Log.i("jpegCallback", "Writing " + full_filename);
 
         File photo = new File(mBasePath + mPanoSubdirectory, filename);
+        FileOutputStream fos = new FileOutputStream(photo.getAbsolutePath());
         try {
-            FileOutputStream fos = new FileOutputStream(photo.getAbsolutePath());
-            fos.write(data);
+            fos.write(shot.jpeg);
+        } finally {
             fos.close();
-        } catch (java.io.IOException e) {
-            // TODO: something useful here
         }
+        writePose(filename, shot.pose);
+    }
+
+    /**
+     * Slaps the picture into the pano thumbnail, on the engine's thumbnail thread
+     */
+    public void addThumbnail(CaptureEngine.Shot shot) {
+        byte[] data = shot.jpeg;
+        int thumbnailX = (int) Math.round(mPanoThumbnailWidth * (360 - shot.pose.pan) / 360.0 -
+                                          (mImageWidth * mThumbnailScale));
+        Log.i("jpegCallback", "thumbnailX is " + thumbnailX);
+        if (thumbnailX < 0) thumbnailX = 0;
 
-        // Slap the image into the pano thumbnail
         BitmapFactory.Options scale_factor = new BitmapFactory.Options();
         // TODO: resolve this with mThumbnailScale
         scale_factor.inSampleSize = 10;
@@ -253,7 +262,7 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
         // TODO: get rid of 256, 192
         Bitmap actually_scaled = Bitmap.createScaledBitmap(image, 256, 192, true);
         Matrix rotate = new Matrix();
-        rotate.postRotate(90);
+        rotate.postRotate(MOUNT_ROLL);
         Bitmap rotated = Bitmap.createBitmap(actually_scaled,
             0, 0,
             Math.round(actually_scaled.getWidth()),
@@ -262,8 +271,8 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
         Log.i("jpegCallback", "rotated is " + rotated.getWidth() + " by " + rotated.getHeight());
 
         int region_width = rotated.getWidth();
-        if (mThumbnailX + region_width > mThumbnailPano.getWidth()) {
-            region_width = mThumbnailPano.getWidth() - mThumbnailX;
+        if (thumbnailX + region_width > mThumbnailPano.getWidth()) {
+            region_width = mThumbnailPano.getWidth() - thumbnailX;
         }
         int region_height = rotated.getHeight();
         if (mThumbnailY + region_height > mThumbnailPano.getHeight()) {
@@ -278,7 +287,7 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
                          0, 0, rotated.getWidth(), rotated.getHeight());
 
         mThumbnailPano.getPixels(existing_image, 0, rotated.getWidth(),
-                         mThumbnailX, mThumbnailY, rotated.getWidth(), rotated.getHeight());
+                         thumbnailX, mThumbnailY, rotated.getWidth(), rotated.getHeight());
 
         // Manually average pixels.  TODO: I'm sure there's a better way to do
         // this.
@@ -295,13 +304,29 @@ public class PanTiltCapture extends AsyncTask<Integer, String, Integer>
             }
         }
 
-        Log.i("jpegCallback", "Pasting thumbnail at " + mThumbnailX);
+        Log.i("jpegCallback", "Pasting thumbnail at " + thumbnailX);
 
-        mThumbnailPano.setPixels(existing_image, 0, rotated.getWidth(), mThumbnailX,
+        mThumbnailPano.setPixels(existing_image, 0, rotated.getWidth(), thumbnailX,
                                  mThumbnailY, region_width, region_height);
+    }
 
-        synchronized(semaphore) {
-          semaphore.notify();
+    /**
+     * Appends the commanded head position of the image to the pose manifest. The stitcher
+     * expects yaw positive to the right and pitch positive up, while the pan angle grows
+     * to the left and tilt 0 points at the zenith. The stitcher seeds its cameras from
+     * these, so the roll has to match the portrait mount, see the thumbnail rotation.
+     */
+    private void writePose(String filename, CaptureEngine.Pose pose) {
+        int yaw = (360 - pose.pan) % 360;
+        int pitch = 90 - pose.tilt;
+        try {
+            FileWriter manifest = new FileWriter(mBasePath + mPanoSubdirectory + "/" +
+                                                 POSE_MANIFEST, true);
+            manifest.write(filename + " yaw " + yaw + " pitch " + pitch + " roll " + MOUNT_ROLL +
+                           " hfov " + mHfov + "\n");
+            manifest.close();
+        } catch (java.io.IOException e) {
+            Log.e("jpegCallback", "Can't write pose of " + filename);
         }
     }
 
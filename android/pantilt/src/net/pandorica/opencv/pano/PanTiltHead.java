@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.IOException;
+
+/**
+ * The motorized head the phone sits on. Angles are in degrees, pan grows to the left and
+ * tilt 0 points at the zenith.
+ */
+public interface PanTiltHead {
+    /**
+     * Moves the head and returns once it holds still at the new position
+     */
+    void moveTo(int pan, int tilt) throws IOException, InterruptedException;
+}
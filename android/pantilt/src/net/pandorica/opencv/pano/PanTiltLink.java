@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.IOException;
+
+/**
+ * A connection to the pan/tilt head carrying PanTiltProtocol frames. Received frames are
+ * handed to the listener on the thread reading the connection, so waiting for a response
+ * doesn't depend on the main looper.
+ */
+public interface PanTiltLink {
+    /**
+     * Gets the frames the head sends
+     */
+    public interface Listener {
+        void onFrame(PanTiltProtocol.Frame frame);
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Writes an encoded frame, from any thread
+     * @throws IOException if the head isn't connected or the write failed
+     */
+    void send(byte[] frame) throws IOException;
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * Frames of the link between the app and the pan/tilt head firmware. A frame is
+ *
+ *   SYNC VER LEN SEQ CMD payload[LEN] CRC-high CRC-low
+ *
+ * with the CRC-16/CCITT (polynomial 0x1021, initial 0xFFFF) of VER through the payload.
+ * The head answers every frame it accepts with the same SEQ and CMD | RESPONSE, the first
+ * payload byte being a STATUS_ value. Frames with a bad CRC are dropped without an answer.
+ * Angles are signed 16 bit, high byte first.
+ *
+ * arduino/pantilt/PanTiltFrame.cpp is the firmware side and StreamLink parses the frames
+ * here; both are checked against arduino/pantilt/protocol_vectors.txt, the firmware side by
+ * "make check" in arduino/pantilt/test and this side by ProtocolVectorsTest.
+ */
+public class PanTiltProtocol {
+    public static final int     SYNC                  = 0xA5;
+    public static final int     VERSION               = 1;
+    public static final int     MAX_PAYLOAD           = 64;
+    public static final int     OVERHEAD              = 7;
+    public static final int     CRC_INITIAL           = 0xFFFF;
+
+    // commands, payloads are listed with their answer's after the status byte
+    public static final int     CMD_STATUS            = 0x01; // - ; uptime ms (4 bytes)
+    public static final int     CMD_MOVE              = 0x02; // pan, tilt ; pan, tilt
+    public static final int     CMD_WAYPOINTS         = 0x03; // first index, pan, tilt... ; count
+    public static final int     CMD_NEXT              = 0x04; // - ; index, pan, tilt
+    public static final int     CMD_OFF               = 0x05; // - ; -
+    public static final int     RESPONSE              = 0x80;
+
+    public static final int     STATUS_OK             = 0;
+    public static final int     STATUS_BAD_VERSION    = 1;
+    public static final int     STATUS_BAD_COMMAND    = 2;
+    public static final int     STATUS_BAD_LENGTH     = 3;
+    public static final int     STATUS_NO_WAYPOINT    = 4;
+
+    // waypoints that fit in one frame, and in the firmware
+    public static final int     WAYPOINTS_PER_FRAME   = (MAX_PAYLOAD - 1) / 4;
+    public static final int     MAX_WAYPOINTS         = 48;
+
+    private PanTiltProtocol() {
+    }
+
+    /**
+     * A decoded frame
+     */
+    public static class Frame {
+        public final int version;
+        public final int seq;
+        public final int command;
+        public final byte[] payload;
+
+        public Frame(int version, int seq, int command, byte[] payload) {
+            this.version = version;
+            this.seq = seq;
+            this.command = command;
+            this.payload = payload;
+        }
+
+        /**
+         * @return the status of a response
+         */
+        public int getStatus() {
+            return payload.length > 0 ? payload[0] & 0xFF : -1;
+        }
+
+        /**
+         * @return the signed 16 bit value at offset of the payload
+         */
+        public int getShort(int offset) {
+            return (short) (((payload[offset] & 0xFF) << 8) | (payload[offset + 1] & 0xFF));
+        }
+    }
+
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = CRC_INITIAL;
+        for (int i = offset; i < offset + length; i++) {
+            crc = crc16(crc, data[i]);
+        }
+        return crc;
+    }
+
+    /**
+     * @return crc updated with one more byte, for data that isn't in one piece
+     */
+    public static int crc16(int crc, int b) {
+        crc ^= (b & 0xFF) << 8;
+        for (int bit = 0; bit < 8; bit++) {
+            crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+        }
+        return crc & 0xFFFF;
+    }
+
+    public static byte[] encode(int seq, int command, byte[] payload) {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too long: " + payload.length);
+        }
+        byte[] frame = new byte[payload.length + OVERHEAD];
+        frame[0] = (byte) SYNC;
+        frame[1] = (byte) VERSION;
+        frame[2] = (byte) payload.length;
+        frame[3] = (byte) seq;
+        frame[4] = (byte) command;
+        System.arraycopy(payload, 0, frame, 5, payload.length);
+        int crc = crc16(frame, 1, payload.length + 4);
+        frame[frame.length - 2] = (byte) (crc >> 8);
+        frame[frame.length - 1] = (byte) crc;
+        return frame;
+    }
+
+    public static byte[] encodeStatus(int seq) {
+        return encode(seq, CMD_STATUS, new byte[0]);
+    }
+
+    public static byte[] encodeMove(int seq, int pan, int tilt) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(4);
+        writeShort(payload, pan);
+        writeShort(payload, tilt);
+        return encode(seq, CMD_MOVE, payload.toByteArray());
+    }
+
+    /**
+     * Stores up to WAYPOINTS_PER_FRAME poses in the head, from index first on
+     */
+    public static byte[] encodeWaypoints(int seq, int first, List<CaptureEngine.Pose> poses) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(1 + 4 * poses.size());
+        payload.write(first);
+        for (CaptureEngine.Pose pose : poses) {
+            writeShort(payload, pose.pan);
+            writeShort(payload, pose.tilt);
+        }
+        return encode(seq, CMD_WAYPOINTS, payload.toByteArray());
+    }
+
+    /**
+     * Moves to the waypoint after the last one moved to, the first after an upload
+     */
+    public static byte[] encodeNext(int seq) {
+        return encode(seq, CMD_NEXT, new byte[0]);
+    }
+
+    public static byte[] encodeOff(int seq) {
+        return encode(seq, CMD_OFF, new byte[0]);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+}
@@ -83,8 +83,6 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
 
     // Message types sent from the BluetoothChatService Handler
     public static final int MESSAGE_STATE_CHANGE = 1;
-    public static final int MESSAGE_READ = 2;
-    public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
 
@@ -101,6 +99,8 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
     private BluetoothAdapter mBluetoothAdapter = null;
     // Member object for the chat services
     private BluetoothChatService mChatService = null;
+    // The pan/tilt head on the other end of the connection
+    private ServoHead mHead = null;
 
     // runtime setting
     private SharedPreferences mSettings;
@@ -208,13 +208,6 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
                     break;
                 }
                 break;
-            case MESSAGE_WRITE:
-                break;
-            case MESSAGE_READ:
-                byte[] readBuf = (byte[]) msg.obj;
-                // construct a string from the valid bytes in the buffer
-                String readMessage = new String(readBuf, 0, msg.arg1);
-                break;
             case MESSAGE_DEVICE_NAME:
                 // save the connected device's name
                 mConnectedDeviceName = msg.getData().getString(DEVICE_NAME);
@@ -232,6 +225,15 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
     private void setupChat() {
         // Initialize the BluetoothChatService to perform bluetooth connections
         mChatService = new BluetoothChatService(this, mBluetoothChatHandler);
+        // the head gets its responses on the connected thread
+        mHead = new ServoHead(mChatService);
+    }
+
+    /**
+     * @return the head driven over the Bluetooth connection, only used by PanTiltCapture
+     */
+    public ServoHead getHead() {
+        return mHead;
     }
 
     /**
@@ -245,46 +247,6 @@ public class PanoActivity extends Activity implements ViewFactory, OnClickListen
         return true;
     }
 
-    /**
-     * Sends a message.
-     * @param message  A string of text to send.
-     * TODO: This probably isn't the best class to hold this method, since it's
-     * only used by PanTiltCapture.
-     */
-    public void SendMessage(String message) {
-        // Check that we're actually connected before trying anything
-        if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
-            // TODO: better error handling here
-            //Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
-            return;
-        }
-
-        // Check that there's actually something to send
-        if (message.length() > 0) {
-            // Get the message bytes and tell the BluetoothChatService to write
-            byte[] send = message.getBytes();
-            for (int i=0; i<send.length; i++) {
-                Log.i(TAG, "Writing byte:" + (int) send[i]);
-            }
-            mChatService.write(send);
-        }
-    }
-
-    public void SendMessageBytes(byte[] message) {
-        // Check that we're actually connected before trying anything
-        if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
-            // TODO: better error handling here
-            //Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
-            return;
-        }
-
-        // Check that there's actually something to send
-        if (message.length > 0) {
-            mChatService.write(message);
-        }
-    }
-
-
     private void createNewPano() {
         Log.i(TAG, "in createNewPano");
         if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives the pan/tilt head firmware over PanTiltProtocol and waits for it to report each
+ * move complete, so a move takes as long as the servos actually travel. The sequence can be
+ * uploaded beforehand, after which moving to the next pose of it is a bare CMD_NEXT. A move
+ * that isn't acknowledged in time is given up on and the sequence goes on, like it did with
+ * fixed delays.
+ */
+public class ServoHead implements PanTiltHead, PanTiltLink.Listener {
+    // the slowest move, a full swing of both axes, takes about two seconds
+    public static final long    DEFAULT_TIMEOUT_MS    = 3000;
+
+    private final PanTiltLink   mLink;
+    private final long          mTimeoutMs;
+    private final Object        mLock                 = new Object();
+    private int                 mSeq;
+    private int                 mPan                  = Integer.MIN_VALUE;
+    private int                 mTilt                 = Integer.MIN_VALUE;
+    private int                 mTimeouts;
+
+    // uploaded sequence, and the index CMD_NEXT moves to
+    private List<CaptureEngine.Pose> mWaypoints;
+    private int                 mNextWaypoint;
+
+    // request waiting for its response, and the response
+    private int                 mPendingSeq           = -1;
+    private PanTiltProtocol.Frame mResponse;
+
+    public ServoHead(PanTiltLink link) {
+        this(link, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Takes over the listener of link
+     */
+    public ServoHead(PanTiltLink link, long timeoutMs) {
+        mLink = link;
+        mTimeoutMs = timeoutMs;
+        link.setListener(this);
+    }
+
+    public void moveTo(int pan, int tilt) throws IOException, InterruptedException {
+        if (pan == mPan && tilt == mTilt) return;
+
+        if (mWaypoints != null && mNextWaypoint < mWaypoints.size()) {
+            CaptureEngine.Pose next = mWaypoints.get(mNextWaypoint);
+            if (next.pan == pan && next.tilt == tilt) {
+                mNextWaypoint++;
+                int seq = nextSeq();
+                if (isOk(send(seq, PanTiltProtocol.encodeNext(seq)))) {
+                    mPan = pan;
+                    mTilt = tilt;
+                    return;
+                }
+            }
+            // off the uploaded sequence, the head's place in it is lost
+            mWaypoints = null;
+        }
+        move(pan, tilt);
+        mPan = pan;
+        mTilt = tilt;
+    }
+
+    /**
+     * Moves both axes, pan first, and waits for the acknowledgement
+     * @return false if it didn't come in time
+     */
+    public boolean move(int pan, int tilt) throws IOException, InterruptedException {
+        int seq = nextSeq();
+        return isOk(send(seq, PanTiltProtocol.encodeMove(seq, pan, tilt)));
+    }
+
+    /**
+     * Stores the sequence in the head, so moveTo() only has to tell it to go on to the next
+     * pose while it is followed. Only the first MAX_WAYPOINTS poses are stored.
+     * @return false if the head didn't take them
+     */
+    public boolean uploadWaypoints(List<CaptureEngine.Pose> poses)
+            throws IOException, InterruptedException {
+        mWaypoints = null;
+        List<CaptureEngine.Pose> stored = new ArrayList<CaptureEngine.Pose>(
+                poses.subList(0, Math.min(poses.size(), PanTiltProtocol.MAX_WAYPOINTS)));
+        for (int first = 0; first < stored.size();
+                first += PanTiltProtocol.WAYPOINTS_PER_FRAME) {
+            List<CaptureEngine.Pose> chunk = stored.subList(first,
+                    Math.min(stored.size(), first + PanTiltProtocol.WAYPOINTS_PER_FRAME));
+            int seq = nextSeq();
+            if (!isOk(send(seq, PanTiltProtocol.encodeWaypoints(seq, first, chunk)))) {
+                return false;
+            }
+        }
+        mWaypoints = stored;
+        mNextWaypoint = 0;
+        return true;
+    }
+
+    /**
+     * Writes a frame and waits for the response with its sequence number
+     * @return the response, or null if it didn't come in time
+     */
+    private PanTiltProtocol.Frame send(int seq, byte[] frame)
+            throws IOException, InterruptedException {
+        synchronized (mLock) {
+            mPendingSeq = seq;
+            mResponse = null;
+        }
+        mLink.send(frame);
+
+        long deadline = System.currentTimeMillis() + mTimeoutMs;
+        synchronized (mLock) {
+            try {
+                while (mResponse == null) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        mTimeouts++;
+                        return null;
+                    }
+                    mLock.wait(remaining);
+                }
+                return mResponse;
+            } finally {
+                mPendingSeq = -1;
+            }
+        }
+    }
+
+    private static boolean isOk(PanTiltProtocol.Frame response) {
+        return response != null && response.getStatus() == PanTiltProtocol.STATUS_OK;
+    }
+
+    private int nextSeq() {
+        mSeq = (mSeq + 1) & 0xFF;
+        return mSeq;
+    }
+
+    public void onFrame(PanTiltProtocol.Frame frame) {
+        synchronized (mLock) {
+            if ((frame.command & PanTiltProtocol.RESPONSE) != 0 && frame.seq == mPendingSeq) {
+                mResponse = frame;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the number of moves given up on for lack of an acknowledgement
+     */
+    public int getTimeoutCount() {
+        synchronized (mLock) {
+            return mTimeouts;
+        }
+    }
+
+    /**
+     * Forgets where the head is and the uploaded sequence, so the next move is sent whole
+     */
+    public void reset() {
+        mPan = Integer.MIN_VALUE;
+        mTilt = Integer.MIN_VALUE;
+        mWaypoints = null;
+    }
+}
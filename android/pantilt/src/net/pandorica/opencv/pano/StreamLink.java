@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * PanTiltLink over a pair of streams, such as those of a Bluetooth socket or local pipes.
+ * The stream is read straight into a ring buffer and frames are parsed where they lie, so
+ * a frame split across reads is neither copied around nor lost to the next read; only the
+ * payload of a good frame is copied out.
+ */
+public class StreamLink implements PanTiltLink {
+    // a power of two, holding several of the largest frames
+    public static final int     RING_SIZE             = 1024;
+    private static final int    RING_MASK             = RING_SIZE - 1;
+
+    private final InputStream   mInStream;
+    private final OutputStream  mOutStream;
+    private final byte[]        mRing                 = new byte[RING_SIZE];
+    // running totals of the bytes read into and parsed out of the ring
+    private int                 mWritten;
+    private int                 mParsed;
+    private volatile Listener   mListener;
+    private int                 mErrors;
+
+    public StreamLink(InputStream in, OutputStream out) {
+        mInStream = in;
+        mOutStream = out;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void send(byte[] frame) throws IOException {
+        synchronized (mOutStream) {
+            mOutStream.write(frame);
+            mOutStream.flush();
+        }
+    }
+
+    /**
+     * Reads and delivers frames until the stream ends
+     * @throws IOException when reading fails, which is how a closed socket ends it too
+     */
+    public void receive() throws IOException {
+        while (true) {
+            int start = mWritten & RING_MASK;
+            int free = RING_SIZE - (mWritten - mParsed);
+            int bytes = mInStream.read(mRing, start, Math.min(free, RING_SIZE - start));
+            if (bytes < 0) return;
+            mWritten += bytes;
+            parse();
+        }
+    }
+
+    private int at(int offset) {
+        return mRing[(mParsed + offset) & RING_MASK] & 0xFF;
+    }
+
+    /**
+     * Delivers the complete frames in the ring, leaving a partial one for the next read.
+     * After a bad length or CRC it looks for the next SYNC from the byte after the last.
+     */
+    private void parse() {
+        while (mWritten - mParsed >= PanTiltProtocol.OVERHEAD) {
+            if (at(0) != PanTiltProtocol.SYNC) {
+                mParsed++;
+                continue;
+            }
+            int length = at(2);
+            if (length > PanTiltProtocol.MAX_PAYLOAD) {
+                mErrors++;
+                mParsed++;
+                continue;
+            }
+            int size = length + PanTiltProtocol.OVERHEAD;
+            if (mWritten - mParsed < size) return;
+
+            int crc = PanTiltProtocol.CRC_INITIAL;
+            for (int i = 1; i < size - 2; i++) {
+                crc = PanTiltProtocol.crc16(crc, at(i));
+            }
+            if (crc != ((at(size - 2) << 8) | at(size - 1))) {
+                mErrors++;
+                mParsed++;
+                continue;
+            }
+            byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                payload[i] = (byte) at(5 + i);
+            }
+            PanTiltProtocol.Frame frame = new PanTiltProtocol.Frame(at(1), at(3), at(4),
+                    payload);
+            mParsed += size;
+
+            Listener listener = mListener;
+            if (listener != null) listener.onFrame(frame);
+        }
+    }
+
+    /**
+     * @return the number of frames dropped for a bad length or CRC, only for the reading
+     *         thread
+     */
+    public int getErrorCount() {
+        return mErrors;
+    }
+
+    /**
+     * Closes both streams, which ends receive()
+     */
+    public void close() {
+        try {
+            mInStream.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+        try {
+            mOutStream.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,2 @@
+#!/bin/sh
+android update test-project --main .. --path .
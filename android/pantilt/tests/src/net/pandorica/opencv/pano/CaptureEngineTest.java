@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs CaptureEngine against a simulated head, camera and handler, checking that the
+ * head moves on while the earlier shots are saved, that each stage sees the shots in
+ * capture order, and that a slow stage holds the sequence back.
+ */
+public class CaptureEngineTest extends TestCase {
+    private static final int    POSES                 = 37;
+
+    private final List<String>  mEvents               =
+            Collections.synchronizedList(new ArrayList<String>());
+    private final List<Integer> mSaved                =
+            Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<Integer> mThumbnails           =
+            Collections.synchronizedList(new ArrayList<Integer>());
+    private int                 mTaken;
+    private int                 mMaxPending;
+    private long                mSaveMs;
+    private int                 mFailingSave          = -1;
+    private int                 mFailingPicture       = -1;
+    private CountDownLatch      mMovedOn;
+
+    private final PanTiltHead   mHead                 = new PanTiltHead() {
+        public void moveTo(int pan, int tilt) {
+            mEvents.add("move " + pan);
+            if (mMovedOn != null && pan == 30) mMovedOn.countDown();
+        }
+    };
+
+    private final CaptureCamera mCamera               = new CaptureCamera() {
+        public void prepare() {
+        }
+
+        public byte[] takePicture() throws IOException {
+            synchronized (CaptureEngineTest.this) {
+                if (mTaken == mFailingPicture) throw new IOException("Camera failed");
+                mTaken++;
+                mMaxPending = Math.max(mMaxPending, mTaken - mSaved.size());
+            }
+            return new byte[] { (byte) mTaken };
+        }
+    };
+
+    private final CaptureEngine.ShotHandler mHandler  = new CaptureEngine.ShotHandler() {
+        public void save(CaptureEngine.Shot shot) throws IOException {
+            try {
+                if (mMovedOn != null && shot.index == 0) {
+                    assertTrue("The head waited for the save",
+                            mMovedOn.await(5, TimeUnit.SECONDS));
+                }
+                Thread.sleep(mSaveMs);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            if (shot.index == mFailingSave) throw new IOException("Disk full");
+            synchronized (CaptureEngineTest.this) {
+                mSaved.add(shot.index);
+            }
+        }
+
+        public void addThumbnail(CaptureEngine.Shot shot) {
+            mThumbnails.add(shot.index);
+        }
+    };
+
+    public void testShotsAreHandledInCaptureOrder() throws Exception {
+        CaptureEngine engine = new CaptureEngine(mHead, mCamera, mHandler);
+        assertEquals(POSES, engine.run(poses(POSES), null));
+        assertEquals(0, engine.getFailedCount());
+        assertEquals(indices(POSES), mSaved);
+        assertEquals(indices(POSES), mThumbnails);
+    }
+
+    public void testHeadMovesOnWhileSaving() throws Exception {
+        // the first save only finishes once the head is at the second pose
+        mMovedOn = new CountDownLatch(1);
+        CaptureEngine engine = new CaptureEngine(mHead, mCamera, mHandler);
+        assertEquals(POSES, engine.run(poses(POSES), null));
+        assertEquals(indices(POSES), mSaved);
+    }
+
+    public void testSlowSaveHoldsTheSequenceBack() throws Exception {
+        mSaveMs = 10;
+        CaptureEngine engine = new CaptureEngine(mHead, mCamera, mHandler);
+        assertEquals(POSES, engine.run(poses(POSES), null));
+        // the stage's shots, the one it works on and the one waiting to be queued
+        assertTrue("Pending " + mMaxPending,
+                mMaxPending <= CaptureEngine.DEFAULT_QUEUE_SIZE + 2);
+        assertTrue("Pending " + mMaxPending, mMaxPending > 1);
+    }
+
+    public void testProgressComesBeforeEachMove() throws Exception {
+        CaptureEngine engine = new CaptureEngine(mHead, mCamera, mHandler);
+        engine.run(poses(3), new CaptureEngine.ProgressListener() {
+            public void onMoving(int index, CaptureEngine.Pose pose) {
+                mEvents.add("moving " + index + " " + pose.pan);
+            }
+        });
+        assertEquals("[moving 0 0, move 0, moving 1 30, move 30, moving 2 60, move 60]",
+                mEvents.toString());
+    }
+
+    public void testFailedSaveIsCounted() throws Exception {
+        mFailingSave = 5;
+        CaptureEngine engine = new CaptureEngine(mHead, mCamera, mHandler);
+        assertEquals(POSES - 1, engine.run(poses(POSES), null));
+        assertEquals(1, engine.getFailedCount());
+        assertFalse(mSaved.contains(5));
+        assertEquals(indices(POSES), mThumbnails);
+    }
+
+    public void testShotsTakenAreHandledWhenTheCameraFails() throws Exception {
+        mFailingPicture = 5;
+        mSaveMs = 10;
+        CaptureEngine engine = new CaptureEngine(mHead, mCamera, mHandler);
+        try {
+            engine.run(poses(POSES), null);
+            fail("The camera failure was lost");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(indices(5), mSaved);
+        assertEquals(indices(5), mThumbnails);
+        assertEquals(5, engine.getSavedCount());
+    }
+
+    private static List<CaptureEngine.Pose> poses(int count) {
+        List<CaptureEngine.Pose> poses = new ArrayList<CaptureEngine.Pose>();
+        for (int i = 0; i < count; i++) {
+            poses.add(new CaptureEngine.Pose(30 * i, 0));
+        }
+        return poses;
+    }
+
+    private static List<Integer> indices(int count) {
+        List<Integer> indices = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            indices.add(i);
+        }
+        return indices;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Plain Java stand-in for the head firmware, for running ServoHead and the capture engine
+ * off the device, over local pipes to a StreamLink. It answers PanTiltProtocol frames as
+ * pantilt.pde does, and moves take the time the servos would by its estimate. The frames
+ * are read through a StreamLink of its own, so both ends share the one parser.
+ */
+public class FakeHeadFirmware implements Runnable, PanTiltLink.Listener {
+    // same figures as pantilt.pde; the servos turn a quarter of the head angle
+    public static final int     MS_PER_SERVO_DEGREE   = 4;
+    public static final int     SETTLE_MS             = 150;
+    public static final int     MAX_SERVO_DEGREES     = 180;
+
+    private final StreamLink    mLink;
+    private final int[]         mServoPosition        = { -1, -1 };
+    private final int[]         mWaypointPan          = new int[PanTiltProtocol.MAX_WAYPOINTS];
+    private final int[]         mWaypointTilt         = new int[PanTiltProtocol.MAX_WAYPOINTS];
+    private int                 mWaypointCount;
+    private int                 mNextWaypoint;
+    private final float         mTimeScale;
+    private Thread              mThread;
+    private volatile int        mMoves;
+    private volatile int        mBytesReceived;
+
+    /**
+     * @param in the bytes the app sends
+     * @param out where the answers go
+     * @param timeScale factor applied to the move durations, to run faster than the device
+     */
+    public FakeHeadFirmware(InputStream in, OutputStream out, float timeScale) {
+        mLink = new StreamLink(new FilterInputStream(in) {
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int bytes = super.read(buffer, offset, count);
+                if (bytes > 0) mBytesReceived += bytes;
+                return bytes;
+            }
+        }, out);
+        mLink.setListener(this);
+        mTimeScale = timeScale;
+    }
+
+    /**
+     * Starts answering frames
+     */
+    public synchronized void start() {
+        mThread = new Thread(this, "FakeHeadFirmware");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops answering and closes both streams
+     */
+    public synchronized void stop() {
+        if (mThread != null) mThread.interrupt();
+        mThread = null;
+    }
+
+    /**
+     * @return the number of moves done
+     */
+    public int getMoveCount() {
+        return mMoves;
+    }
+
+    /**
+     * @return the number of bytes the app sent
+     */
+    public int getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public void run() {
+        try {
+            mLink.receive();
+        } catch (IOException e) {
+            // the app side went away, or stopped
+        } finally {
+            mLink.close();
+        }
+    }
+
+    public void onFrame(PanTiltProtocol.Frame frame) {
+        try {
+            handle(frame);
+        } catch (IOException e) {
+            mLink.close();
+        } catch (InterruptedException e) {
+            // stopped while moving, closing the streams ends receive()
+            mLink.close();
+        }
+    }
+
+    private void handle(PanTiltProtocol.Frame frame) throws IOException, InterruptedException {
+        byte[] payload = frame.payload;
+        if (frame.version != PanTiltProtocol.VERSION) {
+            respond(frame, PanTiltProtocol.STATUS_BAD_VERSION);
+            return;
+        }
+        switch (frame.command) {
+        case PanTiltProtocol.CMD_MOVE:
+            if (payload.length != 4) {
+                respond(frame, PanTiltProtocol.STATUS_BAD_LENGTH);
+                break;
+            }
+            moveAndSettle(frame.getShort(0), frame.getShort(2));
+            respond(frame, PanTiltProtocol.STATUS_OK, payload[0], payload[1], payload[2],
+                    payload[3]);
+            break;
+        case PanTiltProtocol.CMD_WAYPOINTS:
+            if (payload.length < 1 || (payload.length - 1) % 4 != 0) {
+                respond(frame, PanTiltProtocol.STATUS_BAD_LENGTH);
+                break;
+            }
+            int first = payload[0] & 0xFF;
+            int count = (payload.length - 1) / 4;
+            if (first > mWaypointCount || first + count > PanTiltProtocol.MAX_WAYPOINTS) {
+                respond(frame, PanTiltProtocol.STATUS_NO_WAYPOINT);
+                break;
+            }
+            for (int i = 0; i < count; i++) {
+                mWaypointPan[first + i] = frame.getShort(1 + 4 * i);
+                mWaypointTilt[first + i] = frame.getShort(3 + 4 * i);
+            }
+            mWaypointCount = first + count;
+            mNextWaypoint = 0;
+            respond(frame, PanTiltProtocol.STATUS_OK, (byte) mWaypointCount);
+            break;
+        case PanTiltProtocol.CMD_NEXT:
+            if (mNextWaypoint >= mWaypointCount) {
+                respond(frame, PanTiltProtocol.STATUS_NO_WAYPOINT);
+                break;
+            }
+            int index = mNextWaypoint++;
+            int pan = mWaypointPan[index];
+            int tilt = mWaypointTilt[index];
+            moveAndSettle(pan, tilt);
+            respond(frame, PanTiltProtocol.STATUS_OK, (byte) index, (byte) (pan >> 8),
+                    (byte) pan, (byte) (tilt >> 8), (byte) tilt);
+            break;
+        case PanTiltProtocol.CMD_STATUS:
+            respond(frame, PanTiltProtocol.STATUS_OK, (byte) 0, (byte) 0, (byte) 0, (byte) 0);
+            break;
+        case PanTiltProtocol.CMD_OFF:
+            respond(frame, PanTiltProtocol.STATUS_OK);
+            break;
+        default:
+            respond(frame, PanTiltProtocol.STATUS_BAD_COMMAND);
+        }
+    }
+
+    private void moveAndSettle(int pan, int tilt) throws InterruptedException {
+        long ms = 0;
+        int[] angles = { pan, tilt };
+        for (int axis = 0; axis < angles.length; axis++) {
+            int target = Math.max(0, Math.min(MAX_SERVO_DEGREES, angles[axis] / 4));
+            int travel = mServoPosition[axis] < 0 ? MAX_SERVO_DEGREES
+                    : Math.abs(target - mServoPosition[axis]);
+            mServoPosition[axis] = target;
+            if (travel > 0) ms += travel * MS_PER_SERVO_DEGREE + SETTLE_MS;
+        }
+        Thread.sleep((long) (ms * mTimeScale));
+        mMoves++;
+    }
+
+    private void respond(PanTiltProtocol.Frame frame, int status, byte... data)
+            throws IOException {
+        byte[] payload = new byte[data.length + 1];
+        payload[0] = (byte) status;
+        System.arraycopy(data, 0, payload, 1, data.length);
+        mLink.send(PanTiltProtocol.encode(frame.seq, frame.command | PanTiltProtocol.RESPONSE,
+                payload));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds the frames of arduino/pantilt/protocol_vectors.txt through StreamLink, the parser
+ * both the app and FakeHeadFirmware use. The file is linked into this package as a
+ * resource.
+ */
+public class ProtocolVectorsTest extends TestCase {
+    private static final String VECTORS               = "protocol_vectors.txt";
+    private static final byte[] CUT_FRAME             = PanTiltProtocol.encode(1,
+            PanTiltProtocol.CMD_WAYPOINTS, new byte[PanTiltProtocol.MAX_PAYLOAD]);
+
+    private static class Vector {
+        final String name;
+        final boolean ok;
+        final byte[] bytes;
+
+        Vector(String name, boolean ok, byte[] bytes) {
+            this.name = name;
+            this.ok = ok;
+            this.bytes = bytes;
+        }
+    }
+
+    private List<Vector> mVectors;
+
+    @Override
+    protected void setUp() throws IOException {
+        mVectors = readVectors();
+    }
+
+    public void testVectorsAreDecodedAndEncodedAgain() throws IOException {
+        assertTrue(mVectors.size() > 0);
+        for (Vector vector : mVectors) {
+            StreamLink link = new StreamLink(new ByteArrayInputStream(vector.bytes),
+                    new ByteArrayOutputStream());
+            List<PanTiltProtocol.Frame> frames = receive(link);
+            if (vector.ok) {
+                assertEquals(vector.name, 1, frames.size());
+                assertEquals(vector.name, 0, link.getErrorCount());
+                PanTiltProtocol.Frame frame = frames.get(0);
+                assertEquals(vector.name, PanTiltProtocol.VERSION, frame.version);
+                assertTrue(vector.name, Arrays.equals(vector.bytes,
+                        PanTiltProtocol.encode(frame.seq, frame.command, frame.payload)));
+            } else {
+                assertEquals(vector.name, 0, frames.size());
+                assertEquals(vector.name, 1, link.getErrorCount());
+            }
+        }
+    }
+
+    public void testGoodFramesSurviveTheDroppedOnes() throws IOException {
+        // all the vectors back to back, with the ones to drop and a frame cut short after
+        // its header before each of the others. The cut frame's length runs into what
+        // follows, so its CRC fails with the next frames inside it.
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<Vector> expected = new ArrayList<Vector>();
+        for (Vector vector : mVectors) {
+            if (vector.ok) {
+                stream.write(CUT_FRAME, 0, 5);
+                for (Vector drop : mVectors) {
+                    if (!drop.ok) stream.write(drop.bytes);
+                }
+                expected.add(vector);
+            }
+            stream.write(vector.bytes);
+        }
+        // for the last cut frame to run into
+        stream.write(new byte[CUT_FRAME.length]);
+        byte[] bytes = stream.toByteArray();
+
+        // in one read, and a byte at a time
+        for (int chunk : new int[] { bytes.length, 1 }) {
+            StreamLink link = new StreamLink(new ChunkedInputStream(bytes, chunk),
+                    new ByteArrayOutputStream());
+            List<PanTiltProtocol.Frame> frames = receive(link);
+            assertEquals(expected.size(), frames.size());
+            for (int i = 0; i < frames.size(); i++) {
+                PanTiltProtocol.Frame frame = frames.get(i);
+                assertTrue(expected.get(i).name, Arrays.equals(expected.get(i).bytes,
+                        PanTiltProtocol.encode(frame.seq, frame.command, frame.payload)));
+            }
+        }
+    }
+
+    /**
+     * Reads at most chunk bytes at a time, as a socket may
+     */
+    static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int mChunk;
+
+        ChunkedInputStream(byte[] bytes, int chunk) {
+            super(bytes);
+            mChunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int count) {
+            return super.read(buffer, offset, Math.min(count, mChunk));
+        }
+    }
+
+    /**
+     * @return the frames link delivers until its stream ends
+     */
+    static List<PanTiltProtocol.Frame> receive(StreamLink link) throws IOException {
+        final List<PanTiltProtocol.Frame> frames = new ArrayList<PanTiltProtocol.Frame>();
+        link.setListener(new PanTiltLink.Listener() {
+            public void onFrame(PanTiltProtocol.Frame frame) {
+                frames.add(frame);
+            }
+        });
+        link.receive();
+        return frames;
+    }
+
+    private List<Vector> readVectors() throws IOException {
+        InputStream in = getClass().getResourceAsStream(VECTORS);
+        assertNotNull("Missing " + VECTORS, in);
+        List<Vector> vectors = new ArrayList<Vector>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                assertTrue(line, fields.length > 2);
+                assertTrue(line, fields[1].equals("ok") || fields[1].equals("drop"));
+                byte[] bytes = new byte[fields.length - 2];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) Integer.parseInt(fields[i + 2], 16);
+                }
+                vectors.add(new Vector(fields[0], fields[1].equals("ok"), bytes));
+            }
+        } finally {
+            reader.close();
+        }
+        return vectors;
+    }
+}
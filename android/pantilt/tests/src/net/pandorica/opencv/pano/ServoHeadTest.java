@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs ServoHead against FakeHeadFirmware over local pipes through a StreamLink, with the
+ * sequence PanTiltCapture takes.
+ */
+public class ServoHeadTest extends TestCase {
+    // the moves take a hundredth of the time they do on the head
+    private static final float  TIME_SCALE            = 0.01f;
+
+    private StreamLink          mLink;
+    private FakeHeadFirmware    mFirmware;
+    private Thread              mReceiver;
+    private ServoHead           mHead;
+
+    @Override
+    protected void setUp() throws IOException {
+        PipedInputStream appIn = new PipedInputStream();
+        PipedOutputStream headOut = new PipedOutputStream(appIn);
+        PipedInputStream headIn = new PipedInputStream();
+        PipedOutputStream appOut = new PipedOutputStream(headIn);
+
+        mFirmware = new FakeHeadFirmware(headIn, headOut, TIME_SCALE);
+        mFirmware.start();
+        mLink = new StreamLink(appIn, appOut);
+        mHead = new ServoHead(mLink);
+        mReceiver = new Thread("ServoHeadTest-receive") {
+            public void run() {
+                try {
+                    mLink.receive();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        mReceiver.start();
+    }
+
+    @Override
+    protected void tearDown() throws InterruptedException {
+        mLink.close();
+        mFirmware.stop();
+        mReceiver.join(1000);
+    }
+
+    public void testEveryMoveIsAcknowledged() throws Exception {
+        List<CaptureEngine.Pose> poses = capturePoses();
+        assertEquals(37, poses.size());
+        for (CaptureEngine.Pose pose : poses) {
+            mHead.moveTo(pose.pan, pose.tilt);
+        }
+        goHome();
+
+        assertEquals(0, mHead.getTimeoutCount());
+        assertEquals(38, mFirmware.getMoveCount());
+        assertEquals(0, mLink.getErrorCount());
+    }
+
+    public void testUploadedSequenceIsFollowed() throws Exception {
+        List<CaptureEngine.Pose> poses = capturePoses();
+        assertTrue(mHead.uploadWaypoints(poses));
+        int uploaded = mFirmware.getBytesReceived();
+        for (CaptureEngine.Pose pose : poses) {
+            mHead.moveTo(pose.pan, pose.tilt);
+        }
+        // every pose of the sequence is a bare CMD_NEXT
+        assertEquals(poses.size() * PanTiltProtocol.OVERHEAD,
+                mFirmware.getBytesReceived() - uploaded);
+        goHome();
+
+        assertEquals(0, mHead.getTimeoutCount());
+        assertEquals(38, mFirmware.getMoveCount());
+        assertEquals(0, mLink.getErrorCount());
+    }
+
+    public void testLeavingTheSequenceSendsWholeMoves() throws Exception {
+        List<CaptureEngine.Pose> poses = capturePoses();
+        assertTrue(mHead.uploadWaypoints(poses));
+        mHead.moveTo(poses.get(0).pan, poses.get(0).tilt);
+        mHead.moveTo(poses.get(2).pan, poses.get(2).tilt);
+        mHead.moveTo(poses.get(3).pan, poses.get(3).tilt);
+
+        assertEquals(0, mHead.getTimeoutCount());
+        assertEquals(3, mFirmware.getMoveCount());
+    }
+
+    /**
+     * Sends the head home the way PanTiltCapture does. The zenith shot is taken there
+     * already, so moveTo() has nothing to do; send it whole to check that
+     * one is acknowledged too.
+     */
+    private void goHome() throws IOException, InterruptedException {
+        int moves = mFirmware.getMoveCount();
+        mHead.moveTo(0, 0);
+        assertEquals(moves, mFirmware.getMoveCount());
+        assertTrue(mHead.move(0, 0));
+    }
+
+    /**
+     * @return the poses of PanTiltCapture, three rings of twelve and one at the zenith
+     */
+    private static List<CaptureEngine.Pose> capturePoses() {
+        List<CaptureEngine.Pose> poses = new ArrayList<CaptureEngine.Pose>();
+        for (int tilt = 135; tilt >= 0; tilt -= 45) {
+            for (int pan = 0; pan < 360; pan += 30) {
+                poses.add(new CaptureEngine.Pose(pan, tilt));
+                if (tilt == 0) break;
+            }
+        }
+        return poses;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.pandorica.opencv.pano;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds StreamLink streams far longer than its ring, in reads of various sizes, so frames
+ * straddle the end of the ring and arrive in pieces, with noise and corrupted frames
+ * between the good ones.
+ */
+public class StreamLinkTest extends TestCase {
+    private static final int    FRAMES                = 2000;
+    private static final int[]  CHUNKS                = { 1, 2, 7, 64, 333, 1000,
+            StreamLink.RING_SIZE };
+
+    private final Random        mRandom               = new Random(1);
+
+    public void testFramesAcrossTheEndOfTheRing() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<byte[]> frames = new ArrayList<byte[]>();
+        boolean straddles = false;
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = randomFrame(i);
+            int start = stream.size() % StreamLink.RING_SIZE;
+            straddles |= start + frame.length > StreamLink.RING_SIZE;
+            frames.add(frame);
+            stream.write(frame);
+        }
+        assertTrue(straddles);
+        byte[] bytes = stream.toByteArray();
+
+        for (int chunk : CHUNKS) {
+            StreamLink link = new StreamLink(new ProtocolVectorsTest.ChunkedInputStream(bytes,
+                    chunk), new ByteArrayOutputStream());
+            assertFrames("Chunk " + chunk, frames,
+                    ProtocolVectorsTest.receive(link));
+            assertEquals(0, link.getErrorCount());
+        }
+    }
+
+    public void testResyncAfterNoiseAndBadFrames() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<byte[]> frames = new ArrayList<byte[]>();
+        int corrupted = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] frame = randomFrame(i);
+            switch (i % 4) {
+            case 1:
+                // noise, with SYNC bytes in it
+                byte[] noise = new byte[mRandom.nextInt(20)];
+                mRandom.nextBytes(noise);
+                for (int j = 0; j < noise.length; j += 3) {
+                    noise[j] = (byte) PanTiltProtocol.SYNC;
+                }
+                stream.write(noise);
+                break;
+            case 2:
+                // a frame with one byte after SYNC changed, which the CRC always catches
+                byte[] bad = randomFrame(i);
+                bad[1 + mRandom.nextInt(bad.length - 1)] ^= 1 + mRandom.nextInt(255);
+                stream.write(bad);
+                corrupted++;
+                break;
+            case 3:
+                // a frame cut short
+                byte[] cut = randomFrame(i);
+                stream.write(cut, 0, 1 + mRandom.nextInt(cut.length - 1));
+                break;
+            }
+            frames.add(frame);
+            stream.write(frame);
+        }
+        // a frame cut short waits for the rest of its length, give the last one some
+        stream.write(new byte[PanTiltProtocol.MAX_PAYLOAD + PanTiltProtocol.OVERHEAD]);
+        byte[] bytes = stream.toByteArray();
+        assertTrue(bytes.length > 100 * StreamLink.RING_SIZE);
+
+        for (int chunk : CHUNKS) {
+            StreamLink link = new StreamLink(new ProtocolVectorsTest.ChunkedInputStream(bytes,
+                    chunk), new ByteArrayOutputStream());
+            assertFrames("Chunk " + chunk, frames,
+                    ProtocolVectorsTest.receive(link));
+            assertTrue(link.getErrorCount() >= corrupted);
+        }
+    }
+
+    public void testLargestFramesFillTheRing() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<byte[]> frames = new ArrayList<byte[]>();
+        for (int i = 0; i < 100; i++) {
+            byte[] frame = PanTiltProtocol.encode(i, PanTiltProtocol.CMD_WAYPOINTS,
+                    randomBytes(PanTiltProtocol.MAX_PAYLOAD));
+            frames.add(frame);
+            stream.write(frame);
+        }
+        StreamLink link = new StreamLink(new ProtocolVectorsTest.ChunkedInputStream(
+                stream.toByteArray(), StreamLink.RING_SIZE), new ByteArrayOutputStream());
+        assertFrames("", frames, ProtocolVectorsTest.receive(link));
+    }
+
+    private byte[] randomFrame(int seq) {
+        return PanTiltProtocol.encode(seq, 1 + mRandom.nextInt(5),
+                randomBytes(mRandom.nextInt(PanTiltProtocol.MAX_PAYLOAD + 1)));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void assertFrames(String message, List<byte[]> expected,
+            List<PanTiltProtocol.Frame> frames) {
+        assertEquals(message, expected.size(), frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            PanTiltProtocol.Frame frame = frames.get(i);
+            assertTrue(message + ", frame " + i, Arrays.equals(expected.get(i),
+                    PanTiltProtocol.encode(frame.seq, frame.command, frame.payload)));
+        }
+    }
+}
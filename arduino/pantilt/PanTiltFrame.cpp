@@ -0,0 +1,80 @@
+#include <string.h>
+#include "PanTiltFrame.h"
+
+PanTiltFrame::PanTiltFrame()
+    : version(0), seq(0), command(0), length(0), errors(0), received_(0)
+{
+}
+
+bool PanTiltFrame::feed(uint8_t b)
+{
+    if (received_ == 0 && b != SYNC) {
+        return false;
+    }
+    frame_[received_++] = b;
+
+    /* A frame with a bad length or CRC may hold the start of a good one,
+       so the bytes after its SYNC are scanned again. */
+    while (received_ >= 3) {
+        if (frame_[2] <= MAX_PAYLOAD) {
+            size_t size = (size_t) frame_[2] + OVERHEAD;
+            if (received_ < size) {
+                return false;
+            }
+            uint16_t crc = (frame_[size - 2] << 8) | frame_[size - 1];
+            if (crc == crc16(frame_ + 1, size - 3)) {
+                version = frame_[1];
+                length = frame_[2];
+                seq = frame_[3];
+                command = frame_[4];
+                memcpy(payload, frame_ + 5, length);
+                drop(size);
+                return true;
+            }
+        }
+        errors++;
+        drop(1);
+    }
+    return false;
+}
+
+void PanTiltFrame::drop(size_t n)
+{
+    while (n < received_ && frame_[n] != SYNC) {
+        n++;
+    }
+    memmove(frame_, frame_ + n, received_ - n);
+    received_ -= n;
+}
+
+int16_t PanTiltFrame::get_short(size_t offset) const
+{
+    return (int16_t) ((payload[offset] << 8) | payload[offset + 1]);
+}
+
+size_t PanTiltFrame::encode(uint8_t *buf, uint8_t seq, uint8_t command,
+                            const uint8_t *payload, size_t len)
+{
+    buf[0] = SYNC;
+    buf[1] = VERSION;
+    buf[2] = len;
+    buf[3] = seq;
+    buf[4] = command;
+    memcpy(buf + 5, payload, len);
+    uint16_t crc = crc16(buf + 1, len + 4);
+    buf[len + 5] = crc >> 8;
+    buf[len + 6] = crc & 0xFF;
+    return len + OVERHEAD;
+}
+
+uint16_t PanTiltFrame::crc16(const uint8_t *data, size_t len)
+{
+    uint16_t crc = 0xFFFF;
+    for (size_t i = 0; i < len; i++) {
+        crc ^= (uint16_t) data[i] << 8;
+        for (int bit = 0; bit < 8; bit++) {
+            crc = (crc & 0x8000) ? (crc << 1) ^ 0x1021 : crc << 1;
+        }
+    }
+    return crc;
+}
@@ -0,0 +1,78 @@
+/* Frames of the link with the app, see PanTiltProtocol.java for the layout.
+   Doesn't depend on the Arduino core, so it also builds on a desktop, where
+   "make check" in test/ checks it against protocol_vectors.txt. */
+
+#ifndef _PAN_TILT_FRAME_H_
+#define _PAN_TILT_FRAME_H_
+
+#include <stddef.h>
+#include <stdint.h>
+
+class PanTiltFrame {
+public:
+    enum {
+        SYNC = 0xA5,
+        VERSION = 1,
+        MAX_PAYLOAD = 64,
+        OVERHEAD = 7
+    };
+
+    enum {
+        CMD_STATUS = 0x01,
+        CMD_MOVE = 0x02,
+        CMD_WAYPOINTS = 0x03,
+        CMD_NEXT = 0x04,
+        CMD_OFF = 0x05,
+        RESPONSE = 0x80
+    };
+
+    enum {
+        STATUS_OK = 0,
+        STATUS_BAD_VERSION = 1,
+        STATUS_BAD_COMMAND = 2,
+        STATUS_BAD_LENGTH = 3,
+        STATUS_NO_WAYPOINT = 4
+    };
+
+    PanTiltFrame();
+
+    /* Feeds one received byte.
+
+       Returns true when it completes a frame with a good CRC, whose fields
+       below stay valid until the next byte is fed.  Bytes outside of frames
+       are skipped, and frames with a bad length or CRC are dropped and
+       counted in errors.  The bytes of a dropped frame are scanned again
+       from the one after its SYNC, so a frame cut short doesn't take the
+       next one with it; any further frame found among them is returned by
+       the following calls.
+    */
+    bool feed(uint8_t b);
+
+    /* Returns the signed 16 bit value at offset of the payload. */
+    int16_t get_short(size_t offset) const;
+
+    /* Writes a frame into buf, which holds at least len + OVERHEAD bytes.
+
+       Returns the number of bytes written.
+    */
+    static size_t encode(uint8_t *buf, uint8_t seq, uint8_t command,
+                         const uint8_t *payload, size_t len);
+
+    static uint16_t crc16(const uint8_t *data, size_t len);
+
+    uint8_t version;
+    uint8_t seq;
+    uint8_t command;
+    uint8_t length;
+    uint8_t payload[MAX_PAYLOAD];
+    unsigned int errors;
+
+private:
+    /* Drops the first n received bytes and those up to the next SYNC. */
+    void drop(size_t n);
+
+    uint8_t frame_[MAX_PAYLOAD + OVERHEAD];
+    size_t received_;
+};
+
+#endif
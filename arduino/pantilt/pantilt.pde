@@ -12,140 +12,179 @@
  */
  
 #include <Servo.h>
-#include "SerReadStr.h"
+#include "PanTiltFrame.h"
  
 const long BAUD_RATE = 57600;
 
-
-const int BUFFER_SIZE = 20; // and that's probably too much
-
 const int SERVO1 = 11;  // The servo for the yaw direction
 const int SERVO2 = 12;  // The servo for the pitch direction
 
-const char COMMAND_YAW = 'p';  // P for pan
-const char COMMAND_PITCH = 't';  // T for tilt
-const char COMMAND_OFF = 'o'; // Turn off pwm so the motors stop running
-const char COMMAND_VERSION = 'V';
-const char COMMAND_DEBUG = 'D'; // Returns logging messages
-int DEBUG_STATUS = 1;
-const char VERSION_NUMBER[4] = "1.0";
-const char COMMAND_UP_SINCE = 'T'; //Duration in ms since the system is up.
+// The servos don't report their position, so the settle time is estimated
+// from how far they travel.  They turn a quarter of the head angle.
+const int MS_PER_SERVO_DEGREE = 4;
+const int SETTLE_MS = 150;
+const int MAX_SERVO_DEGREES = 180;
+
+const int MAX_WAYPOINTS = 48;
  
 long start_time = millis();
  
 Servo servo_yaw;
 Servo servo_pitch;
+int servo_position[2] = {-1, -1};  // last written yaw and pitch servo angles
+
+// Poses uploaded by the app, moved through with CMD_NEXT
+int waypoint_pan[MAX_WAYPOINTS];
+int waypoint_tilt[MAX_WAYPOINTS];
+int waypoint_count = 0;
+int waypoint_next = 0;
+
+PanTiltFrame frame;
+
+// Returns how long the servo needs to get to the new angle
+long MoveServo(Servo &myservo, int &position, int angle_deg) {
+  int target = constrain(angle_deg/4, 0, MAX_SERVO_DEGREES);  // as write() does
+  int travel = MAX_SERVO_DEGREES;  // unknown position, assume a full swing
+  if (position >= 0) {
+    travel = abs(target - position);
+  }
+  myservo.write(target);
+  position = target;
+  return (long) travel*MS_PER_SERVO_DEGREE;
+}
 
-int MoveServo(Servo myservo, int angle_deg) {
+// Moves the head and only returns once it should have stopped.  The pan goes
+// first, it may have a long way to swing back before tilting.
+void MoveAndSettle(int pan, int tilt) {
   init_servos();
   digitalWrite(13, HIGH);
-  myservo.write(angle_deg/4);
-  delay(100);
+  long pan_ms = MoveServo(servo_yaw, servo_position[0], pan);
+  if (pan_ms > 0) {
+    delay(pan_ms + SETTLE_MS);
+  }
+  long tilt_ms = MoveServo(servo_pitch, servo_position[1], tilt);
+  if (tilt_ms > 0) {
+    delay(tilt_ms + SETTLE_MS);
+  }
   digitalWrite(13, LOW);
-  return 0;
 }
  
 void DisableServos() {
   servo_yaw.detach();
   servo_pitch.detach();  
 }
-
-void SerialListener(char *buf, int sizebuf) {
-  int rc = SerialReadString::read_cr_terminated(buf, sizebuf*sizeof(*buf), 1000
-  );
-  Serial.print(rc);
-  Serial.print(" is the rc.\n");
-  
-  switch (rc) {
-  case -2: // no commands sent
-    break;
-  case -1:
-    Serial.print('\n');
-    Serial.print("buffer overflow");
-    break;
-  default:
-    if (DEBUG_STATUS == 1) {
-      Serial.print('\n');
-      Serial.print("Received packet: \"");
-      Serial.print(buf);
-      Serial.print("\""); 
-    }
-  }
-}
  
 void init_servos() {
   servo_yaw.attach(SERVO1);
   servo_pitch.attach(SERVO2);  
 }
- 
-void setup() {
-  Serial.begin(BAUD_RATE);
-  Serial.flush();
-  
-  pinMode(13, OUTPUT);
+
+void PutShort(uint8_t *buf, int value) {
+  buf[0] = (value >> 8) & 0xFF;
+  buf[1] = value & 0xFF;
 }
- 
-void loop() {
-  
-  char buf_listener[BUFFER_SIZE];  
-  buf_listener[0] = '\0';
-  SerialListener(buf_listener, BUFFER_SIZE);
-  Serial.print("Received string length is: ");
-  Serial.print(strlen(buf_listener));
-  Serial.print(" and string is ");
-  Serial.print(buf_listener);
-  
-  
-  int value = -1;  // value of the command
-  char command = buf_listener[0];
-  
-  switch (command) {
-        
-    case COMMAND_YAW:  // Move servo of yaw axis
-      value = atoi(buf_listener+1);
-      if (DEBUG_STATUS == 1) {
-        Serial.print("\nMoving yaw servo by [degrees]: ");
-        Serial.print(value);
-        Serial.print('\n');
-      }
-      MoveServo(servo_yaw, value);
+
+void Respond(uint8_t status, const uint8_t *data, size_t len) {
+  uint8_t payload[PanTiltFrame::MAX_PAYLOAD];
+  uint8_t out[PanTiltFrame::MAX_PAYLOAD + PanTiltFrame::OVERHEAD];
+  payload[0] = status;
+  memcpy(payload + 1, data, len);
+  size_t size = PanTiltFrame::encode(out, frame.seq,
+                                     frame.command | PanTiltFrame::RESPONSE,
+                                     payload, len + 1);
+  Serial.write(out, size);
+}
+
+// Runs the command in frame, and answers it
+void HandleFrame() {
+  uint8_t data[5];
+  if (frame.version != PanTiltFrame::VERSION) {
+    Respond(PanTiltFrame::STATUS_BAD_VERSION, data, 0);
+    return;
+  }
+
+  switch (frame.command) {
+    case PanTiltFrame::CMD_STATUS: {
+      unsigned long uptime = millis() - start_time;
+      data[0] = (uptime >> 24) & 0xFF;
+      data[1] = (uptime >> 16) & 0xFF;
+      data[2] = (uptime >> 8) & 0xFF;
+      data[3] = uptime & 0xFF;
+      Respond(PanTiltFrame::STATUS_OK, data, 4);
       break;
-      
-    case COMMAND_PITCH:  //Move servo of pitch axis
-      value = atoi(buf_listener+1);
-      if (DEBUG_STATUS == 1) {
-        Serial.print("\nMoving pitch servo by [degrees]: ");
-        Serial.print(value);
-        Serial.print('\n');
+    }
+
+    case PanTiltFrame::CMD_MOVE: {
+      if (frame.length != 4) {
+        Respond(PanTiltFrame::STATUS_BAD_LENGTH, data, 0);
+        break;
       }
-      MoveServo(servo_pitch, value);
+      int pan = frame.get_short(0);
+      int tilt = frame.get_short(2);
+      MoveAndSettle(pan, tilt);
+      PutShort(data, pan);
+      PutShort(data + 2, tilt);
+      Respond(PanTiltFrame::STATUS_OK, data, 4);
       break;
+    }
 
-    case COMMAND_OFF:  // Turn off PWM for both channels
-      if (DEBUG_STATUS == 1) {
-        Serial.print("\nTurning servos off\n");
+    case PanTiltFrame::CMD_WAYPOINTS: {
+      if (frame.length < 1 || (frame.length - 1) % 4 != 0) {
+        Respond(PanTiltFrame::STATUS_BAD_LENGTH, data, 0);
+        break;
       }
-      DisableServos();
+      int first = frame.payload[0];
+      int count = (frame.length - 1) / 4;
+      if (first > waypoint_count || first + count > MAX_WAYPOINTS) {
+        Respond(PanTiltFrame::STATUS_NO_WAYPOINT, data, 0);
+        break;
+      }
+      for (int i = 0; i < count; i++) {
+        waypoint_pan[first + i] = frame.get_short(1 + 4*i);
+        waypoint_tilt[first + i] = frame.get_short(3 + 4*i);
+      }
+      waypoint_count = first + count;
+      waypoint_next = 0;
+      data[0] = waypoint_count;
+      Respond(PanTiltFrame::STATUS_OK, data, 1);
       break;
-      
-    case COMMAND_VERSION: //Print the firmware version
-      Serial.print("\nVersion: ");
-      Serial.print(VERSION_NUMBER);
-      Serial.print('\n');
+    }
+
+    case PanTiltFrame::CMD_NEXT: {
+      if (waypoint_next >= waypoint_count) {
+        Respond(PanTiltFrame::STATUS_NO_WAYPOINT, data, 0);
+        break;
+      }
+      int index = waypoint_next++;
+      MoveAndSettle(waypoint_pan[index], waypoint_tilt[index]);
+      data[0] = index;
+      PutShort(data + 1, waypoint_pan[index]);
+      PutShort(data + 3, waypoint_tilt[index]);
+      Respond(PanTiltFrame::STATUS_OK, data, 5);
       break;
-      
-    case COMMAND_DEBUG:  //Print logging messages
-      DEBUG_STATUS = atoi(buf_listener+1);
-      Serial.print("\nChanging verbosity to: ");
-      Serial.print(DEBUG_STATUS);
-      Serial.print('\n');
+    }
+
+    case PanTiltFrame::CMD_OFF:
+      DisableServos();
+      Respond(PanTiltFrame::STATUS_OK, data, 0);
       break;
-      
-    case COMMAND_UP_SINCE:
-      long duration = millis() - start_time;
-      Serial.print("\nUptime [ms]: ");
-      Serial.print(duration);
-      Serial.print('\n');
-    }  
-    
- }
+
+    default:
+      Respond(PanTiltFrame::STATUS_BAD_COMMAND, data, 0);
+  }
+}
+ 
+void setup() {
+  Serial.begin(BAUD_RATE);
+  Serial.flush();
+  
+  pinMode(13, OUTPUT);
+}
+ 
+void loop() {
+  while (Serial.available() > 0) {
+    if (frame.feed(Serial.read())) {
+      HandleFrame();
+    }
+  }
+}
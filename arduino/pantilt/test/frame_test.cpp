@@ -0,0 +1,192 @@
+/* Feeds the frames of protocol_vectors.txt through PanTiltFrame, alone and
+   back to back with dropped and truncated frames in between, the way
+   ProtocolVectorsTest feeds them through the app's parser. */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "PanTiltFrame.h"
+
+enum {
+    MAX_VECTORS = 64,
+    MAX_FRAME = PanTiltFrame::MAX_PAYLOAD + PanTiltFrame::OVERHEAD,
+    MAX_STREAM = 16384
+};
+
+struct Vector {
+    char name[64];
+    bool ok;
+    uint8_t bytes[MAX_FRAME];
+    size_t size;
+};
+
+static Vector vectors[MAX_VECTORS];
+static int num_vectors;
+static int failures;
+
+#define CHECK(cond, name) \
+    do { \
+        if (!(cond)) { \
+            fprintf(stderr, "%s:%d: check failed: %s (%s)\n", __FILE__, __LINE__, #cond, name); \
+            failures++; \
+        } \
+    } while (0)
+
+static bool read_vectors(const char *path)
+{
+    FILE *f = fopen(path, "r");
+    if (!f) {
+        return false;
+    }
+    char line[512];
+    while (fgets(line, sizeof(line), f) && num_vectors < MAX_VECTORS) {
+        char *name = strtok(line, " \t\r\n");
+        if (!name || name[0] == '#') {
+            continue;
+        }
+        char *expect = strtok(NULL, " \t\r\n");
+        if (!expect) {
+            continue;
+        }
+        Vector &v = vectors[num_vectors++];
+        snprintf(v.name, sizeof(v.name), "%s", name);
+        v.ok = strcmp(expect, "ok") == 0;
+        v.size = 0;
+        for (char *hex = strtok(NULL, " \t\r\n"); hex && v.size < MAX_FRAME;
+             hex = strtok(NULL, " \t\r\n")) {
+            v.bytes[v.size++] = (uint8_t) strtol(hex, NULL, 16);
+        }
+    }
+    fclose(f);
+    return num_vectors > 0;
+}
+
+/* Feeds the bytes and encodes every frame decoded from them again into
+   out, one after the other. Returns the number of frames. */
+static int decode(PanTiltFrame &frame, const uint8_t *bytes, size_t size,
+                  uint8_t *out, size_t &out_size)
+{
+    int frames = 0;
+    out_size = 0;
+    for (size_t i = 0; i < size; i++) {
+        if (frame.feed(bytes[i])) {
+            frames++;
+            out_size += PanTiltFrame::encode(out + out_size, frame.seq, frame.command,
+                                             frame.payload, frame.length);
+        }
+    }
+    return frames;
+}
+
+static void test_vectors()
+{
+    for (int i = 0; i < num_vectors; i++) {
+        const Vector &v = vectors[i];
+        PanTiltFrame frame;
+        uint8_t out[MAX_FRAME];
+        size_t out_size;
+        int frames = decode(frame, v.bytes, v.size, out, out_size);
+        if (v.ok) {
+            CHECK(frames == 1, v.name);
+            CHECK(frame.errors == 0, v.name);
+            CHECK(frame.version == PanTiltFrame::VERSION, v.name);
+            CHECK(out_size == v.size && memcmp(out, v.bytes, v.size) == 0, v.name);
+        } else {
+            CHECK(frames == 0, v.name);
+            CHECK(frame.errors == 1, v.name);
+        }
+    }
+}
+
+/* All the vectors back to back, with the ones to drop and a frame cut short
+   after its header before each of the others. The cut frame's length runs
+   into what follows, so its CRC fails with the next frames inside it. */
+static void test_good_frames_survive_the_dropped_ones()
+{
+    uint8_t payload[PanTiltFrame::MAX_PAYLOAD] = { 0 };
+    uint8_t cut[MAX_FRAME];
+    size_t cut_size = PanTiltFrame::encode(cut, 1, PanTiltFrame::CMD_WAYPOINTS, payload,
+                                           PanTiltFrame::MAX_PAYLOAD);
+
+    static uint8_t stream[MAX_STREAM], expected[MAX_STREAM], out[MAX_STREAM];
+    size_t size = 0, expected_size = 0;
+    int expected_frames = 0;
+    for (int i = 0; i < num_vectors; i++) {
+        if (vectors[i].ok) {
+            memcpy(stream + size, cut, 5);
+            size += 5;
+            for (int j = 0; j < num_vectors; j++) {
+                if (!vectors[j].ok) {
+                    memcpy(stream + size, vectors[j].bytes, vectors[j].size);
+                    size += vectors[j].size;
+                }
+            }
+            memcpy(expected + expected_size, vectors[i].bytes, vectors[i].size);
+            expected_size += vectors[i].size;
+            expected_frames++;
+        }
+        memcpy(stream + size, vectors[i].bytes, vectors[i].size);
+        size += vectors[i].size;
+    }
+    /* for the last cut frame to run into */
+    memset(stream + size, 0, cut_size);
+    size += cut_size;
+
+    PanTiltFrame frame;
+    size_t out_size;
+    CHECK(decode(frame, stream, size, out, out_size) == expected_frames, "back to back");
+    CHECK(out_size == expected_size && memcmp(out, expected, expected_size) == 0, "back to back");
+}
+
+/* Every good frame cut at every length, then a good one and bytes for the
+   cut frame's length to run into */
+static void test_truncated_then_good()
+{
+    const Vector *good = NULL;
+    for (int i = 0; i < num_vectors && !good; i++) {
+        if (vectors[i].ok) {
+            good = &vectors[i];
+        }
+    }
+    CHECK(good != NULL, "a good vector");
+    if (!good) {
+        return;
+    }
+
+    for (int i = 0; i < num_vectors; i++) {
+        if (!vectors[i].ok) {
+            continue;
+        }
+        for (size_t cut = 1; cut < vectors[i].size; cut++) {
+            uint8_t stream[3 * MAX_FRAME] = { 0 };
+            memcpy(stream, vectors[i].bytes, cut);
+            memcpy(stream + cut, good->bytes, good->size);
+
+            PanTiltFrame frame;
+            uint8_t out[3 * MAX_FRAME];
+            size_t out_size;
+            char name[128];
+            snprintf(name, sizeof(name), "%.63s cut at %d", vectors[i].name, (int) cut);
+            CHECK(decode(frame, stream, sizeof(stream), out, out_size) == 1, name);
+            CHECK(out_size == good->size && memcmp(out, good->bytes, good->size) == 0, name);
+        }
+    }
+}
+
+int main(int argc, char **argv)
+{
+    const char *path = argc > 1 ? argv[1] : "../protocol_vectors.txt";
+    if (!read_vectors(path)) {
+        fprintf(stderr, "Can't read %s\n", path);
+        return 1;
+    }
+    test_vectors();
+    test_good_frames_survive_the_dropped_ones();
+    test_truncated_then_good();
+    if (failures) {
+        printf("frame_test: %d failed\n", failures);
+        return 1;
+    }
+    printf("frame_test: ok\n");
+    return 0;
+}